@@ -0,0 +1,170 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.DefaultFileSystem;
+import org.sonar.api.batch.fs.internal.TestInputFileBuilder;
+import org.sonar.api.batch.scm.BlameCommand.BlameInput;
+import org.sonar.api.batch.scm.BlameCommand.BlameOutput;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.plugins.scm.mercurial.MercurialBenchmarkFixtures;
+import org.sonar.plugins.scm.mercurial.MercurialBlameCommand;
+
+/**
+ * {@link MercurialBlameCommand#blame} of all the files of a repository generated with the hg command, which must be
+ * installed. Generated repositories are kept in <code>java.io.tmpdir</code> and reused by the next runs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BlameCommandBenchmark {
+
+  @Param({"100"})
+  public int files;
+
+  @Param({"500"})
+  public int lines;
+
+  @Param({"20"})
+  public int history;
+
+  /**
+   * One hg process per file, the same with templated output or direct I/O, batches of files, command server, reading the repository, or blame cache.
+   */
+  @Param({"process", "template", "directIo", "batch", "commandServer", "java", "cache"})
+  public String strategy;
+
+  private MercurialBlameCommand command;
+  private BlameInput input;
+
+  @Setup
+  public void prepare() throws IOException {
+    File root = new File(System.getProperty("java.io.tmpdir"), "hg-benchmarks/files" + files + "-lines" + lines + "-history" + history);
+    File marker = new File(root, ".hg/generated");
+    List<String> paths;
+    if (marker.isFile()) {
+      paths = Files.readAllLines(marker.toPath());
+    } else {
+      deleteRecursively(root);
+      paths = new HgRepositoryGenerator(root, files, lines, history).generate();
+      Files.write(marker.toPath(), paths);
+    }
+
+    DefaultFileSystem fs = new DefaultFileSystem(root);
+    fs.setWorkDir(Files.createTempDirectory("hg-benchmarks-work"));
+    List<InputFile> inputFiles = new ArrayList<>(paths.size());
+    for (String path : paths) {
+      // Files end with a new line, which the scanner counts as an additional empty line
+      InputFile inputFile = new TestInputFileBuilder("benchmark", path).setModuleBaseDir(root.toPath()).setLines(lines + 1).build();
+      fs.add(inputFile);
+      inputFiles.add(inputFile);
+    }
+    input = new BlameInput() {
+      @Override
+      public DefaultFileSystem fileSystem() {
+        return fs;
+      }
+
+      @Override
+      public List<InputFile> filesToBlame() {
+        return inputFiles;
+      }
+    };
+    command = new MercurialBlameCommand(settings());
+  }
+
+  private MapSettings settings() {
+    MapSettings settings = new MapSettings();
+    switch (strategy) {
+      case "process":
+        break;
+      case "template":
+        settings.setProperty(MercurialBenchmarkFixtures.TEMPLATE_KEY, true);
+        break;
+      case "directIo":
+        settings.setProperty(MercurialBenchmarkFixtures.TEMPLATE_KEY, true);
+        settings.setProperty(MercurialBenchmarkFixtures.DIRECT_IO_KEY, true);
+        break;
+      case "batch":
+        settings.setProperty(MercurialBenchmarkFixtures.BATCH_SIZE_KEY, 20);
+        break;
+      case "commandServer":
+        settings.setProperty(MercurialBenchmarkFixtures.COMMAND_SERVER_KEY, true);
+        break;
+      case "java":
+        settings.setProperty(MercurialBenchmarkFixtures.ENGINE_KEY, MercurialBenchmarkFixtures.JAVA_ENGINE);
+        break;
+      case "cache":
+        settings.setProperty(MercurialBenchmarkFixtures.CACHE_KEY, true);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown strategy: " + strategy);
+    }
+    return settings;
+  }
+
+  /**
+   * Number of blamed lines, so that the result is used.
+   */
+  @Benchmark
+  public long blame() {
+    AtomicLong blamedLines = new AtomicLong();
+    command.blame(input, new BlameOutput() {
+      @Override
+      public void blameResult(InputFile file, List<BlameLine> blame) {
+        blamedLines.addAndGet(blame.size());
+      }
+    });
+    return blamedLines.get();
+  }
+
+  private static void deleteRecursively(File file) throws IOException {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    Files.deleteIfExists(file.toPath());
+  }
+}
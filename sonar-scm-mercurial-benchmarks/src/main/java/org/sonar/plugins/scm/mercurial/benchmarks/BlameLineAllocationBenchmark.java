@@ -0,0 +1,104 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.plugins.scm.mercurial.MercurialBenchmarkFixtures;
+import org.sonar.plugins.scm.mercurial.MercurialBenchmarkFixtures.Changeset;
+
+/**
+ * Memory needed to hold the blame of a file: one {@link BlameLine} with its own date per line, {@link BlameLine}
+ * objects sharing the changesets, and the columnar blame of the plugin, see
+ * {@link MercurialBenchmarkFixtures#fileBlame}. Run with <code>-prof gc</code> to compare allocations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlameLineAllocationBenchmark {
+
+  @Param({"1000", "100000"})
+  public int lines;
+
+  @Param({"10", "1000"})
+  public int changesets;
+
+  private Changeset[] lineChangesets;
+
+  @Setup
+  public void generateChangesets() {
+    Random random = new Random(42);
+    Changeset[] distinct = new Changeset[changesets];
+    for (int i = 0; i < changesets; i++) {
+      distinct[i] = new Changeset(String.format("%012x", random.nextLong() & 0xFFFFFFFFFFFFL), "user" + (i % 50) + "@example.com",
+        new Date((1_300_000_000L + random.nextInt(300_000_000)) * 1000));
+    }
+    lineChangesets = new Changeset[lines];
+    for (int i = 0; i < lines; i++) {
+      lineChangesets[i] = distinct[random.nextInt(changesets)];
+    }
+  }
+
+  @Benchmark
+  public List<BlameLine> blameLinePerLine() {
+    List<BlameLine> result = new ArrayList<>();
+    for (Changeset changeset : lineChangesets) {
+      result.add(new BlameLine().date(new Date(changeset.date().getTime())).revision(new String(changeset.revision())).author(new String(changeset.author())));
+    }
+    return result;
+  }
+
+  @Benchmark
+  public List<BlameLine> blameLineSharingChangesets() {
+    List<BlameLine> result = new ArrayList<>(lines + 1);
+    for (Changeset changeset : lineChangesets) {
+      result.add(new BlameLine().date(changeset.date()).revision(changeset.revision()).author(changeset.author()));
+    }
+    return result;
+  }
+
+  @Benchmark
+  public Object columnar() {
+    return MercurialBenchmarkFixtures.fileBlame(lineChangesets);
+  }
+
+  @Benchmark
+  public List<BlameLine> columnarToBlameLines() {
+    return MercurialBenchmarkFixtures.toBlameLines(columnar());
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.plugins.scm.mercurial.MercurialBenchmarkFixtures;
+
+/**
+ * Parsing of the output of hg blame for a file: the regular expression of the legacy verbose output, a regular
+ * expression and a split of the template output, and the parser of the plugin for both outputs, see
+ * {@link MercurialBenchmarkFixtures#parseTemplateOutput} and {@link MercurialBenchmarkFixtures#parseDefaultOutput}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlameParsingBenchmark {
+
+  private static final Pattern LEGACY_PATTERN = Pattern.compile("(.*?) (?:<(.*)> )?([0-9a-f]{12}) ([^:]+:[^:]+:[^:]+):.*");
+  private static final Pattern TEMPLATE_PATTERN = Pattern.compile("([0-9a-f]+) (-?\\d+) (-?\\d+) (.*)");
+
+  @Param({"1000", "100000"})
+  public int lines;
+
+  @Param({"10", "1000"})
+  public int changesets;
+
+  private List<String> legacyOutput;
+  private List<String> templateOutput;
+
+  @Setup
+  public void generateOutput() {
+    Random random = new Random(42);
+    String[] legacyChangesets = new String[changesets];
+    String[] templateChangesets = new String[changesets];
+    for (int i = 0; i < changesets; i++) {
+      String node = String.format("%012x", random.nextLong() & 0xFFFFFFFFFFFFL);
+      long seconds = 1_300_000_000L + random.nextInt(300_000_000);
+      String email = "user" + (i % 50) + "@example.com";
+      legacyChangesets[i] = "User " + (i % 50) + " <" + email + "> " + node + " " + DateParsingBenchmark.formatLegacy(seconds) + ":";
+      templateChangesets[i] = node + " " + seconds + " -3600 " + email;
+    }
+    legacyOutput = new ArrayList<>(lines);
+    templateOutput = new ArrayList<>(lines + 1);
+    templateOutput.add("@src/main/java/Foo.java");
+    for (int i = 0; i < lines; i++) {
+      int changeset = random.nextInt(changesets);
+      legacyOutput.add(legacyChangesets[changeset] + " line content " + i);
+      templateOutput.add(templateChangesets[changeset]);
+    }
+  }
+
+  @Benchmark
+  public List<BlameLine> legacyRegex() {
+    List<BlameLine> result = new ArrayList<>();
+    for (String line : legacyOutput) {
+      Matcher matcher = LEGACY_PATTERN.matcher(line.trim());
+      if (!matcher.matches()) {
+        throw new IllegalStateException(line);
+      }
+      String author = matcher.group(2) != null ? matcher.group(2) : matcher.group(1);
+      result.add(new BlameLine().revision(matcher.group(3)).author(author).date(DateParsingBenchmark.parseLegacy(matcher.group(4))));
+    }
+    return result;
+  }
+
+  @Benchmark
+  public List<BlameLine> templateRegex() {
+    List<BlameLine> result = new ArrayList<>();
+    for (String line : templateOutput) {
+      Matcher matcher = TEMPLATE_PATTERN.matcher(line);
+      if (matcher.matches()) {
+        result.add(new BlameLine().revision(matcher.group(1)).author(matcher.group(4)).date(new Date(Long.parseLong(matcher.group(2)) * 1000)));
+      }
+    }
+    return result;
+  }
+
+  @Benchmark
+  public List<BlameLine> templateSplit() {
+    List<BlameLine> result = new ArrayList<>();
+    for (String line : templateOutput) {
+      String[] fields = line.split(" ");
+      if (fields.length == 4) {
+        result.add(new BlameLine().revision(fields[0]).author(fields[3]).date(new Date(Long.parseLong(fields[1]) * 1000)));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Changesets cache shared by the files of an analysis, empty at the beginning like for the first file.
+   */
+  @Benchmark
+  public Object consumer() {
+    return MercurialBenchmarkFixtures.parseTemplateOutput("src/main/java/Foo.java", templateOutput, lines);
+  }
+
+  @Benchmark
+  public List<BlameLine> consumerToBlameLines() {
+    return MercurialBenchmarkFixtures.toBlameLines(consumer());
+  }
+
+  @Benchmark
+  public Object legacyConsumer() {
+    return MercurialBenchmarkFixtures.parseDefaultOutput("src/main/java/Foo.java", legacyOutput, lines);
+  }
+}
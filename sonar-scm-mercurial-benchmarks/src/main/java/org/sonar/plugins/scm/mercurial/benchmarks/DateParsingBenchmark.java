@@ -0,0 +1,129 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial.benchmarks;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.plugins.scm.mercurial.MercurialBenchmarkFixtures;
+
+/**
+ * Parsing of the dates of blamed lines: the human readable date of hg blame --date with {@link SimpleDateFormat},
+ * {@link DateTimeFormatter} or the scanner of the plugin, see {@link MercurialBenchmarkFixtures#parseDate}, and the
+ * seconds since epoch of the <code>hgdate</code> template filter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DateParsingBenchmark {
+
+  private static final String LEGACY_PATTERN = "EEE MMM dd HH:mm:ss yyyy Z";
+  private static final DateTimeFormatter LEGACY_FORMATTER = DateTimeFormatter.ofPattern(LEGACY_PATTERN, Locale.ENGLISH);
+  private static final int DATES = 1024;
+
+  private final DateFormat simpleDateFormat = new SimpleDateFormat(LEGACY_PATTERN, Locale.ENGLISH);
+  private final String[] legacyDates = new String[DATES];
+  private final String[] hgDates = new String[DATES];
+  private int next;
+
+  @Setup
+  public void generateDates() {
+    Random random = new Random(42);
+    for (int i = 0; i < DATES; i++) {
+      long seconds = 1_300_000_000L + random.nextInt(300_000_000);
+      legacyDates[i] = formatLegacy(seconds);
+      hgDates[i] = seconds + " -3600";
+    }
+  }
+
+  static String formatLegacy(long seconds) {
+    SimpleDateFormat format = new SimpleDateFormat(LEGACY_PATTERN, Locale.ENGLISH);
+    format.setTimeZone(TimeZone.getTimeZone(ZoneOffset.ofHours(1)));
+    return format.format(new Date(seconds * 1000));
+  }
+
+  static Date parseLegacy(String date) {
+    try {
+      return new SimpleDateFormat(LEGACY_PATTERN, Locale.ENGLISH).parse(date);
+    } catch (ParseException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private int nextIndex() {
+    next = (next + 1) & (DATES - 1);
+    return next;
+  }
+
+  @Benchmark
+  public Date simpleDateFormat() throws ParseException {
+    return simpleDateFormat.parse(legacyDates[nextIndex()]);
+  }
+
+  @Benchmark
+  public Date dateTimeFormatter() {
+    return Date.from(ZonedDateTime.parse(legacyDates[nextIndex()], LEGACY_FORMATTER).toInstant());
+  }
+
+  @Benchmark
+  public Date scan() {
+    return MercurialBenchmarkFixtures.parseDate(legacyDates[nextIndex()], 0);
+  }
+
+  @Benchmark
+  public Date hgDateParseLong() {
+    String date = hgDates[nextIndex()];
+    return new Date(Long.parseLong(date.substring(0, date.indexOf(' '))) * 1000);
+  }
+
+  /**
+   * Same parsing as the consumer of the template output of the plugin, without allocating an intermediate string.
+   */
+  @Benchmark
+  public Date hgDateScan() {
+    String date = hgDates[nextIndex()];
+    long seconds = 0;
+    for (int i = 0; i < date.length() && date.charAt(i) != ' '; i++) {
+      seconds = seconds * 10 + (date.charAt(i) - '0');
+    }
+    return new Date(seconds * 1000);
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generate a local Mercurial repository with the hg command: files of the given number of lines, modified by each
+ * changeset of the history so that blame has to go through all of it.
+ */
+class HgRepositoryGenerator {
+
+  private final File root;
+  private final int files;
+  private final int lines;
+  private final int history;
+
+  HgRepositoryGenerator(File root, int files, int lines, int history) {
+    this.root = root;
+    this.files = files;
+    this.lines = lines;
+    this.history = history;
+  }
+
+  /**
+   * Relative paths of the generated files.
+   */
+  List<String> generate() throws IOException {
+    Files.createDirectories(root.toPath());
+    hg("init");
+    List<String> paths = new ArrayList<>(files);
+    for (int f = 0; f < files; f++) {
+      paths.add("src/dir" + (f % 10) + "/File" + f + ".java");
+    }
+    for (int changeset = 0; changeset < Math.max(1, history); changeset++) {
+      for (int f = 0; f < files; f++) {
+        write(paths.get(f), f, changeset);
+      }
+      if (changeset == 0) {
+        hg("add", "--quiet");
+      }
+      hg("commit", "--quiet", "--message", "changeset " + changeset, "--user", "user" + (changeset % 7) + " <user" + (changeset % 7) + "@example.com>",
+        "--date", (1_500_000_000L + changeset * 3600L) + " 0");
+    }
+    return paths;
+  }
+
+  /**
+   * Each changeset after the first one changes one line out of history, so that lines are spread over all changesets.
+   */
+  private void write(String path, int file, int changeset) throws IOException {
+    StringBuilder content = new StringBuilder(lines * 40);
+    for (int line = 0; line < lines; line++) {
+      int version = changeset == 0 ? 0 : Math.max(0, changeset - Math.floorMod(changeset - line, Math.max(1, history)));
+      content.append("    int field").append(line).append(" = ").append(file).append(" + ").append(version).append(";\n");
+    }
+    File target = new File(root, path);
+    Files.createDirectories(target.getParentFile().toPath());
+    Files.write(target.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  private void hg(String... args) throws IOException {
+    List<String> command = new ArrayList<>();
+    command.add("hg");
+    command.addAll(Arrays.asList(args));
+    Process process = new ProcessBuilder(command).directory(root).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.INHERIT).start();
+    try {
+      if (!process.waitFor(10, TimeUnit.MINUTES) || process.exitValue() != 0) {
+        throw new IllegalStateException("Command failed: " + command);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted: " + command, e);
+    } finally {
+      process.destroy();
+    }
+  }
+}
@@ -0,0 +1,534 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Same algorithm as hg annotate of the working directory parent: the lines of each file revision are attributed
+ * to the changeset of their file revision, then lines matching a parent revision are attributed like in the parent,
+ * the second parent winning over the first one. Copies and renames are followed.
+ * <p>
+ * Lines are attributed to the link revision of the file revision that introduced them, which is the changeset that
+ * first introduced the file revision. Unlike hg, it is not adjusted when the same file revision was introduced by
+ * several changesets on different branches.
+ * <p>
+ * With a {@link Boundary}, the history is not followed beyond the file revisions introduced by changesets that are
+ * older than the boundary: all their lines are attributed to these changesets, like the boundary commits of
+ * <code>git blame --since</code>. The cost then depends on the recent history only.
+ * <p>
+ * File revisions are annotated in changelog order, each one once even when it is an ancestor of several annotated files
+ * through copies. Annotations are kept until all their descendants are annotated, and are written to the spill directory
+ * when they use more memory than allowed.
+ * <p>
+ * At most {@link #MAX_OPEN_FILE_LOGS} file logs are kept open, the least recently used ones are closed and opened again
+ * when needed, so that annotating all the files of a large repository doesn't keep all their revlogs mapped.
+ * <p>
+ * Not thread safe.
+ */
+class MercurialAnnotate implements Closeable {
+
+  private static final Logger LOG = Loggers.get(MercurialAnnotate.class);
+  private static final byte[] METADATA_MARKER = {1, '\n'};
+  static final int MAX_OPEN_FILE_LOGS = 256;
+
+  private final MercurialRepository repository;
+  private final boolean ignoreWhitespaces;
+  @Nullable
+  private final Boundary boundary;
+  @Nullable
+  private final File spillDirectory;
+  private final long maxMemory;
+  private final int maxOpenFileLogs;
+  /**
+   * Open file logs by path, in access order.
+   */
+  private final Map<String, MercurialRevlog> fileLogs = new LinkedHashMap<>(16, 0.75f, true);
+
+  /**
+   * Changesets older than the blame window.
+   */
+  @FunctionalInterface
+  interface Boundary {
+    boolean isOlder(int changeset) throws IOException;
+  }
+
+  MercurialAnnotate(MercurialRepository repository, boolean ignoreWhitespaces) {
+    this(repository, ignoreWhitespaces, null, null, Long.MAX_VALUE);
+  }
+
+  /**
+   * @param boundary changesets whose file revisions are not annotated further, the whole history is annotated if null
+   * @param spillDirectory directory of the annotations written to disk, nothing is written to disk if null
+   * @param maxMemory memory in bytes of the annotations kept in memory, before they are written to the spill directory
+   */
+  MercurialAnnotate(MercurialRepository repository, boolean ignoreWhitespaces, @Nullable Boundary boundary, @Nullable File spillDirectory, long maxMemory) {
+    this(repository, ignoreWhitespaces, boundary, spillDirectory, maxMemory, MAX_OPEN_FILE_LOGS);
+  }
+
+  MercurialAnnotate(MercurialRepository repository, boolean ignoreWhitespaces, @Nullable Boundary boundary, @Nullable File spillDirectory, long maxMemory,
+    int maxOpenFileLogs) {
+    this.repository = repository;
+    this.ignoreWhitespaces = ignoreWhitespaces;
+    this.boundary = boundary;
+    this.spillDirectory = spillDirectory;
+    this.maxMemory = maxMemory;
+    this.maxOpenFileLogs = Math.max(1, maxOpenFileLogs);
+  }
+
+  private static final class FileRev {
+    private final String path;
+    private final int rev;
+
+    FileRev(String path, int rev) {
+      this.path = path;
+      this.rev = rev;
+    }
+
+    @Override
+    public int hashCode() {
+      return path.hashCode() * 31 + rev;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof FileRev && ((FileRev) obj).rev == rev && ((FileRev) obj).path.equals(path);
+    }
+  }
+
+  private static final class Annotation {
+    private final MercurialBdiff.Lines lines;
+    private final int[] changesets;
+
+    Annotation(MercurialBdiff.Lines lines, int[] changesets) {
+      this.lines = lines;
+      this.changesets = changesets;
+    }
+
+    long sizeInBytes() {
+      return lines.sizeInBytes() + 4L * changesets.length;
+    }
+  }
+
+  /**
+   * File revision to annotate, and the annotated file revisions depending on it.
+   */
+  private static final class Node {
+    private final FileRev fileRev;
+    private final int linkRev;
+    private final List<FileRev> parentRevs;
+    private final List<Node> parents = new ArrayList<>(2);
+    private final List<Node> children = new ArrayList<>(1);
+    private boolean base;
+    /**
+     * Number of children, plus one for the file revision of the working directory parent, not annotated yet.
+     */
+    private int needed;
+    private int pendingParents;
+    @Nullable
+    private Annotation annotation;
+    @Nullable
+    private File spilled;
+
+    Node(FileRev fileRev, int linkRev, List<FileRev> parentRevs) {
+      this.fileRev = fileRev;
+      this.linkRev = linkRev;
+      this.parentRevs = parentRevs;
+    }
+  }
+
+  /**
+   * Changelog revision of each line of the file in the working directory parent, an empty array for binary files,
+   * or null if the file is not in the working directory parent.
+   */
+  @CheckForNull
+  int[] annotate(String path) throws IOException {
+    Pass pass = new Pass();
+    pass.add(path);
+    pass.run();
+    return pass.results.get(path);
+  }
+
+  /**
+   * Same as {@link #annotate(String)} for many files, with a single pass over their history. Files not in the working
+   * directory parent are mapped to null, files whose history can't be read are not in the result.
+   */
+  Map<String, int[]> annotateAll(Collection<String> paths) throws IOException {
+    Pass pass = new Pass();
+    for (String path : paths) {
+      try {
+        pass.add(path);
+      } catch (IOException | RuntimeException e) {
+        LOG.debug("Unable to read the history of " + path + ": " + e.getMessage());
+      }
+    }
+    pass.run();
+    return pass.results;
+  }
+
+  private class Pass {
+    private final Map<FileRev, Node> nodes = new HashMap<>();
+    /**
+     * Number of file revisions not annotated yet by path, the file log is closed when there is none left.
+     */
+    private final Map<String, Integer> remaining = new HashMap<>();
+    private final Map<String, int[]> results = new HashMap<>();
+    private final Set<Node> inMemory = new LinkedHashSet<>();
+    private long memory;
+    private int spilledCount;
+
+    /**
+     * Add the file revision of the working directory parent and all its ancestors, or nothing if one of them can't be read.
+     */
+    void add(String path) throws IOException {
+      byte[] fileNode = repository.manifest().get(path);
+      if (fileNode == null) {
+        results.put(path, null);
+        return;
+      }
+      int rev = fileLog(path).findRev(fileNode);
+      if (rev == MercurialRevlog.NULL_REV) {
+        throw new IOException("File revision not found for " + path);
+      }
+      FileRev base = new FileRev(path, rev);
+      if (isBinary(text(base))) {
+        results.put(path, new int[0]);
+        return;
+      }
+      Map<FileRev, Node> added = new HashMap<>();
+      Deque<FileRev> visit = new ArrayDeque<>();
+      visit.push(base);
+      while (!visit.isEmpty()) {
+        FileRev f = visit.pop();
+        if (nodes.containsKey(f) || added.containsKey(f)) {
+          continue;
+        }
+        int linkRev = fileLog(f.path).linkRev(f.rev);
+        List<FileRev> pl = (boundary != null && boundary.isOlder(linkRev)) ? Collections.emptyList() : parents(f);
+        added.put(f, new Node(f, linkRev, pl));
+        for (FileRev p : pl) {
+          visit.push(p);
+        }
+      }
+      nodes.putAll(added);
+      for (Node node : added.values()) {
+        for (FileRev p : node.parentRevs) {
+          Node parent = nodes.get(p);
+          node.parents.add(parent);
+          parent.children.add(node);
+          parent.needed++;
+        }
+        node.pendingParents = node.parents.size();
+        remaining.merge(node.fileRev.path, 1, Integer::sum);
+      }
+      Node baseNode = nodes.get(base);
+      baseNode.base = true;
+      baseNode.needed++;
+    }
+
+    /**
+     * Annotate each file revision once all its parents are annotated, the oldest changesets first.
+     */
+    void run() throws IOException {
+      PriorityQueue<Node> ready = new PriorityQueue<>(Comparator.<Node>comparingInt(n -> n.linkRev)
+        .thenComparing(n -> n.fileRev.path)
+        .thenComparingInt(n -> n.fileRev.rev));
+      for (Node node : nodes.values()) {
+        if (node.pendingParents == 0) {
+          ready.add(node);
+        }
+      }
+      try {
+        while (!ready.isEmpty()) {
+          Node node = ready.poll();
+          Annotation current = decorate(node.fileRev);
+          for (Node parent : node.parents) {
+            Annotation annotation = load(parent);
+            for (int[] block : MercurialBdiff.blocks(annotation.lines, current.lines)) {
+              System.arraycopy(annotation.changesets, block[0], current.changesets, block[2], block[1] - block[0]);
+            }
+            release(parent);
+          }
+          node.annotation = current;
+          memory += current.sizeInBytes();
+          inMemory.add(node);
+          if (node.base) {
+            results.put(node.fileRev.path, current.changesets);
+            release(node);
+          }
+          for (Node child : node.children) {
+            child.pendingParents--;
+            if (child.pendingParents == 0) {
+              ready.add(child);
+            }
+          }
+          if (remaining.merge(node.fileRev.path, -1, Integer::sum) == 0) {
+            closeFileLog(node.fileRev.path);
+          }
+          spillIfNeeded();
+        }
+      } finally {
+        for (Node node : nodes.values()) {
+          deleteSpilled(node);
+        }
+      }
+      if (nodes.size() > 1) {
+        LOG.debug(nodes.size() + " file revisions annotated" + (spilledCount > 0 ? (", " + spilledCount + " annotations written to disk") : ""));
+      }
+    }
+
+    private Annotation load(Node node) throws IOException {
+      if (node.annotation != null) {
+        return node.annotation;
+      }
+      if (node.spilled == null) {
+        throw new IllegalStateException("Annotation not available");
+      }
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(node.spilled.toPath())))) {
+        int[] changesets = new int[in.readInt()];
+        for (int i = 0; i < changesets.length; i++) {
+          changesets[i] = in.readInt();
+        }
+        byte[] text = new byte[in.readInt()];
+        in.readFully(text);
+        return new Annotation(MercurialBdiff.Lines.split(text), changesets);
+      }
+    }
+
+    /**
+     * Forget the annotation of the file revision once no other file revision needs it.
+     */
+    private void release(Node node) throws IOException {
+      node.needed--;
+      if (node.needed == 0) {
+        if (node.annotation != null) {
+          memory -= node.annotation.sizeInBytes();
+          inMemory.remove(node);
+          node.annotation = null;
+        }
+        deleteSpilled(node);
+      }
+    }
+
+    /**
+     * Write the annotations kept for the longest time to disk, until the memory limit is respected.
+     */
+    private void spillIfNeeded() throws IOException {
+      if (spillDirectory == null) {
+        return;
+      }
+      while (memory > maxMemory && !inMemory.isEmpty()) {
+        Node node = inMemory.iterator().next();
+        Annotation annotation = node.annotation;
+        Files.createDirectories(spillDirectory.toPath());
+        File file = File.createTempFile("annotate", ".bin", spillDirectory);
+        node.spilled = file;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file.toPath())))) {
+          out.writeInt(annotation.changesets.length);
+          for (int changeset : annotation.changesets) {
+            out.writeInt(changeset);
+          }
+          out.writeInt(annotation.lines.text().length);
+          out.write(annotation.lines.text());
+        }
+        memory -= annotation.sizeInBytes();
+        inMemory.remove(node);
+        node.annotation = null;
+        spilledCount++;
+      }
+    }
+
+    private void deleteSpilled(Node node) throws IOException {
+      if (node.spilled != null) {
+        Files.deleteIfExists(node.spilled.toPath());
+        node.spilled = null;
+      }
+    }
+  }
+
+  /**
+   * Content of the file in the working directory parent, without copy metadata, or null if it is not in its manifest.
+   */
+  @CheckForNull
+  byte[] content(String path) throws IOException {
+    byte[] fileNode = repository.manifest().get(path);
+    if (fileNode == null) {
+      return null;
+    }
+    int rev = fileLog(path).findRev(fileNode);
+    if (rev == MercurialRevlog.NULL_REV) {
+      throw new IOException("File revision not found for " + path);
+    }
+    return text(new FileRev(path, rev));
+  }
+
+  private Annotation decorate(FileRev f) throws IOException {
+    byte[] text = text(f);
+    MercurialBdiff.Lines lines = MercurialBdiff.Lines.split(ignoreWhitespaces ? MercurialBdiff.Lines.removeWhitespaces(text) : text);
+    int[] changesets = new int[lines.size()];
+    Arrays.fill(changesets, fileLog(f.path).linkRev(f.rev));
+    return new Annotation(lines, changesets);
+  }
+
+  /**
+   * Parents of a file revision, a copy source replacing the first parent, see filectx.parents() in Mercurial.
+   */
+  private List<FileRev> parents(FileRev f) throws IOException {
+    MercurialRevlog log = fileLog(f.path);
+    List<FileRev> result = new ArrayList<>(2);
+    int p1 = log.parent1(f.rev);
+    int p2 = log.parent2(f.rev);
+    if (p1 != MercurialRevlog.NULL_REV) {
+      result.add(new FileRev(f.path, p1));
+    }
+    if (p2 != MercurialRevlog.NULL_REV) {
+      result.add(new FileRev(f.path, p2));
+    }
+    if (p1 == MercurialRevlog.NULL_REV) {
+      FileRev copySource = copySource(log.revision(f.rev));
+      if (copySource != null) {
+        result.add(0, copySource);
+      }
+    }
+    return result;
+  }
+
+  @CheckForNull
+  private FileRev copySource(byte[] rawText) throws IOException {
+    Map<String, String> metadata = metadata(rawText);
+    String copy = metadata.get("copy");
+    String copyRev = metadata.get("copyrev");
+    if (copy == null || copyRev == null) {
+      return null;
+    }
+    int rev = fileLog(copy).findRev(MercurialUtils.parseHex(copyRev));
+    if (rev == MercurialRevlog.NULL_REV) {
+      throw new IOException("Copy source not found: " + copy + "@" + copyRev);
+    }
+    return new FileRev(copy, rev);
+  }
+
+  /**
+   * Copy metadata at the beginning of file revisions, between two "\1\n" lines.
+   */
+  private static Map<String, String> metadata(byte[] rawText) {
+    Map<String, String> metadata = new HashMap<>();
+    int end = metadataEnd(rawText);
+    if (end < 0) {
+      return metadata;
+    }
+    String text = new String(rawText, 2, end - 2 - METADATA_MARKER.length, StandardCharsets.UTF_8);
+    for (String line : text.split("\n")) {
+      int separator = line.indexOf(": ");
+      if (separator > 0) {
+        metadata.put(line.substring(0, separator), line.substring(separator + 2));
+      }
+    }
+    return metadata;
+  }
+
+  /**
+   * Position after the metadata, or -1 if there is no metadata.
+   */
+  private static int metadataEnd(byte[] rawText) {
+    if (rawText.length < 2 || rawText[0] != METADATA_MARKER[0] || rawText[1] != METADATA_MARKER[1]) {
+      return -1;
+    }
+    for (int i = 2; i + 1 < rawText.length; i++) {
+      if (rawText[i] == METADATA_MARKER[0] && rawText[i + 1] == METADATA_MARKER[1]) {
+        return i + 2;
+      }
+    }
+    return -1;
+  }
+
+  private byte[] text(FileRev f) throws IOException {
+    byte[] rawText = fileLog(f.path).revision(f.rev);
+    int end = metadataEnd(rawText);
+    return end < 0 ? rawText : Arrays.copyOfRange(rawText, end, rawText.length);
+  }
+
+  private static boolean isBinary(byte[] text) {
+    return MercurialRepository.indexOf(text, (byte) 0, 0) >= 0;
+  }
+
+  /**
+   * Must not be kept across calls opening another file log, it may be closed by them.
+   */
+  private MercurialRevlog fileLog(String path) throws IOException {
+    MercurialRevlog log = fileLogs.get(path);
+    if (log == null) {
+      log = repository.fileLog(path);
+      fileLogs.put(path, log);
+      if (fileLogs.size() > maxOpenFileLogs) {
+        Iterator<MercurialRevlog> leastRecentlyUsed = fileLogs.values().iterator();
+        leastRecentlyUsed.next().close();
+        leastRecentlyUsed.remove();
+      }
+    }
+    return log;
+  }
+
+  int openFileLogs() {
+    return fileLogs.size();
+  }
+
+  private void closeFileLog(String path) throws IOException {
+    MercurialRevlog log = fileLogs.remove(path);
+    if (log != null) {
+      log.close();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (MercurialRevlog log : fileLogs.values()) {
+      log.close();
+    }
+    fileLogs.clear();
+  }
+}
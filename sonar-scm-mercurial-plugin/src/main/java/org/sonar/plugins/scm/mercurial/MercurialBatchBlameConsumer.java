@@ -0,0 +1,153 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.utils.command.StreamConsumer;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Split the output of a blame on several files into the blame of each file, see {@link MercurialBlameConsumer#TEMPLATE}.
+ */
+public class MercurialBatchBlameConsumer implements StreamConsumer, MercurialProcessExecutor.ByteLineConsumer {
+
+  private static final Logger LOG = Loggers.get(MercurialBatchBlameConsumer.class);
+
+  /**
+   * Files to blame by path relative to the repository root, as printed by hg.
+   */
+  private final Map<String, InputFile> filesByPath = new HashMap<>();
+  private final MercurialChangesetCache changesets;
+  private final Map<InputFile, MercurialBlameConsumer> consumers = new LinkedHashMap<>();
+  private final Set<InputFile> failed = new HashSet<>();
+  private InputFile current;
+
+  /**
+   * @param files files of a module at the root of the repository
+   */
+  public MercurialBatchBlameConsumer(List<InputFile> files) {
+    this(files, "", new MercurialChangesetCache());
+  }
+
+  /**
+   * @param repositoryPrefix prefix of the paths of the files relative to the repository root, see
+   * {@link MercurialUtils#repositoryPrefix}
+   */
+  MercurialBatchBlameConsumer(List<InputFile> files, String repositoryPrefix, MercurialChangesetCache changesets) {
+    for (InputFile file : files) {
+      filesByPath.put(repositoryPrefix + file.relativePath(), file);
+    }
+    this.changesets = changesets;
+  }
+
+  @Override
+  public void consumeLine(String line) {
+    if (MercurialBlameConsumer.isFileHeader(line)) {
+      startFile(line.substring(1));
+    } else if (isBlamingCurrentFile()) {
+      try {
+        consumers.get(current).consumeLine(line);
+      } catch (IllegalStateException e) {
+        fail(e);
+      }
+    }
+  }
+
+  @Override
+  public void consumeLine(byte[] buffer, int start, int end) {
+    if (end > start && buffer[start] == '@') {
+      startFile(new String(buffer, start + 1, end - start - 1, StandardCharsets.UTF_8));
+    } else if (isBlamingCurrentFile()) {
+      try {
+        consumers.get(current).consumeLine(buffer, start, end);
+      } catch (IllegalStateException e) {
+        fail(e);
+      }
+    }
+  }
+
+  private void startFile(String repositoryPath) {
+    current = filesByPath.get(repositoryPath);
+    if (current != null) {
+      consumers.put(current, MercurialBlameConsumer.forTemplate(current.relativePath(), changesets, current.lines()));
+    }
+  }
+
+  private boolean isBlamingCurrentFile() {
+    return current != null && !failed.contains(current);
+  }
+
+  private void fail(IllegalStateException e) {
+    LOG.debug(e.getMessage());
+    failed.add(current);
+    consumers.remove(current);
+  }
+
+  Set<String> getUnresolvedNodes() {
+    Set<String> nodes = new LinkedHashSet<>();
+    for (MercurialBlameConsumer consumer : consumers.values()) {
+      nodes.addAll(consumer.getUnresolvedNodes());
+    }
+    return nodes;
+  }
+
+  /**
+   * Blame of the files that were successfully processed. Missing files have to be blamed on their own.
+   */
+  public Map<InputFile, List<BlameLine>> getResults() {
+    Map<InputFile, List<BlameLine>> results = new LinkedHashMap<>();
+    for (Map.Entry<InputFile, MercurialBlameConsumer> entry : consumers.entrySet()) {
+      results.put(entry.getKey(), entry.getValue().getLines());
+    }
+    return results;
+  }
+
+  /**
+   * Same as {@link #getResults()}, without creating {@link BlameLine} objects. Files blamed with changesets that could
+   * not be resolved are missing too, see {@link #isUnresolved(InputFile)}.
+   */
+  Map<InputFile, MercurialFileBlame> getBlames() {
+    Map<InputFile, MercurialFileBlame> results = new LinkedHashMap<>();
+    for (Map.Entry<InputFile, MercurialBlameConsumer> entry : consumers.entrySet()) {
+      if (entry.getValue().isResolved()) {
+        results.put(entry.getKey(), entry.getValue().getBlame());
+      }
+    }
+    return results;
+  }
+
+  /**
+   * The file was blamed, but with changesets that are still unknown after being resolved.
+   */
+  boolean isUnresolved(InputFile inputFile) {
+    MercurialBlameConsumer consumer = consumers.get(inputFile);
+    return consumer != null && !consumer.isResolved();
+  }
+}
@@ -0,0 +1,305 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Line matching of the bdiff algorithm of Mercurial, so that lines are attributed to the same changesets as hg annotate.
+ * The longest matching block is found, preferring blocks close to the middle, then the same is done recursively
+ * before and after it. Matching blocks are finally pushed towards the end when possible.
+ */
+final class MercurialBdiff {
+
+  private MercurialBdiff() {
+    // only static methods
+  }
+
+  /**
+   * Lines of a text, each line includes its end of line except the last one if the text doesn't end with a new line.
+   */
+  static final class Lines {
+    private final byte[] text;
+    private final int[] starts;
+
+    private Lines(byte[] text, int[] starts) {
+      this.text = text;
+      this.starts = starts;
+    }
+
+    static Lines split(byte[] text) {
+      int count = 0;
+      for (byte b : text) {
+        if (b == '\n') {
+          count++;
+        }
+      }
+      if (text.length > 0 && text[text.length - 1] != '\n') {
+        count++;
+      }
+      int[] starts = new int[count + 1];
+      int line = 1;
+      for (int i = 0; i < text.length && line < count; i++) {
+        if (text[i] == '\n') {
+          starts[line++] = i + 1;
+        }
+      }
+      starts[count] = text.length;
+      return new Lines(text, starts);
+    }
+
+    /**
+     * Text without spaces, tabs and carriage returns, like "hg annotate -w" compares lines.
+     */
+    static byte[] removeWhitespaces(byte[] text) {
+      byte[] result = new byte[text.length];
+      int length = 0;
+      for (byte b : text) {
+        if (b != ' ' && b != '\t' && b != '\r') {
+          result[length++] = b;
+        }
+      }
+      return Arrays.copyOf(result, length);
+    }
+
+    int size() {
+      return starts.length - 1;
+    }
+
+    byte[] text() {
+      return text;
+    }
+
+    /**
+     * Approximate memory used by the lines.
+     */
+    long sizeInBytes() {
+      return text.length + 4L * starts.length;
+    }
+
+    private Line line(int i) {
+      return new Line(text, starts[i], starts[i + 1]);
+    }
+  }
+
+  private static final class Line {
+    private final byte[] text;
+    private final int start;
+    private final int end;
+    private final int hash;
+
+    Line(byte[] text, int start, int end) {
+      this.text = text;
+      this.start = start;
+      this.end = end;
+      int h = 1;
+      for (int i = start; i < end; i++) {
+        h = 31 * h + text[i];
+      }
+      this.hash = h;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Line)) {
+        return false;
+      }
+      Line other = (Line) obj;
+      if (hash != other.hash || end - start != other.end - other.start) {
+        return false;
+      }
+      for (int i = 0; i < end - start; i++) {
+        if (text[start + i] != other.text[other.start + i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Matching blocks of lines, as {a1, a2, b1, b2} where lines a1 to a2 (exclusive) of a are equal to lines b1 to b2 of b.
+   * Like Mercurial, the last block is always the empty block at the end of both texts.
+   */
+  static List<int[]> blocks(Lines a, Lines b) {
+    int an = a.size();
+    int bn = b.size();
+    // Equivalence class of each line, lines of a that are not in b have the class -1
+    int[] ae = new int[an];
+    int[] be = new int[bn];
+    // First line of b of the same class for lines of a, previous line of b of the same class for lines of b, or -1
+    int[] anext = new int[an];
+    int[] bnext = new int[bn];
+    Map<Line, Integer> classes = new HashMap<>();
+    List<Integer> heads = new ArrayList<>();
+    List<Integer> popularity = new ArrayList<>();
+    for (int i = 0; i < bn; i++) {
+      Line line = b.line(i);
+      Integer e = classes.get(line);
+      if (e == null) {
+        e = heads.size();
+        classes.put(line, e);
+        heads.add(-1);
+        popularity.add(0);
+      }
+      bnext[i] = heads.get(e);
+      be[i] = e;
+      heads.set(e, i);
+      popularity.set(e, popularity.get(e) + 1);
+    }
+    int threshold = bn >= 31000 ? (bn / 1000) : (1000000 / (bn + 1));
+    for (int i = 0; i < an; i++) {
+      Integer e = classes.get(a.line(i));
+      if (e == null) {
+        ae[i] = -1;
+        anext[i] = -1;
+      } else {
+        ae[i] = e;
+        // Too popular lines are not used to start a match
+        anext[i] = popularity.get(e) <= threshold ? heads.get(e) : -1;
+      }
+    }
+
+    Matcher matcher = new Matcher(ae, be, anext, bnext, new int[bn], new int[bn]);
+    List<int[]> blocks = new ArrayList<>();
+    matcher.recurse(0, an, 0, bn, blocks);
+    blocks.add(new int[] {an, an, bn, bn});
+
+    // Push each block towards the end
+    for (int i = 0; i < blocks.size() - 1; i++) {
+      int[] current = blocks.get(i);
+      int[] next = blocks.get(i + 1);
+      if (current[1] == next[0] || current[3] == next[2]) {
+        while (current[1] < an && current[3] < bn && next[0] < next[1] && next[2] < next[3] && ae[current[1]] == be[current[3]]) {
+          current[1]++;
+          next[0]++;
+          current[3]++;
+          next[2]++;
+        }
+      }
+    }
+    return blocks;
+  }
+
+  private static final class Matcher {
+    private final int[] ae;
+    private final int[] be;
+    private final int[] anext;
+    private final int[] bnext;
+    private final int[] pos;
+    private final int[] len;
+
+    Matcher(int[] ae, int[] be, int[] anext, int[] bnext, int[] pos, int[] len) {
+      this.ae = ae;
+      this.be = be;
+      this.anext = anext;
+      this.bnext = bnext;
+      this.pos = pos;
+      this.len = len;
+    }
+
+    void recurse(int a1Start, int a2, int b1Start, int b2, List<int[]> blocks) {
+      int a1 = a1Start;
+      int b1 = b1Start;
+      while (true) {
+        int[] match = longestMatch(a1, a2, b1, b2);
+        int k = match[2];
+        if (k == 0) {
+          return;
+        }
+        int i = match[0];
+        int j = match[1];
+        recurse(a1, i, b1, j, blocks);
+        blocks.add(new int[] {i, i + k, j, j + k});
+        a1 = i + k;
+        b1 = j + k;
+      }
+    }
+
+    private int[] longestMatch(int a1Start, int a2, int b1, int b2) {
+      int a1 = a1Start;
+      int mi = a1;
+      int mj = b1;
+      int mk = 0;
+      // Window the search on large regions to bound the worst case
+      if (a2 - a1 > 30000) {
+        a1 = a2 - 30000;
+      }
+      int half = (a1 + a2 - 1) / 2;
+      int bhalf = (b1 + b2 - 1) / 2;
+
+      for (int i = a1; i < a2; i++) {
+        int j = anext[i];
+        // Skip all lines of b after the current block
+        while (j >= b2) {
+          j = bnext[j];
+        }
+        for (; j >= b1; j = bnext[j]) {
+          // Does this extend an earlier match?
+          int k = 1;
+          for (; j - k >= b1 && i - k >= a1; k++) {
+            if (pos[j - k] == i - k) {
+              k += len[j - k];
+              break;
+            }
+            if (ae[i - k] != be[j - k]) {
+              break;
+            }
+          }
+          pos[j] = i;
+          len[j] = k;
+
+          // Prefer longer matches, then matches closer to the middle to balance recursion
+          if (k > mk) {
+            mi = i;
+            mj = j;
+            mk = k;
+          } else if (k == mk) {
+            if (i > mi && i <= half && j > b1) {
+              mi = i;
+              mj = j;
+            } else if (i == mi && (mj > bhalf || i == a1)) {
+              mj = j;
+            }
+          }
+        }
+      }
+
+      if (mk > 0) {
+        mi = mi - mk + 1;
+        mj = mj - mk + 1;
+      }
+      // Expand the match to include subsequent popular lines
+      while (mi + mk < a2 && mj + mk < b2 && ae[mi + mk] == be[mj + mk]) {
+        mk++;
+      }
+      return new int[] {mi, mj, mk};
+    }
+  }
+}
@@ -0,0 +1,304 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Blame of files from previous analyses, keyed by the path and the file node of the files in the manifest of the
+ * working directory parent. A file node identifies both the content and the history of a file, but files added
+ * with the same content in different changesets have the same file node, so the path is part of the key.
+ * <p>
+ * Binary format: a header (magic, version, blame options, generation), the table of changesets, then for each path
+ * and file node its last generation of use and the run-length encoded indexes of the changesets of its lines. The file is
+ * replaced atomically when saved, and discarded when it can't be read or was written with other blame options.
+ * When there are too many entries, the least recently used ones are evicted.
+ */
+class MercurialBlameCache {
+
+  private static final Logger LOG = Loggers.get(MercurialBlameCache.class);
+
+  private static final int MAGIC = 0x48474243;
+  private static final int VERSION = 2;
+
+  private final File file;
+  private final String options;
+  private final int maxEntries;
+  private final long generation;
+  private final MercurialChangesetCache changesets;
+  private final List<MercurialChangesetCache.Changeset> table = new ArrayList<>();
+  private final Map<String, Integer> tableIndex = new HashMap<>();
+  private final Map<String, Entry> entries = new HashMap<>();
+  private int hits = 0;
+
+  private static class Entry {
+    private final int[] runs;
+    private long generation;
+
+    Entry(int[] runs, long generation) {
+      this.runs = runs;
+      this.generation = generation;
+    }
+  }
+
+  private MercurialBlameCache(File file, String options, int maxEntries, long generation, MercurialChangesetCache changesets) {
+    this.file = file;
+    this.options = options;
+    this.maxEntries = maxEntries;
+    this.generation = generation;
+    this.changesets = changesets;
+  }
+
+  /**
+   * Load the cache from the given file. An empty cache is returned if the file doesn't exist, can't be read, was written
+   * with other options, or if invalidation is requested.
+   */
+  static MercurialBlameCache load(File file, String options, int maxEntries, boolean invalidate, MercurialChangesetCache changesets) {
+    if (!invalidate && file.isFile()) {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+        if (in.readInt() == MAGIC && in.readInt() == VERSION && in.readUTF().equals(options)) {
+          MercurialBlameCache cache = new MercurialBlameCache(file, options, maxEntries, in.readLong() + 1, changesets);
+          cache.read(in);
+          LOG.debug("Loaded blame of " + cache.entries.size() + " files from " + file);
+          return cache;
+        }
+        LOG.debug("Ignoring blame cache written by another version or with other options: " + file);
+      } catch (IOException | RuntimeException e) {
+        LOG.debug("Ignoring unreadable blame cache " + file + ": " + e.getMessage());
+      }
+    }
+    return new MercurialBlameCache(file, options, maxEntries, 0, changesets);
+  }
+
+  private void read(DataInputStream in) throws IOException {
+    int changesetCount = in.readInt();
+    for (int i = 0; i < changesetCount; i++) {
+      String revision = in.readUTF();
+      String author = in.readUTF();
+      long date = in.readLong();
+      MercurialChangesetCache.Changeset changeset = new MercurialChangesetCache.Changeset(revision, author, new Date(date));
+      long key = MercurialChangesetCache.key(revision, 0, revision.length());
+      MercurialChangesetCache.Changeset known = changesets.get(key);
+      addToTable(known != null && known.revision().equals(revision) ? known : changesets.intern(key, changeset));
+    }
+    int entryCount = in.readInt();
+    for (int i = 0; i < entryCount; i++) {
+      String key = in.readUTF();
+      long entryGeneration = in.readLong();
+      int[] runs = new int[readVarInt(in)];
+      for (int j = 0; j < runs.length; j++) {
+        runs[j] = readVarInt(in);
+        if (j % 2 == 0 && runs[j] >= table.size()) {
+          throw new IOException("Invalid changeset index " + runs[j]);
+        }
+      }
+      entries.put(key, new Entry(runs, entryGeneration));
+    }
+  }
+
+  private int addToTable(MercurialChangesetCache.Changeset changeset) {
+    Integer index = tableIndex.get(changeset.revision());
+    if (index == null) {
+      index = table.size();
+      table.add(changeset);
+      tableIndex.put(changeset.revision(), index);
+    }
+    return index;
+  }
+
+  /**
+   * Paths can't contain line feeds in Mercurial.
+   */
+  private static String key(String path, String fileNode) {
+    return path + '\n' + fileNode;
+  }
+
+  /**
+   * @param path path of the file relative to the repository root
+   */
+  @CheckForNull
+  synchronized MercurialFileBlame get(String path, String fileNode) {
+    Entry entry = entries.get(key(path, fileNode));
+    if (entry == null) {
+      return null;
+    }
+    entry.generation = generation;
+    hits++;
+    int lines = 0;
+    for (int i = 1; i < entry.runs.length; i += 2) {
+      lines += entry.runs[i];
+    }
+    MercurialFileBlame blame = new MercurialFileBlame(lines);
+    for (int i = 0; i < entry.runs.length; i += 2) {
+      blame.add(table.get(entry.runs[i]), entry.runs[i + 1]);
+    }
+    return blame;
+  }
+
+  synchronized void put(String path, String fileNode, MercurialFileBlame blame) {
+    List<Integer> runs = new ArrayList<>();
+    MercurialChangesetCache.Changeset previous = null;
+    int previousIndex = -1;
+    for (int line = 0; line < blame.size(); line++) {
+      MercurialChangesetCache.Changeset changeset = blame.changeset(line);
+      int index = changeset == previous ? previousIndex : addToTable(changeset);
+      if (index == previousIndex) {
+        runs.set(runs.size() - 1, runs.get(runs.size() - 1) + 1);
+      } else {
+        runs.add(index);
+        runs.add(1);
+        previousIndex = index;
+      }
+      previous = changeset;
+    }
+    int[] array = new int[runs.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = runs.get(i);
+    }
+    entries.put(key(path, fileNode), new Entry(array, generation));
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  synchronized int hits() {
+    return hits;
+  }
+
+  /**
+   * Write the cache to a temporary file, then move it in place so that a reader never sees a partially written cache.
+   */
+  synchronized void save() {
+    List<Map.Entry<String, Entry>> kept = new ArrayList<>(entries.entrySet());
+    if (kept.size() > maxEntries) {
+      kept.sort((a, b) -> Long.compare(b.getValue().generation, a.getValue().generation));
+      kept = kept.subList(0, maxEntries);
+    }
+    // Only the changesets still referenced are written
+    List<MercurialChangesetCache.Changeset> usedChangesets = new ArrayList<>();
+    Map<Integer, Integer> remapped = new HashMap<>();
+    for (Map.Entry<String, Entry> entry : kept) {
+      int[] runs = entry.getValue().runs;
+      for (int i = 0; i < runs.length; i += 2) {
+        if (!remapped.containsKey(runs[i])) {
+          remapped.put(runs[i], usedChangesets.size());
+          usedChangesets.add(table.get(runs[i]));
+        }
+      }
+    }
+    Path tmp = null;
+    try {
+      Files.createDirectories(file.getParentFile().toPath());
+      tmp = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp");
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(options);
+        out.writeLong(generation);
+        out.writeInt(usedChangesets.size());
+        for (MercurialChangesetCache.Changeset changeset : usedChangesets) {
+          out.writeUTF(changeset.revision());
+          out.writeUTF(changeset.author() == null ? "" : changeset.author());
+          out.writeLong(changeset.date().getTime());
+        }
+        out.writeInt(kept.size());
+        for (Map.Entry<String, Entry> entry : kept) {
+          out.writeUTF(entry.getKey());
+          out.writeLong(entry.getValue().generation);
+          int[] runs = entry.getValue().runs;
+          writeVarInt(out, runs.length);
+          for (int i = 0; i < runs.length; i++) {
+            writeVarInt(out, i % 2 == 0 ? remapped.get(runs[i]) : runs[i]);
+          }
+        }
+      }
+      moveInPlace(tmp, file.toPath());
+      tmp = null;
+      LOG.debug("Saved blame of " + kept.size() + " files to " + file);
+    } catch (IOException e) {
+      LOG.warn("Unable to save blame cache " + file + ": " + e.getMessage());
+    } finally {
+      deleteQuietly(tmp);
+    }
+  }
+
+  /**
+   * Replace the target by the source, atomically when the file system supports it.
+   */
+  static void moveInPlace(Path source, Path target) throws IOException {
+    try {
+      Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      LOG.debug("Atomic move not supported, replacing " + target + " directly: " + e.getMessage());
+      Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private static void deleteQuietly(@Nullable Path path) {
+    if (path == null) {
+      return;
+    }
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      LOG.debug("Unable to delete " + path + ": " + e.getMessage());
+    }
+  }
+
+  static void writeVarInt(DataOutputStream out, int value) throws IOException {
+    int v = value;
+    while ((v & ~0x7F) != 0) {
+      out.writeByte((v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+    out.writeByte(v);
+  }
+
+  static int readVarInt(DataInputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Invalid variable length integer");
+  }
+}
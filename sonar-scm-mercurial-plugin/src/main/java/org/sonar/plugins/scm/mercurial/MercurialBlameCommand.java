@@ -19,28 +19,92 @@
  */
 package org.sonar.plugins.scm.mercurial;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
 import org.sonar.api.batch.fs.FileSystem;
 import org.sonar.api.batch.fs.InputFile;
 import org.sonar.api.batch.scm.BlameCommand;
 import org.sonar.api.batch.scm.BlameLine;
 import org.sonar.api.config.Settings;
+import org.sonar.api.utils.DateUtils;
 import org.sonar.api.utils.command.Command;
 import org.sonar.api.utils.command.CommandExecutor;
 import org.sonar.api.utils.command.StreamConsumer;
 import org.sonar.api.utils.command.StringStreamConsumer;
+import org.sonar.api.utils.command.TimeoutException;
 import org.sonar.api.utils.log.Logger;
 import org.sonar.api.utils.log.Loggers;
 
+import static java.util.Collections.singletonList;
+
 public class MercurialBlameCommand extends BlameCommand {
 
+  static final String CONSIDER_WHITESPACES_KEY = "sonar.mercurial.considerWhitespaces";
+  static final String COMMAND_SERVER_KEY = "sonar.mercurial.blame.commandServer";
+  static final String COMMAND_SERVER_SIZE_KEY = "sonar.mercurial.blame.commandServer.size";
+  static final String TEMPLATE_KEY = "sonar.mercurial.blame.template";
+  static final String BATCH_SIZE_KEY = "sonar.mercurial.blame.batchSize";
+  static final String RESOLVE_CHANGESETS_KEY = "sonar.mercurial.blame.resolveChangesets";
+  static final String THREADS_KEY = "sonar.mercurial.blame.threads";
+  static final String ADAPTIVE_THREADS_KEY = "sonar.mercurial.blame.threads.adaptive";
+  static final String SCHEDULING_KEY = "sonar.mercurial.blame.scheduling";
+  static final String INPUT_ORDER = "input";
+  static final String ENGINE_KEY = "sonar.mercurial.blame.engine";
+  static final String JAVA_ENGINE = "java";
+  static final String STATUS_KEY = "sonar.mercurial.blame.status";
+  static final String CACHE_KEY = "sonar.mercurial.blame.cache";
+  static final String CACHE_PATH_KEY = "sonar.mercurial.blame.cache.path";
+  static final String CACHE_MAX_FILES_KEY = "sonar.mercurial.blame.cache.maxFiles";
+  static final String CACHE_INVALIDATE_KEY = "sonar.mercurial.blame.cache.invalidate";
+  static final String REPORT_KEY = "sonar.mercurial.blame.report";
+  static final String REPORT_PATH_KEY = "sonar.mercurial.blame.report.path";
+  static final String TIMEOUT_KEY = "sonar.mercurial.blame.timeout";
+  static final String GLOBAL_TIMEOUT_KEY = "sonar.mercurial.blame.globalTimeout";
+  static final String SINGLE_PASS_KEY = "sonar.mercurial.blame.singlePass";
+  static final String SINGLE_PASS_MAX_MEMORY_KEY = "sonar.mercurial.blame.singlePass.maxMemory";
+  static final String SINCE_KEY = "sonar.mercurial.blame.since";
+  static final String SHARED_CACHE_PATH_KEY = "sonar.mercurial.blame.sharedCache.path";
+  static final String ADAPTIVE_WHITESPACES_KEY = "sonar.mercurial.blame.adaptiveWhitespaces";
+  static final String RECONCILE_KEY = "sonar.mercurial.blame.reconcileLocalChanges";
+  static final String DIRECT_IO_KEY = "sonar.mercurial.blame.directIo";
+  static final String DIRSTATE_STATUS_KEY = "sonar.mercurial.blame.status.dirstate";
+
+  private static final int DEFAULT_CACHE_MAX_FILES = 100_000;
+  private static final int DEFAULT_SINGLE_PASS_MAX_MEMORY_MB = 256;
+
+  /**
+   * Maximum number of changesets resolved by one hg log command, to keep command lines reasonably short.
+   */
+  private static final int MAX_RESOLVED_CHANGESETS = 200;
+
+  /**
+   * Maximum number of files whose history is checked for whitespace changes by one hg log command.
+   */
+  private static final int MAX_WHITESPACE_CHANGES_FILES = 200;
+
+  /**
+   * Maximum number of files checked by one hg status command, the whole working directory is checked above.
+   */
+  private static final int MAX_STATUS_FILES = 200;
+
   private static final Logger LOG = Loggers.get(MercurialBlameCommand.class);
   private final CommandExecutor commandExecutor;
   private Settings settings;
@@ -58,81 +122,1284 @@ public class MercurialBlameCommand extends BlameCommand {
   public void blame(BlameInput input, BlameOutput output) {
     FileSystem fs = input.fileSystem();
     LOG.debug("Working directory: " + fs.baseDir().getAbsolutePath());
-    ExecutorService executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() + 1);
-    List<Future<Void>> tasks = new ArrayList<>();
-    for (InputFile inputFile : input.filesToBlame()) {
-      tasks.add(submitTask(fs, output, executorService, inputFile));
+    int threads = settings.hasKey(THREADS_KEY) ? Math.max(1, settings.getInt(THREADS_KEY)) : (Runtime.getRuntime().availableProcessors() + 1);
+    BlameContext context = new BlameContext(fs, output, createCommandServerPool(fs.baseDir(), threads));
+    if (settings.getBoolean(DIRECT_IO_KEY)) {
+      context.processes = new MercurialProcessExecutor();
+    }
+    context.fileTimeoutMillis = TimeUnit.SECONDS.toMillis(settings.getInt(TIMEOUT_KEY));
+    if (settings.getInt(GLOBAL_TIMEOUT_KEY) > 0) {
+      context.deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(settings.getInt(GLOBAL_TIMEOUT_KEY));
+    }
+    try (MercurialBlameScheduler scheduler = new MercurialBlameScheduler(threads, settings.getBoolean(ADAPTIVE_THREADS_KEY))) {
+      String since = settings.getString(SINCE_KEY);
+      if (JAVA_ENGINE.equals(settings.getString(ENGINE_KEY)) || settings.getBoolean(SINGLE_PASS_KEY) || since != null) {
+        openRepository(context);
+      }
+      if (since != null) {
+        loadBoundary(context, since);
+      }
+      if (isAdaptiveWhitespaces() || batchSize() > 1) {
+        // Paths of the diffs and of the blamed files of batches are relative to the repository root
+        File repositoryRoot = MercurialUtils.findRepositoryRoot(fs.baseDir());
+        if (repositoryRoot != null) {
+          context.repositoryPrefix = MercurialUtils.repositoryPrefix(repositoryRoot, fs.baseDir());
+        }
+      }
+      boolean cache = settings.getBoolean(CACHE_KEY) || settings.hasKey(SHARED_CACHE_PATH_KEY);
+      if (settings.getBoolean(STATUS_KEY) || settings.getBoolean(RECONCILE_KEY) || settings.getBoolean(DIRSTATE_STATUS_KEY) || cache) {
+        loadStatus(context, input.filesToBlame());
+      }
+      if (cache) {
+        loadBlameCache(context);
+      }
+      List<InputFile> filesToBlame = new ArrayList<>();
+      int uncommitted = 0;
+      for (InputFile inputFile : input.filesToBlame()) {
+        if (MercurialStatus.isUncommitted(context.statusOf(inputFile))) {
+          // Nothing to blame, hg blame would fail on this file
+          uncommitted++;
+          context.report.uncommittedFile();
+          context.output.blameResult(inputFile, new ArrayList<>());
+        } else if (!sendCachedResult(context, inputFile)) {
+          filesToBlame.add(inputFile);
+        }
+      }
+      if (uncommitted > 0) {
+        LOG.debug(uncommitted + " uncommitted files not blamed");
+      }
+      if (!INPUT_ORDER.equals(settings.getString(SCHEDULING_KEY))) {
+        // Largest files first, so that the analysis doesn't end waiting for a large file blamed last
+        filesToBlame.sort(Comparator.comparingInt(InputFile::lines).reversed());
+      }
+      if (settings.getBoolean(SINGLE_PASS_KEY)) {
+        filesToBlame = blameInSinglePass(context, filesToBlame);
+      }
+      if (isAdaptiveWhitespaces() && batchSize() <= 1 && context.repository == null) {
+        loadWhitespaceChanges(context, filesToBlame);
+      }
+      try {
+        submitAll(scheduler, context, filesToBlame);
+        scheduler.awaitCompletion();
+      } catch (RuntimeException | Error e) {
+        // Stop the other tasks right away, threads blocked on a command server are released by closing the servers
+        scheduler.cancel();
+        if (context.commandServers != null) {
+          context.commandServers.close();
+        }
+        if (context.processes != null) {
+          context.processes.close();
+        }
+        throw e;
+      }
+      LOG.debug(scheduler.statistics());
+      if (context.sharedCache != null) {
+        LOG.debug(context.sharedCache.hits() + " files found in the shared blame cache " + context.sharedCache);
+      }
+      if (context.skippedFiles.get() > 0) {
+        LOG.warn("Blame timeout of " + settings.getInt(GLOBAL_TIMEOUT_KEY) + "s exceeded, " + context.skippedFiles.get() + " files not blamed");
+      }
+      report(context.report, context.fs);
+    } finally {
+      if (context.commandServers != null) {
+        context.commandServers.close();
+      }
+      if (context.processes != null) {
+        context.processes.close();
+      }
+      if (context.cache != null) {
+        context.cache.save();
+      }
+      if (context.repository != null) {
+        closeQuietly(context.repository);
+      }
+    }
+    LOG.debug(context.changesets.size() + " distinct changesets found by blame");
+  }
+
+  private void submitAll(MercurialBlameScheduler scheduler, BlameContext context, List<InputFile> filesToBlame) {
+    int batchSize = batchSize();
+    if (batchSize > 1) {
+      List<InputFile> batch = new ArrayList<>(batchSize);
+      for (InputFile inputFile : filesToBlame) {
+        batch.add(inputFile);
+        if (batch.size() == batchSize) {
+          submitBatch(scheduler, context, batch);
+          batch = new ArrayList<>(batchSize);
+        }
+      }
+      if (!batch.isEmpty()) {
+        submitBatch(scheduler, context, batch);
+      }
+    } else {
+      for (InputFile inputFile : filesToBlame) {
+        MercurialBlameReport.Task task = context.report.newTask(inputFile.relativePath(), 1, inputFile.lines());
+        scheduler.submit(describe(singletonList(inputFile)), () -> run(context, task, singletonList(inputFile), () -> blame(context, inputFile, task)));
+      }
+    }
+  }
+
+  private int batchSize() {
+    return settings.hasKey(BATCH_SIZE_KEY) ? settings.getInt(BATCH_SIZE_KEY) : 1;
+  }
+
+  private void submitBatch(MercurialBlameScheduler scheduler, BlameContext context, List<InputFile> files) {
+    String description = describe(files);
+    MercurialBlameReport.Task task = context.report.newTask(description, files.size(), files.stream().mapToInt(InputFile::lines).sum());
+    scheduler.submit(description, () -> run(context, task, files, () -> blameBatch(context, files, task)));
+  }
+
+  /**
+   * Run the task, unless the global timeout is exceeded: the files are then not blamed.
+   */
+  private static void run(BlameContext context, MercurialBlameReport.Task task, List<InputFile> files, Runnable blame) {
+    task.start();
+    try {
+      if (context.isDeadlineExceeded()) {
+        skip(context, files);
+      } else {
+        blame.run();
+      }
+    } finally {
+      task.end();
     }
+  }
+
+  private static void skip(BlameContext context, List<InputFile> files) {
+    for (InputFile inputFile : files) {
+      LOG.debug("Blame timeout exceeded, " + inputFile.relativePath() + " is not blamed");
+      context.skippedFiles.incrementAndGet();
+      context.report.timedOutFile();
+    }
+  }
 
-    for (Future<Void> task : tasks) {
+  /**
+   * The blame command of the file was killed after a timeout, the file is not blamed.
+   */
+  private static void timedOut(BlameContext context, InputFile inputFile, TimeoutException e) {
+    LOG.warn("Blame of " + inputFile.relativePath() + " timed out, the file is not blamed: " + e.getMessage());
+    context.report.timedOutFile();
+  }
+
+  /**
+   * Log the summary of the blame timings, and write them as JSON when requested. The breakdown by phase and the slowest tasks are
+   * only logged in debug unless the report is enabled.
+   */
+  private void report(MercurialBlameReport report, FileSystem fs) {
+    boolean enabled = settings.getBoolean(REPORT_KEY);
+    List<String> summary = report.summary();
+    LOG.info(summary.get(0));
+    for (String line : summary.subList(1, summary.size())) {
+      if (enabled) {
+        LOG.info(line);
+      } else {
+        LOG.debug(line);
+      }
+    }
+    if (enabled) {
+      String path = settings.getString(REPORT_PATH_KEY);
+      File file = path != null ? new File(path) : new File(fs.workDir(), "mercurial/blame-report.json");
       try {
-        task.get();
-      } catch (ExecutionException e) {
-        // Unwrap ExecutionException
-        throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
-      } catch (InterruptedException e) {
-        throw new IllegalStateException(e);
+        report.writeJson(file);
+        LOG.info("Blame report written to " + file);
+      } catch (IOException e) {
+        LOG.warn("Unable to write the blame report " + file + ": " + e.getMessage());
       }
     }
   }
 
-  private Future<Void> submitTask(final FileSystem fs, final BlameOutput result, ExecutorService executorService, final InputFile inputFile) {
-    return executorService.submit(new Callable<Void>() {
-      @Override
-      public Void call() {
-        blame(fs, inputFile, result);
-        return null;
+  private static String describe(List<InputFile> files) {
+    int lines = files.stream().mapToInt(InputFile::lines).sum();
+    return files.get(0).relativePath() + (files.size() > 1 ? (" and " + (files.size() - 1) + " other files") : "") + " (" + lines + " lines)";
+  }
+
+  /**
+   * Open the repository to blame files without the hg command. If it can't be opened, the hg command is used.
+   */
+  private static void openRepository(BlameContext context) {
+    File baseDir = context.fs.baseDir();
+    File repositoryRoot = MercurialUtils.findRepositoryRoot(baseDir);
+    if (repositoryRoot == null) {
+      LOG.debug("No Mercurial repository found for " + baseDir);
+      return;
+    }
+    try {
+      context.repository = MercurialRepository.open(repositoryRoot);
+      context.repositoryPrefix = MercurialUtils.repositoryPrefix(repositoryRoot, baseDir);
+    } catch (IOException e) {
+      LOG.debug("Unable to read the repository, blame with the hg command: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Blame is bounded by a date or by a revset, its history is not followed beyond the changesets older than the date or
+   * ancestors of the revset. Only supported when reading the repository, files blamed with the hg command are blamed
+   * with their whole history.
+   */
+  private void loadBoundary(BlameContext context, String since) {
+    MercurialRepository repository = context.repository;
+    if (repository == null) {
+      LOG.warn("Unable to read the repository, " + SINCE_KEY + " is ignored");
+      return;
+    }
+    Date date = DateUtils.parseDateTimeQuietly(since);
+    if (date == null) {
+      date = DateUtils.parseDateQuietly(since);
+    }
+    if (date != null) {
+      long sinceSeconds = TimeUnit.MILLISECONDS.toSeconds(date.getTime());
+      context.boundary = rev -> repository.changeset(rev).time() < sinceSeconds;
+      LOG.debug("Blame history limited to changesets since " + since);
+      return;
+    }
+    Execution<LinesConsumer> log;
+    try {
+      log = execute(createRevisionsCommandLine(context.fs.baseDir(), since), LinesConsumer::new, context, context.timeoutMillis(0));
+    } catch (TimeoutException e) {
+      LOG.warn("Unable to resolve " + SINCE_KEY + ", blame history not limited: " + e.getMessage());
+      return;
+    }
+    if (log.exitCode != 0) {
+      LOG.warn("Unable to resolve " + SINCE_KEY + ", blame history not limited: " + log.stderr.getOutput());
+      return;
+    }
+    List<Integer> revs = new ArrayList<>();
+    for (String line : log.consumer.lines) {
+      try {
+        revs.add(Integer.parseInt(line.trim()));
+      } catch (NumberFormatException e) {
+        // Other lines can be printed by --debug
       }
+    }
+    try {
+      context.boundary = repository.ancestors(revs)::get;
+    } catch (IOException e) {
+      LOG.warn("Unable to resolve " + SINCE_KEY + ", blame history not limited: " + e.getMessage());
+      return;
+    }
+    LOG.debug("Blame history limited to the descendants of " + revs.size() + " changesets");
+  }
 
-    });
+  private static void closeQuietly(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      LOG.debug("Unable to close " + closeable + ": " + e.getMessage());
+    }
   }
 
-  private void blame(FileSystem fs, InputFile inputFile, BlameOutput output) {
+  /**
+   * Find the files changed in the working directory with hg id, then hg status only when there are uncommitted changes.
+   * The status stays unknown if the commands fail, and every file is then blamed.
+   */
+  private void loadStatus(BlameContext context, Iterable<InputFile> files) {
+    File baseDir = context.fs.baseDir();
+    File repositoryRoot = MercurialUtils.findRepositoryRoot(baseDir);
+    if (repositoryRoot == null) {
+      LOG.debug("No Mercurial repository found for " + baseDir);
+      return;
+    }
+    if (settings.getBoolean(DIRSTATE_STATUS_KEY) && loadStatusFromDirstate(context, repositoryRoot, files)) {
+      context.repositoryPrefix = MercurialUtils.repositoryPrefix(repositoryRoot, baseDir);
+      LOG.debug(context.status.changedFiles() + " files to blame changed in the working directory");
+      return;
+    }
+    try {
+      Execution<LinesConsumer> id = execute(createIdCommandLine(baseDir), LinesConsumer::new, context, context.timeoutMillis(0));
+      if (id.exitCode != 0 || id.consumer.lines.isEmpty()) {
+        LOG.debug("Unable to identify the working directory: " + id.stderr.getOutput());
+        return;
+      }
+      context.workingDirectoryId = id.consumer.lines.get(0).trim();
+      if (MercurialStatus.isDirty(id.consumer.lines.get(0))) {
+        Execution<LinesConsumer> status = execute(createStatusCommandLine(baseDir), LinesConsumer::new, context, context.timeoutMillis(0));
+        if (status.exitCode != 0) {
+          LOG.debug("Unable to get the status of the working directory: " + status.stderr.getOutput());
+          return;
+        }
+        context.status = MercurialStatus.parse(status.consumer.lines);
+      } else {
+        context.status = MercurialStatus.clean();
+      }
+    } catch (TimeoutException e) {
+      LOG.warn("Unable to get the status of the working directory: " + e.getMessage());
+      return;
+    }
+    context.repositoryPrefix = MercurialUtils.repositoryPrefix(repositoryRoot, baseDir);
+    LOG.debug(context.status.changedFiles() + " files changed in the working directory");
+  }
+
+  /**
+   * Status of the files to blame, found by comparing their size and modification time with the dirstate like hg
+   * status does. hg status is only run on the files whose modification time doesn't tell whether they are modified.
+   * @return false if the dirstate can't be read, hg id and hg status are then used
+   */
+  private boolean loadStatusFromDirstate(BlameContext context, File repositoryRoot, Iterable<InputFile> files) {
+    MercurialDirstate.Parents parents;
+    MercurialDirstate.Entries entries;
+    String prefix = MercurialUtils.repositoryPrefix(repositoryRoot, context.fs.baseDir());
+    Map<String, Character> changes = new HashMap<>();
+    List<String> ambiguous = new ArrayList<>();
+    try {
+      parents = MercurialDirstate.readParents(repositoryRoot);
+      entries = MercurialDirstate.readEntries(repositoryRoot);
+      for (InputFile inputFile : files) {
+        String path = prefix + inputFile.relativePath();
+        char status = entries.statusOf(path, inputFile.file());
+        if (status == 0) {
+          ambiguous.add(path);
+        } else if (status != MercurialStatus.CLEAN) {
+          changes.put(path, status);
+        }
+      }
+    } catch (IOException e) {
+      LOG.debug("Unable to read the dirstate, executing hg status: " + e.getMessage());
+      return false;
+    }
+    LOG.debug(entries.size() + " files in the dirstate, " + ambiguous.size() + " files to check with hg status");
+    if (!ambiguous.isEmpty()) {
+      Execution<LinesConsumer> status;
+      try {
+        status = execute(createStatusCommandLine(repositoryRoot, ambiguous.size() <= MAX_STATUS_FILES ? ambiguous : null), LinesConsumer::new, context,
+          context.timeoutMillis(0));
+      } catch (TimeoutException e) {
+        LOG.warn("Unable to get the status of the working directory: " + e.getMessage());
+        return false;
+      }
+      if (status.exitCode != 0) {
+        LOG.debug("Unable to get the status of the working directory: " + status.stderr.getOutput());
+        return false;
+      }
+      MercurialStatus checked = MercurialStatus.parse(status.consumer.lines);
+      for (String path : ambiguous) {
+        char fileStatus = checked.statusOf(path);
+        if (fileStatus != MercurialStatus.CLEAN) {
+          changes.put(path, fileStatus);
+        }
+      }
+    }
+    context.status = MercurialStatus.of(changes);
+    if (parents != null) {
+      // Same as hg id, the files that are not blamed are not checked
+      context.workingDirectoryId = MercurialUtils.toHex(parents.first()).substring(0, 12) + (changes.isEmpty() ? "" : "+");
+    }
+    return true;
+  }
+
+  /**
+   * Load the blame of previous analyses, and the file nodes of the files that are unchanged since the working
+   * directory parent. The caches, local and shared, are not used when the file nodes can't be found.
+   */
+  private void loadBlameCache(BlameContext context) {
+    if (context.status == null) {
+      LOG.debug("Unknown working directory status, blame cache disabled");
+      return;
+    }
+    File baseDir = context.fs.baseDir();
+    Execution<LinesConsumer> manifest;
+    try {
+      manifest = execute(createManifestCommandLine(baseDir), LinesConsumer::new, context, context.timeoutMillis(0));
+    } catch (TimeoutException e) {
+      LOG.warn("Unable to list file nodes, blame cache disabled: " + e.getMessage());
+      return;
+    }
+    if (manifest.exitCode != 0) {
+      LOG.debug("Unable to list file nodes, blame cache disabled: " + manifest.stderr.getOutput());
+      return;
+    }
+    for (String line : manifest.consumer.lines) {
+      // "<file node> <path>", other lines can be printed by --debug
+      if (line.length() > 41 && line.charAt(40) == ' ' && MercurialUtils.isHex(line, 0, 40)) {
+        String path = line.substring(41);
+        if (context.status.statusOf(path) == MercurialStatus.CLEAN) {
+          context.fileNodes.put(path, line.substring(0, 40));
+        }
+      }
+    }
+    if (settings.getBoolean(CACHE_KEY)) {
+      context.cache = MercurialBlameCache.load(getCacheFile(context.fs), cacheOptions(), cacheMaxFiles(), settings.getBoolean(CACHE_INVALIDATE_KEY),
+        context.changesets);
+    }
+    String sharedCachePath = settings.getString(SHARED_CACHE_PATH_KEY);
+    if (sharedCachePath != null) {
+      context.sharedCache = new MercurialSharedBlameCache(new File(sharedCachePath), cacheOptions(), context.changesets);
+    }
+  }
+
+  private File getCacheFile(FileSystem fs) {
+    String path = settings.getString(CACHE_PATH_KEY);
+    return path != null ? new File(path) : new File(fs.workDir(), "mercurial/blame-cache.bin");
+  }
+
+  /**
+   * Options changing the result of blame, a cache written with other options is discarded.
+   */
+  private String cacheOptions() {
+    boolean javaEngine = JAVA_ENGINE.equals(settings.getString(ENGINE_KEY)) || settings.getBoolean(SINGLE_PASS_KEY);
+    return cacheOptions(javaEngine, settings.getBoolean(CONSIDER_WHITESPACES_KEY), isAdaptiveWhitespaces(), settings.getString(SINCE_KEY));
+  }
+
+  /**
+   * @param javaEngine whether files are blamed by reading <code>.hg/store</code>, whose attribution may differ from the
+   * one of the hg command, see {@link MercurialAnnotate}
+   */
+  static String cacheOptions(boolean javaEngine, boolean considerWhitespaces, boolean adaptiveWhitespaces, @Nullable String since) {
+    String options = considerWhitespaces ? "whitespaces" : "-w";
+    if (adaptiveWhitespaces) {
+      options += " adaptive";
+    }
+    if (javaEngine) {
+      options += " " + JAVA_ENGINE;
+    }
+    return since == null ? options : (options + " since " + since);
+  }
+
+  /**
+   * Whether a blame computed with or without ignoring whitespaces can be cached. In adaptive mode, the blame of a file
+   * without whitespace changes in its history is only expected to be the same as with <code>-w</code>, it is not
+   * cached so that a wrong guess doesn't outlive the analysis.
+   */
+  private boolean isCacheable(boolean ignoreWhitespaces) {
+    return ignoreWhitespaces || !isIgnoringWhitespaces();
+  }
+
+  private int cacheMaxFiles() {
+    return settings.hasKey(CACHE_MAX_FILES_KEY) ? Math.max(0, settings.getInt(CACHE_MAX_FILES_KEY)) : DEFAULT_CACHE_MAX_FILES;
+  }
+
+  private boolean sendCachedResult(BlameContext context, InputFile inputFile) {
+    String path = context.repositoryPath(inputFile);
+    String fileNode = context.fileNode(inputFile);
+    if (fileNode == null) {
+      return false;
+    }
+    MercurialFileBlame blame = context.cache == null ? null : context.cache.get(path, fileNode);
+    if (blame == null && context.sharedCache != null) {
+      blame = context.sharedCache.get(path, fileNode);
+      if (blame != null && context.cache != null) {
+        context.cache.put(path, fileNode, blame);
+      }
+    }
+    if (blame == null) {
+      return false;
+    }
+    context.report.cachedFile();
+    sendResult(context, inputFile, blame);
+    return true;
+  }
+
+  private static void storeInCache(BlameContext context, InputFile inputFile, MercurialFileBlame blame) {
+    String fileNode = context.fileNode(inputFile);
+    // Dates are required by the cache entries
+    if (fileNode == null || blame.isEmpty() || !blame.isResolved()) {
+      return;
+    }
+    if (context.cache != null) {
+      context.cache.put(context.repositoryPath(inputFile), fileNode, blame);
+    }
+    if (context.sharedCache != null) {
+      context.sharedCache.put(context.repositoryPath(inputFile), fileNode, blame);
+    }
+  }
+
+  @CheckForNull
+  private MercurialCommandServerPool createCommandServerPool(File workingDirectory, int threads) {
+    if (!settings.getBoolean(COMMAND_SERVER_KEY)) {
+      return null;
+    }
+    int size = settings.hasKey(COMMAND_SERVER_SIZE_KEY) ? settings.getInt(COMMAND_SERVER_SIZE_KEY) : threads;
+    return new MercurialCommandServerPool(workingDirectory, Math.max(1, size));
+  }
+
+  private void blame(BlameContext context, InputFile inputFile, MercurialBlameReport.Task task) {
+    if (blameWithoutCommand(context, inputFile, task)) {
+      return;
+    }
+    // Without the whitespace changes checked up front, whitespaces are ignored right away rather than running hg again
+    boolean ignoreWhitespaces = isIgnoringWhitespaces()
+      && (!isAdaptiveWhitespaces() || context.withWhitespaceChanges == null || context.withWhitespaceChanges.contains(inputFile));
+    blameWithCommand(context, inputFile, task, ignoreWhitespaces);
+  }
+
+  private void blameWithCommand(BlameContext context, InputFile inputFile, MercurialBlameReport.Task task, boolean ignoreWhitespaces) {
     String filename = inputFile.relativePath();
-    Command cl = createCommandLine(fs.baseDir(), filename);
-    MercurialBlameConsumer consumer = new MercurialBlameConsumer(filename);
-    StringStreamConsumer stderr = new StringStreamConsumer();
+    Command cl = createCommandLine(context.fs.baseDir(), filename, ignoreWhitespaces);
+    Execution<MercurialBlameConsumer> execution;
+    try {
+      execution = execute(cl, () -> isTemplateOutput()
+        ? MercurialBlameConsumer.forTemplate(filename, context.changesets, inputFile.lines())
+        : new MercurialBlameConsumer(filename, context.changesets, inputFile.lines()), context, context.timeoutMillis(1));
+      if (execution.exitCode != 0) {
+        // Ignore the error since it may be caused by uncommited file
+        LOG.debug("The mercurial blame command [" + cl.toString() + "] failed: " + execution.stderr.getOutput());
+      }
+      task.command(execution.onCommandServer, execution.firstOutputNanos, execution.totalNanos, execution.parseNanos, execution.bytes);
+      resolveChangesets(context, execution.consumer.getUnresolvedNodes(), task);
+    } catch (TimeoutException e) {
+      timedOut(context, inputFile, e);
+      return;
+    }
+    if (!execution.consumer.isResolved()) {
+      LOG.warn("Changesets blamed in " + filename + " could not be loaded, the file is not blamed");
+      return;
+    }
+    long parseStart = System.nanoTime();
+    MercurialFileBlame blame = execution.consumer.getBlame();
+    task.parse(System.nanoTime() - parseStart);
+    if (execution.exitCode == 0 && isCacheable(ignoreWhitespaces)) {
+      storeInCache(context, inputFile, blame);
+    }
+    sendResult(context, inputFile, blame);
+  }
+
+  private void blameBatch(BlameContext context, List<InputFile> files, MercurialBlameReport.Task task) {
+    List<InputFile> batch = new ArrayList<>(files.size());
+    for (InputFile inputFile : files) {
+      if (!blameWithoutCommand(context, inputFile, task)) {
+        batch.add(inputFile);
+      }
+    }
+    if (!batch.isEmpty()) {
+      blameBatchWithCommand(context, batch, task, isIgnoringWhitespaces() && !isAdaptiveWhitespaces());
+    }
+  }
+
+  private void blameBatchWithCommand(BlameContext context, List<InputFile> batch, MercurialBlameReport.Task task, boolean ignoreWhitespaces) {
+    List<String> filenames = new ArrayList<>(batch.size());
+    for (InputFile inputFile : batch) {
+      filenames.add(inputFile.relativePath());
+    }
+    Command cl = createBatchCommandLine(context.fs.baseDir(), filenames, ignoreWhitespaces);
+    Execution<MercurialBatchBlameConsumer> execution;
+    try {
+      execution = execute(cl, () -> new MercurialBatchBlameConsumer(batch, context.repositoryPrefix, context.changesets), context, context.timeoutMillis(batch.size()));
+      if (execution.exitCode != 0) {
+        // Some files of the batch may be uncommitted, they are blamed one by one below
+        LOG.debug("The mercurial blame command [" + cl.toString() + "] failed: " + execution.stderr.getOutput());
+      }
+      task.command(execution.onCommandServer, execution.firstOutputNanos, execution.totalNanos, execution.parseNanos, execution.bytes);
+      resolveChangesets(context, execution.consumer.getUnresolvedNodes(), task);
+    } catch (TimeoutException e) {
+      // Blame files one by one, so that only the slow ones are not blamed
+      LOG.debug("The mercurial blame command [" + cl.toString() + "] timed out, blaming files one by one: " + e.getMessage());
+      for (InputFile inputFile : batch) {
+        blameAlone(context, inputFile, task);
+      }
+      return;
+    }
+    long parseStart = System.nanoTime();
+    Map<InputFile, MercurialFileBlame> results = execution.consumer.getBlames();
+    task.parse(System.nanoTime() - parseStart);
+    Set<InputFile> withWhitespaceChanges = Collections.emptySet();
+    if (!ignoreWhitespaces && isIgnoringWhitespaces() && !results.isEmpty()) {
+      withWhitespaceChanges = withWhitespaceChanges(context, new ArrayList<>(results.keySet()), task);
+    }
+    List<InputFile> toBlameAgain = new ArrayList<>();
+    for (InputFile inputFile : batch) {
+      MercurialFileBlame blame = results.get(inputFile);
+      if (execution.consumer.isUnresolved(inputFile)) {
+        LOG.warn("Changesets blamed in " + inputFile.relativePath() + " could not be loaded, the file is not blamed");
+      } else if (blame == null) {
+        // Only this file is failing, blame it alone to get the same behavior as without batch
+        blameAlone(context, inputFile, task);
+      } else if (withWhitespaceChanges.contains(inputFile)) {
+        toBlameAgain.add(inputFile);
+      } else {
+        if (isCacheable(ignoreWhitespaces)) {
+          storeInCache(context, inputFile, blame);
+        }
+        sendResult(context, inputFile, blame);
+      }
+    }
+    if (!toBlameAgain.isEmpty()) {
+      if (context.isDeadlineExceeded()) {
+        skip(context, toBlameAgain);
+      } else {
+        blameBatchWithCommand(context, toBlameAgain, task, true);
+      }
+    }
+  }
+
+  /**
+   * Check the history of all the files blamed one by one with the hg command up front, with one hg log command per
+   * {@link #MAX_WHITESPACE_CHANGES_FILES} files, so that each file is then blamed once, ignoring whitespaces only when
+   * needed. Batches are checked after being blamed instead, see {@link #blameBatchWithCommand}.
+   */
+  private void loadWhitespaceChanges(BlameContext context, List<InputFile> files) {
+    if (files.isEmpty()) {
+      return;
+    }
+    MercurialBlameReport.Task task = context.report.newTask("whitespace changes", 0, 0);
+    task.start();
+    Set<InputFile> result = new HashSet<>();
+    for (int start = 0; start < files.size() && !context.isDeadlineExceeded(); start += MAX_WHITESPACE_CHANGES_FILES) {
+      result.addAll(withWhitespaceChanges(context, files.subList(start, Math.min(files.size(), start + MAX_WHITESPACE_CHANGES_FILES)), task));
+    }
+    task.end();
+    context.withWhitespaceChanges = result;
+  }
 
-    int exitCode = execute(cl, consumer, stderr);
-    if (exitCode != 0) {
-      // Ignore the error since it may be caused by uncommited file
-      LOG.debug("The mercurial blame command [" + cl.toString() + "] failed: " + stderr.getOutput());
+  /**
+   * Files whose history contains whitespace changes, to be blamed ignoring whitespaces. The other files have the
+   * same blame with and without ignoring whitespaces. All the files are returned when the history can't be read.
+   */
+  private Set<InputFile> withWhitespaceChanges(BlameContext context, List<InputFile> files, MercurialBlameReport.Task task) {
+    List<String> filenames = new ArrayList<>(files.size());
+    for (InputFile inputFile : files) {
+      filenames.add(inputFile.relativePath());
     }
-    List<BlameLine> lines = consumer.getLines();
-    if (lines.size() == inputFile.lines() - 1) {
+    Command cl = createWhitespaceChangesCommandLine(context.fs.baseDir(), filenames);
+    Execution<MercurialWhitespaceChangesConsumer> execution;
+    try {
+      execution = execute(cl, MercurialWhitespaceChangesConsumer::new, context, context.timeoutMillis(files.size()));
+    } catch (TimeoutException e) {
+      LOG.debug("The mercurial log command [" + cl.toString() + "] timed out, blaming files ignoring whitespaces: " + e.getMessage());
+      return new HashSet<>(files);
+    }
+    task.command(execution.onCommandServer, execution.firstOutputNanos, execution.totalNanos, execution.parseNanos, execution.bytes);
+    if (execution.exitCode != 0) {
+      LOG.debug("The mercurial log command [" + cl.toString() + "] failed, blaming files ignoring whitespaces: " + execution.stderr.getOutput());
+      return new HashSet<>(files);
+    }
+    Set<String> changedPaths = new HashSet<>(execution.consumer.getChangedPaths());
+    Set<InputFile> result = new HashSet<>();
+    for (InputFile inputFile : files) {
+      if (changedPaths.remove(context.repositoryPrefix + inputFile.relativePath())) {
+        result.add(inputFile);
+      }
+    }
+    if (!changedPaths.isEmpty()) {
+      // Changes in the history of a file before it was copied or renamed, the copy can't be told
+      return new HashSet<>(files);
+    }
+    LOG.debug(result.size() + " of " + files.size() + " files with whitespace changes");
+    return result;
+  }
+
+  private void blameAlone(BlameContext context, InputFile inputFile, MercurialBlameReport.Task task) {
+    if (context.isDeadlineExceeded()) {
+      skip(context, singletonList(inputFile));
+    } else {
+      blame(context, inputFile, task);
+    }
+  }
+
+  /**
+   * Blame the file by reading the repository, returns false if it is not supported and the hg command must be used instead.
+   */
+  private boolean blameWithoutCommand(BlameContext context, InputFile inputFile, MercurialBlameReport.Task task) {
+    if (context.repository == null) {
+      return false;
+    }
+    long start = System.nanoTime();
+    String path = context.repositoryPrefix + inputFile.relativePath();
+    try (MercurialAnnotate annotate = new MercurialAnnotate(context.repository, !settings.getBoolean(CONSIDER_WHITESPACES_KEY), context.boundary, null,
+      Long.MAX_VALUE)) {
+      int[] revs = annotate.annotate(path);
+      if (revs == null) {
+        // Same result as the failure of the hg command on an uncommitted file
+        LOG.debug("File not found in the working directory parent: " + path);
+        sendResult(context, inputFile, new MercurialFileBlame(0));
+        return true;
+      }
+      MercurialFileBlame blame = toBlame(context.repository, context.changesets, revs);
+      task.javaEngine(System.nanoTime() - start);
+      storeInCache(context, inputFile, blame);
+      sendResult(context, inputFile, blame);
+      return true;
+    } catch (IOException | RuntimeException e) {
+      LOG.debug("Unable to blame " + path + " by reading the repository, using the hg command: " + e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Annotate the files with a single pass over the history of the repository, instead of walking the history of each file
+   * separately. Returns the files that still have to be blamed, because their history can't be read.
+   */
+  private List<InputFile> blameInSinglePass(BlameContext context, List<InputFile> files) {
+    if (context.repository == null || files.isEmpty()) {
+      return files;
+    }
+    MercurialBlameReport.Task task = context.report.newTask("single pass over " + files.size() + " files", files.size(),
+      files.stream().mapToInt(InputFile::lines).sum());
+    task.start();
+    long start = System.nanoTime();
+    Map<String, InputFile> filesByPath = new LinkedHashMap<>();
+    for (InputFile inputFile : files) {
+      filesByPath.put(context.repositoryPrefix + inputFile.relativePath(), inputFile);
+    }
+    File spillDirectory = new File(context.fs.workDir(), "mercurial/annotate");
+    Map<InputFile, MercurialFileBlame> blames = new LinkedHashMap<>();
+    try (MercurialAnnotate annotate = new MercurialAnnotate(context.repository, !settings.getBoolean(CONSIDER_WHITESPACES_KEY), context.boundary, spillDirectory,
+      singlePassMaxMemory())) {
+      Map<String, int[]> results = annotate.annotateAll(filesByPath.keySet());
+      for (Map.Entry<String, InputFile> entry : filesByPath.entrySet()) {
+        if (results.containsKey(entry.getKey())) {
+          int[] revs = results.get(entry.getKey());
+          // Same result as the failure of the hg command on an uncommitted file when the file is not found
+          blames.put(entry.getValue(), revs == null ? new MercurialFileBlame(0) : toBlame(context.repository, context.changesets, revs));
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      LOG.debug("Unable to annotate files in a single pass, blaming them one by one: " + e.getMessage());
+      return files;
+    } finally {
+      task.javaEngine(System.nanoTime() - start, blames.size());
+      task.end();
+    }
+    List<InputFile> remaining = new ArrayList<>();
+    for (InputFile inputFile : files) {
+      MercurialFileBlame blame = blames.get(inputFile);
+      if (blame == null) {
+        remaining.add(inputFile);
+      } else {
+        storeInCache(context, inputFile, blame);
+        sendResult(context, inputFile, blame);
+      }
+    }
+    LOG.debug(blames.size() + " files annotated in a single pass, " + remaining.size() + " files to blame one by one");
+    return remaining;
+  }
+
+  /**
+   * Templated blame output requires Mercurial 4.6+, the default output is parsed otherwise.
+   */
+  private boolean isTemplateOutput() {
+    return settings.getBoolean(TEMPLATE_KEY) || settings.getBoolean(RESOLVE_CHANGESETS_KEY);
+  }
+
+  private boolean isIgnoringWhitespaces() {
+    return !settings.getBoolean(CONSIDER_WHITESPACES_KEY);
+  }
+
+  /**
+   * Blame without ignoring whitespaces first, which is faster, then again ignoring whitespaces only the files with
+   * whitespace changes in their history. The check of the history is a heuristic, <code>hg blame -w</code> may still
+   * attribute some lines of the other files differently, see {@link MercurialWhitespaceChangesConsumer}.
+   */
+  private boolean isAdaptiveWhitespaces() {
+    return isIgnoringWhitespaces() && settings.getBoolean(ADAPTIVE_WHITESPACES_KEY);
+  }
+
+  private long singlePassMaxMemory() {
+    int megabytes = settings.hasKey(SINGLE_PASS_MAX_MEMORY_KEY) ? settings.getInt(SINGLE_PASS_MAX_MEMORY_KEY) : DEFAULT_SINGLE_PASS_MAX_MEMORY_MB;
+    return Math.max(0, megabytes) * 1024L * 1024L;
+  }
+
+  static MercurialFileBlame toBlame(MercurialRepository repository, MercurialChangesetCache cache, int[] revs) throws IOException {
+    Map<Integer, MercurialChangesetCache.Changeset> changesets = new HashMap<>();
+    MercurialFileBlame blame = new MercurialFileBlame(revs.length);
+    for (int rev : revs) {
+      MercurialChangesetCache.Changeset changeset = changesets.get(rev);
+      if (changeset == null) {
+        changeset = toChangeset(cache, repository.changeset(rev));
+        changesets.put(rev, changeset);
+      }
+      blame.add(changeset);
+    }
+    return blame;
+  }
+
+  /**
+   * Same changeset as found by the hg command, see {@link MercurialBlameConsumer#CHANGESET_TEMPLATE}.
+   */
+  private static MercurialChangesetCache.Changeset toChangeset(MercurialChangesetCache cache, MercurialRepository.Changeset changeset) {
+    String revision = changeset.node().substring(0, 12);
+    long key = MercurialChangesetCache.key(revision, 0, revision.length());
+    MercurialChangesetCache.Changeset known = cache.get(key);
+    if (known != null && known.revision().equals(revision) && known.isResolved()) {
+      return known;
+    }
+    return cache.intern(key, new MercurialChangesetCache.Changeset(revision, MercurialUtils.email(changeset.user()), new Date(changeset.time() * 1000)));
+  }
+
+  /**
+   * Load author and date of changesets blamed without metadata, with one hg log command for many changesets. A failure
+   * is logged, the files blamed with the changesets that are still unknown are then not blamed.
+   */
+  private void resolveChangesets(BlameContext context, Set<String> nodes, MercurialBlameReport.Task task) {
+    if (nodes.isEmpty()) {
+      return;
+    }
+    List<String> pending = new ArrayList<>(nodes);
+    for (int start = 0; start < pending.size(); start += MAX_RESOLVED_CHANGESETS) {
+      List<String> chunk = pending.subList(start, Math.min(pending.size(), start + MAX_RESOLVED_CHANGESETS));
+      Command cl = createLogCommandLine(context.fs.baseDir(), chunk);
+      // Changesets are printed like blame entries, so that they are parsed and stored in the cache by a blame consumer
+      Execution<MercurialBlameConsumer> execution = execute(cl, () -> MercurialBlameConsumer.forTemplate("changesets", context.changesets, chunk.size()), context,
+        context.timeoutMillis(1));
+      task.command(execution.onCommandServer, execution.firstOutputNanos, execution.totalNanos, execution.parseNanos, execution.bytes);
+      if (execution.exitCode != 0) {
+        LOG.warn("The mercurial log command [" + cl.toString() + "] failed: " + execution.stderr.getOutput());
+      }
+    }
+  }
+
+  /**
+   * {@link BlameLine} objects are only created here, right before being handed to the scanner.
+   */
+  private void sendResult(BlameContext context, InputFile inputFile, MercurialFileBlame blame) {
+    MercurialFileBlame reconciled = null;
+    if (settings.getBoolean(RECONCILE_KEY) && isReconciliationNeeded(context, inputFile, blame)) {
+      reconciled = reconcile(context, inputFile, blame);
+    }
+    List<BlameLine> lines = reconciled != null ? reconciled.toBlameLines() : blame.toBlameLines();
+    // Blame of a modified file is the one of the working directory parent, a missing line is not always the last empty line
+    if (!lines.isEmpty() && lines.size() == inputFile.lines() - 1 && (reconciled != null || context.statusOf(inputFile) != MercurialStatus.MODIFIED)) {
       // SONARPLUGINS-3097 Mercurial do not report blame on last empty line
       lines.add(lines.get(lines.size() - 1));
     }
-    output.blameResult(inputFile, lines);
+    context.output.blameResult(inputFile, lines);
+  }
+
+  /**
+   * Modified files, or files whose blame doesn't have the expected number of lines when the status is unknown.
+   */
+  private static boolean isReconciliationNeeded(BlameContext context, InputFile inputFile, MercurialFileBlame blame) {
+    if (blame.isEmpty()) {
+      return false;
+    }
+    if (context.status != null) {
+      return context.statusOf(inputFile) == MercurialStatus.MODIFIED;
+    }
+    return blame.size() != inputFile.lines() && blame.size() != inputFile.lines() - 1;
   }
 
-  private int execute(Command cl, StreamConsumer consumer, StreamConsumer stderr) {
+  /**
+   * Blame of the current content of a file modified in the working directory, null if it can't be computed and the blame
+   * of the working directory parent is sent instead.
+   */
+  @CheckForNull
+  private MercurialFileBlame reconcile(BlameContext context, InputFile inputFile, MercurialFileBlame blame) {
+    List<String> committedLines = committedLines(context, inputFile);
+    if (committedLines == null) {
+      return null;
+    }
+    try {
+      String id = context.workingDirectoryId;
+      byte[] parent = (id == null && context.repository != null) ? context.repository.workingDirectoryParent() : null;
+      if (parent != null) {
+        id = MercurialUtils.toHex(parent).substring(0, 12);
+      }
+      if (id == null) {
+        LOG.debug("Unknown working directory parent, local changes of " + inputFile.relativePath() + " not reconciled");
+        return null;
+      }
+      List<String> currentLines = MercurialLocalChanges.split(new String(Files.readAllBytes(inputFile.path()), inputFile.charset()));
+      String revision = id.endsWith("+") ? id : (id + "+");
+      MercurialChangesetCache.Changeset uncommitted = new MercurialChangesetCache.Changeset(revision, null,
+        new Date(Files.getLastModifiedTime(inputFile.path()).toMillis()));
+      MercurialFileBlame reconciled = MercurialLocalChanges.reconcile(blame, committedLines, currentLines, isIgnoringWhitespaces(), uncommitted);
+      if (reconciled == null) {
+        LOG.debug("Blame of " + inputFile.relativePath() + " doesn't match its committed content, local changes not reconciled");
+      }
+      return reconciled;
+    } catch (IOException e) {
+      LOG.debug("Unable to read " + inputFile.relativePath() + ", local changes not reconciled: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Lines of the file in the working directory parent, read from the repository when possible, or with hg cat.
+   */
+  @CheckForNull
+  private List<String> committedLines(BlameContext context, InputFile inputFile) {
+    if (context.repository != null) {
+      try (MercurialAnnotate annotate = new MercurialAnnotate(context.repository, false)) {
+        byte[] content = annotate.content(context.repositoryPrefix + inputFile.relativePath());
+        if (content != null) {
+          return MercurialLocalChanges.split(new String(content, inputFile.charset()));
+        }
+      } catch (IOException | RuntimeException e) {
+        LOG.debug("Unable to read the committed content of " + inputFile.relativePath() + ", using the hg command: " + e.getMessage());
+      }
+    }
+    Command cl = createCatCommandLine(context.fs.baseDir(), inputFile.relativePath());
+    Execution<LinesConsumer> cat;
+    try {
+      cat = execute(cl, LinesConsumer::new, context, context.timeoutMillis(1));
+    } catch (TimeoutException e) {
+      LOG.debug("The mercurial cat command [" + cl.toString() + "] timed out, local changes not reconciled: " + e.getMessage());
+      return null;
+    }
+    if (cat.exitCode != 0) {
+      LOG.debug("The mercurial cat command [" + cl.toString() + "] failed, local changes not reconciled: " + cat.stderr.getOutput());
+      return null;
+    }
+    return cat.consumer.lines;
+  }
+
+  /**
+   * @throws TimeoutException if the command was killed after the given timeout, it is not run again in a new process
+   */
+  private <T extends StreamConsumer> Execution<T> execute(Command cl, Supplier<T> consumerFactory, BlameContext context, long timeoutMillis) {
+    if (context.commandServers != null) {
+      MeasuredConsumer<T> consumer = new MeasuredConsumer<>(consumerFactory.get());
+      StringStreamConsumer stderr = new StringStreamConsumer();
+      try {
+        LOG.debug("Executing on command server: " + cl);
+        int exitCode = context.commandServers.execute(cl, consumer, stderr, timeoutMillis);
+        return new Execution<>(consumer, stderr, exitCode, true);
+      } catch (IOException e) {
+        LOG.debug("Mercurial command server failed, executing in a new process: " + e.getMessage());
+      }
+    }
+    if (context.processes != null) {
+      MeasuredConsumer<T> consumer = new MeasuredConsumer<>(consumerFactory.get());
+      StringStreamConsumer stderr = new StringStreamConsumer();
+      try {
+        LOG.debug("Executing with direct I/O: " + cl);
+        int exitCode = context.processes.execute(cl, consumer, stderr, timeoutMillis);
+        return new Execution<>(consumer, stderr, exitCode, false);
+      } catch (IOException e) {
+        LOG.debug("Mercurial process failed with direct I/O, executing with the command executor: " + e.getMessage());
+      }
+    }
+    // Output may have been partially consumed by the command server, so start again from scratch
+    MeasuredConsumer<T> consumer = new MeasuredConsumer<>(consumerFactory.get());
+    StringStreamConsumer stderr = new StringStreamConsumer();
     LOG.debug("Executing: " + cl);
-    return commandExecutor.execute(cl, consumer, stderr, -1);
+    int exitCode = commandExecutor.execute(cl, consumer, stderr, timeoutMillis);
+    return new Execution<>(consumer, stderr, exitCode, false);
+  }
+
+  private Command createCommandLine(File workingDirectory, String filename, boolean ignoreWhitespaces) {
+    Command cl = createBlameCommand(workingDirectory, ignoreWhitespaces, isTemplateOutput());
+    // Make filename safe for usage with the "hg" command
+    // See Guideline 10 at https://pubs.opengroup.org/onlinepubs/9699919799/basedefs/V1_chap12.html
+    cl.addArgument("--");
+    cl.addArgument(filename);
+    return cl;
+  }
+
+  /**
+   * Batches are always blamed with a template, the default output doesn't tell which file a line belongs to.
+   */
+  private Command createBatchCommandLine(File workingDirectory, List<String> filenames, boolean ignoreWhitespaces) {
+    Command cl = createBlameCommand(workingDirectory, ignoreWhitespaces, true);
+    cl.addArgument("--");
+    cl.addArguments(filenames);
+    return cl;
+  }
+
+  /**
+   * Content of the file in the working directory parent.
+   */
+  private static Command createCatCommandLine(File workingDirectory, String filename) {
+    Command cl = Command.create("hg");
+    cl.setDirectory(workingDirectory);
+    cl.addArgument("cat");
+    cl.addArgument("--rev");
+    cl.addArgument(".");
+    cl.addArgument("--");
+    cl.addArgument(filename);
+    return cl;
+  }
+
+  /**
+   * Diffs of the history of the files, following copies and renames like blame.
+   */
+  private static Command createWhitespaceChangesCommandLine(File workingDirectory, List<String> filenames) {
+    Command cl = Command.create("hg");
+    cl.setDirectory(workingDirectory);
+    cl.addArgument("log");
+    cl.addArgument("--follow");
+    cl.addArgument("--patch");
+    cl.addArgument("--git");
+    cl.addArgument("--template");
+    cl.addArgument("");
+    cl.addArgument("--");
+    cl.addArguments(filenames);
+    return cl;
+  }
+
+  private static Command createLogCommandLine(File workingDirectory, List<String> nodes) {
+    Command cl = Command.create("hg");
+    cl.setDirectory(workingDirectory);
+    cl.addArgument("log");
+    for (String node : nodes) {
+      cl.addArgument("--rev");
+      cl.addArgument(node);
+    }
+    cl.addArgument("--template");
+    cl.addArgument(MercurialBlameConsumer.CHANGESET_TEMPLATE);
+    return cl;
+  }
+
+  /**
+   * Revision numbers of the changesets of a revset.
+   */
+  private static Command createRevisionsCommandLine(File workingDirectory, String revset) {
+    Command cl = Command.create("hg");
+    cl.setDirectory(workingDirectory);
+    cl.addArgument("log");
+    cl.addArgument("--rev");
+    cl.addArgument(revset);
+    cl.addArgument("--template");
+    cl.addArgument("{rev}\\n");
+    return cl;
   }
 
-  private Command createCommandLine(File workingDirectory, String filename) {
+  /**
+   * File node and path of the files of the working directory parent, paths are relative to the repository root.
+   */
+  private static Command createManifestCommandLine(File workingDirectory) {
+    Command cl = Command.create("hg");
+    cl.setDirectory(workingDirectory);
+    cl.addArgument("manifest");
+    cl.addArgument("--debug");
+    cl.addArgument("--rev");
+    cl.addArgument(".");
+    cl.addArgument("--template");
+    cl.addArgument("{hash} {path}\\n");
+    return cl;
+  }
+
+  /**
+   * Id of the working directory parent, followed by "+" when there are uncommitted changes.
+   */
+  private static Command createIdCommandLine(File workingDirectory) {
+    Command cl = Command.create("hg");
+    cl.setDirectory(workingDirectory);
+    cl.addArgument("id");
+    cl.addArgument("--id");
+    return cl;
+  }
+
+  /**
+   * Files whose content may be different from the working directory parent, paths are relative to the repository root.
+   */
+  private static Command createStatusCommandLine(File workingDirectory) {
+    return createStatusCommandLine(workingDirectory, null);
+  }
+
+  /**
+   * Same as {@link #createStatusCommandLine(File)}, restricted to the given paths relative to the repository root if
+   * not null. The working directory must then be the repository root, paths of files given to hg status are printed
+   * relative to it.
+   */
+  private static Command createStatusCommandLine(File workingDirectory, @Nullable List<String> paths) {
+    Command cl = Command.create("hg");
+    cl.setDirectory(workingDirectory);
+    cl.addArgument("status");
+    cl.addArgument("--modified");
+    cl.addArgument("--added");
+    cl.addArgument("--removed");
+    cl.addArgument("--deleted");
+    cl.addArgument("--unknown");
+    if (paths != null) {
+      cl.addArgument("--");
+      for (String path : paths) {
+        cl.addArgument("path:" + path);
+      }
+    }
+    return cl;
+  }
+
+  private Command createBlameCommand(File workingDirectory, boolean ignoreWhitespaces, boolean template) {
     Command cl = Command.create("hg");
     cl.setDirectory(workingDirectory);
     cl.addArgument("blame");
-    // Hack to support Mercurial prior to 2.1
-    if (!settings.getBoolean("sonar.mercurial.considerWhitespaces")) {
+    if (ignoreWhitespaces) {
       // Ignore whitespaces
       cl.addArgument("-w");
     }
-    // Verbose to have user email adress
-    cl.addArgument("-v");
-    // list the author
-    cl.addArgument("--user");
-    // list the date
-    cl.addArgument("--date");
-    // list the global revision number
-    cl.addArgument("--changeset");
-    // Make filename safe for usage with the "hg" command
-    // See Guideline 10 at https://pubs.opengroup.org/onlinepubs/9699919799/basedefs/V1_chap12.html
-    cl.addArgument("--");
-    cl.addArgument(filename);
+    if (!template) {
+      // Verbose to have user email adress
+      cl.addArgument("-v");
+      // list the author
+      cl.addArgument("--user");
+      // list the date
+      cl.addArgument("--date");
+      // list the global revision number
+      cl.addArgument("--changeset");
+      return cl;
+    }
+    cl.addArgument("--template");
+    if (settings.getBoolean(RESOLVE_CHANGESETS_KEY)) {
+      // Only the changeset of each line, its date and author are loaded once per analysis
+      cl.addArgument(MercurialBlameConsumer.NODE_TEMPLATE);
+    } else {
+      // Changeset, date and author of each line, see MercurialBlameConsumer
+      cl.addArgument(MercurialBlameConsumer.TEMPLATE);
+    }
     return cl;
   }
 
+  /**
+   * State shared by all the files blamed during one analysis.
+   */
+  private static class BlameContext {
+    private final FileSystem fs;
+    private final BlameOutput output;
+    @Nullable
+    private final MercurialCommandServerPool commandServers;
+    /**
+     * Executor of hg processes reading their output directly, {@link CommandExecutor} is used if null.
+     */
+    @Nullable
+    private MercurialProcessExecutor processes;
+    private final MercurialChangesetCache changesets = new MercurialChangesetCache();
+    private final MercurialBlameReport report = new MercurialBlameReport();
+    private final AtomicInteger skippedFiles = new AtomicInteger();
+    /**
+     * Timeout of the blame of one file, no timeout if 0.
+     */
+    private long fileTimeoutMillis;
+    /**
+     * End of the global timeout, in {@link System#nanoTime()}, no global timeout if null.
+     */
+    @Nullable
+    private Long deadline;
+    /**
+     * File nodes of unchanged files by path relative to the repository root, only loaded when a blame cache is enabled.
+     */
+    private final Map<String, String> fileNodes = new HashMap<>();
+    private String repositoryPrefix = "";
+    /**
+     * Status of the working directory, unknown unless loaded by the status pre-pass.
+     */
+    @Nullable
+    private MercurialStatus status;
+    /**
+     * Id of the working directory parent as printed by hg id, followed by "+" when there are uncommitted changes.
+     */
+    @Nullable
+    private String workingDirectoryId;
+    @Nullable
+    private MercurialBlameCache cache;
+    @Nullable
+    private MercurialSharedBlameCache sharedCache;
+    /**
+     * Files blamed one by one with the hg command whose history contains whitespace changes, unknown if null.
+     */
+    @Nullable
+    private Set<InputFile> withWhitespaceChanges;
+    @Nullable
+    private MercurialRepository repository;
+    /**
+     * Changesets beyond which the history of files is not followed, the whole history if null.
+     */
+    @Nullable
+    private MercurialAnnotate.Boundary boundary;
+
+    BlameContext(FileSystem fs, BlameOutput output, @Nullable MercurialCommandServerPool commandServers) {
+      this.fs = fs;
+      this.output = output;
+      this.commandServers = commandServers;
+    }
+
+    /**
+     * Path of the file relative to the repository root.
+     */
+    String repositoryPath(InputFile inputFile) {
+      return repositoryPrefix + inputFile.relativePath();
+    }
+
+    @CheckForNull
+    String fileNode(InputFile inputFile) {
+      return fileNodes.get(repositoryPath(inputFile));
+    }
+
+    boolean isDeadlineExceeded() {
+      return deadline != null && System.nanoTime() - deadline >= 0;
+    }
+
+    /**
+     * Timeout of an hg command blaming the given number of files, bounded by the global timeout. Commands that don't
+     * blame files, with 0 files, only have the global timeout. -1 if there is no timeout.
+     */
+    long timeoutMillis(int files) {
+      long timeout = (fileTimeoutMillis > 0 && files > 0) ? (fileTimeoutMillis * files) : -1;
+      if (deadline != null) {
+        long remaining = Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+        timeout = timeout < 0 ? remaining : Math.min(timeout, remaining);
+      }
+      return timeout;
+    }
+
+    /**
+     * Status of the file in the working directory, or 0 when unknown.
+     */
+    char statusOf(InputFile inputFile) {
+      return status == null ? 0 : status.statusOf(repositoryPrefix + inputFile.relativePath());
+    }
+  }
+
+  private static class LinesConsumer implements StreamConsumer {
+    private final List<String> lines = new ArrayList<>();
+
+    @Override
+    public void consumeLine(String line) {
+      lines.add(line);
+    }
+  }
+
+  /**
+   * Measure the time until the first output line, the time spent parsing the output and the size of the output.
+   * Lines read as bytes are forwarded as bytes when the consumer supports it.
+   */
+  private static class MeasuredConsumer<T extends StreamConsumer> implements StreamConsumer, MercurialProcessExecutor.ByteLineConsumer {
+    private final T consumer;
+    private final long start = System.nanoTime();
+    private long firstLine = -1;
+    private long parseNanos;
+    private long bytes;
+
+    MeasuredConsumer(T consumer) {
+      this.consumer = consumer;
+    }
+
+    @Override
+    public void consumeLine(String line) {
+      long now = System.nanoTime();
+      if (firstLine < 0) {
+        firstLine = now;
+      }
+      // Output is mostly ASCII, the end of line is not part of the line
+      bytes += line.length() + 1;
+      consumer.consumeLine(line);
+      parseNanos += System.nanoTime() - now;
+    }
+
+    @Override
+    public void consumeLine(byte[] buffer, int start, int end) {
+      long now = System.nanoTime();
+      if (firstLine < 0) {
+        firstLine = now;
+      }
+      bytes += end - start + 1;
+      if (consumer instanceof MercurialProcessExecutor.ByteLineConsumer) {
+        ((MercurialProcessExecutor.ByteLineConsumer) consumer).consumeLine(buffer, start, end);
+      } else {
+        consumer.consumeLine(new String(buffer, start, end - start, StandardCharsets.UTF_8));
+      }
+      parseNanos += System.nanoTime() - now;
+    }
+  }
+
+  private static class Execution<T extends StreamConsumer> {
+    private final T consumer;
+    private final StringStreamConsumer stderr;
+    private final int exitCode;
+    private final boolean onCommandServer;
+    private final long totalNanos;
+    private final long firstOutputNanos;
+    private final long parseNanos;
+    private final long bytes;
+
+    Execution(MeasuredConsumer<T> measured, StringStreamConsumer stderr, int exitCode, boolean onCommandServer) {
+      this.consumer = measured.consumer;
+      this.stderr = stderr;
+      this.exitCode = exitCode;
+      this.onCommandServer = onCommandServer;
+      this.totalNanos = System.nanoTime() - measured.start;
+      this.firstOutputNanos = measured.firstLine < 0 ? totalNanos : (measured.firstLine - measured.start);
+      this.parseNanos = measured.parseNanos;
+      this.bytes = measured.bytes;
+    }
+  }
+
 }
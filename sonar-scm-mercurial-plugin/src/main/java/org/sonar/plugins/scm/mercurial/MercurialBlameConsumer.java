@@ -19,69 +19,418 @@
  */
 package org.sonar.plugins.scm.mercurial;
 
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDate;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Locale;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.CheckForNull;
 import org.sonar.api.batch.scm.BlameLine;
 import org.sonar.api.utils.command.StreamConsumer;
 import org.sonar.api.utils.log.Logger;
 import org.sonar.api.utils.log.Loggers;
 
-public class MercurialBlameConsumer implements StreamConsumer {
+/**
+ * Parse the output of <code>hg blame -v --user --date --changeset</code>, supported by all Mercurial versions.
+ * <p>
+ * When created with {@link #forTemplate}, parse the output of <code>hg blame --template {@link #TEMPLATE}</code>
+ * instead, which requires Mercurial 4.6+. Fields are located by scanning for separators, and the content of the
+ * blamed lines is not even part of the output.
+ * Output of {@link #NODE_TEMPLATE} is supported too, the changesets unknown so far have then to be resolved with
+ * <code>hg log --template {@link #CHANGESET_TEMPLATE}</code>, which prints changesets like blame entries.
+ * <p>
+ * Lines read as bytes are parsed in place, only the author of changesets not seen so far is decoded.
+ */
+public class MercurialBlameConsumer implements StreamConsumer, MercurialProcessExecutor.ByteLineConsumer {
 
   private static final Logger LOG = Loggers.get(MercurialBlameConsumer.class);
 
   private static final String HG_TIMESTAMP_PATTERN = "EEE MMM dd HH:mm:ss yyyy Z";
-  private static final String HG_BLAME_PATTERN = "(.*?) (?:<(.*)> )?([0-9a-f]{12}) ([^:]+:[^:]+:[^:]+):.*";
 
-  private List<BlameLine> lines = new ArrayList<>();
+  /**
+   * Length of the dates of the default output, like <code>Tue Nov 04 11:01:10 2014 +0100</code>.
+   */
+  private static final int HG_TIMESTAMP_LENGTH = 30;
+
+  /**
+   * Length of the short changeset ids of the default output.
+   */
+  private static final int SHORT_NODE_LENGTH = 12;
+
+  private static final String[] MONTHS = {"Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+
+  /**
+   * Changeset id, date as seconds since epoch followed by the timezone offset, and author.
+   */
+  static final String CHANGESET_TEMPLATE = "{node|short} {date|hgdate} {user|email}\\n";
+
+  /**
+   * One section per file, starting with the repository relative path prefixed by '@', then one line per blamed line.
+   * Entries always start with the hexadecimal changeset id, so they can't be confused with a section header.
+   */
+  static final String TEMPLATE = "@{path}\\n{lines % '" + CHANGESET_TEMPLATE + "'}";
+
+  /**
+   * Same as {@link #TEMPLATE}, but with only the changeset id of each line.
+   */
+  static final String NODE_TEMPLATE = "@{path}\\n{lines % '{node|short}\\n'}";
 
-  private DateFormat format;
+  private final Map<String, MercurialChangesetCache.Changeset> unresolved = new LinkedHashMap<>();
 
   private final String filename;
 
-  private Pattern pattern;
+  private final MercurialChangesetCache changesets;
+
+  private final MercurialFileBlame blame;
+
+  private final ByteLine byteLine = new ByteLine();
+
+  /**
+   * Whether the output of {@link #TEMPLATE} or {@link #NODE_TEMPLATE} is parsed, rather than the default output.
+   */
+  private final boolean template;
 
   public MercurialBlameConsumer(String filename) {
+    this(filename, new MercurialChangesetCache(), 0);
+  }
+
+  /**
+   * @param expectedLines number of lines of the file, usually the number of blamed lines
+   */
+  MercurialBlameConsumer(String filename, MercurialChangesetCache changesets, int expectedLines) {
+    this(filename, changesets, expectedLines, false);
+  }
+
+  private MercurialBlameConsumer(String filename, MercurialChangesetCache changesets, int expectedLines, boolean template) {
     this.filename = filename;
-    format = new SimpleDateFormat(HG_TIMESTAMP_PATTERN, Locale.ENGLISH);
-    pattern = Pattern.compile(HG_BLAME_PATTERN);
+    this.changesets = changesets;
+    this.blame = new MercurialFileBlame(expectedLines);
+    this.template = template;
+  }
+
+  /**
+   * Consumer of the output of {@link #TEMPLATE} or {@link #NODE_TEMPLATE}.
+   */
+  static MercurialBlameConsumer forTemplate(String filename, MercurialChangesetCache changesets, int expectedLines) {
+    return new MercurialBlameConsumer(filename, changesets, expectedLines, true);
   }
 
   @Override
   public void consumeLine(String line) {
-    String trimmedLine = line.trim();
-    /* godin <email> 0 Sun Jan 31 03:04:54 2010 +0300: */
-    /* godin 0 Sun Jan 31 03:04:54 2010 +0300: */
-    Matcher matcher = pattern.matcher(trimmedLine);
-    if (!matcher.matches()) {
-      throw new IllegalStateException("Unable to blame file " + filename + ". Unrecognized blame info at line " + (getLines().size() + 1) + ": " + trimmedLine);
-    }
-    String author = matcher.group(2);
-    if (author == null) {
-      author = matcher.group(1);
-    }
-    String revision = matcher.group(3);
-    String dateStr = matcher.group(4);
-    Date dateTime = null;
+    consume(line);
+  }
+
+  @Override
+  public void consumeLine(byte[] buffer, int start, int end) {
+    byteLine.set(buffer, start, end);
+    consume(byteLine);
+  }
+
+  private void consume(CharSequence line) {
+    if (!template) {
+      blame.add(parseLine(line));
+      return;
+    }
+    if (isFileHeader(line)) {
+      return;
+    }
+    /* d45dafac0d9a 1415095270 -3600 julien.henry@sonarsource.com */
+    /* d45dafac0d9a */
+    MercurialChangesetCache.Changeset changeset = parseChangeset(line);
+    if (changeset == null) {
+      throw new IllegalStateException("Unable to blame file " + filename + ". Unrecognized blame info at line " + (blame.size() + 1) + ": " + line);
+    }
+    blame.add(changeset);
+  }
+
+  /**
+   * Line of the default output, the changeset is shared with the other lines when changeset id and author are the
+   * same. Nothing is allocated when the changeset was already seen.
+   */
+  private MercurialChangesetCache.Changeset parseLine(CharSequence line) {
+    /* Julien Henry <julien.henry@sonarsource.com> d45dafac0d9a Tue Nov 04 11:01:10 2014 +0100: foo */
+    /* julien.henry d45dafac0d9a Tue Nov 04 11:01:10 2014 +0100: foo */
+    int start = 0;
+    int end = line.length();
+    // Authors are right aligned
+    while (start < end && line.charAt(start) <= ' ') {
+      start++;
+    }
+    while (end > start && line.charAt(end - 1) <= ' ') {
+      end--;
+    }
+    int dateEnd = findDateEnd(line, start, end);
+    if (dateEnd < 0) {
+      throw new IllegalStateException("Unable to blame file " + filename + ". Unrecognized blame info at line " + (blame.size() + 1) + ": " + line);
+    }
+    int dateStart = dateEnd - HG_TIMESTAMP_LENGTH;
+    int revisionStart = dateStart - 1 - SHORT_NODE_LENGTH;
+    int authorStart = start;
+    int authorEnd = revisionStart - 1;
+    // Only the email of "Name <email>" is kept
+    int emailStart = indexOf(line, " <", authorStart, authorEnd);
+    if (emailStart >= 0 && line.charAt(authorEnd - 1) == '>') {
+      authorStart = emailStart + 2;
+      authorEnd--;
+    }
+    // The date of a changeset doesn't change, it is only parsed for the changesets not seen so far
+    long key = MercurialChangesetCache.key(line, revisionStart, dateStart - 1);
+    MercurialChangesetCache.Changeset known = changesets.get(key);
+    if (known != null && known.author() != null
+      && known.revision().length() == SHORT_NODE_LENGTH && startsWith(line, revisionStart, known.revision())
+      && known.author().length() == authorEnd - authorStart && startsWith(line, authorStart, known.author())) {
+      return known;
+    }
+    String author = line.subSequence(authorStart, authorEnd).toString();
+    String revision = line.subSequence(revisionStart, dateStart - 1).toString();
+    Date dateTime = parseDate(line, dateStart);
+    if (dateTime == null) {
+      LOG.warn("skip unparseable date on file " + filename + " at line " + (blame.size() + 1) + ": " + line.subSequence(dateStart, dateEnd)
+        + " does not match pattern " + HG_TIMESTAMP_PATTERN + " [" + line + "]");
+      return new MercurialChangesetCache.Changeset(revision, author, null);
+    }
+    MercurialChangesetCache.Changeset changeset = new MercurialChangesetCache.Changeset(revision, author, dateTime);
+    return known == null ? changesets.intern(key, changeset) : changeset;
+  }
+
+  /**
+   * Date of the default output at the given index, formatted with {@link #HG_TIMESTAMP_PATTERN} in English, or null
+   * when not a valid date. The day of week is ignored.
+   */
+  @CheckForNull
+  static Date parseDate(CharSequence line, int start) {
+    /* Tue Nov 04 11:01:10 2014 +0100 */
+    int month = 0;
+    while (month < MONTHS.length && !startsWith(line, start + 4, MONTHS[month])) {
+      month++;
+    }
+    int day = parseNumber(line, start + 8, 2);
+    int hours = parseNumber(line, start + 11, 2);
+    int minutes = parseNumber(line, start + 14, 2);
+    int seconds = parseNumber(line, start + 17, 2);
+    int year = parseNumber(line, start + 20, 4);
+    int offsetHours = parseNumber(line, start + 26, 2);
+    int offsetMinutes = parseNumber(line, start + 28, 2);
+    if (month == MONTHS.length || day < 0 || hours < 0 || minutes < 0 || seconds < 0 || year < 0 || offsetHours < 0 || offsetMinutes < 0) {
+      return null;
+    }
+    long epochDay;
     try {
-      dateTime = format.parse(dateStr);
-    } catch (ParseException e) {
-      LOG.warn(
-        "skip ParseException on file " + filename + " at line " + (getLines().size() + 1) + ": " + e.getMessage() + " during parsing date " + dateStr
-          + " with pattern " + HG_TIMESTAMP_PATTERN + " [" + line + "]", e);
+      epochDay = LocalDate.of(year, month + 1, day).toEpochDay();
+    } catch (DateTimeException e) {
+      return null;
+    }
+    int offset = offsetHours * 3600 + offsetMinutes * 60;
+    long epochSeconds = epochDay * 86_400 + hours * 3600 + minutes * 60 + seconds - (line.charAt(start + 25) == '-' ? -offset : offset);
+    return new Date(epochSeconds * 1000);
+  }
+
+  /**
+   * Decimal number of the given number of digits, negative when a character is not a digit.
+   */
+  private static int parseNumber(CharSequence line, int start, int digits) {
+    int number = 0;
+    for (int i = start; i < start + digits; i++) {
+      char c = line.charAt(i);
+      if (!isDigit(c)) {
+        return -1;
+      }
+      number = number * 10 + (c - '0');
+    }
+    return number;
+  }
+
+  /**
+   * End of the date of a line of the default output, which is followed by the first colon preceded by a date and a
+   * changeset id. The content of the line, or even the author, may contain colons too. Negative when not found.
+   */
+  private static int findDateEnd(CharSequence line, int start, int end) {
+    for (int colon = start; colon < end; colon++) {
+      if (line.charAt(colon) == ':' && (colon + 1 == end || line.charAt(colon + 1) == ' ')
+        && isDateAndNode(line, start, colon - HG_TIMESTAMP_LENGTH)) {
+        return colon;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Whether an author is followed by a short changeset id then a date starting at the given index. The fields of the
+   * date are only checked by their separators, the date itself is checked when parsed.
+   */
+  private static boolean isDateAndNode(CharSequence line, int start, int dateStart) {
+    int revisionStart = dateStart - 1 - SHORT_NODE_LENGTH;
+    if (revisionStart - 1 <= start || line.charAt(revisionStart - 1) != ' ' || line.charAt(dateStart - 1) != ' ') {
+      return false;
+    }
+    for (int i = revisionStart; i < dateStart - 1; i++) {
+      if (!MercurialUtils.isHexDigit(line.charAt(i))) {
+        return false;
+      }
+    }
+    /* Tue Nov 04 11:01:10 2014 +0100 */
+    char sign = line.charAt(dateStart + 25);
+    return line.charAt(dateStart + 3) == ' ' && line.charAt(dateStart + 7) == ' ' && line.charAt(dateStart + 10) == ' '
+      && line.charAt(dateStart + 13) == ':' && line.charAt(dateStart + 16) == ':' && line.charAt(dateStart + 19) == ' '
+      && line.charAt(dateStart + 24) == ' ' && (sign == '+' || sign == '-');
+  }
+
+  private static int indexOf(CharSequence line, String separator, int from, int to) {
+    for (int i = from; i + separator.length() <= to; i++) {
+      if (startsWith(line, i, separator)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  static boolean isFileHeader(CharSequence line) {
+    return line.length() > 0 && line.charAt(0) == '@';
+  }
+
+  /**
+   * Nothing is allocated when the changeset was already seen, in this file or in another one.
+   */
+  @CheckForNull
+  private MercurialChangesetCache.Changeset parseChangeset(CharSequence line) {
+    int length = line.length();
+    int nodeEnd = 0;
+    while (nodeEnd < length && MercurialUtils.isHexDigit(line.charAt(nodeEnd))) {
+      nodeEnd++;
+    }
+    if (nodeEnd == 0 || (nodeEnd < length && line.charAt(nodeEnd) != ' ')) {
+      return null;
+    }
+    long key = MercurialChangesetCache.key(line, 0, nodeEnd);
+    MercurialChangesetCache.Changeset known = changesets.get(key);
+    if (known != null && known.revision().length() == nodeEnd && startsWith(line, 0, known.revision())) {
+      return known;
+    }
+    if (nodeEnd == length) {
+      return unresolved.computeIfAbsent(line.toString(), MercurialChangesetCache.Changeset::unresolved);
     }
 
-    lines.add(new BlameLine().date(dateTime).revision(revision).author(author));
+    int pos = nodeEnd + 1;
+    boolean negative = pos < length && line.charAt(pos) == '-';
+    if (negative) {
+      pos++;
+    }
+    int secondsStart = pos;
+    long seconds = 0;
+    while (pos < length && isDigit(line.charAt(pos))) {
+      seconds = seconds * 10 + (line.charAt(pos) - '0');
+      pos++;
+    }
+    if (pos == secondsStart || pos == length || line.charAt(pos) != ' ') {
+      return null;
+    }
+    // The timezone offset is not needed, the date is an instant
+    int authorStart = pos + 1;
+    while (authorStart < length && line.charAt(authorStart) != ' ') {
+      authorStart++;
+    }
+    if (authorStart == length) {
+      return null;
+    }
+    authorStart++;
+    MercurialChangesetCache.Changeset changeset = new MercurialChangesetCache.Changeset(line.subSequence(0, nodeEnd).toString(),
+      line.subSequence(authorStart, length).toString(),
+      new Date((negative ? -seconds : seconds) * 1000));
+    return known == null ? changesets.intern(key, changeset) : changeset;
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean startsWith(CharSequence line, int offset, String prefix) {
+    for (int i = 0; i < prefix.length(); i++) {
+      if (line.charAt(offset + i) != prefix.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Line of UTF-8 bytes seen as characters by {@link #charAt(int)}, which is enough for the hexadecimal ids, dates and
+   * separators. Indexes are byte offsets, sub sequences are decoded.
+   */
+  static final class ByteLine implements CharSequence {
+    private byte[] buffer;
+    private int start;
+    private int end;
+
+    ByteLine set(byte[] buffer, int start, int end) {
+      this.buffer = buffer;
+      this.start = start;
+      this.end = end;
+      return this;
+    }
+
+    @Override
+    public int length() {
+      return end - start;
+    }
+
+    @Override
+    public char charAt(int index) {
+      return (char) (buffer[start + index] & 0xFF);
+    }
+
+    @Override
+    public CharSequence subSequence(int from, int to) {
+      return new String(buffer, start + from, to - from, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+      return new String(buffer, start, end - start, StandardCharsets.UTF_8);
+    }
+  }
+
+  /**
+   * Changesets that were blamed without their metadata, and that were not known at that time.
+   */
+  Set<String> getUnresolvedNodes() {
+    return unresolved.keySet();
+  }
+
+  /**
+   * False when a changeset blamed without metadata is still unknown, {@link #getBlame()} would then fail.
+   */
+  boolean isResolved() {
+    for (String node : unresolved.keySet()) {
+      if (changesets.get(MercurialChangesetCache.key(node, 0, node.length())) == null) {
+        return false;
+      }
+    }
+    return true;
   }
 
   public List<BlameLine> getLines() {
-    return lines;
+    return getBlame().toBlameLines();
+  }
+
+  /**
+   * Blamed lines, with the changesets blamed without metadata replaced by the resolved ones.
+   */
+  MercurialFileBlame getBlame() {
+    if (!unresolved.isEmpty()) {
+      blame.replaceChangesets(changeset -> {
+        if (changeset.isResolved()) {
+          return changeset;
+        }
+        MercurialChangesetCache.Changeset resolved = changesets.get(MercurialChangesetCache.key(changeset.revision(), 0, changeset.revision().length()));
+        if (resolved == null) {
+          throw new IllegalStateException("Unable to blame file " + filename + ". Unknown changeset " + changeset.revision());
+        }
+        return resolved;
+      });
+    }
+    return blame;
   }
 }
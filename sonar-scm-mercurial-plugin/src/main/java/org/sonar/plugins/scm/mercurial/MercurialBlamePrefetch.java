@@ -0,0 +1,140 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Blame all the files of the working directory parent of a repository into a shared blame cache, see
+ * {@link MercurialSharedBlameCache}, outside of any analysis. Run for example by a CI agent after each pull, the
+ * analyses of the clones sharing the cache then find the blame of unchanged files ready. Only files missing from the
+ * cache are blamed, with a single pass over the history by reading the repository, so the hg command is not needed.
+ * The blame of the java engine may differ from the one of the hg command, so it is only found by the analyses that
+ * read the repository too, see {@link MercurialBlameCommand#cacheOptions(boolean, boolean, boolean, String)}.
+ * <p>
+ * Usage, the sonar-plugin-api jar being needed on the classpath:
+ * <pre>
+ * java -cp sonar-scm-mercurial-plugin.jar:sonar-plugin-api.jar org.sonar.plugins.scm.mercurial.MercurialBlamePrefetch \
+ *   [--considerWhitespaces] [--maxMemory &lt;MB&gt;] &lt;repository&gt; &lt;shared cache directory&gt;
+ * </pre>
+ */
+public class MercurialBlamePrefetch {
+
+  private static final Logger LOG = Loggers.get(MercurialBlamePrefetch.class);
+
+  private static final String USAGE = "Usage: MercurialBlamePrefetch [--considerWhitespaces] [--maxMemory <MB>] <repository> <shared cache directory>";
+  private static final int DEFAULT_MAX_MEMORY_MB = 256;
+
+  private final File repositoryRoot;
+  private final File cacheDirectory;
+  private final boolean considerWhitespaces;
+  private final long maxMemory;
+
+  MercurialBlamePrefetch(File repositoryRoot, File cacheDirectory, boolean considerWhitespaces, long maxMemory) {
+    this.repositoryRoot = repositoryRoot;
+    this.cacheDirectory = cacheDirectory;
+    this.considerWhitespaces = considerWhitespaces;
+    this.maxMemory = maxMemory;
+  }
+
+  public static void main(String[] args) {
+    int status = run(args);
+    if (status != 0) {
+      System.exit(status);
+    }
+  }
+
+  /**
+   * Returns the exit status: 0 on success, 1 when the blame could not be prefetched, 2 when the arguments are invalid.
+   */
+  static int run(String[] args) {
+    boolean considerWhitespaces = false;
+    long maxMemory = DEFAULT_MAX_MEMORY_MB * 1024L * 1024L;
+    List<String> operands = new ArrayList<>();
+    try {
+      for (int i = 0; i < args.length; i++) {
+        if ("--considerWhitespaces".equals(args[i])) {
+          considerWhitespaces = true;
+        } else if ("--maxMemory".equals(args[i]) && i + 1 < args.length) {
+          maxMemory = Math.max(0, Integer.parseInt(args[++i])) * 1024L * 1024L;
+        } else {
+          operands.add(args[i]);
+        }
+      }
+    } catch (NumberFormatException e) {
+      operands.clear();
+    }
+    if (operands.size() != 2) {
+      LOG.error(USAGE);
+      return 2;
+    }
+    try {
+      new MercurialBlamePrefetch(new File(operands.get(0)), new File(operands.get(1)), considerWhitespaces, maxMemory).prefetch();
+      return 0;
+    } catch (IOException e) {
+      LOG.error("Unable to prefetch blame: " + e.getMessage(), e);
+      return 1;
+    }
+  }
+
+  /**
+   * Returns the number of files added to the cache.
+   */
+  int prefetch() throws IOException {
+    long start = System.nanoTime();
+    MercurialChangesetCache changesets = new MercurialChangesetCache();
+    MercurialSharedBlameCache cache = new MercurialSharedBlameCache(cacheDirectory, MercurialBlameCommand.cacheOptions(true, considerWhitespaces, false, null), changesets);
+    try (MercurialRepository repository = MercurialRepository.open(repositoryRoot)) {
+      Map<String, byte[]> manifest = repository.manifest();
+      List<String> missing = new ArrayList<>();
+      for (Map.Entry<String, byte[]> entry : manifest.entrySet()) {
+        if (!cache.contains(entry.getKey(), MercurialUtils.toHex(entry.getValue()))) {
+          missing.add(entry.getKey());
+        }
+      }
+      int added = 0;
+      if (!missing.isEmpty()) {
+        File spillDirectory = Files.createTempDirectory("hg-prefetch").toFile();
+        try (MercurialAnnotate annotate = new MercurialAnnotate(repository, !considerWhitespaces, null, spillDirectory, maxMemory)) {
+          Map<String, int[]> results = annotate.annotateAll(missing);
+          for (Map.Entry<String, int[]> result : results.entrySet()) {
+            if (result.getValue() != null && result.getValue().length > 0) {
+              cache.put(result.getKey(), MercurialUtils.toHex(manifest.get(result.getKey())), MercurialBlameCommand.toBlame(repository, changesets, result.getValue()));
+              added++;
+            }
+          }
+        } finally {
+          Files.deleteIfExists(spillDirectory.toPath());
+        }
+      }
+      LOG.info(String.format(Locale.ROOT, "Blame of %d files added to %s in %d ms, %d files already cached", added, cache, (System.nanoTime() - start) / 1_000_000,
+        manifest.size() - missing.size()));
+      return added;
+    }
+  }
+}
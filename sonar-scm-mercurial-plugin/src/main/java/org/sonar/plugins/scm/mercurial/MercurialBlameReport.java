@@ -0,0 +1,285 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Timings of the blame tasks of an analysis. The time of each task is split into the wait in the scheduler queue,
+ * the start of hg until its first output line (spawn), the execution of hg, and the parsing of its output.
+ * <p>
+ * Thread safe, but each {@link Task} must only be used by the thread running it.
+ */
+class MercurialBlameReport {
+
+  static final String HG_ENGINE = "hg";
+  static final String COMMAND_SERVER_ENGINE = "commandServer";
+  static final String JAVA_ENGINE = "java";
+
+  private static final int SLOWEST_TASKS = 5;
+
+  private final LongSupplier clock;
+  private final long start;
+  private final List<Task> tasks = new ArrayList<>();
+  private int cachedFiles;
+  private int uncommittedFiles;
+  private int timedOutFiles;
+
+  MercurialBlameReport() {
+    this(System::nanoTime);
+  }
+
+  MercurialBlameReport(LongSupplier clock) {
+    this.clock = clock;
+    this.start = clock.getAsLong();
+  }
+
+  /**
+   * Blame of one file, or of a batch of files, from its submission to the scheduler.
+   */
+  class Task {
+    private final String description;
+    private final int files;
+    private final int lines;
+    private final long submitted;
+    private long started;
+    private long ended;
+    private long spawnNanos;
+    private long execNanos;
+    private long parseNanos;
+    private long bytes;
+    private int processes;
+    private int serverCommands;
+    private int javaFiles;
+
+    private Task(String description, int files, int lines) {
+      this.description = description;
+      this.files = files;
+      this.lines = lines;
+      this.submitted = clock.getAsLong();
+    }
+
+    void start() {
+      started = clock.getAsLong();
+    }
+
+    /**
+     * An hg command run for this task: time until the first output line, total time, time spent parsing the output.
+     */
+    void command(boolean onCommandServer, long firstOutputNanos, long totalNanos, long commandParseNanos, long outputBytes) {
+      if (onCommandServer) {
+        serverCommands++;
+      } else {
+        processes++;
+      }
+      spawnNanos += firstOutputNanos;
+      execNanos += Math.max(0, totalNanos - firstOutputNanos - commandParseNanos);
+      parseNanos += commandParseNanos;
+      bytes += outputBytes;
+    }
+
+    /**
+     * Processing of the output after the end of hg.
+     */
+    void parse(long nanos) {
+      parseNanos += nanos;
+    }
+
+    /**
+     * A file blamed by reading the repository.
+     */
+    void javaEngine(long nanos) {
+      javaEngine(nanos, 1);
+    }
+
+    /**
+     * Files blamed together by reading the repository.
+     */
+    void javaEngine(long nanos, int files) {
+      javaFiles += files;
+      execNanos += nanos;
+    }
+
+    void end() {
+      ended = clock.getAsLong();
+      synchronized (MercurialBlameReport.this) {
+        tasks.add(this);
+      }
+    }
+
+    long queueNanos() {
+      return started - submitted;
+    }
+
+    long wallNanos() {
+      return ended - started;
+    }
+
+    String engine() {
+      if (processes > 0) {
+        return HG_ENGINE;
+      }
+      return serverCommands > 0 ? COMMAND_SERVER_ENGINE : JAVA_ENGINE;
+    }
+  }
+
+  Task newTask(String description, int files, int lines) {
+    return new Task(description, files, lines);
+  }
+
+  synchronized void cachedFile() {
+    cachedFiles++;
+  }
+
+  synchronized void uncommittedFile() {
+    uncommittedFiles++;
+  }
+
+  /**
+   * A file not blamed because of a timeout.
+   */
+  synchronized void timedOutFile() {
+    timedOutFiles++;
+  }
+
+  synchronized List<String> summary() {
+    List<String> result = new ArrayList<>();
+    long files = sum(t -> t.files);
+    long lines = sum(t -> t.lines);
+    long wall = clock.getAsLong() - start;
+    result.add(String.format(Locale.ROOT, "Blame of %d files (%d lines) in %d ms: %d hg processes, %d command server commands, %d files read by the java engine, "
+      + "%d files from cache, %d uncommitted files, %d files timed out", files, lines, TimeUnit.NANOSECONDS.toMillis(wall), sum(t -> t.processes),
+      sum(t -> t.serverCommands), sum(t -> t.javaFiles), cachedFiles, uncommittedFiles, timedOutFiles));
+    if (tasks.isEmpty()) {
+      return result;
+    }
+    long busy = sum(Task::wallNanos);
+    result.add(String.format(Locale.ROOT, "Blame task time: p50 %s, p90 %s, p99 %s, max %s; queue wait p50 %s, p90 %s; spawn %d%%, exec %d%%, parse %d%%; "
+      + "%d lines/s per thread, %d bytes read",
+      millis(percentile(Task::wallNanos, 50)), millis(percentile(Task::wallNanos, 90)), millis(percentile(Task::wallNanos, 99)),
+      millis(percentile(Task::wallNanos, 100)), millis(percentile(Task::queueNanos, 50)), millis(percentile(Task::queueNanos, 90)),
+      percent(sum(t -> t.spawnNanos), busy), percent(sum(t -> t.execNanos), busy), percent(sum(t -> t.parseNanos), busy),
+      linesPerSecond(lines, busy), sum(t -> t.bytes)));
+    List<Task> sorted = new ArrayList<>(tasks);
+    sorted.sort(Comparator.comparingLong(Task::wallNanos).reversed());
+    StringBuilder slowest = new StringBuilder("Slowest blame tasks:");
+    for (Task task : sorted.subList(0, Math.min(SLOWEST_TASKS, sorted.size()))) {
+      slowest.append(String.format(Locale.ROOT, " %s in %s (spawn %s, exec %s, parse %s, queue %s, %s);", task.description, millis(task.wallNanos()),
+        millis(task.spawnNanos), millis(task.execNanos), millis(task.parseNanos), millis(task.queueNanos()), task.engine()));
+    }
+    result.add(slowest.substring(0, slowest.length() - 1));
+    return result;
+  }
+
+  /**
+   * Write the report as JSON, to a temporary file first so that a partially written report is never read.
+   */
+  synchronized void writeJson(File file) throws IOException {
+    Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+    File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+    try (Writer writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+      long busy = sum(Task::wallNanos);
+      writer.write("{\n");
+      writer.write(String.format(Locale.ROOT, "  \"wallMs\": %.3f,\n", toMillis(clock.getAsLong() - start)));
+      writer.write(String.format(Locale.ROOT, "  \"files\": %d,\n  \"lines\": %d,\n  \"bytes\": %d,\n", sum(t -> t.files), sum(t -> t.lines), sum(t -> t.bytes)));
+      writer.write(String.format(Locale.ROOT, "  \"processes\": %d,\n  \"commandServerCommands\": %d,\n  \"javaEngineFiles\": %d,\n", sum(t -> t.processes),
+        sum(t -> t.serverCommands), sum(t -> t.javaFiles)));
+      writer.write(String.format(Locale.ROOT, "  \"cachedFiles\": %d,\n  \"uncommittedFiles\": %d,\n  \"timedOutFiles\": %d,\n", cachedFiles, uncommittedFiles,
+        timedOutFiles));
+      writer.write(String.format(Locale.ROOT, "  \"linesPerSecond\": %d,\n", linesPerSecond(sum(t -> t.lines), busy)));
+      writer.write(String.format(Locale.ROOT, "  \"taskMs\": {\"p50\": %.3f, \"p90\": %.3f, \"p99\": %.3f, \"max\": %.3f},\n",
+        toMillis(percentile(Task::wallNanos, 50)), toMillis(percentile(Task::wallNanos, 90)), toMillis(percentile(Task::wallNanos, 99)),
+        toMillis(percentile(Task::wallNanos, 100))));
+      writer.write("  \"tasks\": [");
+      for (int i = 0; i < tasks.size(); i++) {
+        Task task = tasks.get(i);
+        writer.write(i == 0 ? "\n" : ",\n");
+        writer.write(String.format(Locale.ROOT, "    {\"description\": \"%s\", \"engine\": \"%s\", \"files\": %d, \"lines\": %d, \"bytes\": %d, "
+          + "\"queueMs\": %.3f, \"wallMs\": %.3f, \"spawnMs\": %.3f, \"execMs\": %.3f, \"parseMs\": %.3f}",
+          escape(task.description), task.engine(), task.files, task.lines, task.bytes, toMillis(task.queueNanos()), toMillis(task.wallNanos()),
+          toMillis(task.spawnNanos), toMillis(task.execNanos), toMillis(task.parseNanos)));
+      }
+      writer.write("\n  ]\n}\n");
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private long sum(ToLongFunction<Task> value) {
+    long sum = 0;
+    for (Task task : tasks) {
+      sum += value.applyAsLong(task);
+    }
+    return sum;
+  }
+
+  /**
+   * Nearest rank percentile, 0 when there is no task.
+   */
+  private long percentile(ToLongFunction<Task> value, int percent) {
+    if (tasks.isEmpty()) {
+      return 0;
+    }
+    long[] values = tasks.stream().mapToLong(value).sorted().toArray();
+    int rank = (int) Math.ceil(percent / 100.0 * values.length);
+    return values[Math.max(0, rank - 1)];
+  }
+
+  private static int percent(long part, long total) {
+    return total == 0 ? 0 : (int) (part * 100 / total);
+  }
+
+  private static long linesPerSecond(long lines, long nanos) {
+    return nanos == 0 ? 0 : (lines * TimeUnit.SECONDS.toNanos(1) / nanos);
+  }
+
+  private static String millis(long nanos) {
+    return TimeUnit.NANOSECONDS.toMillis(nanos) + "ms";
+  }
+
+  private static double toMillis(long nanos) {
+    return nanos / 1_000_000.0;
+  }
+
+  private static String escape(String s) {
+    StringBuilder sb = new StringBuilder(s.length());
+    for (char c : s.toCharArray()) {
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < 0x20) {
+        sb.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,258 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import javax.annotation.Nullable;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Runs blame tasks on a pool of threads that is always shut down when closed.
+ * <p>
+ * Submission blocks while the number of tasks in progress is at the current parallelism, so that tasks are
+ * created as threads become available instead of all being queued up front. In adaptive mode, the parallelism
+ * starts at the maximum and goes down by one while the system load average is above the number of processors
+ * (hg processes waiting for the disk are counted in the load), then goes up again when the load decreases.
+ * <p>
+ * The first task failure is rethrown by {@link #submit(String, Runnable)} or {@link #awaitCompletion()} without
+ * waiting for the tasks in progress, and no other task is started after it. Tasks in progress are interrupted by
+ * {@link #cancel()} or {@link #close()}.
+ * <p>
+ * Threads take the next task as soon as they are free, so with tasks submitted from the most to the least
+ * expensive, the last tasks are short ones that spread over all the threads.
+ */
+class MercurialBlameScheduler implements AutoCloseable {
+
+  private static final Logger LOG = Loggers.get(MercurialBlameScheduler.class);
+
+  /**
+   * Minimum delay between two adjustments of the parallelism, the load average doesn't change faster.
+   */
+  static final long ADJUSTMENT_PERIOD_MS = 1_000;
+
+  private final ThreadPoolExecutor executor;
+  private final int maxParallelism;
+  @Nullable
+  private final DoubleSupplier loadAverage;
+  private final int processors;
+  private final LongSupplier clock;
+
+  private final Object lock = new Object();
+  private int parallelism;
+  private int inProgress = 0;
+  private long lastAdjustment;
+  private Throwable failure;
+
+  private long startNanos = -1;
+  private int tasks = 0;
+  private long busyNanos = 0;
+  private long longestTaskNanos = 0;
+  private String longestTask;
+
+  MercurialBlameScheduler(int maxParallelism, boolean adaptive) {
+    this(maxParallelism, adaptive ? ManagementFactory.getOperatingSystemMXBean()::getSystemLoadAverage : null,
+      Runtime.getRuntime().availableProcessors(), System::currentTimeMillis);
+  }
+
+  MercurialBlameScheduler(int maxParallelism, @Nullable DoubleSupplier loadAverage, int processors, LongSupplier clock) {
+    this.maxParallelism = Math.max(1, maxParallelism);
+    this.loadAverage = loadAverage;
+    this.processors = processors;
+    this.clock = clock;
+    this.parallelism = this.maxParallelism;
+    this.lastAdjustment = clock.getAsLong();
+    // Never more queued tasks than threads, since submission is limited to the parallelism
+    this.executor = new ThreadPoolExecutor(this.maxParallelism, this.maxParallelism, 0L, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<>(this.maxParallelism), new BlameThreadFactory());
+  }
+
+  /**
+   * Wait until the task can run without exceeding the parallelism, then run it on a thread of the pool.
+   */
+  void submit(String description, Runnable task) {
+    synchronized (lock) {
+      if (startNanos < 0) {
+        startNanos = System.nanoTime();
+      }
+      adjustParallelism();
+      while (failure == null && inProgress >= parallelism) {
+        waitForTask();
+        adjustParallelism();
+      }
+      rethrowFailure();
+      inProgress++;
+    }
+    executor.execute(() -> {
+      long taskStart = System.nanoTime();
+      try {
+        if (!isFailed()) {
+          task.run();
+        }
+      } catch (RuntimeException | Error e) {
+        synchronized (lock) {
+          if (failure == null) {
+            failure = e;
+          }
+        }
+      } finally {
+        long duration = System.nanoTime() - taskStart;
+        synchronized (lock) {
+          inProgress--;
+          tasks++;
+          busyNanos += duration;
+          if (duration >= longestTaskNanos) {
+            longestTaskNanos = duration;
+            longestTask = description;
+          }
+          lock.notifyAll();
+        }
+      }
+    });
+  }
+
+  /**
+   * Wait for all the submitted tasks, or rethrow the first failure as soon as it happens.
+   */
+  void awaitCompletion() {
+    synchronized (lock) {
+      while (failure == null && inProgress > 0) {
+        waitForTask();
+      }
+      rethrowFailure();
+    }
+  }
+
+  /**
+   * Summary of the tasks completed so far. The longest task is the lower bound of the duration of the whole blame,
+   * whatever the parallelism.
+   */
+  String statistics() {
+    synchronized (lock) {
+      if (tasks == 0) {
+        return "No blame task";
+      }
+      long wallMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+      long busyMs = TimeUnit.NANOSECONDS.toMillis(busyNanos);
+      long efficiency = wallMs == 0 ? 100 : Math.min(100, busyMs * 100 / (wallMs * maxParallelism));
+      return tasks + " blame tasks in " + wallMs + "ms on " + maxParallelism + " threads (" + busyMs + "ms busy, " + efficiency
+        + "% utilization), longest task " + TimeUnit.NANOSECONDS.toMillis(longestTaskNanos) + "ms for " + longestTask;
+    }
+  }
+
+  int completedTasks() {
+    synchronized (lock) {
+      return tasks;
+    }
+  }
+
+  int parallelism() {
+    synchronized (lock) {
+      return parallelism;
+    }
+  }
+
+  /**
+   * Interrupt running tasks without waiting for them, tasks that are not started yet are never run.
+   */
+  void cancel() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Interrupt running tasks and wait for the threads to stop.
+   */
+  @Override
+  public void close() {
+    cancel();
+    try {
+      if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+        LOG.warn("Blame threads did not stop in time");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private boolean isFailed() {
+    synchronized (lock) {
+      return failure != null;
+    }
+  }
+
+  private void waitForTask() {
+    try {
+      // Wake up from time to time to adapt the parallelism even if no task completes
+      lock.wait(loadAverage == null ? 0 : ADJUSTMENT_PERIOD_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private void adjustParallelism() {
+    long now = clock.getAsLong();
+    if (loadAverage == null || now - lastAdjustment < ADJUSTMENT_PERIOD_MS) {
+      return;
+    }
+    lastAdjustment = now;
+    double load = loadAverage.getAsDouble();
+    if (load < 0) {
+      // Not available on this platform
+      return;
+    }
+    int previous = parallelism;
+    if (load > processors) {
+      parallelism = Math.max(1, parallelism - 1);
+    } else if (load < processors * 0.75) {
+      parallelism = Math.min(maxParallelism, parallelism + 1);
+    }
+    if (parallelism != previous) {
+      LOG.debug("Blame parallelism set to " + parallelism + " (load average " + load + ")");
+    }
+  }
+
+  private void rethrowFailure() {
+    if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    }
+    if (failure instanceof Error) {
+      throw (Error) failure;
+    }
+  }
+
+  private static class BlameThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "mercurial-blame-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.sonar.api.utils.command.Command;
+import org.sonar.api.utils.command.CommandExecutor;
+import org.sonar.api.utils.command.StringStreamConsumer;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Changes of the working directory since the common ancestor with a target branch, for the analysis of pull requests
+ * and short living branches. Uncommitted changes are included.
+ */
+class MercurialBranchChanges {
+
+  private static final Logger LOG = Loggers.get(MercurialBranchChanges.class);
+
+  /**
+   * Maximum number of files passed to hg diff, to keep command lines reasonably short. Above it, the whole working
+   * directory is diffed and the output filtered.
+   */
+  private static final int MAX_DIFFED_FILES = 200;
+
+  private final CommandExecutor commandExecutor;
+
+  MercurialBranchChanges(CommandExecutor commandExecutor) {
+    this.commandExecutor = commandExecutor;
+  }
+
+  /**
+   * Files added or modified since the common ancestor. Copied and renamed files are reported with their new path,
+   * removed files are not reported.
+   * @return absolute paths, or null if the changes can't be computed
+   */
+  @CheckForNull
+  Set<Path> changedFiles(String targetBranchName, Path rootBaseDir) {
+    File repositoryRoot = MercurialUtils.findRepositoryRoot(rootBaseDir.toFile());
+    if (repositoryRoot == null) {
+      LOG.warn("Not inside a Mercurial repository: " + rootBaseDir);
+      return null;
+    }
+    Set<Path> changedFiles = new HashSet<>();
+    Path root = repositoryRoot.toPath();
+    Command cl = createStatusCommandLine(repositoryRoot, targetBranchName);
+    StringStreamConsumer stderr = new StringStreamConsumer();
+    LOG.debug("Executing: " + cl);
+    int exitCode = commandExecutor.execute(cl, line -> {
+      if (!line.isEmpty()) {
+        changedFiles.add(root.resolve(line));
+      }
+    }, stderr, -1);
+    if (exitCode != 0) {
+      LOG.warn("The mercurial status command [" + cl.toString() + "] failed, changed files not computed: " + stderr.getOutput());
+      return null;
+    }
+    return changedFiles;
+  }
+
+  /**
+   * Lines added or modified in the given files since the common ancestor, numbered from 1, computed with a single diff.
+   * Files renamed or copied without modification have no changed line, unchanged files are missing.
+   * @return changed lines by path as given, or null if they can't be computed
+   */
+  @CheckForNull
+  Map<Path, Set<Integer>> changedLines(String targetBranchName, Path rootBaseDir, Set<Path> changedFiles) {
+    File repositoryRoot = MercurialUtils.findRepositoryRoot(rootBaseDir.toFile());
+    if (repositoryRoot == null) {
+      LOG.warn("Not inside a Mercurial repository: " + rootBaseDir);
+      return null;
+    }
+    Path root = repositoryRoot.toPath().toAbsolutePath();
+    Map<String, Path> filesByPath = new HashMap<>();
+    for (Path file : changedFiles) {
+      Path absolute = file.toAbsolutePath().normalize();
+      if (absolute.startsWith(root)) {
+        filesByPath.put(root.relativize(absolute).toString().replace(File.separatorChar, '/'), file);
+      }
+    }
+    if (filesByPath.isEmpty()) {
+      return new HashMap<>();
+    }
+    MercurialChangedLinesConsumer consumer = new MercurialChangedLinesConsumer(filesByPath.keySet());
+    Command cl = createDiffCommandLine(repositoryRoot, targetBranchName, filesByPath.size() <= MAX_DIFFED_FILES ? filesByPath.keySet() : null);
+    StringStreamConsumer stderr = new StringStreamConsumer();
+    LOG.debug("Executing: " + cl);
+    int exitCode = commandExecutor.execute(cl, consumer, stderr, -1);
+    if (exitCode != 0) {
+      LOG.warn("The mercurial diff command [" + cl.toString() + "] failed, changed lines not computed: " + stderr.getOutput());
+      return null;
+    }
+    Map<Path, Set<Integer>> result = new HashMap<>();
+    for (Map.Entry<String, BitSet> entry : consumer.getChangedLines().entrySet()) {
+      result.put(filesByPath.get(entry.getKey()), new LineSet(entry.getValue()));
+    }
+    return result;
+  }
+
+  /**
+   * Revset of the last common ancestor of the target branch and of the working directory parent.
+   */
+  static String ancestorRevset(String targetBranchName) {
+    // Quoted so that branch names are not parsed as revsets
+    return "ancestor('" + targetBranchName.replace("\\", "\\\\").replace("'", "\\'") + "', .)";
+  }
+
+  /**
+   * Paths relative to the repository root, which is the working directory, of the added and modified files.
+   */
+  private static Command createStatusCommandLine(File repositoryRoot, String targetBranchName) {
+    Command cl = Command.create("hg");
+    cl.setDirectory(repositoryRoot);
+    cl.addArgument("status");
+    cl.addArgument("--rev");
+    cl.addArgument(ancestorRevset(targetBranchName));
+    cl.addArgument("--modified");
+    cl.addArgument("--added");
+    cl.addArgument("--no-status");
+    return cl;
+  }
+
+  /**
+   * Diff without context, only the hunk headers are needed. Files are given as exact paths relative to the repository
+   * root, the whole working directory is diffed if null.
+   */
+  private static Command createDiffCommandLine(File repositoryRoot, String targetBranchName, @Nullable Set<String> paths) {
+    Command cl = Command.create("hg");
+    cl.setDirectory(repositoryRoot);
+    cl.addArgument("diff");
+    cl.addArgument("--git");
+    cl.addArgument("--unified");
+    cl.addArgument("0");
+    cl.addArgument("--rev");
+    cl.addArgument(ancestorRevset(targetBranchName));
+    if (paths != null) {
+      cl.addArgument("--");
+      for (String path : paths) {
+        cl.addArgument("path:" + path);
+      }
+    }
+    return cl;
+  }
+
+  /**
+   * Read only view of the lines of a {@link BitSet}, without boxing all the line numbers up front.
+   */
+  private static class LineSet extends AbstractSet<Integer> {
+    private final BitSet lines;
+    private final int size;
+
+    LineSet(BitSet lines) {
+      this.lines = lines;
+      this.size = lines.cardinality();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return o instanceof Integer && ((Integer) o) >= 0 && lines.get((Integer) o);
+    }
+
+    @Override
+    public Iterator<Integer> iterator() {
+      return new Iterator<Integer>() {
+        private int next = lines.nextSetBit(0);
+
+        @Override
+        public boolean hasNext() {
+          return next >= 0;
+        }
+
+        @Override
+        public Integer next() {
+          if (next < 0) {
+            throw new NoSuchElementException();
+          }
+          int line = next;
+          next = lines.nextSetBit(line + 1);
+          return line;
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.sonar.api.utils.command.StreamConsumer;
+
+/**
+ * Parse the output of <code>hg diff --git --unified 0</code> into the lines added or modified in each file, numbered
+ * from 1 in the new version of the file. Only the hunk headers are read, the content of the lines is ignored and
+ * nothing is kept but one {@link BitSet} per file.
+ */
+class MercurialChangedLinesConsumer implements StreamConsumer {
+
+  private static final String DIFF_HEADER = "diff --git a/";
+  private static final String NEW_PATH = "+++ b/";
+  private static final String RENAME_TO = "rename to ";
+  private static final String COPY_TO = "copy to ";
+
+  private final Set<String> paths;
+  private final Map<String, BitSet> changedLines = new HashMap<>();
+  @Nullable
+  private BitSet current;
+  // Between the "diff --git" line of a file and its first hunk, where the lines giving the new path are
+  private boolean inHeader;
+
+  /**
+   * @param paths repository relative paths of the files to keep, the other ones are skipped
+   */
+  MercurialChangedLinesConsumer(Set<String> paths) {
+    this.paths = paths;
+  }
+
+  @Override
+  public void consumeLine(String line) {
+    if (line.startsWith(DIFF_HEADER)) {
+      inHeader = true;
+      // Files renamed or copied without modification have no hunk, they have no changed line
+      select(samePath(line.substring(DIFF_HEADER.length())));
+    } else if (inHeader && line.startsWith(RENAME_TO)) {
+      select(line.substring(RENAME_TO.length()));
+    } else if (inHeader && line.startsWith(COPY_TO)) {
+      select(line.substring(COPY_TO.length()));
+    } else if (inHeader && line.startsWith(NEW_PATH)) {
+      select(line.substring(NEW_PATH.length()));
+    } else if (line.startsWith("@@ ")) {
+      inHeader = false;
+      if (current != null) {
+        addHunk(line, current);
+      }
+    }
+  }
+
+  private void select(@Nullable String path) {
+    current = path != null && paths.contains(path) ? changedLines.computeIfAbsent(path, p -> new BitSet()) : null;
+  }
+
+  /**
+   * "a/path b/path" can only be split unambiguously when both paths are the same, otherwise the new path is read from the
+   * "rename to", "copy to" or "+++ b/" lines that follow.
+   */
+  @CheckForNull
+  private static String samePath(String paths) {
+    if (paths.length() % 2 == 0) {
+      return null;
+    }
+    int length = (paths.length() - 3) / 2;
+    String path = paths.substring(0, length);
+    return paths.startsWith(" b/", length) && paths.endsWith(path) ? path : null;
+  }
+
+  /**
+   * "@@ -start[,count] +start[,count] @@", the count is 1 when missing, and 0 for lines only removed.
+   */
+  private static void addHunk(String line, BitSet lines) {
+    int pos = line.indexOf(" +", 2) + 2;
+    if (pos == 1) {
+      throw new IllegalStateException("Unrecognized hunk header: " + line);
+    }
+    int start = 0;
+    while (pos < line.length() && isDigit(line.charAt(pos))) {
+      start = start * 10 + (line.charAt(pos) - '0');
+      pos++;
+    }
+    int count = 1;
+    if (pos < line.length() && line.charAt(pos) == ',') {
+      pos++;
+      count = 0;
+      while (pos < line.length() && isDigit(line.charAt(pos))) {
+        count = count * 10 + (line.charAt(pos) - '0');
+        pos++;
+      }
+    }
+    if (count > 0) {
+      lines.set(start, start + count);
+    }
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  /**
+   * Changed lines by repository relative path, for the files part of the diff.
+   */
+  Map<String, BitSet> getChangedLines() {
+    return changedLines;
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.util.Date;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+/**
+ * Changesets seen during one analysis, shared by all files and threads, so that the revision, author
+ * and date of a changeset are allocated once instead of once per blamed line.
+ * Lookups are done with a key computed from the hexadecimal changeset id, to not allocate anything when
+ * the changeset is already known.
+ */
+class MercurialChangesetCache {
+
+  private static final int SEGMENTS = 16;
+
+  private final Segment[] segments = new Segment[SEGMENTS];
+
+  MercurialChangesetCache() {
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment();
+    }
+  }
+
+  static class Changeset {
+    private final String revision;
+    private final String author;
+    private final Date date;
+
+    Changeset(String revision, @Nullable String author, @Nullable Date date) {
+      this.revision = revision;
+      this.author = author;
+      this.date = date;
+    }
+
+    /**
+     * Changeset whose author and date are not known yet.
+     */
+    static Changeset unresolved(String revision) {
+      return new Changeset(revision, null, null);
+    }
+
+    boolean isResolved() {
+      return date != null;
+    }
+
+    String revision() {
+      return revision;
+    }
+
+    String author() {
+      return author;
+    }
+
+    /**
+     * Shared by all the lines of the changeset, must not be modified.
+     */
+    Date date() {
+      return date;
+    }
+  }
+
+  /**
+   * Key of a changeset, made of its first 16 hexadecimal digits.
+   */
+  static long key(CharSequence hex, int start, int end) {
+    long key = 0;
+    for (int i = start; i < Math.min(end, start + 16); i++) {
+      key = (key << 4) | Character.digit(hex.charAt(i), 16);
+    }
+    return key;
+  }
+
+  @CheckForNull
+  Changeset get(long key) {
+    return segmentFor(key).get(key);
+  }
+
+  /**
+   * Store the changeset unless another thread already did it, and return the one stored.
+   */
+  Changeset intern(long key, Changeset changeset) {
+    return segmentFor(key).putIfAbsent(key, changeset);
+  }
+
+  int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      size += segment.size();
+    }
+    return size;
+  }
+
+  private Segment segmentFor(long key) {
+    return segments[(int) (mix(key) >>> 60)];
+  }
+
+  private static long mix(long key) {
+    long h = key;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * Open addressing hash table with linear probing.
+   */
+  private static class Segment {
+    private long[] keys = new long[16];
+    private Changeset[] values = new Changeset[16];
+    private int size;
+
+    synchronized Changeset get(long key) {
+      int i = indexOf(keys, values, key);
+      return values[i];
+    }
+
+    synchronized Changeset putIfAbsent(long key, Changeset changeset) {
+      int i = indexOf(keys, values, key);
+      if (values[i] != null) {
+        return values[i];
+      }
+      keys[i] = key;
+      values[i] = changeset;
+      size++;
+      if (size * 2 > keys.length) {
+        grow();
+      }
+      return changeset;
+    }
+
+    synchronized int size() {
+      return size;
+    }
+
+    private void grow() {
+      long[] newKeys = new long[keys.length * 2];
+      Changeset[] newValues = new Changeset[values.length * 2];
+      for (int i = 0; i < keys.length; i++) {
+        if (values[i] != null) {
+          int j = indexOf(newKeys, newValues, keys[i]);
+          newKeys[j] = keys[i];
+          newValues[j] = values[i];
+        }
+      }
+      keys = newKeys;
+      values = newValues;
+    }
+
+    private static int indexOf(long[] keys, Changeset[] values, long key) {
+      int mask = keys.length - 1;
+      int i = (int) mix(key) & mask;
+      while (values[i] != null && keys[i] != key) {
+        i = (i + 1) & mask;
+      }
+      return i;
+    }
+  }
+}
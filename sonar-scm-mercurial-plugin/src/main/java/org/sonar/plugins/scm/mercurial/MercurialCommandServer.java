@@ -0,0 +1,214 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import javax.annotation.Nullable;
+import org.sonar.api.utils.command.StreamConsumer;
+
+/**
+ * Client of a single <code>hg serve --cmdserver pipe</code> process.
+ * See https://www.mercurial-scm.org/wiki/CommandServer for the protocol.
+ */
+class MercurialCommandServer implements Closeable {
+
+  private static final File NULL_FILE = new File(System.getProperty("os.name").startsWith("Windows") ? "NUL" : "/dev/null");
+
+  private final DataInputStream in;
+  private final DataOutputStream out;
+  @Nullable
+  private final Process process;
+  private final Charset encoding;
+
+  MercurialCommandServer(InputStream in, OutputStream out, @Nullable Process process) throws IOException {
+    this.in = new DataInputStream(in);
+    this.out = new DataOutputStream(out);
+    this.process = process;
+    this.encoding = readHello();
+  }
+
+  static MercurialCommandServer start(File workingDirectory) throws IOException {
+    ProcessBuilder builder = new ProcessBuilder("hg", "serve", "--cmdserver", "pipe", "--config", "ui.interactive=False");
+    builder.directory(workingDirectory);
+    builder.environment().put("HGPLAIN", "1");
+    builder.environment().put("HGENCODING", "UTF-8");
+    // Errors of the commands are sent over the 'e' channel, the server itself should not write anything
+    builder.redirectError(ProcessBuilder.Redirect.appendTo(NULL_FILE));
+    Process process = builder.start();
+    try {
+      return new MercurialCommandServer(process.getInputStream(), process.getOutputStream(), process);
+    } catch (IOException e) {
+      process.destroy();
+      throw e;
+    }
+  }
+
+  private Charset readHello() throws IOException {
+    char channel = (char) in.readUnsignedByte();
+    String hello = new String(readChunk(), StandardCharsets.US_ASCII);
+    if (channel != 'o') {
+      throw new IOException("Unexpected hello message from command server on channel '" + channel + "': " + hello);
+    }
+    boolean runCommand = false;
+    Charset charset = StandardCharsets.UTF_8;
+    for (String field : hello.split("\n")) {
+      if (field.startsWith("capabilities:")) {
+        runCommand = (" " + field.substring("capabilities:".length()) + " ").contains(" runcommand ");
+      } else if (field.startsWith("encoding:")) {
+        charset = toCharset(field.substring("encoding:".length()).trim());
+      }
+    }
+    if (!runCommand) {
+      throw new IOException("Command server does not support runcommand: " + hello);
+    }
+    return charset;
+  }
+
+  private static Charset toCharset(String name) {
+    try {
+      return Charset.forName(name);
+    } catch (IllegalArgumentException e) {
+      return StandardCharsets.UTF_8;
+    }
+  }
+
+  /**
+   * Run a command and return its exit code. Lines written on the output and error channels
+   * are forwarded to the given consumers. An {@link IOException} means the server is no more usable.
+   */
+  int runCommand(List<String> args, StreamConsumer stdout, StreamConsumer stderr) throws IOException {
+    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    for (int i = 0; i < args.size(); i++) {
+      if (i > 0) {
+        payload.write(0);
+      }
+      byte[] arg = args.get(i).getBytes(encoding);
+      payload.write(arg, 0, arg.length);
+    }
+    out.write("runcommand\n".getBytes(StandardCharsets.US_ASCII));
+    out.writeInt(payload.size());
+    payload.writeTo(out);
+    out.flush();
+
+    LineSplitter outLines = new LineSplitter(stdout);
+    LineSplitter errLines = new LineSplitter(stderr);
+    while (true) {
+      char channel = (char) in.readUnsignedByte();
+      switch (channel) {
+        case 'o':
+          outLines.write(readChunk());
+          break;
+        case 'e':
+          errLines.write(readChunk());
+          break;
+        case 'r':
+          int length = in.readInt();
+          if (length != 4) {
+            throw new IOException("Unexpected result length from command server: " + length);
+          }
+          outLines.flush();
+          errLines.flush();
+          return in.readInt();
+        case 'I':
+        case 'L':
+          // No input is ever provided to the commands
+          in.readInt();
+          out.writeInt(0);
+          out.flush();
+          break;
+        default:
+          if (Character.isUpperCase(channel)) {
+            throw new IOException("Unsupported required channel '" + channel + "' from command server");
+          }
+          readChunk();
+      }
+    }
+  }
+
+  private byte[] readChunk() throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      throw new EOFException("Invalid chunk length from command server: " + length);
+    }
+    byte[] data = new byte[length];
+    in.readFully(data);
+    return data;
+  }
+
+  @Override
+  public void close() {
+    try {
+      out.close();
+    } catch (IOException e) {
+      // Ignore, the process is destroyed anyway
+    }
+    if (process != null) {
+      process.destroy();
+    }
+  }
+
+  private class LineSplitter {
+    private final StreamConsumer consumer;
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+    LineSplitter(StreamConsumer consumer) {
+      this.consumer = consumer;
+    }
+
+    void write(byte[] data) {
+      int start = 0;
+      for (int i = 0; i < data.length; i++) {
+        if (data[i] == '\n') {
+          pending.write(data, start, i - start);
+          emit();
+          start = i + 1;
+        }
+      }
+      pending.write(data, start, data.length - start);
+    }
+
+    void flush() {
+      if (pending.size() > 0) {
+        emit();
+      }
+    }
+
+    private void emit() {
+      int length = pending.size();
+      byte[] bytes = pending.toByteArray();
+      if (length > 0 && bytes[length - 1] == '\r') {
+        length--;
+      }
+      consumer.consumeLine(new String(bytes, 0, length, encoding));
+      pending.reset();
+    }
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
+import org.sonar.api.utils.command.Command;
+import org.sonar.api.utils.command.StreamConsumer;
+import org.sonar.api.utils.command.TimeoutException;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Bounded pool of command servers, lazily started. Once a server fails to start, the pool
+ * is disabled and callers are expected to fall back to forking a new hg process. A server running a command for
+ * longer than its timeout is killed.
+ */
+class MercurialCommandServerPool implements Closeable {
+
+  private static final Logger LOG = Loggers.get(MercurialCommandServerPool.class);
+
+  interface ServerFactory {
+    MercurialCommandServer start(File workingDirectory) throws IOException;
+  }
+
+  private final File workingDirectory;
+  private final int maxSize;
+  private final ServerFactory factory;
+  private final BlockingQueue<MercurialCommandServer> idle = new LinkedBlockingQueue<>();
+  private final List<MercurialCommandServer> all = new ArrayList<>();
+  private boolean disabled = false;
+  private boolean closed = false;
+  @Nullable
+  private ScheduledExecutorService watchdog;
+
+  MercurialCommandServerPool(File workingDirectory, int maxSize) {
+    this(workingDirectory, maxSize, MercurialCommandServer::start);
+  }
+
+  MercurialCommandServerPool(File workingDirectory, int maxSize, ServerFactory factory) {
+    this.workingDirectory = workingDirectory;
+    this.maxSize = maxSize;
+    this.factory = factory;
+  }
+
+  /**
+   * Run the given hg command on one of the servers of the pool.
+   * @param timeoutMilliseconds like {@link org.sonar.api.utils.command.CommandExecutor}, no timeout if negative
+   * @throws IOException if no server is available or if the server died during the command
+   * @throws TimeoutException if the server was killed because the command exceeded the timeout
+   */
+  int execute(Command cl, StreamConsumer stdout, StreamConsumer stderr, long timeoutMilliseconds) throws IOException {
+    MercurialCommandServer server = borrow();
+    List<String> args = new ArrayList<>();
+    if (cl.getDirectory() != null) {
+      args.add("--cwd");
+      args.add(cl.getDirectory().getAbsolutePath());
+    }
+    args.addAll(cl.getArguments());
+    AtomicBoolean killed = new AtomicBoolean();
+    ScheduledFuture<?> kill = null;
+    if (timeoutMilliseconds >= 0) {
+      kill = watchdog().schedule(() -> {
+        killed.set(true);
+        server.close();
+      }, timeoutMilliseconds, TimeUnit.MILLISECONDS);
+    }
+    try {
+      int exitCode = server.runCommand(args, stdout, stderr);
+      if (kill == null || kill.cancel(false)) {
+        idle.add(server);
+      } else {
+        // Killed right after the end of the command
+        discard(server);
+      }
+      return exitCode;
+    } catch (IOException | RuntimeException e) {
+      if (kill != null) {
+        kill.cancel(false);
+      }
+      discard(server);
+      if (killed.get()) {
+        throw new TimeoutException(cl, "Timeout exceeded: " + timeoutMilliseconds + " ms", e);
+      }
+      throw e;
+    }
+  }
+
+  private synchronized ScheduledExecutorService watchdog() {
+    if (watchdog == null) {
+      watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "mercurial-cmdserver-watchdog");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return watchdog;
+  }
+
+  private MercurialCommandServer borrow() throws IOException {
+    MercurialCommandServer server = idle.poll();
+    while (server == null) {
+      synchronized (this) {
+        if (disabled || closed) {
+          throw new IOException("Mercurial command server is not available");
+        }
+        if (all.size() < maxSize) {
+          return startServer();
+        }
+      }
+      try {
+        // Servers may be discarded while waiting, so the pool size has to be checked again from time to time
+        server = idle.poll(100, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for a Mercurial command server", e);
+      }
+    }
+    return server;
+  }
+
+  private MercurialCommandServer startServer() throws IOException {
+    MercurialCommandServer server;
+    try {
+      server = factory.start(workingDirectory);
+    } catch (IOException e) {
+      LOG.warn("Unable to start Mercurial command server, falling back to one hg process per file: " + e.getMessage());
+      disabled = true;
+      throw e;
+    }
+    all.add(server);
+    return server;
+  }
+
+  private synchronized void discard(MercurialCommandServer server) {
+    all.remove(server);
+    server.close();
+  }
+
+  @Override
+  public synchronized void close() {
+    closed = true;
+    if (watchdog != null) {
+      watchdog.shutdownNow();
+    }
+    for (MercurialCommandServer server : all) {
+      server.close();
+    }
+    all.clear();
+    idle.clear();
+  }
+}
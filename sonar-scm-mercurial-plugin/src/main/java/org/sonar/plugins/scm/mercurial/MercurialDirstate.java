@@ -0,0 +1,448 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+/**
+ * Read the working directory state from <code>.hg/dirstate</code>, without the hg command.
+ * <p>
+ * The dirstate starts with the ids of the two parents of the working directory, 20 bytes each. With the dirstate-v2
+ * format, <code>.hg/dirstate</code> is a docket starting with a marker, followed by the parents padded to 32 bytes.
+ * <p>
+ * In the v1 format, the parents are followed by one entry per tracked file: state, mode, size and modification time
+ * as big endian 32 bits integers, then the length and the bytes of the path, followed by "\0" and the copy source for
+ * copied files. Entries of the v2 format are not read.
+ */
+final class MercurialDirstate {
+
+  private static final byte[] V2_MARKER = "dirstate-v2\n".getBytes(StandardCharsets.US_ASCII);
+  private static final int NODE_LENGTH = 20;
+  private static final int V2_NODE_LENGTH = 32;
+  private static final int ENTRY_HEADER_LENGTH = 17;
+  private static final int SYMLINK_MODE = 0120000;
+  private static final int FILE_TYPE_MASK = 0170000;
+  private static final int OWNER_EXECUTE_MODE = 0100;
+
+  private MercurialDirstate() {
+    // only static methods
+  }
+
+  /**
+   * Parents of the working directory.
+   */
+  static final class Parents {
+    private final byte[] first;
+    @Nullable
+    private final byte[] second;
+
+    Parents(byte[] first, @Nullable byte[] second) {
+      this.first = first;
+      this.second = second;
+    }
+
+    byte[] first() {
+      return first;
+    }
+
+    /**
+     * Second parent during an uncommitted merge, null otherwise.
+     */
+    @CheckForNull
+    byte[] second() {
+      return second;
+    }
+  }
+
+  /**
+   * Only the header of the dirstate is read.
+   * @param repositoryRoot directory containing the .hg directory
+   * @return null if the working directory has no parent, in a repository without commit
+   * @throws IOException if the dirstate can't be read, or is not in a supported format
+   */
+  @CheckForNull
+  static Parents readParents(File repositoryRoot) throws IOException {
+    File dirstate = new File(repositoryRoot, ".hg/dirstate");
+    if (!dirstate.exists()) {
+      return null;
+    }
+    boolean v2 = isV2(repositoryRoot);
+    byte[] header = new byte[v2 ? (V2_MARKER.length + 2 * V2_NODE_LENGTH) : (2 * NODE_LENGTH)];
+    try (InputStream in = Files.newInputStream(dirstate.toPath())) {
+      int read = readFully(in, header);
+      if (read == 0 && !v2) {
+        // Written by hg when the working directory is updated to the null revision
+        return null;
+      }
+      if (read < header.length) {
+        throw new IOException("Truncated dirstate: " + dirstate);
+      }
+    }
+    int start = 0;
+    int nodeLength = NODE_LENGTH;
+    if (v2) {
+      if (!Arrays.equals(Arrays.copyOf(header, V2_MARKER.length), V2_MARKER)) {
+        throw new IOException("Unsupported dirstate-v2 docket: " + dirstate);
+      }
+      start = V2_MARKER.length;
+      nodeLength = V2_NODE_LENGTH;
+    }
+    byte[] first = Arrays.copyOfRange(header, start, start + NODE_LENGTH);
+    byte[] second = Arrays.copyOfRange(header, start + nodeLength, start + nodeLength + NODE_LENGTH);
+    if (isNull(first)) {
+      return null;
+    }
+    return new Parents(first, isNull(second) ? null : second);
+  }
+
+  /**
+   * Entries of the files tracked in the working directory, sorted by path. Paths are front coded: each path only
+   * stores the suffix not shared with the previous one, except every {@link #RESTART_INTERVAL} paths, which are
+   * stored in full so that they can be found by a binary search. Other fields are kept in arrays, there is no object
+   * per file.
+   */
+  static final class Entries {
+    private static final int RESTART_INTERVAL = 16;
+
+    private final byte[] paths;
+    private final int[] restarts;
+    private final int maxPathLength;
+    private final byte[] states;
+    private final int[] modes;
+    private final int[] sizes;
+    private final int[] mtimes;
+    /**
+     * Modification time of the dirstate, in seconds. Files modified in the same second may not have their last
+     * modification recorded.
+     */
+    private final long dirstateMtime;
+
+    private Entries(List<byte[]> sortedPaths, byte[] states, int[] modes, int[] sizes, int[] mtimes, long dirstateMtime) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      this.restarts = new int[(sortedPaths.size() + RESTART_INTERVAL - 1) / RESTART_INTERVAL];
+      int max = 0;
+      byte[] previous = new byte[0];
+      for (int i = 0; i < sortedPaths.size(); i++) {
+        byte[] path = sortedPaths.get(i);
+        int shared = 0;
+        if (i % RESTART_INTERVAL == 0) {
+          restarts[i / RESTART_INTERVAL] = out.size();
+        } else {
+          while (shared < Math.min(previous.length, path.length) && previous[shared] == path[shared]) {
+            shared++;
+          }
+        }
+        writeVarInt(out, shared);
+        writeVarInt(out, path.length - shared);
+        out.write(path, shared, path.length - shared);
+        max = Math.max(max, path.length);
+        previous = path;
+      }
+      this.paths = out.toByteArray();
+      this.maxPathLength = max;
+      this.states = states;
+      this.modes = modes;
+      this.sizes = sizes;
+      this.mtimes = mtimes;
+      this.dirstateMtime = dirstateMtime;
+    }
+
+    int size() {
+      return states.length;
+    }
+
+    /**
+     * @return index of the entry of the given path, relative to the repository root, or -1 if the file is not tracked
+     */
+    int indexOf(String path) {
+      byte[] key = path.getBytes(StandardCharsets.UTF_8);
+      // Last restart point whose path is lower or equal
+      int low = 0;
+      int high = restarts.length - 1;
+      int restart = -1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        Cursor cursor = new Cursor(restarts[mid]);
+        cursor.readVarInt();
+        int length = cursor.readVarInt();
+        int cmp = compare(paths, cursor.pos, length, key);
+        if (cmp == 0) {
+          return mid * RESTART_INTERVAL;
+        } else if (cmp < 0) {
+          restart = mid;
+          low = mid + 1;
+        } else {
+          high = mid - 1;
+        }
+      }
+      if (restart < 0) {
+        return -1;
+      }
+      byte[] current = new byte[maxPathLength];
+      Cursor cursor = new Cursor(restarts[restart]);
+      int end = Math.min(size(), (restart + 1) * RESTART_INTERVAL);
+      for (int i = restart * RESTART_INTERVAL; i < end; i++) {
+        int shared = cursor.readVarInt();
+        int suffix = cursor.readVarInt();
+        System.arraycopy(paths, cursor.pos, current, shared, suffix);
+        cursor.pos += suffix;
+        int cmp = compare(current, 0, shared + suffix, key);
+        if (cmp == 0) {
+          return i;
+        } else if (cmp > 0) {
+          return -1;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * Status of the file compared to the working directory parent, like <code>hg status</code> computes it from
+     * the size, modification time and executable bit of the file: one of the {@link MercurialStatus} constants, or 0
+     * when the content of the file has to be read to know whether it is modified. The executable bit is only compared
+     * on file systems with POSIX permissions, like hg does.
+     * @param path path relative to the repository root
+     */
+    char statusOf(String path, File file) throws IOException {
+      int index = indexOf(path);
+      if (index < 0) {
+        return MercurialStatus.UNKNOWN;
+      }
+      switch (states[index]) {
+        case 'a':
+          return MercurialStatus.ADDED;
+        case 'r':
+          return MercurialStatus.REMOVED;
+        case 'm':
+          // Merged, different from at least one of the parents
+          return MercurialStatus.MODIFIED;
+        case 'n':
+          break;
+        default:
+          return 0;
+      }
+      BasicFileAttributes attributes;
+      try {
+        attributes = readAttributes(file.toPath());
+      } catch (NoSuchFileException e) {
+        return MercurialStatus.DELETED;
+      }
+      // -1 when the file may be dirty, -2 when it comes from the other parent of a merge
+      int size = sizes[index];
+      if (size == -2) {
+        return MercurialStatus.MODIFIED;
+      }
+      if (size < 0 || mtimes[index] == -1 || (modes[index] & FILE_TYPE_MASK) == SYMLINK_MODE) {
+        return 0;
+      }
+      if (size != (int) (attributes.size() & 0x7FFFFFFF) || isExecutableChanged(modes[index], attributes)) {
+        return MercurialStatus.MODIFIED;
+      }
+      long mtime = TimeUnit.MILLISECONDS.toSeconds(attributes.lastModifiedTime().toMillis());
+      if (mtimes[index] != (int) (mtime & 0x7FFFFFFF) || mtime >= dirstateMtime) {
+        return 0;
+      }
+      return MercurialStatus.CLEAN;
+    }
+
+    private static BasicFileAttributes readAttributes(Path path) throws IOException {
+      if (path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+        return Files.readAttributes(path, PosixFileAttributes.class);
+      }
+      return Files.readAttributes(path, BasicFileAttributes.class);
+    }
+
+    private static boolean isExecutableChanged(int mode, BasicFileAttributes attributes) {
+      if (!(attributes instanceof PosixFileAttributes)) {
+        return false;
+      }
+      boolean executable = ((PosixFileAttributes) attributes).permissions().contains(PosixFilePermission.OWNER_EXECUTE);
+      return executable != ((mode & OWNER_EXECUTE_MODE) != 0);
+    }
+
+    private class Cursor {
+      private int pos;
+
+      Cursor(int pos) {
+        this.pos = pos;
+      }
+
+      int readVarInt() {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+          int b = paths[pos++] & 0xFF;
+          value |= (b & 0x7F) << shift;
+          if ((b & 0x80) == 0) {
+            return value;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Entries of the v1 dirstate.
+   * @throws IOException if the dirstate is missing, can't be read, or is not in the v1 format
+   */
+  static Entries readEntries(File repositoryRoot) throws IOException {
+    File dirstate = new File(repositoryRoot, ".hg/dirstate");
+    if (!dirstate.isFile()) {
+      throw new IOException("No dirstate: " + dirstate);
+    }
+    if (isV2(repositoryRoot)) {
+      throw new IOException("Entries of dirstate-v2 are not supported");
+    }
+    long dirstateMtime = TimeUnit.MILLISECONDS.toSeconds(Files.getLastModifiedTime(dirstate.toPath()).toMillis());
+    ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(dirstate.toPath()));
+    List<Entry> entries = new ArrayList<>();
+    if (content.remaining() > 0) {
+      content.position(2 * NODE_LENGTH);
+    }
+    while (content.remaining() > 0) {
+      if (content.remaining() < ENTRY_HEADER_LENGTH) {
+        throw new IOException("Truncated dirstate: " + dirstate);
+      }
+      byte state = content.get();
+      int mode = content.getInt();
+      int size = content.getInt();
+      int mtime = content.getInt();
+      int length = content.getInt();
+      if (length < 0 || length > content.remaining()) {
+        throw new IOException("Truncated dirstate: " + dirstate);
+      }
+      byte[] name = new byte[length];
+      content.get(name);
+      int copySource = MercurialRepository.indexOf(name, (byte) 0, 0);
+      entries.add(new Entry(copySource < 0 ? name : Arrays.copyOf(name, copySource), state, mode, size, mtime));
+    }
+    entries.sort(Comparator.comparing((Entry e) -> e.path, MercurialDirstate::compare));
+    List<byte[]> sortedPaths = new ArrayList<>(entries.size());
+    byte[] states = new byte[entries.size()];
+    int[] modes = new int[entries.size()];
+    int[] sizes = new int[entries.size()];
+    int[] mtimes = new int[entries.size()];
+    for (int i = 0; i < entries.size(); i++) {
+      Entry entry = entries.get(i);
+      sortedPaths.add(entry.path);
+      states[i] = entry.state;
+      modes[i] = entry.mode;
+      sizes[i] = entry.size;
+      mtimes[i] = entry.mtime;
+    }
+    return new Entries(sortedPaths, states, modes, sizes, mtimes, dirstateMtime);
+  }
+
+  private static class Entry {
+    private final byte[] path;
+    private final byte state;
+    private final int mode;
+    private final int size;
+    private final int mtime;
+
+    Entry(byte[] path, byte state, int mode, int size, int mtime) {
+      this.path = path;
+      this.state = state;
+      this.mode = mode;
+      this.size = size;
+      this.mtime = mtime;
+    }
+  }
+
+  private static int compare(byte[] a, byte[] b) {
+    return compare(a, 0, a.length, b);
+  }
+
+  /**
+   * Compare bytes as unsigned, like paths are sorted by hg.
+   */
+  private static int compare(byte[] a, int start, int length, byte[] b) {
+    for (int i = 0; i < Math.min(length, b.length); i++) {
+      int cmp = (a[start + i] & 0xFF) - (b[i] & 0xFF);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return length - b.length;
+  }
+
+  private static void writeVarInt(ByteArrayOutputStream out, int value) {
+    int v = value;
+    while ((v & ~0x7F) != 0) {
+      out.write((v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+    out.write(v);
+  }
+
+  private static boolean isV2(File repositoryRoot) throws IOException {
+    File requires = new File(repositoryRoot, ".hg/requires");
+    if (!requires.isFile()) {
+      return false;
+    }
+    for (String line : Files.readAllLines(requires.toPath(), StandardCharsets.UTF_8)) {
+      if ("dirstate-v2".equals(line.trim())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return number of bytes read, less than the buffer length only at the end of the stream
+   */
+  private static int readFully(InputStream in, byte[] buffer) throws IOException {
+    int total = 0;
+    while (total < buffer.length) {
+      int read = in.read(buffer, total, buffer.length - total);
+      if (read < 0) {
+        break;
+      }
+      total += read;
+    }
+    return total;
+  }
+
+  private static boolean isNull(byte[] node) {
+    for (byte b : node) {
+      if (b != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+import org.sonar.api.batch.scm.BlameLine;
+
+/**
+ * Blame of a file, stored as one int per line pointing into the table of the changesets of the file. Changesets are
+ * the instances shared by all files, see {@link MercurialChangesetCache}, so a blamed line costs 4 bytes until
+ * {@link BlameLine} objects are created for the scanner with {@link #toBlameLines()}.
+ * <p>
+ * Not thread safe.
+ */
+class MercurialFileBlame {
+
+  private MercurialChangesetCache.Changeset[] changesets = new MercurialChangesetCache.Changeset[4];
+  private final Map<MercurialChangesetCache.Changeset, Integer> changesetIds = new IdentityHashMap<>();
+  private int changesetCount;
+  private int[] lines;
+  private int size;
+
+  /**
+   * @param expectedLines number of lines of the file, to allocate the lines once in most cases
+   */
+  MercurialFileBlame(int expectedLines) {
+    this.lines = new int[Math.max(expectedLines, 0)];
+  }
+
+  void add(MercurialChangesetCache.Changeset changeset) {
+    add(changeset, 1);
+  }
+
+  /**
+   * Add the given number of lines attributed to the same changeset.
+   */
+  void add(MercurialChangesetCache.Changeset changeset, int count) {
+    int id = idOf(changeset);
+    if (size + count > lines.length) {
+      lines = Arrays.copyOf(lines, Math.max(size + count, lines.length * 2));
+    }
+    Arrays.fill(lines, size, size + count, id);
+    size += count;
+  }
+
+  private int idOf(MercurialChangesetCache.Changeset changeset) {
+    // Consecutive lines are often attributed to the same changeset
+    if (size > 0 && changesets[lines[size - 1]] == changeset) {
+      return lines[size - 1];
+    }
+    Integer id = changesetIds.get(changeset);
+    if (id == null) {
+      if (changesetCount == changesets.length) {
+        changesets = Arrays.copyOf(changesets, changesetCount * 2);
+      }
+      id = changesetCount++;
+      changesets[id] = changeset;
+      changesetIds.put(changeset, id);
+    }
+    return id;
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * False when the date of a changeset is unknown, for example because it couldn't be parsed.
+   */
+  boolean isResolved() {
+    for (int i = 0; i < changesetCount; i++) {
+      if (!changesets[i].isResolved()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  MercurialChangesetCache.Changeset changeset(int line) {
+    if (line < 0 || line >= size) {
+      throw new IndexOutOfBoundsException("Line " + line + " of " + size);
+    }
+    return changesets[lines[line]];
+  }
+
+  /**
+   * Replace changesets, for example unresolved ones by the resolved ones, once per changeset instead of once per line.
+   */
+  void replaceChangesets(UnaryOperator<MercurialChangesetCache.Changeset> replacement) {
+    changesetIds.clear();
+    for (int i = 0; i < changesetCount; i++) {
+      changesets[i] = replacement.apply(changesets[i]);
+      changesetIds.putIfAbsent(changesets[i], i);
+    }
+  }
+
+  /**
+   * One more element is allocated, for the last line that may have to be added, see SONARPLUGINS-3097.
+   */
+  List<BlameLine> toBlameLines() {
+    List<BlameLine> result = new ArrayList<>(size + 1);
+    for (int i = 0; i < size; i++) {
+      MercurialChangesetCache.Changeset changeset = changesets[lines[i]];
+      result.add(new BlameLine().date(changeset.date()).revision(changeset.revision()).author(changeset.author()));
+    }
+    return result;
+  }
+}
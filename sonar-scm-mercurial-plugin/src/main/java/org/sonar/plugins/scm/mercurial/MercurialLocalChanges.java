@@ -0,0 +1,93 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.CheckForNull;
+
+/**
+ * Blame of files modified in the working directory. hg blames the content of the working directory parent, its blame
+ * is mapped onto the current lines by diffing the committed and current contents in process: unchanged lines keep
+ * their changeset, and the other ones are attributed to the changeset of the uncommitted changes.
+ */
+class MercurialLocalChanges {
+
+  private MercurialLocalChanges() {
+    // only static methods
+  }
+
+  /**
+   * @param committed blame of the committed content, one changeset per committed line
+   * @param uncommitted changeset of the lines that are not in the committed content
+   * @return the blame of the current lines, or null if the blame doesn't match the committed content
+   */
+  @CheckForNull
+  static MercurialFileBlame reconcile(MercurialFileBlame committed, List<String> committedLines, List<String> currentLines, boolean ignoreWhitespaces,
+    MercurialChangesetCache.Changeset uncommitted) {
+    if (committed.size() != committedLines.size()) {
+      return null;
+    }
+    MercurialBdiff.Lines a = toLines(committedLines, ignoreWhitespaces);
+    MercurialBdiff.Lines b = toLines(currentLines, ignoreWhitespaces);
+    MercurialFileBlame result = new MercurialFileBlame(currentLines.size());
+    int next = 0;
+    for (int[] block : MercurialBdiff.blocks(a, b)) {
+      if (block[2] > next) {
+        result.add(uncommitted, block[2] - next);
+      }
+      for (int i = 0; i < block[3] - block[2]; i++) {
+        result.add(committed.changeset(block[0] + i));
+      }
+      next = block[3];
+    }
+    if (currentLines.size() > next) {
+      result.add(uncommitted, currentLines.size() - next);
+    }
+    return result;
+  }
+
+  /**
+   * Lines without their end of line, like the lines of the output of a command.
+   */
+  static List<String> split(String text) throws IOException {
+    List<String> lines = new ArrayList<>();
+    try (BufferedReader reader = new BufferedReader(new StringReader(text))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lines.add(line);
+      }
+    }
+    return lines;
+  }
+
+  private static MercurialBdiff.Lines toLines(List<String> lines, boolean ignoreWhitespaces) {
+    StringBuilder sb = new StringBuilder();
+    for (String line : lines) {
+      sb.append(line).append('\n');
+    }
+    byte[] text = sb.toString().getBytes(StandardCharsets.UTF_8);
+    return MercurialBdiff.Lines.split(ignoreWhitespaces ? MercurialBdiff.Lines.removeWhitespaces(text) : text);
+  }
+}
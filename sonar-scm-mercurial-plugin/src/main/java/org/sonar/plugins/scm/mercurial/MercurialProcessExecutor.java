@@ -0,0 +1,206 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
+import org.sonar.api.utils.command.Command;
+import org.sonar.api.utils.command.StreamConsumer;
+import org.sonar.api.utils.command.TimeoutException;
+
+/**
+ * Run hg processes without the two stream gobbler threads per process of {@link org.sonar.api.utils.command.CommandExecutor}.
+ * The output is read by the calling thread, which is waiting for the process anyway, and handed as bytes to the consumers
+ * implementing {@link ByteLineConsumer}. The error output is redirected to a temporary file read once the process ended,
+ * and timeouts are enforced by a single watchdog thread shared by all the processes, so the number of threads doesn't
+ * depend on the number of running processes.
+ */
+class MercurialProcessExecutor implements Closeable {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Consumer of output lines as bytes, without the end of line. The buffer is only valid during the call.
+   */
+  interface ByteLineConsumer {
+    void consumeLine(byte[] buffer, int start, int end);
+  }
+
+  private final Set<Process> running = new HashSet<>();
+  private boolean closed = false;
+  @Nullable
+  private ScheduledExecutorService watchdog;
+
+  /**
+   * Run the given command in a new process. Output is expected to be UTF-8 encoded, which hg is asked for.
+   * @param timeoutMilliseconds like {@link org.sonar.api.utils.command.CommandExecutor}, no timeout if negative
+   * @throws IOException if the process can't be started or its output can't be read
+   * @throws TimeoutException if the process was killed because it exceeded the timeout
+   */
+  int execute(Command cl, StreamConsumer stdout, StreamConsumer stderr, long timeoutMilliseconds) throws IOException {
+    List<String> command = new ArrayList<>();
+    command.add(cl.getExecutable());
+    command.addAll(cl.getArguments());
+    ProcessBuilder builder = new ProcessBuilder(command);
+    if (cl.getDirectory() != null) {
+      builder.directory(cl.getDirectory());
+    }
+    builder.environment().putAll(cl.getEnvironmentVariables());
+    builder.environment().putIfAbsent("HGENCODING", "UTF-8");
+    File errorFile = File.createTempFile("hg-stderr", ".txt");
+    try {
+      builder.redirectError(errorFile);
+      Process process = start(builder);
+      AtomicBoolean killed = new AtomicBoolean();
+      ScheduledFuture<?> kill = null;
+      if (timeoutMilliseconds >= 0) {
+        kill = watchdog().schedule(() -> {
+          killed.set(true);
+          process.destroyForcibly();
+        }, timeoutMilliseconds, TimeUnit.MILLISECONDS);
+      }
+      try {
+        // No input is ever provided to the commands
+        process.getOutputStream().close();
+        try (InputStream in = process.getInputStream()) {
+          readLines(in, stdout);
+        }
+        int exitCode = process.waitFor();
+        if (killed.get()) {
+          throw new TimeoutException(cl, "Timeout exceeded: " + timeoutMilliseconds + " ms", null);
+        }
+        try (InputStream in = new ByteArrayInputStream(Files.readAllBytes(errorFile.toPath()))) {
+          readLines(in, stderr);
+        }
+        return exitCode;
+      } catch (IOException e) {
+        if (killed.get()) {
+          throw new TimeoutException(cl, "Timeout exceeded: " + timeoutMilliseconds + " ms", e);
+        }
+        throw e;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for " + cl, e);
+      } finally {
+        if (kill != null) {
+          kill.cancel(false);
+        }
+        process.destroyForcibly();
+        synchronized (this) {
+          running.remove(process);
+        }
+      }
+    } finally {
+      Files.deleteIfExists(errorFile.toPath());
+    }
+  }
+
+  private synchronized Process start(ProcessBuilder builder) throws IOException {
+    if (closed) {
+      throw new IOException("Mercurial process executor is closed");
+    }
+    Process process = builder.start();
+    running.add(process);
+    return process;
+  }
+
+  private synchronized ScheduledExecutorService watchdog() {
+    if (watchdog == null) {
+      watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "mercurial-process-watchdog");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return watchdog;
+  }
+
+  /**
+   * Split the stream into lines, ending with '\n' or "\r\n", without copying them. The buffer grows only for lines
+   * longer than the buffer.
+   */
+  static void readLines(InputStream in, StreamConsumer consumer) throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    int length = 0;
+    int read;
+    while ((read = in.read(buffer, length, buffer.length - length)) != -1) {
+      int end = length + read;
+      int start = 0;
+      for (int i = length; i < end; i++) {
+        if (buffer[i] == '\n') {
+          emit(consumer, buffer, start, i);
+          start = i + 1;
+        }
+      }
+      length = end - start;
+      if (start > 0) {
+        System.arraycopy(buffer, start, buffer, 0, length);
+      } else if (length == buffer.length) {
+        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+      }
+    }
+    if (length > 0) {
+      emit(consumer, buffer, 0, length);
+    }
+  }
+
+  private static void emit(StreamConsumer consumer, byte[] buffer, int start, int end) {
+    int lineEnd = (end > start && buffer[end - 1] == '\r') ? (end - 1) : end;
+    if (consumer instanceof ByteLineConsumer) {
+      ((ByteLineConsumer) consumer).consumeLine(buffer, start, lineEnd);
+    } else {
+      consumer.consumeLine(new String(buffer, start, lineEnd - start, StandardCharsets.UTF_8));
+    }
+  }
+
+  /**
+   * Kill the running processes, and refuse new ones.
+   */
+  @Override
+  public void close() {
+    List<Process> toKill;
+    synchronized (this) {
+      closed = true;
+      toKill = new ArrayList<>(running);
+      if (watchdog != null) {
+        watchdog.shutdownNow();
+      }
+    }
+    for (Process process : toKill) {
+      process.destroyForcibly();
+    }
+  }
+}
@@ -0,0 +1,360 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.annotation.CheckForNull;
+
+/**
+ * Read only access to the history of a Mercurial repository, without the hg command.
+ * <p>
+ * Only the repository formats written by Mercurial with its default configuration are supported: an {@link IOException}
+ * is thrown when opening a repository with other requirements (like tree manifests, zstd compression or shared stores),
+ * and by the methods reading data that is not supported (like censored or large files, or very long paths).
+ * <p>
+ * Thread safe.
+ */
+class MercurialRepository implements Closeable {
+
+  private static final Set<String> SUPPORTED_REQUIREMENTS = new HashSet<>(Arrays.asList(
+    "revlogv1", "store", "fncache", "dotencode", "generaldelta", "sparserevlog", "share-safe", "persistent-nodemap", "dirstate-v2"));
+  private static final int MAX_STORE_PATH_LENGTH = 120;
+
+  private final File root;
+  private final File store;
+  private final Set<String> requirements;
+  private final MercurialRevlog changelog;
+  /**
+   * Changesets by revision, decoded on first use and shared by all the files attributed to them.
+   */
+  private final AtomicReferenceArray<Changeset> changesets;
+  private volatile Map<String, byte[]> manifest;
+
+  /**
+   * Changeset metadata as stored in the changelog.
+   */
+  static class Changeset {
+    private final String node;
+    private final String user;
+    private final long time;
+
+    Changeset(String node, String user, long time) {
+      this.node = node;
+      this.user = user;
+      this.time = time;
+    }
+
+    /**
+     * Full hexadecimal id.
+     */
+    String node() {
+      return node;
+    }
+
+    String user() {
+      return user;
+    }
+
+    /**
+     * Seconds since epoch.
+     */
+    long time() {
+      return time;
+    }
+  }
+
+  private MercurialRepository(File root, File store, Set<String> requirements) throws IOException {
+    this.root = root;
+    this.store = store;
+    this.requirements = requirements;
+    this.changelog = MercurialRevlog.open(new File(store, "00changelog.i"));
+    this.changesets = new AtomicReferenceArray<>(changelog.count());
+  }
+
+  /**
+   * Open the repository whose .hg directory is in the given root directory.
+   */
+  static MercurialRepository open(File root) throws IOException {
+    File hg = new File(root, ".hg");
+    if (new File(hg, "sharedpath").exists()) {
+      throw new IOException("Shared repositories are not supported");
+    }
+    Set<String> requirements = readRequirements(new File(hg, "requires"));
+    if (requirements.contains("share-safe")) {
+      requirements.addAll(readRequirements(new File(hg, "store/requires")));
+    }
+    for (String requirement : requirements) {
+      if (!SUPPORTED_REQUIREMENTS.contains(requirement)) {
+        throw new IOException("Unsupported repository requirement: " + requirement);
+      }
+    }
+    File store = requirements.contains("store") ? new File(hg, "store") : hg;
+    return new MercurialRepository(root, store, requirements);
+  }
+
+  private static Set<String> readRequirements(File file) throws IOException {
+    Set<String> requirements = new HashSet<>();
+    if (file.isFile()) {
+      for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+        if (!line.trim().isEmpty()) {
+          requirements.add(line.trim());
+        }
+      }
+    }
+    return requirements;
+  }
+
+  File root() {
+    return root;
+  }
+
+  /**
+   * Id of the first parent of the working directory, read from the dirstate, or null if there is no commit yet.
+   */
+  @CheckForNull
+  byte[] workingDirectoryParent() throws IOException {
+    MercurialDirstate.Parents parents = MercurialDirstate.readParents(root);
+    return parents == null ? null : parents.first();
+  }
+
+  /**
+   * File nodes of the files of the working directory parent, by path relative to the repository root.
+   * Loaded once, the working directory parent is not expected to change during an analysis.
+   */
+  Map<String, byte[]> manifest() throws IOException {
+    Map<String, byte[]> result = manifest;
+    if (result == null) {
+      synchronized (this) {
+        result = manifest;
+        if (result == null) {
+          result = loadManifest();
+          manifest = result;
+        }
+      }
+    }
+    return result;
+  }
+
+  private Map<String, byte[]> loadManifest() throws IOException {
+    Map<String, byte[]> result = new HashMap<>();
+    byte[] parent = workingDirectoryParent();
+    if (parent == null) {
+      return result;
+    }
+    byte[] changesetText;
+    synchronized (changelog) {
+      int rev = changelog.findRev(parent);
+      if (rev == MercurialRevlog.NULL_REV) {
+        throw new IOException("Working directory parent not found in changelog");
+      }
+      changesetText = changelog.revision(rev);
+    }
+    byte[] manifestNode = MercurialUtils.parseHex(new String(changesetText, 0, Math.min(40, changesetText.length), StandardCharsets.US_ASCII));
+    try (MercurialRevlog manifestLog = MercurialRevlog.open(new File(store, "00manifest.i"))) {
+      int rev = manifestLog.findRev(manifestNode);
+      if (rev == MercurialRevlog.NULL_REV) {
+        throw new IOException("Manifest not found");
+      }
+      byte[] text = manifestLog.revision(rev);
+      int start = 0;
+      while (start < text.length) {
+        int zero = indexOf(text, (byte) 0, start);
+        int end = indexOf(text, (byte) '\n', start);
+        if (zero < 0 || end < 0 || end < zero + 41) {
+          throw new IOException("Invalid manifest");
+        }
+        String path = new String(text, start, zero - start, StandardCharsets.UTF_8);
+        result.put(path, MercurialUtils.parseHex(new String(text, zero + 1, 40, StandardCharsets.US_ASCII)));
+        start = end + 1;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * History of a file.
+   */
+  MercurialRevlog fileLog(String path) throws IOException {
+    return MercurialRevlog.open(new File(store, storePath("data/" + path + ".i")));
+  }
+
+  /**
+   * Metadata of a changeset, cached since many lines and files are attributed to the same changesets.
+   */
+  Changeset changeset(int rev) throws IOException {
+    if (rev < 0 || rev >= changesets.length()) {
+      throw new IOException("Unknown changeset " + rev);
+    }
+    Changeset changeset = changesets.get(rev);
+    if (changeset == null) {
+      byte[] text;
+      synchronized (changelog) {
+        text = changelog.revision(rev);
+      }
+      changeset = parseChangeset(MercurialUtils.toHex(changelog.node(rev)), text);
+      changesets.compareAndSet(rev, null, changeset);
+    }
+    return changeset;
+  }
+
+  /**
+   * Revisions of the given changesets and of all their ancestors.
+   */
+  BitSet ancestors(Collection<Integer> revs) throws IOException {
+    BitSet result = new BitSet(changelog.count());
+    Deque<Integer> visit = new ArrayDeque<>(revs);
+    while (!visit.isEmpty()) {
+      int rev = visit.pop();
+      if (rev == MercurialRevlog.NULL_REV || result.get(rev)) {
+        continue;
+      }
+      if (rev < 0 || rev >= changelog.count()) {
+        throw new IOException("Unknown changeset " + rev);
+      }
+      result.set(rev);
+      visit.push(changelog.parent1(rev));
+      visit.push(changelog.parent2(rev));
+    }
+    return result;
+  }
+
+  /**
+   * Changelog entry: manifest node, user, "time timezone [extra]", files, empty line and description.
+   */
+  static Changeset parseChangeset(String node, byte[] text) throws IOException {
+    int userStart = indexOf(text, (byte) '\n', 0) + 1;
+    int userEnd = indexOf(text, (byte) '\n', userStart);
+    int dateEnd = indexOf(text, (byte) '\n', userEnd + 1);
+    if (userStart == 0 || userEnd < 0) {
+      throw new IOException("Invalid changeset " + node);
+    }
+    String user = new String(text, userStart, userEnd - userStart, StandardCharsets.UTF_8);
+    String date = new String(text, userEnd + 1, (dateEnd < 0 ? text.length : dateEnd) - userEnd - 1, StandardCharsets.UTF_8);
+    int timeEnd = 0;
+    while (timeEnd < date.length() && (Character.isDigit(date.charAt(timeEnd)) || date.charAt(timeEnd) == '-')) {
+      timeEnd++;
+    }
+    try {
+      return new Changeset(node, user, Long.parseLong(date.substring(0, timeEnd)));
+    } catch (NumberFormatException e) {
+      throw new IOException("Invalid date of changeset " + node + ": " + date, e);
+    }
+  }
+
+  /**
+   * Path of a revlog in the store, see store.py of Mercurial.
+   */
+  String storePath(String path) throws IOException {
+    String encoded = encodeDirectories(path);
+    if (!requirements.contains("store")) {
+      return encoded;
+    }
+    encoded = encodeFilename(encoded);
+    if (!requirements.contains("fncache")) {
+      return encoded;
+    }
+    encoded = auxEncode(encoded, requirements.contains("dotencode"));
+    if (encoded.length() > MAX_STORE_PATH_LENGTH) {
+      throw new IOException("Hashed store path not supported: " + path);
+    }
+    return encoded;
+  }
+
+  private static String encodeDirectories(String path) {
+    return path.replace(".hg/", ".hg.hg/").replace(".i/", ".i.hg/").replace(".d/", ".d.hg/");
+  }
+
+  private static String encodeFilename(String path) {
+    StringBuilder sb = new StringBuilder();
+    for (byte b : path.getBytes(StandardCharsets.UTF_8)) {
+      int c = b & 0xFF;
+      if (c < 32 || c >= 126 || "\\:*?\"<>|".indexOf(c) >= 0) {
+        sb.append(String.format("~%02x", c));
+      } else if ((c >= 'A' && c <= 'Z') || c == '_') {
+        sb.append('_').append(Character.toLowerCase((char) c));
+      } else {
+        sb.append((char) c);
+      }
+    }
+    return sb.toString();
+  }
+
+  private static String auxEncode(String path, boolean dotEncode) {
+    String[] parts = path.split("/", -1);
+    for (int i = 0; i < parts.length; i++) {
+      String n = parts[i];
+      if (n.isEmpty()) {
+        continue;
+      }
+      if (dotEncode && (n.charAt(0) == '.' || n.charAt(0) == ' ')) {
+        n = String.format("~%02x", (int) n.charAt(0)) + n.substring(1);
+      } else {
+        int dot = n.indexOf('.');
+        int l = dot < 0 ? n.length() : dot;
+        if ((l == 3 && isWindowsReserved3(n.substring(0, 3)))
+          || (l == 4 && n.charAt(3) >= '1' && n.charAt(3) <= '9' && isWindowsReserved4(n.substring(0, 3)))) {
+          n = n.substring(0, 2) + String.format("~%02x", (int) n.charAt(2)) + n.substring(3);
+        }
+      }
+      char last = n.charAt(n.length() - 1);
+      if (last == '.' || last == ' ') {
+        n = n.substring(0, n.length() - 1) + String.format("~%02x", (int) last);
+      }
+      parts[i] = n;
+    }
+    return String.join("/", parts);
+  }
+
+  private static boolean isWindowsReserved3(String s) {
+    return "aux".equals(s) || "con".equals(s) || "prn".equals(s) || "nul".equals(s);
+  }
+
+  private static boolean isWindowsReserved4(String s) {
+    return "com".equals(s) || "lpt".equals(s);
+  }
+
+  static int indexOf(byte[] bytes, byte b, int from) {
+    for (int i = from; i < bytes.length; i++) {
+      if (bytes[i] == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public void close() throws IOException {
+    changelog.close();
+  }
+}
@@ -0,0 +1,364 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+/**
+ * Reader of a revlog, the storage format of the changelog, the manifest and the history of each file in .hg/store.
+ * <p>
+ * Only version 1 revlogs are supported, with inline or separate data, and with or without general delta (which
+ * includes sparse revlogs). Chunks can be stored uncompressed or compressed with zlib, an {@link IOException} is
+ * thrown for anything else so that the caller can fall back to the hg command.
+ * <p>
+ * The index and data files are memory mapped, so that opening the revlog of a file with a long history doesn't load
+ * it on the heap, and index entries are decoded in place. Small files are read on the heap instead, a process can only
+ * have a limited number of mappings (<code>vm.max_map_count</code> on Linux), which are released when garbage
+ * collected. Reading index entries is thread safe, reading revisions is not.
+ */
+class MercurialRevlog implements Closeable {
+
+  static final int NULL_REV = -1;
+
+  private static final int ENTRY_SIZE = 64;
+  private static final int NODE_SIZE = 20;
+  private static final int VERSION_1 = 1;
+  private static final int FLAG_INLINE_DATA = 1 << 16;
+  private static final int FLAG_GENERAL_DELTA = 1 << 17;
+  /**
+   * Revision flags that change the meaning of the stored data: censored, ellipsis and externally stored (lfs).
+   */
+  private static final int UNSUPPORTED_REVISION_FLAGS = (1 << 15) | (1 << 14) | (1 << 13);
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+  /**
+   * Files smaller than this are read on the heap rather than mapped.
+   */
+  private static final int MIN_MAPPED_SIZE = 64 * 1024;
+
+  private final File indexFile;
+  private final ByteBuffer index;
+  private final int count;
+  private final boolean inline;
+  private final boolean generalDelta;
+  /**
+   * Position of each entry in the index, only for inline revlogs where data follows each entry.
+   */
+  @CheckForNull
+  private final int[] inlinePositions;
+  /**
+   * Data of non inline revlogs, either mapped or read from the channel when too large to be mapped.
+   */
+  @CheckForNull
+  private final ByteBuffer data;
+  @CheckForNull
+  private final FileChannel dataChannel;
+
+  private int cachedRev = NULL_REV;
+  private byte[] cachedText;
+
+  private MercurialRevlog(File indexFile, ByteBuffer index, @Nullable ByteBuffer data, @Nullable FileChannel dataChannel) throws IOException {
+    this.indexFile = indexFile;
+    this.index = index;
+    this.data = data;
+    this.dataChannel = dataChannel;
+    int header = index.capacity() < 4 ? (FLAG_INLINE_DATA | VERSION_1) : index.getInt(0);
+    if ((header & 0xFFFF) != VERSION_1) {
+      throw new IOException("Unsupported revlog version " + (header & 0xFFFF) + ": " + indexFile);
+    }
+    this.inline = (header & FLAG_INLINE_DATA) != 0;
+    this.generalDelta = (header & FLAG_GENERAL_DELTA) != 0;
+    if (inline) {
+      int[] positions = new int[Math.max(16, index.capacity() / (ENTRY_SIZE * 4))];
+      int entries = 0;
+      int position = 0;
+      while (position + ENTRY_SIZE <= index.capacity()) {
+        if (entries == positions.length) {
+          positions = Arrays.copyOf(positions, entries * 2);
+        }
+        positions[entries++] = position;
+        position += ENTRY_SIZE + index.getInt(position + 8);
+      }
+      inlinePositions = Arrays.copyOf(positions, entries);
+      count = entries;
+    } else {
+      inlinePositions = null;
+      count = index.capacity() / ENTRY_SIZE;
+    }
+  }
+
+  /**
+   * Open the revlog of the given index file (.i), which doesn't have any revision if it doesn't exist.
+   */
+  static MercurialRevlog open(File indexFile) throws IOException {
+    if (!indexFile.isFile()) {
+      return new MercurialRevlog(indexFile, EMPTY, null, null);
+    }
+    ByteBuffer index = map(indexFile);
+    if (index.capacity() < 4 || (index.getInt(0) & FLAG_INLINE_DATA) != 0) {
+      return new MercurialRevlog(indexFile, index, null, null);
+    }
+    String name = indexFile.getName();
+    File dataFile = new File(indexFile.getParentFile(), name.substring(0, name.length() - 2) + ".d");
+    FileChannel channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ);
+    if (channel.size() > Integer.MAX_VALUE) {
+      return new MercurialRevlog(indexFile, index, null, channel);
+    }
+    try {
+      return new MercurialRevlog(indexFile, index, load(channel), null);
+    } finally {
+      channel.close();
+    }
+  }
+
+  private static ByteBuffer map(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Revlog index too large: " + file);
+      }
+      return load(channel);
+    }
+  }
+
+  /**
+   * Whole content of the channel, mapped unless it is small. The mapping stays valid after the channel is closed, and
+   * is released when garbage collected.
+   */
+  private static ByteBuffer load(FileChannel channel) throws IOException {
+    long size = channel.size();
+    if (size >= MIN_MAPPED_SIZE) {
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+    ByteBuffer buffer = ByteBuffer.allocate((int) size);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, buffer.position()) < 0) {
+        throw new IOException("Unexpected end of file");
+      }
+    }
+    buffer.clear();
+    return buffer;
+  }
+
+  int count() {
+    return count;
+  }
+
+  int linkRev(int rev) {
+    return index.getInt(entry(rev) + 20);
+  }
+
+  /**
+   * First parent, or the second one if the first is null, like Mercurial does for file revlogs.
+   */
+  int parent1(int rev) {
+    int p1 = index.getInt(entry(rev) + 24);
+    return p1 == NULL_REV ? index.getInt(entry(rev) + 28) : p1;
+  }
+
+  int parent2(int rev) {
+    int p1 = index.getInt(entry(rev) + 24);
+    return p1 == NULL_REV ? NULL_REV : index.getInt(entry(rev) + 28);
+  }
+
+  byte[] node(int rev) {
+    int position = entry(rev) + 32;
+    byte[] node = new byte[NODE_SIZE];
+    for (int i = 0; i < NODE_SIZE; i++) {
+      node[i] = index.get(position + i);
+    }
+    return node;
+  }
+
+  /**
+   * Revision of the given node, or {@link #NULL_REV} if it is not in this revlog.
+   */
+  int findRev(byte[] node) {
+    // Recent revisions are the most likely to be searched
+    for (int rev = count - 1; rev >= 0; rev--) {
+      if (nodeEquals(entry(rev) + 32, node)) {
+        return rev;
+      }
+    }
+    return NULL_REV;
+  }
+
+  /**
+   * Full text of the revision, made of its base text and the chain of deltas applied to it.
+   */
+  byte[] revision(int rev) throws IOException {
+    if (rev == cachedRev) {
+      return cachedText;
+    }
+    int flags = (int) (index.getLong(entry(rev)) & 0xFFFF);
+    if ((flags & UNSUPPORTED_REVISION_FLAGS) != 0) {
+      throw new IOException("Unsupported revision flags " + Integer.toHexString(flags) + " for revision " + rev + " of " + indexFile);
+    }
+    List<Integer> chain = new ArrayList<>();
+    int current = rev;
+    byte[] text = null;
+    while (true) {
+      if (current == cachedRev) {
+        text = cachedText;
+        break;
+      }
+      int base = index.getInt(entry(current) + 16);
+      if (base == current || base == NULL_REV) {
+        text = chunk(current);
+        break;
+      }
+      chain.add(current);
+      current = generalDelta ? base : (current - 1);
+      if (current < 0 || current >= count) {
+        throw new IOException("Invalid delta base of revision " + rev + " of " + indexFile);
+      }
+    }
+    for (int i = chain.size() - 1; i >= 0; i--) {
+      text = patch(text, chunk(chain.get(i)));
+    }
+    cachedRev = rev;
+    cachedText = text;
+    return text;
+  }
+
+  private byte[] chunk(int rev) throws IOException {
+    int entry = entry(rev);
+    long offset = rev == 0 ? 0 : (index.getLong(entry) >>> 16);
+    int length = index.getInt(entry + 8);
+    byte[] chunk = new byte[length];
+    if (inline) {
+      read(index, entry + ENTRY_SIZE, chunk);
+    } else if (data != null) {
+      if (offset + length > data.capacity()) {
+        throw new IOException("Unexpected end of data of " + indexFile);
+      }
+      read(data, (int) offset, chunk);
+    } else {
+      ByteBuffer buffer = ByteBuffer.wrap(chunk);
+      while (buffer.hasRemaining()) {
+        if (dataChannel.read(buffer, offset + buffer.position()) < 0) {
+          throw new IOException("Unexpected end of data of " + indexFile);
+        }
+      }
+    }
+    return decompress(chunk, index.getInt(entry + 12));
+  }
+
+  private static void read(ByteBuffer buffer, int position, byte[] bytes) {
+    ByteBuffer view = buffer.duplicate();
+    view.position(position);
+    view.get(bytes);
+  }
+
+  private byte[] decompress(byte[] chunk, int uncompressedLength) throws IOException {
+    if (chunk.length == 0 || chunk[0] == 0) {
+      return chunk;
+    }
+    if (chunk[0] == 'u') {
+      return Arrays.copyOfRange(chunk, 1, chunk.length);
+    }
+    if (chunk[0] == 'x') {
+      Inflater inflater = new Inflater();
+      try {
+        inflater.setInput(chunk);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(16, uncompressedLength));
+        byte[] buffer = new byte[8192];
+        while (!inflater.finished()) {
+          int read = inflater.inflate(buffer);
+          if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+            throw new IOException("Truncated zlib chunk in " + indexFile);
+          }
+          out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+      } catch (DataFormatException e) {
+        throw new IOException("Invalid zlib chunk in " + indexFile, e);
+      } finally {
+        inflater.end();
+      }
+    }
+    throw new IOException("Unsupported compression '" + (char) chunk[0] + "' in " + indexFile);
+  }
+
+  /**
+   * Apply a binary delta: a list of hunks made of the start and end of the replaced range, and the length of the new data.
+   */
+  static byte[] patch(byte[] base, byte[] delta) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(base.length + delta.length);
+    int last = 0;
+    int position = 0;
+    while (position < delta.length) {
+      if (position + 12 > delta.length) {
+        throw new IOException("Truncated delta");
+      }
+      int start = getInt(delta, position);
+      int end = getInt(delta, position + 4);
+      int length = getInt(delta, position + 8);
+      position += 12;
+      if (start < last || end < start || end > base.length || length < 0 || position + length > delta.length) {
+        throw new IOException("Invalid delta");
+      }
+      out.write(base, last, start - last);
+      out.write(delta, position, length);
+      position += length;
+      last = end;
+    }
+    out.write(base, last, base.length - last);
+    return out.toByteArray();
+  }
+
+  private int entry(int rev) {
+    if (rev < 0 || rev >= count) {
+      throw new IllegalArgumentException("Invalid revision " + rev + " of " + indexFile);
+    }
+    return inline ? inlinePositions[rev] : (rev * ENTRY_SIZE);
+  }
+
+  static int getInt(byte[] bytes, int position) {
+    return ((bytes[position] & 0xFF) << 24) | ((bytes[position + 1] & 0xFF) << 16) | ((bytes[position + 2] & 0xFF) << 8) | (bytes[position + 3] & 0xFF);
+  }
+
+  private boolean nodeEquals(int position, byte[] node) {
+    for (int i = 0; i < node.length; i++) {
+      if (index.get(position + i) != node[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (dataChannel != null) {
+      dataChannel.close();
+    }
+  }
+}
@@ -19,17 +19,36 @@
  */
 package org.sonar.plugins.scm.mercurial;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.CheckForNull;
 import org.sonar.api.batch.scm.BlameCommand;
 import org.sonar.api.batch.scm.ScmProvider;
-
-import java.io.File;
+import org.sonar.api.utils.command.Command;
+import org.sonar.api.utils.command.CommandExecutor;
+import org.sonar.api.utils.command.StringStreamConsumer;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
 
 public class MercurialScmProvider extends ScmProvider {
 
+  private static final Logger LOG = Loggers.get(MercurialScmProvider.class);
+
   private final MercurialBlameCommand blameCommand;
+  private final CommandExecutor commandExecutor;
+  private final MercurialBranchChanges branchChanges;
 
   public MercurialScmProvider(MercurialBlameCommand blameCommand) {
+    this(blameCommand, CommandExecutor.create());
+  }
+
+  MercurialScmProvider(MercurialBlameCommand blameCommand, CommandExecutor commandExecutor) {
     this.blameCommand = blameCommand;
+    this.commandExecutor = commandExecutor;
+    this.branchChanges = new MercurialBranchChanges(commandExecutor);
   }
 
   @Override
@@ -46,4 +65,68 @@ public class MercurialScmProvider extends ScmProvider {
   public BlameCommand blameCommand() {
     return this.blameCommand;
   }
+
+  /**
+   * Files added or modified since the common ancestor of the working directory parent and of the target branch,
+   * computed with a single <code>hg status</code>. Null when they can't be computed, the whole project is then analyzed.
+   */
+  @CheckForNull
+  @Override
+  public Set<Path> branchChangedFiles(String targetBranchName, Path rootBaseDir) {
+    return branchChanges.changedFiles(targetBranchName, rootBaseDir);
+  }
+
+  /**
+   * Lines added or modified in the given files since the common ancestor of the working directory parent and of the
+   * target branch, computed with a single <code>hg diff</code>. Null when they can't be computed.
+   * <p>
+   * Not an override because this version of the plugin API doesn't declare it yet, scanners supporting changed lines
+   * call it.
+   */
+  @CheckForNull
+  public Map<Path, Set<Integer>> branchChangedLines(String targetBranchName, Path rootBaseDir, Set<Path> changedFiles) {
+    return branchChanges.changedLines(targetBranchName, rootBaseDir, changedFiles);
+  }
+
+  /**
+   * Full id of the first parent of the working directory, read from <code>.hg/dirstate</code> without starting hg. hg is
+   * only run when the dirstate is not in a supported format. Null if the directory is not in a repository, or if the
+   * repository has no commit.
+   * <p>
+   * Not an override because this version of the plugin API doesn't declare it yet, scanners supporting it call it.
+   */
+  @CheckForNull
+  public String revisionId(Path path) {
+    File repositoryRoot = MercurialUtils.findRepositoryRoot(path.toFile());
+    if (repositoryRoot == null) {
+      return null;
+    }
+    try {
+      MercurialDirstate.Parents parents = MercurialDirstate.readParents(repositoryRoot);
+      return parents == null ? null : MercurialUtils.toHex(parents.first());
+    } catch (IOException e) {
+      LOG.debug("Unable to read the dirstate, executing hg: " + e.getMessage());
+    }
+    Command cl = createParentCommandLine(repositoryRoot);
+    StringBuilder node = new StringBuilder();
+    StringStreamConsumer stderr = new StringStreamConsumer();
+    int exitCode = commandExecutor.execute(cl, node::append, stderr, -1);
+    if (exitCode != 0) {
+      LOG.warn("The mercurial log command [" + cl.toString() + "] failed: " + stderr.getOutput());
+      return null;
+    }
+    String revision = node.toString().trim();
+    return revision.isEmpty() || revision.matches("0+") ? null : revision;
+  }
+
+  private static Command createParentCommandLine(File repositoryRoot) {
+    Command cl = Command.create("hg");
+    cl.setDirectory(repositoryRoot);
+    cl.addArgument("log");
+    cl.addArgument("--rev");
+    cl.addArgument(".");
+    cl.addArgument("--template");
+    cl.addArgument("{node}");
+    return cl;
+  }
 }
@@ -0,0 +1,218 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Blame of files shared by the analyses running on the same machine, for example by the jobs of a CI agent analyzing
+ * different branches of the same clone, and filled in advance by {@link MercurialBlamePrefetch}. Like
+ * {@link MercurialBlameCache}, entries are keyed by path and file node, but each one is stored in its own file named
+ * after the SHA-1 of both:
+ * <code>&lt;directory&gt;/&lt;hash of the blame options&gt;/&lt;first 2 digits of the entry hash&gt;/&lt;entry hash&gt;</code>.
+ * <p>
+ * An entry never changes once written, since the blame of a file node at a given path is always the same. It is written to a temporary
+ * file then atomically renamed, so that concurrent readers and writers, in this process or in others, never see a
+ * partially written entry and no lock is needed. When several writers race on the same entry, the last rename wins
+ * with the same content. Entries are never evicted, the directory can be deleted at any time.
+ * <p>
+ * Thread safe.
+ */
+class MercurialSharedBlameCache {
+
+  private static final Logger LOG = Loggers.get(MercurialSharedBlameCache.class);
+
+  private static final int MAGIC = 0x48475342;
+  private static final int VERSION = 1;
+
+  private final File directory;
+  private final String options;
+  private final MercurialChangesetCache changesets;
+  private final AtomicInteger hits = new AtomicInteger();
+
+  MercurialSharedBlameCache(File root, String options, MercurialChangesetCache changesets) {
+    this.directory = new File(root, MercurialUtils.toHex(sha1(options)).substring(0, 16));
+    this.options = options;
+    this.changesets = changesets;
+  }
+
+  /**
+   * The path is part of the key, files added with the same content in different changesets have the same file node.
+   */
+  private File entryFile(String path, String fileNode) {
+    String name = MercurialUtils.toHex(sha1(path + '\n' + fileNode));
+    return new File(new File(directory, name.substring(0, 2)), name);
+  }
+
+  /**
+   * @param path path of the file relative to the repository root
+   */
+  boolean contains(String path, String fileNode) {
+    return entryFile(path, fileNode).isFile();
+  }
+
+  /**
+   * Blame of the given file node at the given path, null if it is not in the cache or can't be read.
+   */
+  @CheckForNull
+  MercurialFileBlame get(String path, String fileNode) {
+    File file = entryFile(path, fileNode);
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(options)) {
+        LOG.debug("Ignoring shared blame cache entry written by another version or with other options: " + file);
+        return null;
+      }
+      MercurialChangesetCache.Changeset[] table = new MercurialChangesetCache.Changeset[MercurialBlameCache.readVarInt(in)];
+      for (int i = 0; i < table.length; i++) {
+        String revision = in.readUTF();
+        String author = in.readUTF();
+        long date = in.readLong();
+        long key = MercurialChangesetCache.key(revision, 0, revision.length());
+        MercurialChangesetCache.Changeset known = changesets.get(key);
+        table[i] = known != null && known.revision().equals(revision) ? known
+          : changesets.intern(key, new MercurialChangesetCache.Changeset(revision, author, new Date(date)));
+      }
+      int[] runs = new int[MercurialBlameCache.readVarInt(in)];
+      int lines = 0;
+      for (int i = 0; i < runs.length; i++) {
+        runs[i] = MercurialBlameCache.readVarInt(in);
+        if (i % 2 == 0 && runs[i] >= table.length) {
+          throw new IOException("Invalid changeset index " + runs[i]);
+        }
+        lines += i % 2 == 1 ? runs[i] : 0;
+      }
+      MercurialFileBlame blame = new MercurialFileBlame(lines);
+      for (int i = 0; i < runs.length; i += 2) {
+        blame.add(table[runs[i]], runs[i + 1]);
+      }
+      hits.incrementAndGet();
+      return blame;
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException | RuntimeException e) {
+      LOG.debug("Ignoring unreadable shared blame cache entry " + file + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Write the entry to a temporary file in the directory of the entry, then rename it.
+   */
+  void put(String path, String fileNode, MercurialFileBlame blame) {
+    File file = entryFile(path, fileNode);
+    Path tmp = null;
+    try {
+      Files.createDirectories(file.getParentFile().toPath());
+      tmp = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp");
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        write(out, blame);
+      }
+      MercurialBlameCache.moveInPlace(tmp, file.toPath());
+    } catch (IOException e) {
+      LOG.debug("Unable to write shared blame cache entry " + file + ": " + e.getMessage());
+      deleteQuietly(tmp);
+    }
+  }
+
+  private void write(DataOutputStream out, MercurialFileBlame blame) throws IOException {
+    Map<MercurialChangesetCache.Changeset, Integer> indexes = new IdentityHashMap<>();
+    List<MercurialChangesetCache.Changeset> table = new ArrayList<>();
+    List<Integer> runs = new ArrayList<>();
+    MercurialChangesetCache.Changeset previous = null;
+    for (int line = 0; line < blame.size(); line++) {
+      MercurialChangesetCache.Changeset changeset = blame.changeset(line);
+      if (changeset == previous) {
+        runs.set(runs.size() - 1, runs.get(runs.size() - 1) + 1);
+        continue;
+      }
+      Integer index = indexes.get(changeset);
+      if (index == null) {
+        index = table.size();
+        table.add(changeset);
+        indexes.put(changeset, index);
+      }
+      runs.add(index);
+      runs.add(1);
+      previous = changeset;
+    }
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeUTF(options);
+    MercurialBlameCache.writeVarInt(out, table.size());
+    for (MercurialChangesetCache.Changeset changeset : table) {
+      out.writeUTF(changeset.revision());
+      out.writeUTF(changeset.author() == null ? "" : changeset.author());
+      out.writeLong(changeset.date().getTime());
+    }
+    MercurialBlameCache.writeVarInt(out, runs.size());
+    for (int run : runs) {
+      MercurialBlameCache.writeVarInt(out, run);
+    }
+  }
+
+  int hits() {
+    return hits.get();
+  }
+
+  @Override
+  public String toString() {
+    return directory.toString();
+  }
+
+  private static void deleteQuietly(@Nullable Path path) {
+    if (path == null) {
+      return;
+    }
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      LOG.debug("Unable to delete " + path + ": " + e.getMessage());
+    }
+  }
+
+  private static byte[] sha1(String s) {
+    try {
+      return MessageDigest.getInstance("SHA-1").digest(s.getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
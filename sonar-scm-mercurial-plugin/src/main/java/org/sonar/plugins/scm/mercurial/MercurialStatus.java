@@ -0,0 +1,95 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Status of the files of the working directory compared to its parent, as printed by hg status.
+ * Paths are relative to the repository root, and files that are not listed are clean.
+ */
+class MercurialStatus {
+
+  static final char CLEAN = 'C';
+  static final char MODIFIED = 'M';
+  static final char ADDED = 'A';
+  static final char REMOVED = 'R';
+  static final char DELETED = '!';
+  static final char UNKNOWN = '?';
+
+  private final Map<String, Character> changes;
+
+  private MercurialStatus(Map<String, Character> changes) {
+    this.changes = changes;
+  }
+
+  /**
+   * Status of a working directory without any change, as reported by an hg id without "+".
+   */
+  static MercurialStatus clean() {
+    return new MercurialStatus(Collections.emptyMap());
+  }
+
+  /**
+   * Status of the given changed files, the other files are clean.
+   */
+  static MercurialStatus of(Map<String, Character> changes) {
+    return new MercurialStatus(changes);
+  }
+
+  /**
+   * Whether the output of hg id reports uncommitted changes.
+   */
+  static boolean isDirty(String id) {
+    return id.trim().endsWith("+");
+  }
+
+  /**
+   * Parse lines like "M path/to/file", other lines are ignored.
+   */
+  static MercurialStatus parse(List<String> lines) {
+    Map<String, Character> changes = new HashMap<>();
+    for (String line : lines) {
+      if (line.length() > 2 && line.charAt(1) == ' ' && "MAR!?".indexOf(line.charAt(0)) >= 0) {
+        changes.put(line.substring(2), line.charAt(0));
+      }
+    }
+    return new MercurialStatus(changes);
+  }
+
+  char statusOf(String path) {
+    Character status = changes.get(path);
+    return status == null ? CLEAN : status;
+  }
+
+  /**
+   * Whether the file has no history in the working directory parent, so there is nothing to blame.
+   */
+  static boolean isUncommitted(char status) {
+    return status == ADDED || status == REMOVED || status == UNKNOWN;
+  }
+
+  int changedFiles() {
+    return changes.size();
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.io.File;
+import javax.annotation.CheckForNull;
+
+final class MercurialUtils {
+
+  private MercurialUtils() {
+    // only static methods
+  }
+
+  /**
+   * Directory containing the .hg folder of the repository, or null if the directory is not part of a repository.
+   */
+  @CheckForNull
+  static File findRepositoryRoot(File dir) {
+    File current = dir.getAbsoluteFile();
+    while (current != null) {
+      if (new File(current, ".hg").isDirectory()) {
+        return current;
+      }
+      current = current.getParentFile();
+    }
+    return null;
+  }
+
+  /**
+   * Prefix to add to paths relative to the given directory to get paths relative to the root of the repository,
+   * for example "module/" when the directory is a sub directory of the repository, or "" for the root itself.
+   */
+  static String repositoryPrefix(File repositoryRoot, File dir) {
+    String relative = repositoryRoot.getAbsoluteFile().toPath().relativize(dir.getAbsoluteFile().toPath()).toString().replace(File.separatorChar, '/');
+    return relative.isEmpty() ? "" : (relative + "/");
+  }
+
+  static boolean isHexDigit(char c) {
+    return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f');
+  }
+
+  static boolean isHex(CharSequence s, int start, int end) {
+    if (end > s.length()) {
+      return false;
+    }
+    for (int i = start; i < end; i++) {
+      if (!isHexDigit(s.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static String toHex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return sb.toString();
+  }
+
+  static byte[] parseHex(String hex) {
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) ((Character.digit(hex.charAt(2 * i), 16) << 4) | Character.digit(hex.charAt(2 * i + 1), 16));
+    }
+    return bytes;
+  }
+
+  /**
+   * Email of a user like "Name &lt;email&gt;", same as the email filter of hg templates.
+   */
+  static String email(String user) {
+    int end = user.indexOf('>');
+    return user.substring(user.indexOf('<') + 1, end < 0 ? user.length() : end);
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+import org.sonar.api.utils.command.StreamConsumer;
+
+/**
+ * Parse the output of <code>hg log --patch --git --template ""</code> to find the files whose history contains whitespace
+ * changes, i.e. the files for which <code>hg blame -w</code> may attribute lines differently than <code>hg blame</code>.
+ * <p>
+ * In the diff of each file of each changeset, a change is found when a removed, added or context line is equal to a
+ * line of another kind once spaces, tabs and carriage returns are removed, like "hg annotate -w" compares lines, but
+ * not equal as is. Lines moved without modification, like closing braces, are not whitespace changes.
+ * <p>
+ * The check is a heuristic over the hunks of the diffs. A file may be found without its blame being actually different,
+ * and conversely, lines outside of the hunks that are equal once whitespaces are removed may still make the diff
+ * ignoring whitespaces match lines differently.
+ */
+class MercurialWhitespaceChangesConsumer implements StreamConsumer {
+
+  private static final String DIFF_HEADER = "diff --git a/";
+
+  private final Set<String> changedPaths = new HashSet<>();
+  private final Map<String, Set<String>> removed = new HashMap<>();
+  private final Map<String, Set<String>> added = new HashMap<>();
+  private final Map<String, Set<String>> context = new HashMap<>();
+  @Nullable
+  private String path;
+  private boolean inHunk;
+
+  @Override
+  public void consumeLine(String line) {
+    if (line.startsWith(DIFF_HEADER)) {
+      int separator = line.lastIndexOf(" b/");
+      path = separator < DIFF_HEADER.length() ? line.substring(DIFF_HEADER.length()) : line.substring(separator + 3);
+      inHunk = false;
+      removed.clear();
+      added.clear();
+      context.clear();
+    } else if (line.startsWith("@@")) {
+      inHunk = true;
+    } else if (inHunk && path != null && !changedPaths.contains(path) && !line.isEmpty()) {
+      String text = line.substring(1);
+      switch (line.charAt(0)) {
+        case '-':
+          check(text, removed, added, context);
+          break;
+        case '+':
+          check(text, added, removed, context);
+          break;
+        case ' ':
+          check(text, context, removed, added);
+          break;
+        default:
+          // "\ No newline at end of file"
+          break;
+      }
+    }
+  }
+
+  private void check(String text, Map<String, Set<String>> kind, Map<String, Set<String>> other1, Map<String, Set<String>> other2) {
+    String key = removeWhitespaces(text);
+    if (differs(other1.get(key), text) || differs(other2.get(key), text)) {
+      changedPaths.add(path);
+    }
+    kind.computeIfAbsent(key, k -> new HashSet<>()).add(text);
+  }
+
+  private static boolean differs(@Nullable Set<String> lines, String text) {
+    return lines != null && (lines.size() > 1 || !lines.contains(text));
+  }
+
+  /**
+   * Same as {@link MercurialBdiff.Lines#removeWhitespaces(byte[])}.
+   */
+  private static String removeWhitespaces(String text) {
+    StringBuilder sb = new StringBuilder(text.length());
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c != ' ' && c != '\t' && c != '\r') {
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Repository relative paths of the files with whitespace changes, including the paths of the files they were copied
+   * or renamed from.
+   */
+  Set<String> getChangedPaths() {
+    return changedPaths;
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Speaks the server side of the Mercurial command server protocol in a background thread.
+ * The handler receives the arguments of each runcommand and returns the messages to send back,
+ * as a list of (channel, payload) pairs followed by the exit code. A null reply simulates a crash.
+ */
+class FakeCommandServer {
+
+  static class Reply {
+    final List<Object[]> messages = new ArrayList<>();
+    int exitCode;
+
+    Reply out(String data) {
+      messages.add(new Object[] {'o', data});
+      return this;
+    }
+
+    Reply err(String data) {
+      messages.add(new Object[] {'e', data});
+      return this;
+    }
+
+    Reply optional(char channel, String data) {
+      messages.add(new Object[] {channel, data});
+      return this;
+    }
+
+    Reply inputRequest(char channel) {
+      messages.add(new Object[] {channel, null});
+      return this;
+    }
+
+    Reply exit(int code) {
+      this.exitCode = code;
+      return this;
+    }
+  }
+
+  final List<List<String>> receivedCommands = new ArrayList<>();
+  private final PipedInputStream clientIn = new PipedInputStream(64 * 1024);
+  private final PipedOutputStream clientOut = new PipedOutputStream();
+  private final DataOutputStream serverOut;
+  private final DataInputStream serverIn;
+
+  FakeCommandServer(String hello, Function<List<String>, Reply> handler) throws IOException {
+    serverOut = new DataOutputStream(new PipedOutputStream(clientIn));
+    serverIn = new DataInputStream(new PipedInputStream(clientOut, 64 * 1024));
+    Thread thread = new Thread(() -> serve(hello, handler), "fake-cmdserver");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  static FakeCommandServer standard(Function<List<String>, Reply> handler) throws IOException {
+    return new FakeCommandServer("capabilities: getencoding runcommand\nencoding: UTF-8\npid: 42", handler);
+  }
+
+  /**
+   * Closing the client also closes the output of the server, like when the hg process is destroyed.
+   */
+  MercurialCommandServer connect() throws IOException {
+    return new MercurialCommandServer(clientIn, clientOut, null) {
+      @Override
+      public void close() {
+        super.close();
+        try {
+          serverOut.close();
+        } catch (IOException e) {
+          // Already closed
+        }
+      }
+    };
+  }
+
+  private void serve(String hello, Function<List<String>, Reply> handler) {
+    try {
+      send('o', hello.getBytes(StandardCharsets.UTF_8));
+      while (true) {
+        String command = readCommandName();
+        if (command == null) {
+          return;
+        }
+        byte[] payload = new byte[serverIn.readInt()];
+        serverIn.readFully(payload);
+        List<String> args = Arrays.asList(new String(payload, StandardCharsets.UTF_8).split("\0"));
+        synchronized (receivedCommands) {
+          receivedCommands.add(args);
+        }
+        Reply reply = handler.apply(args);
+        if (reply == null) {
+          // Simulate a crash of the server
+          serverOut.close();
+          return;
+        }
+        for (Object[] message : reply.messages) {
+          if (message[1] == null) {
+            requestInput((Character) message[0]);
+          } else {
+            send((Character) message[0], ((String) message[1]).getBytes(StandardCharsets.UTF_8));
+          }
+        }
+        serverOut.writeByte('r');
+        serverOut.writeInt(4);
+        serverOut.writeInt(reply.exitCode);
+        serverOut.flush();
+      }
+    } catch (IOException e) {
+      // Client went away
+    }
+  }
+
+  private String readCommandName() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    int c;
+    while ((c = serverIn.read()) != '\n') {
+      if (c == -1) {
+        return null;
+      }
+      sb.append((char) c);
+    }
+    return sb.toString();
+  }
+
+  private void requestInput(char channel) throws IOException {
+    serverOut.writeByte(channel);
+    serverOut.writeInt(4096);
+    serverOut.flush();
+    if (serverIn.readInt() != 0) {
+      throw new IllegalStateException("Client is not expected to send input");
+    }
+  }
+
+  private void send(char channel, byte[] data) throws IOException {
+    serverOut.writeByte(channel);
+    serverOut.writeInt(data.length);
+    serverOut.write(data);
+    serverOut.flush();
+  }
+}
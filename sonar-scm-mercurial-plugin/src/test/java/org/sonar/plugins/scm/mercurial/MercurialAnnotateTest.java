@@ -0,0 +1,236 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static java.util.Collections.singletonMap;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MercurialAnnotateTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private File root;
+  private MercurialRepositoryBuilder builder;
+
+  @Before
+  public void prepare() throws IOException {
+    root = temp.newFolder();
+    builder = new MercurialRepositoryBuilder(root);
+  }
+
+  @Test
+  public void should_attribute_lines_to_the_changesets_introducing_them() throws IOException {
+    builder.commit("julien", 1000, singletonMap("foo.xoo", "a\nb\nc\n"));
+    builder.commit("julien", 2000, singletonMap("foo.xoo", "a\nB\nc\nd\n"));
+    builder.write();
+
+    assertThat(annotate("foo.xoo", false)).containsExactly(0, 1, 0, 1);
+  }
+
+  @Test
+  public void should_read_separate_data_without_general_delta() throws IOException {
+    builder.separateData().withoutGeneralDelta();
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i < 5; i++) {
+      content.append("line ").append(i).append('\n');
+      builder.commit("julien", 1000 + i, singletonMap("foo.xoo", content.toString()));
+    }
+    builder.write();
+
+    assertThat(new File(root, ".hg/store/data/foo.xoo.d")).isFile();
+    assertThat(annotate("foo.xoo", false)).containsExactly(0, 1, 2, 3, 4);
+  }
+
+  @Test
+  public void should_map_large_revlogs() throws IOException {
+    builder.separateData();
+    Random random = new Random(42);
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i < 10_000; i++) {
+      content.append(Long.toHexString(random.nextLong())).append(Long.toHexString(random.nextLong())).append('\n');
+    }
+    builder.commit("julien", 1000, singletonMap("foo.xoo", content.toString()));
+    builder.commit("julien", 2000, singletonMap("foo.xoo", "x\n" + content));
+    builder.write();
+
+    assertThat(new File(root, ".hg/store/data/foo.xoo.d").length()).isGreaterThan(64 * 1024);
+    int[] expected = new int[10_001];
+    expected[0] = 1;
+    assertThat(annotate("foo.xoo", false)).containsExactly(expected);
+  }
+
+  @Test
+  public void should_ignore_whitespaces() throws IOException {
+    builder.commit("julien", 1000, singletonMap("foo.xoo", "a\nb\n"));
+    builder.commit("julien", 2000, singletonMap("foo.xoo", "a\n  b\r\n"));
+    builder.write();
+
+    assertThat(annotate("foo.xoo", false)).containsExactly(0, 1);
+    assertThat(annotate("foo.xoo", true)).containsExactly(0, 0);
+  }
+
+  @Test
+  public void should_follow_both_parents_of_merges() throws IOException {
+    builder.commit("julien", 1000, singletonMap("foo.xoo", "a\nb\n"));
+    builder.commit("julien", 2000, singletonMap("foo.xoo", "a\nb\nx\n"));
+    builder.commit(0, -1, "julien", 3000, singletonMap("foo.xoo", "y\na\nb\n"), Collections.emptyMap());
+    builder.commit(2, 1, "julien", 4000, singletonMap("foo.xoo", "y\na\nb\nx\n"), Collections.emptyMap());
+    builder.write();
+
+    assertThat(annotate("foo.xoo", false)).containsExactly(2, 0, 0, 1);
+  }
+
+  @Test
+  public void should_follow_renames() throws IOException {
+    builder.commit("julien", 1000, singletonMap("old.xoo", "a\nb\n"));
+    Map<String, String> changes = new HashMap<>();
+    changes.put("old.xoo", null);
+    changes.put("new.xoo", "a\nb\nc\n");
+    builder.commit(0, -1, "julien", 2000, changes, singletonMap("new.xoo", "old.xoo"));
+    builder.write();
+
+    assertThat(annotate("new.xoo", false)).containsExactly(0, 0, 1);
+    assertThat(annotate("old.xoo", false)).isNull();
+  }
+
+  @Test
+  public void should_not_annotate_binary_files() throws IOException {
+    builder.commit("julien", 1000, singletonMap("foo.bin", "a\0b\n"));
+    builder.write();
+
+    assertThat(annotate("foo.bin", false)).isEmpty();
+  }
+
+  @Test
+  public void should_encode_store_paths() throws IOException {
+    builder.commit("julien", 1000, singletonMap("src/aux.Xoo", "a\n"));
+    builder.commit("julien", 2000, singletonMap(".hg/.Foo.i/dir. /Bar", "b\n"));
+    builder.write();
+
+    assertThat(new File(root, ".hg/store/data/src/au~78._xoo.i")).isFile();
+    assertThat(new File(root, ".hg/store/data/~2ehg.hg/~2e_foo.i.hg/dir.~20/_bar.i")).isFile();
+    assertThat(annotate("src/aux.Xoo", false)).containsExactly(0);
+    assertThat(annotate(".hg/.Foo.i/dir. /Bar", false)).containsExactly(1);
+  }
+
+  @Test
+  public void should_annotate_all_files_in_a_single_pass() throws IOException {
+    builder.commit("julien", 1000, singletonMap("old.xoo", "a\nb\n"));
+    Map<String, String> changes = new HashMap<>();
+    changes.put("old.xoo", null);
+    changes.put("new.xoo", "a\nb\nc\n");
+    changes.put("copy.xoo", "b\nd\n");
+    Map<String, String> copies = new HashMap<>();
+    copies.put("new.xoo", "old.xoo");
+    copies.put("copy.xoo", "old.xoo");
+    builder.commit(0, -1, "julien", 2000, changes, copies);
+    builder.commit("julien", 3000, singletonMap("foo.bin", "a\0b\n"));
+    builder.commit("julien", 4000, singletonMap("new.xoo", "x\na\nb\nc\n"));
+    builder.write();
+    File spillDirectory = temp.newFolder();
+
+    Map<String, int[]> result;
+    try (MercurialRepository repository = MercurialRepository.open(root);
+      MercurialAnnotate annotate = new MercurialAnnotate(repository, false, null, spillDirectory, 0)) {
+      result = annotate.annotateAll(Arrays.asList("new.xoo", "copy.xoo", "foo.bin", "old.xoo"));
+    }
+
+    assertThat(result).containsOnlyKeys("new.xoo", "copy.xoo", "foo.bin", "old.xoo");
+    assertThat(result.get("new.xoo")).containsExactly(annotate("new.xoo", false)).containsExactly(3, 0, 0, 1);
+    assertThat(result.get("copy.xoo")).containsExactly(annotate("copy.xoo", false)).containsExactly(0, 1);
+    assertThat(result.get("foo.bin")).isEmpty();
+    assertThat(result.get("old.xoo")).isNull();
+    assertThat(spillDirectory.list()).isEmpty();
+  }
+
+  @Test
+  public void should_annotate_more_files_than_open_file_logs() throws IOException {
+    List<String> paths = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      paths.add("file" + i + ".xoo");
+      builder.commit("julien", 1000 + i, singletonMap("file" + i + ".xoo", "a\nb" + i + "\n"));
+    }
+    builder.commit(9, -1, "julien", 2000, singletonMap("copy.xoo", "a\nb9\nc\n"), singletonMap("copy.xoo", "file9.xoo"));
+    for (int i = 0; i < 10; i += 2) {
+      builder.commit("julien", 3000 + i, singletonMap("file" + i + ".xoo", "a\nB" + i + "\n"));
+    }
+    builder.write();
+    paths.add("copy.xoo");
+
+    Map<String, int[]> result;
+    try (MercurialRepository repository = MercurialRepository.open(root);
+      MercurialAnnotate annotate = new MercurialAnnotate(repository, false, null, null, Long.MAX_VALUE, 2)) {
+      result = annotate.annotateAll(paths);
+      for (String path : paths) {
+        assertThat(annotate.content(path)).isNotNull();
+        assertThat(annotate.openFileLogs()).isLessThanOrEqualTo(2);
+      }
+    }
+
+    for (String path : paths) {
+      assertThat(result.get(path)).containsExactly(annotate(path, false));
+    }
+    assertThat(result.get("file0.xoo")).containsExactly(0, 11);
+    assertThat(result.get("file1.xoo")).containsExactly(1, 1);
+    assertThat(result.get("copy.xoo")).containsExactly(9, 9, 10);
+  }
+
+  @Test
+  public void should_attribute_lines_older_than_the_boundary_to_the_boundary() throws IOException {
+    builder.commit("julien", 1000, singletonMap("foo.xoo", "a\nb\n"));
+    builder.commit("julien", 2000, singletonMap("foo.xoo", "a\nb\nc\n"));
+    builder.commit("julien", 3000, singletonMap("bar.xoo", "x\n"));
+    builder.commit("julien", 4000, singletonMap("foo.xoo", "a\nB\nc\nd\n"));
+    builder.write();
+
+    Map<String, int[]> result;
+    try (MercurialRepository repository = MercurialRepository.open(root);
+      MercurialAnnotate annotate = new MercurialAnnotate(repository, false, rev -> rev < 2, null, Long.MAX_VALUE)) {
+      assertThat(annotate.annotate("foo.xoo")).containsExactly(1, 3, 1, 3);
+      result = annotate.annotateAll(Arrays.asList("foo.xoo", "bar.xoo"));
+    }
+
+    assertThat(result.get("foo.xoo")).containsExactly(1, 3, 1, 3);
+    assertThat(result.get("bar.xoo")).containsExactly(2);
+    assertThat(annotate("foo.xoo", false)).containsExactly(0, 3, 1, 3);
+  }
+
+  private int[] annotate(String path, boolean ignoreWhitespaces) throws IOException {
+    try (MercurialRepository repository = MercurialRepository.open(root);
+      MercurialAnnotate annotate = new MercurialAnnotate(repository, ignoreWhitespaces)) {
+      return annotate.annotate(path);
+    }
+  }
+}
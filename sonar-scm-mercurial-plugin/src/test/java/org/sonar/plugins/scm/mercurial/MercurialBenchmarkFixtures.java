@@ -0,0 +1,118 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.util.Date;
+import java.util.List;
+import javax.annotation.CheckForNull;
+import org.sonar.api.batch.scm.BlameLine;
+
+/**
+ * Access to the internals of the plugin for the JMH benchmarks of the <code>sonar-scm-mercurial-benchmarks</code>
+ * module, which are in their own package. Published in the test jar of the plugin with the <code>benchmarks</code>
+ * profile.
+ */
+public final class MercurialBenchmarkFixtures {
+
+  public static final String TEMPLATE_KEY = MercurialBlameCommand.TEMPLATE_KEY;
+  public static final String DIRECT_IO_KEY = MercurialBlameCommand.DIRECT_IO_KEY;
+  public static final String BATCH_SIZE_KEY = MercurialBlameCommand.BATCH_SIZE_KEY;
+  public static final String COMMAND_SERVER_KEY = MercurialBlameCommand.COMMAND_SERVER_KEY;
+  public static final String ENGINE_KEY = MercurialBlameCommand.ENGINE_KEY;
+  public static final String JAVA_ENGINE = MercurialBlameCommand.JAVA_ENGINE;
+  public static final String CACHE_KEY = MercurialBlameCommand.CACHE_KEY;
+
+  private MercurialBenchmarkFixtures() {
+    // only static methods
+  }
+
+  /**
+   * Changeset of blamed lines, shared by all the lines attributed to it like in the plugin.
+   */
+  public static final class Changeset {
+    private final MercurialChangesetCache.Changeset changeset;
+
+    public Changeset(String revision, String author, Date date) {
+      this.changeset = new MercurialChangesetCache.Changeset(revision, author, date);
+    }
+
+    public String revision() {
+      return changeset.revision();
+    }
+
+    public String author() {
+      return changeset.author();
+    }
+
+    public Date date() {
+      return changeset.date();
+    }
+  }
+
+  /**
+   * Blame of a file kept like the plugin does, with one changeset index per line. Returned as an object so that
+   * benchmarks can consume it without accessing the internal type.
+   */
+  public static Object fileBlame(Changeset[] lineChangesets) {
+    MercurialFileBlame blame = new MercurialFileBlame(lineChangesets.length);
+    for (Changeset changeset : lineChangesets) {
+      blame.add(changeset.changeset);
+    }
+    return blame;
+  }
+
+  /**
+   * @param fileBlame result of {@link #fileBlame}, {@link #parseTemplateOutput} or {@link #parseDefaultOutput}
+   */
+  public static List<BlameLine> toBlameLines(Object fileBlame) {
+    return ((MercurialFileBlame) fileBlame).toBlameLines();
+  }
+
+  /**
+   * Blame of a file parsed from the output of <code>hg blame --template</code>, with a changesets cache empty at the
+   * beginning like for the first file of an analysis.
+   */
+  public static Object parseTemplateOutput(String filename, List<String> output, int expectedLines) {
+    MercurialBlameConsumer consumer = MercurialBlameConsumer.forTemplate(filename, new MercurialChangesetCache(), expectedLines);
+    for (String line : output) {
+      consumer.consumeLine(line);
+    }
+    return consumer.getBlame();
+  }
+
+  /**
+   * Same as {@link #parseTemplateOutput}, with the default output of <code>hg blame -v --user --date --changeset</code>.
+   */
+  public static Object parseDefaultOutput(String filename, List<String> output, int expectedLines) {
+    MercurialBlameConsumer consumer = new MercurialBlameConsumer(filename, new MercurialChangesetCache(), expectedLines);
+    for (String line : output) {
+      consumer.consumeLine(line);
+    }
+    return consumer.getBlame();
+  }
+
+  /**
+   * Date of the default output of hg blame at the given index, like <code>Tue Nov 04 11:01:10 2014 +0100</code>.
+   */
+  @CheckForNull
+  public static Date parseDate(CharSequence line, int start) {
+    return MercurialBlameConsumer.parseDate(line, start);
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.utils.DateUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MercurialBlameCacheTest {
+
+  private static final String NODE_1 = "1111111111111111111111111111111111111111";
+  private static final String NODE_2 = "2222222222222222222222222222222222222222";
+  private static final String NODE_3 = "3333333333333333333333333333333333333333";
+  private static final String FOO = "src/foo.xoo";
+  private static final String BAR = "src/bar.xoo";
+  private static final String BAZ = "src/baz.xoo";
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private final MercurialChangesetCache.Changeset julien = new MercurialChangesetCache.Changeset("d45dafac0d9a", "julien.henry@sonarsource.com",
+    DateUtils.parseDateTime("2014-11-04T11:01:10+0100"));
+  private final MercurialChangesetCache.Changeset jasper = new MercurialChangesetCache.Changeset("2bc1af24477e", "jasper.de.vries@sonarsource.com",
+    DateUtils.parseDateTime("2013-09-10T10:07:49+0200"));
+
+  @Test
+  public void should_reload_saved_blame() throws IOException {
+    File file = new File(temp.newFolder(), "cache/blame.bin");
+    MercurialBlameCache cache = MercurialBlameCache.load(file, "-w", 10, false, new MercurialChangesetCache());
+    assertThat(cache.get(FOO, NODE_1)).isNull();
+    cache.put(FOO, NODE_1, blame(julien, julien, jasper, julien));
+    cache.put(BAR, NODE_2, blame(jasper));
+    cache.save();
+
+    MercurialChangesetCache changesets = new MercurialChangesetCache();
+    MercurialBlameCache reloaded = MercurialBlameCache.load(file, "-w", 10, false, changesets);
+    assertThat(reloaded.size()).isEqualTo(2);
+    assertThat(reloaded.get(FOO, NODE_1).toBlameLines()).isEqualTo(blame(julien, julien, jasper, julien).toBlameLines());
+    assertThat(reloaded.get(BAR, NODE_2).toBlameLines()).isEqualTo(blame(jasper).toBlameLines());
+    assertThat(reloaded.get(BAZ, NODE_3)).isNull();
+    assertThat(reloaded.hits()).isEqualTo(2);
+    // Changesets of the cache are shared with the ones found by blame
+    assertThat(changesets.size()).isEqualTo(2);
+    assertThat(file.getParentFile().list()).containsExactly("blame.bin");
+  }
+
+  @Test
+  public void should_evict_least_recently_used_files() throws IOException {
+    File file = temp.newFile();
+    MercurialBlameCache cache = MercurialBlameCache.load(file, "-w", 2, false, new MercurialChangesetCache());
+    cache.put(FOO, NODE_1, blame(julien));
+    cache.put(BAR, NODE_2, blame(jasper));
+    cache.save();
+
+    // Second analysis only uses the second file, and blames a third one
+    cache = MercurialBlameCache.load(file, "-w", 2, false, new MercurialChangesetCache());
+    assertThat(cache.get(BAR, NODE_2)).isNotNull();
+    cache.put(BAZ, NODE_3, blame(julien));
+    cache.save();
+
+    cache = MercurialBlameCache.load(file, "-w", 2, false, new MercurialChangesetCache());
+    assertThat(cache.size()).isEqualTo(2);
+    assertThat(cache.get(FOO, NODE_1)).isNull();
+    assertThat(cache.get(BAR, NODE_2).toBlameLines()).isEqualTo(blame(jasper).toBlameLines());
+    assertThat(cache.get(BAZ, NODE_3).toBlameLines()).isEqualTo(blame(julien).toBlameLines());
+  }
+
+  @Test
+  public void should_discard_invalidated_cache() throws IOException {
+    File file = temp.newFile();
+    MercurialBlameCache cache = MercurialBlameCache.load(file, "-w", 10, false, new MercurialChangesetCache());
+    cache.put(FOO, NODE_1, blame(julien));
+    cache.save();
+
+    assertThat(MercurialBlameCache.load(file, "-w", 10, true, new MercurialChangesetCache()).size()).isZero();
+    assertThat(MercurialBlameCache.load(file, "whitespaces", 10, false, new MercurialChangesetCache()).size()).isZero();
+    assertThat(MercurialBlameCache.load(file, "-w", 10, false, new MercurialChangesetCache()).size()).isEqualTo(1);
+  }
+
+  @Test
+  public void should_ignore_corrupted_cache() throws IOException {
+    File file = temp.newFile();
+    MercurialBlameCache cache = MercurialBlameCache.load(file, "-w", 10, false, new MercurialChangesetCache());
+    cache.put(FOO, NODE_1, blame(julien, jasper));
+    cache.save();
+
+    byte[] content = FileUtils.readFileToByteArray(file);
+    FileUtils.writeByteArrayToFile(file, Arrays.copyOf(content, content.length - 3));
+    assertThat(MercurialBlameCache.load(file, "-w", 10, false, new MercurialChangesetCache()).size()).isZero();
+
+    FileUtils.write(file, "garbage");
+    cache = MercurialBlameCache.load(file, "-w", 10, false, new MercurialChangesetCache());
+    assertThat(cache.size()).isZero();
+    cache.put(FOO, NODE_1, blame(jasper));
+    cache.save();
+    assertThat(MercurialBlameCache.load(file, "-w", 10, false, new MercurialChangesetCache()).get(FOO, NODE_1).toBlameLines())
+      .isEqualTo(blame(jasper).toBlameLines());
+  }
+
+  @Test
+  public void should_delete_temporary_file_when_save_fails() throws IOException {
+    File dir = temp.newFolder();
+    // A non empty directory can't be replaced by the saved cache
+    File file = new File(dir, "blame.bin");
+    new File(file, "child").mkdirs();
+    MercurialBlameCache cache = MercurialBlameCache.load(file, "-w", 10, false, new MercurialChangesetCache());
+    cache.put(FOO, NODE_1, blame(julien));
+    cache.save();
+
+    assertThat(dir.list()).containsExactly("blame.bin");
+    assertThat(file).isDirectory();
+  }
+
+  @Test
+  public void should_not_share_blame_of_files_with_same_node() throws IOException {
+    File file = temp.newFile();
+    MercurialBlameCache cache = MercurialBlameCache.load(file, "-w", 10, false, new MercurialChangesetCache());
+    // Same content added without history in two changesets
+    cache.put(FOO, NODE_1, blame(julien));
+    assertThat(cache.get(BAR, NODE_1)).isNull();
+    cache.put(BAR, NODE_1, blame(jasper));
+    cache.save();
+
+    cache = MercurialBlameCache.load(file, "-w", 10, false, new MercurialChangesetCache());
+    assertThat(cache.size()).isEqualTo(2);
+    assertThat(cache.get(FOO, NODE_1).toBlameLines()).isEqualTo(blame(julien).toBlameLines());
+    assertThat(cache.get(BAR, NODE_1).toBlameLines()).isEqualTo(blame(jasper).toBlameLines());
+  }
+
+  private static MercurialFileBlame blame(MercurialChangesetCache.Changeset... changesets) {
+    MercurialFileBlame blame = new MercurialFileBlame(changesets.length);
+    for (MercurialChangesetCache.Changeset changeset : changesets) {
+      blame.add(changeset);
+    }
+    return blame;
+  }
+}
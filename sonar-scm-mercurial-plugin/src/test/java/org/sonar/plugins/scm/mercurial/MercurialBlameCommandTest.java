@@ -19,9 +19,20 @@
  */
 package org.sonar.plugins.scm.mercurial;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import org.apache.commons.io.FileUtils;
 import org.junit.Before;
 import org.junit.Rule;
@@ -41,12 +52,18 @@ import org.sonar.api.utils.DateUtils;
 import org.sonar.api.utils.command.Command;
 import org.sonar.api.utils.command.CommandExecutor;
 import org.sonar.api.utils.command.StreamConsumer;
+import org.sonar.api.utils.command.TimeoutException;
+import org.sonar.api.utils.log.LogTester;
+import org.sonar.api.utils.log.LoggerLevel;
 
 import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
 import static org.assertj.core.api.Assertions.*;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -60,6 +77,9 @@ public class MercurialBlameCommandTest {
   @Rule
   public ExpectedException thrown = ExpectedException.none();
 
+  @Rule
+  public LogTester logTester = new LogTester();
+
   private DefaultFileSystem fs;
   private File baseDir;
   private BlameInput input;
@@ -107,6 +127,68 @@ public class MercurialBlameCommandTest {
         new BlameLine().date(DateUtils.parseDateTime("2014-11-04T11:01:10+0100")).revision("d45dafac0d9b").author("julien.henry")));
   }
 
+  @Test
+  public void shouldShareChangesetsOfRepeatedLinesWithoutParsingTheirDateAgain() {
+    MercurialChangesetCache changesets = new MercurialChangesetCache();
+    MercurialBlameConsumer consumer = new MercurialBlameConsumer("src/foo.xoo", changesets, 3);
+    consumer.consumeLine("Julien Henry <julien.henry@sonarsource.com> d45dafac0d9a Tue Nov 04 11:01:10 2014 +0100: foo");
+    consumer.consumeLine("  Julien Henry <julien.henry@sonarsource.com> d45dafac0d9a Tue Nov 04 11:01:10 2014 +0100: bar");
+    // Not a valid date, which is only parsed for the changesets not seen so far
+    consumer.consumeLine("Julien Henry <julien.henry@sonarsource.com> d45dafac0d9a Xxx Xxx 99 99:99:99 9999 +9999: baz");
+
+    MercurialFileBlame blame = consumer.getBlame();
+    assertThat(blame.changeset(0).date()).isEqualTo(DateUtils.parseDateTime("2014-11-04T11:01:10+0100"));
+    assertThat(blame.changeset(1)).isSameAs(blame.changeset(0));
+    assertThat(blame.changeset(2)).isSameAs(blame.changeset(0));
+    assertThat(changesets.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldParseDatesOfTheDefaultOutput() {
+    assertThat(MercurialBlameConsumer.parseDate("Tue Sep 10 10:07:49 2013 +0200", 0)).isEqualTo(DateUtils.parseDateTime("2013-09-10T10:07:49+0200"));
+    assertThat(MercurialBlameConsumer.parseDate("Thu Jan 01 00:00:00 1970 -0530", 0)).isEqualTo(DateUtils.parseDateTime("1970-01-01T00:00:00-0530"));
+    assertThat(MercurialBlameConsumer.parseDate("Mon Feb 30 10:07:49 2013 +0200", 0)).isNull();
+    assertThat(MercurialBlameConsumer.parseDate("Tue Foo 10 10:07:49 2013 +0200", 0)).isNull();
+  }
+
+  @Test
+  public void testParsingOfTemplateOutput() throws IOException {
+    File source = new File(baseDir, "src/foo.xoo");
+    FileUtils.write(source, "sample content");
+    InputFile inputFile = new TestInputFileBuilder("foo", "src/foo.xoo")
+      .setLines(3)
+      .setModuleBaseDir(baseDir.toPath())
+      .build();
+    fs.add(inputFile);
+
+    BlameOutput result = mock(BlameOutput.class);
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+
+    when(commandExecutor.execute(any(), any(), any(), anyLong())).thenAnswer((Answer<Integer>) invocation -> {
+      StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+      outConsumer.consumeLine("@src/foo.xoo");
+      outConsumer.consumeLine("d45dafac0d9a 1415095270 -3600 julien.henry@sonarsource.com");
+      outConsumer.consumeLine("d45dafac0d9a 1415095270 -3600 julien.henry@sonarsource.com");
+      outConsumer.consumeLine("d45dafac0d9a 1415095270 -3600 julien.henry@sonarsource.com");
+      outConsumer.consumeLine("2bc1af24477e 1378800469 -7200 jasper.de.vries@sonarsource.com");
+      outConsumer.consumeLine("2bc1af24477f 1378800470 -7200 jasper.de.vries");
+      outConsumer.consumeLine("d45dafac0d9b 1415095270 -3600 julien.henry");
+      return 0;
+    });
+
+    when(input.filesToBlame()).thenReturn(singletonList(inputFile));
+    MapSettings settings = new MapSettings();
+    settings.setProperty(MercurialBlameCommand.TEMPLATE_KEY, true);
+    new MercurialBlameCommand(commandExecutor, settings).blame(input, result);
+    verify(result).blameResult(inputFile,
+      Arrays.asList(new BlameLine().date(DateUtils.parseDateTime("2014-11-04T11:01:10+0100")).revision("d45dafac0d9a").author("julien.henry@sonarsource.com"),
+        new BlameLine().date(DateUtils.parseDateTime("2014-11-04T11:01:10+0100")).revision("d45dafac0d9a").author("julien.henry@sonarsource.com"),
+        new BlameLine().date(DateUtils.parseDateTime("2014-11-04T11:01:10+0100")).revision("d45dafac0d9a").author("julien.henry@sonarsource.com"),
+        new BlameLine().date(DateUtils.parseDateTime("2013-09-10T10:07:49+0200")).revision("2bc1af24477e").author("jasper.de.vries@sonarsource.com"),
+        new BlameLine().date(DateUtils.parseDateTime("2013-09-10T10:07:50+0200")).revision("2bc1af24477f").author("jasper.de.vries"),
+        new BlameLine().date(DateUtils.parseDateTime("2014-11-04T11:01:10+0100")).revision("d45dafac0d9b").author("julien.henry")));
+  }
+
   @Test
   public void testAddMissingLastLine() throws IOException {
     File source = new File(baseDir, "src/foo.xoo");
@@ -199,4 +281,959 @@ public class MercurialBlameCommandTest {
         .author("john.something@sonarsource.com")));
   }
 
+  @Test
+  public void shouldBlameFilesByBatch() throws IOException {
+    // Repository root is the parent of the module
+    File root = temp.newFolder();
+    new File(root, ".hg").mkdir();
+    baseDir = new File(root, "module");
+    fs = new DefaultFileSystem(baseDir);
+    when(input.fileSystem()).thenReturn(fs);
+    InputFile foo = createInputFile("src/foo.xoo", 2);
+    InputFile bar = createInputFile("src/bar.xoo", 1);
+    InputFile uncommitted = createInputFile("src/new.xoo", 1);
+
+    BlameOutput result = mock(BlameOutput.class);
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    List<List<String>> commands = Collections.synchronizedList(new ArrayList<>());
+    when(commandExecutor.execute(any(), any(), any(), anyLong())).thenAnswer((Answer<Integer>) invocation -> {
+      List<String> args = ((Command) invocation.getArguments()[0]).getArguments();
+      commands.add(args);
+      StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+      StreamConsumer errConsumer = (StreamConsumer) invocation.getArguments()[2];
+      if (args.contains("--template")) {
+        outConsumer.consumeLine("@module/src/bar.xoo");
+        outConsumer.consumeLine("2bc1af24477e 1378800469 -7200 jasper.de.vries@sonarsource.com");
+        outConsumer.consumeLine("@module/src/foo.xoo");
+        outConsumer.consumeLine("d45dafac0d9a 1415095270 -3600 julien.henry@sonarsource.com");
+        outConsumer.consumeLine("d45dafac0d9b 1415095270 -3600 julien.henry");
+        errConsumer.consumeLine("src/new.xoo: no such file in rev 000000000000");
+        return 1;
+      }
+      errConsumer.consumeLine("abandon : src/new.xoo: no such file in rev 000000000000");
+      return 255;
+    });
+
+    when(input.filesToBlame()).thenReturn(Arrays.asList(foo, bar, uncommitted));
+    MapSettings settings = new MapSettings();
+    settings.setProperty(MercurialBlameCommand.BATCH_SIZE_KEY, 10);
+    new MercurialBlameCommand(commandExecutor, settings).blame(input, result);
+
+    verify(result).blameResult(foo,
+      Arrays.asList(new BlameLine().date(DateUtils.parseDateTime("2014-11-04T11:01:10+0100")).revision("d45dafac0d9a").author("julien.henry@sonarsource.com"),
+        new BlameLine().date(DateUtils.parseDateTime("2014-11-04T11:01:10+0100")).revision("d45dafac0d9b").author("julien.henry")));
+    verify(result).blameResult(bar,
+      singletonList(new BlameLine().date(DateUtils.parseDateTime("2013-09-10T10:07:49+0200")).revision("2bc1af24477e").author("jasper.de.vries@sonarsource.com")));
+    assertThat(commands).hasSize(2);
+    assertThat(commands.get(0)).containsExactly("blame", "-w", "--template", MercurialBlameConsumer.TEMPLATE, "--", "src/foo.xoo", "src/bar.xoo", "src/new.xoo");
+    assertThat(commands.get(1)).containsExactly("blame", "-w", "-v", "--user", "--date", "--changeset", "--", "src/new.xoo");
+  }
+
+  @Test
+  public void shouldMatchBlamedFilesOfBatchByTheirPathInTheRepository() throws IOException {
+    InputFile foo = createInputFile("src/foo.xoo", 1);
+    InputFile nested = createInputFile("module/src/foo.xoo", 1);
+    MercurialBatchBlameConsumer consumer = new MercurialBatchBlameConsumer(Arrays.asList(foo, nested), "module/", new MercurialChangesetCache());
+    // Not a file of the module, even if its path ends like one
+    consumer.consumeLine("@src/foo.xoo");
+    consumer.consumeLine("2bc1af24477e 1378800469 -7200 jasper.de.vries@sonarsource.com");
+    consumer.consumeLine("@module/module/src/foo.xoo");
+    consumer.consumeLine("d45dafac0d9a 1415095270 -3600 julien.henry@sonarsource.com");
+    consumer.consumeLine("@module/src/foo.xoo");
+    consumer.consumeLine("d45dafac0d9b 1415095270 -3600 julien.henry");
+
+    Map<InputFile, List<BlameLine>> results = consumer.getResults();
+    assertThat(results).containsOnlyKeys(foo, nested);
+    assertThat(results.get(foo)).extracting(BlameLine::revision).containsExactly("d45dafac0d9b");
+    assertThat(results.get(nested)).extracting(BlameLine::revision).containsExactly("d45dafac0d9a");
+  }
+
+  @Test
+  public void shouldOnlyFailBrokenFileOfBatch() throws IOException {
+    InputFile foo = createInputFile("src/foo.xoo", 1);
+    InputFile bar = createInputFile("src/bar.xoo", 1);
+
+    BlameOutput result = mock(BlameOutput.class);
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    when(commandExecutor.execute(any(), any(), any(), anyLong())).thenAnswer((Answer<Integer>) invocation -> {
+      List<String> args = ((Command) invocation.getArguments()[0]).getArguments();
+      StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+      if (args.contains("--template")) {
+        outConsumer.consumeLine("@src/bar.xoo");
+        outConsumer.consumeLine("2bc1af24477e not-a-date -7200 jasper.de.vries@sonarsource.com");
+        outConsumer.consumeLine("@src/foo.xoo");
+        outConsumer.consumeLine("d45dafac0d9a 1415095270 -3600 julien.henry@sonarsource.com");
+      } else {
+        outConsumer.consumeLine("Jasper de Vries <jasper.de.vries@sonarsource.com> 2bc1af24477e Tue Sep 10 10:07:49 2013 +0200: foo");
+      }
+      return 0;
+    });
+
+    when(input.filesToBlame()).thenReturn(Arrays.asList(foo, bar));
+    MapSettings settings = new MapSettings();
+    settings.setProperty(MercurialBlameCommand.BATCH_SIZE_KEY, 2);
+    new MercurialBlameCommand(commandExecutor, settings).blame(input, result);
+
+    verify(result).blameResult(foo,
+      singletonList(new BlameLine().date(DateUtils.parseDateTime("2014-11-04T11:01:10+0100")).revision("d45dafac0d9a").author("julien.henry@sonarsource.com")));
+    verify(result).blameResult(bar,
+      singletonList(new BlameLine().date(DateUtils.parseDateTime("2013-09-10T10:07:49+0200")).revision("2bc1af24477e").author("jasper.de.vries@sonarsource.com")));
+  }
+
+  @Test
+  public void shouldBlameIgnoringWhitespacesOnlyFilesWithWhitespaceChanges() throws IOException {
+    InputFile foo = createInputFile("src/foo.xoo", 1);
+    InputFile bar = createInputFile("src/bar.xoo", 1);
+
+    BlameOutput result = mock(BlameOutput.class);
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    List<List<String>> commands = Collections.synchronizedList(new ArrayList<>());
+    when(commandExecutor.execute(any(), any(), any(), anyLong())).thenAnswer((Answer<Integer>) invocation -> {
+      List<String> args = ((Command) invocation.getArguments()[0]).getArguments();
+      commands.add(args);
+      StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+      if ("log".equals(args.get(0))) {
+        // foo.xoo was reindented, a line of bar.xoo was moved
+        Arrays.asList("diff --git a/src/foo.xoo b/src/foo.xoo", "--- a/src/foo.xoo", "+++ b/src/foo.xoo", "@@ -1,1 +1,1 @@", "-a", "+  a",
+          "diff --git a/src/bar.xoo b/src/bar.xoo", "--- a/src/bar.xoo", "+++ b/src/bar.xoo", "@@ -1,2 +1,2 @@", "-}", " b", "+}")
+          .forEach(outConsumer::consumeLine);
+        return 0;
+      }
+      for (String file : blamedFiles(args)) {
+        outConsumer.consumeLine("@" + file);
+        outConsumer.consumeLine(args.contains("-w") ? "d45dafac0d9a 1415095270 -3600 julien.henry@sonarsource.com"
+          : "2bc1af24477e 1378800469 -7200 jasper.de.vries@sonarsource.com");
+      }
+      return 0;
+    });
+
+    when(input.filesToBlame()).thenReturn(Arrays.asList(foo, bar));
+    MapSettings settings = new MapSettings();
+    settings.setProperty(MercurialBlameCommand.BATCH_SIZE_KEY, 2);
+    settings.setProperty(MercurialBlameCommand.ADAPTIVE_WHITESPACES_KEY, true);
+    new MercurialBlameCommand(commandExecutor, settings).blame(input, result);
+
+    verify(result).blameResult(foo,
+      singletonList(new BlameLine().date(DateUtils.parseDateTime("2014-11-04T11:01:10+0100")).revision("d45dafac0d9a").author("julien.henry@sonarsource.com")));
+    verify(result).blameResult(bar,
+      singletonList(new BlameLine().date(DateUtils.parseDateTime("2013-09-10T10:07:49+0200")).revision("2bc1af24477e").author("jasper.de.vries@sonarsource.com")));
+    assertThat(commands).hasSize(3);
+    assertThat(commands.get(0)).containsExactly("blame", "--template", MercurialBlameConsumer.TEMPLATE, "--", "src/foo.xoo", "src/bar.xoo");
+    assertThat(commands.get(1)).containsSubsequence("log", "--follow", "--patch", "--git");
+    assertThat(blamedFiles(commands.get(1))).containsOnly("src/foo.xoo", "src/bar.xoo");
+    assertThat(commands.get(2)).containsExactly("blame", "-w", "--template", MercurialBlameConsumer.TEMPLATE, "--", "src/foo.xoo");
+  }
+
+  @Test
+  public void shouldCheckWhitespaceChangesOnceBeforeBlamingFilesOneByOne() throws IOException {
+    InputFile foo = createInputFile("src/foo.xoo", 1);
+    InputFile bar = createInputFile("src/bar.xoo", 1);
+    InputFile baz = createInputFile("src/baz.xoo", 1);
+
+    BlameOutput result = mock(BlameOutput.class);
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    List<List<String>> commands = Collections.synchronizedList(new ArrayList<>());
+    when(commandExecutor.execute(any(), any(), any(), anyLong())).thenAnswer((Answer<Integer>) invocation -> {
+      List<String> args = ((Command) invocation.getArguments()[0]).getArguments();
+      commands.add(args);
+      StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+      if ("log".equals(args.get(0))) {
+        // Only foo.xoo was reindented
+        Arrays.asList("diff --git a/src/foo.xoo b/src/foo.xoo", "--- a/src/foo.xoo", "+++ b/src/foo.xoo", "@@ -1,1 +1,1 @@", "-a", "+  a",
+          "diff --git a/src/bar.xoo b/src/bar.xoo", "--- a/src/bar.xoo", "+++ b/src/bar.xoo", "@@ -1,1 +1,1 @@", "-b", "+c")
+          .forEach(outConsumer::consumeLine);
+        return 0;
+      }
+      outConsumer.consumeLine(args.contains("-w") ? "d45dafac0d9a 1415095270 -3600 julien.henry@sonarsource.com"
+        : "2bc1af24477e 1378800469 -7200 jasper.de.vries@sonarsource.com");
+      return 0;
+    });
+
+    when(input.filesToBlame()).thenReturn(Arrays.asList(foo, bar, baz));
+    MapSettings settings = new MapSettings();
+    settings.setProperty(MercurialBlameCommand.TEMPLATE_KEY, true);
+    settings.setProperty(MercurialBlameCommand.ADAPTIVE_WHITESPACES_KEY, true);
+    new MercurialBlameCommand(commandExecutor, settings).blame(input, result);
+
+    verify(result).blameResult(foo,
+      singletonList(new BlameLine().date(DateUtils.parseDateTime("2014-11-04T11:01:10+0100")).revision("d45dafac0d9a").author("julien.henry@sonarsource.com")));
+    verify(result).blameResult(bar,
+      singletonList(new BlameLine().date(DateUtils.parseDateTime("2013-09-10T10:07:49+0200")).revision("2bc1af24477e").author("jasper.de.vries@sonarsource.com")));
+    verify(result).blameResult(baz,
+      singletonList(new BlameLine().date(DateUtils.parseDateTime("2013-09-10T10:07:49+0200")).revision("2bc1af24477e").author("jasper.de.vries@sonarsource.com")));
+    // One hg log for all the files, then a single blame per file, against one blame -w per file without adaptive mode
+    assertThat(commands).hasSize(4);
+    assertThat(commands.get(0)).containsSubsequence("log", "--follow", "--patch", "--git");
+    assertThat(blamedFiles(commands.get(0))).containsOnly("src/foo.xoo", "src/bar.xoo", "src/baz.xoo");
+    assertThat(commands.subList(1, 4)).filteredOn(args -> "blame".equals(args.get(0))).hasSize(3);
+    assertThat(commands.subList(1, 4)).filteredOn(args -> args.contains("-w")).containsOnly(
+      Arrays.asList("blame", "-w", "--template", MercurialBlameConsumer.TEMPLATE, "--", "src/foo.xoo"));
+  }
+
+  @Test
+  public void shouldNotBlameFilesTimingOut() throws IOException {
+    InputFile foo = createInputFile("src/foo.xoo", 1);
+    InputFile bar = createInputFile("src/bar.xoo", 1);
+
+    BlameOutput result = mock(BlameOutput.class);
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    List<Long> timeouts = Collections.synchronizedList(new ArrayList<>());
+    when(commandExecutor.execute(any(), any(), any(), anyLong())).thenAnswer((Answer<Integer>) invocation -> {
+      Command cl = (Command) invocation.getArguments()[0];
+      timeouts.add((Long) invocation.getArguments()[3]);
+      if (blamedFiles(cl.getArguments()).contains("src/foo.xoo")) {
+        throw new TimeoutException(cl, "Timeout exceeded: " + invocation.getArguments()[3] + " ms", null);
+      }
+      ((StreamConsumer) invocation.getArguments()[1]).consumeLine("2bc1af24477e 1378800469 -7200 jasper.de.vries@sonarsource.com");
+      return 0;
+    });
+
+    when(input.filesToBlame()).thenReturn(Arrays.asList(foo, bar));
+    MapSettings settings = new MapSettings();
+    settings.setProperty(MercurialBlameCommand.TEMPLATE_KEY, true);
+    settings.setProperty(MercurialBlameCommand.BATCH_SIZE_KEY, 2);
+    settings.setProperty(MercurialBlameCommand.TIMEOUT_KEY, 5);
+    new MercurialBlameCommand(commandExecutor, settings).blame(input, result);
+
+    verify(result).blameResult(bar,
+      singletonList(new BlameLine().date(DateUtils.parseDateTime("2013-09-10T10:07:49+0200")).revision("2bc1af24477e").author("jasper.de.vries@sonarsource.com")));
+    verify(result, never()).blameResult(eq(foo), any());
+    // The batch first, then each file alone
+    assertThat(timeouts).containsExactly(10_000L, 5_000L, 5_000L);
+  }
+
+  @Test
+  public void shouldNotBlameFilesAfterGlobalTimeout() throws IOException {
+    InputFile foo = createInputFile("src/foo.xoo", 1);
+    InputFile bar = createInputFile("src/bar.xoo", 1);
+
+    BlameOutput result = mock(BlameOutput.class);
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    List<Long> timeouts = Collections.synchronizedList(new ArrayList<>());
+    when(commandExecutor.execute(any(), any(), any(), anyLong())).thenAnswer((Answer<Integer>) invocation -> {
+      timeouts.add((Long) invocation.getArguments()[3]);
+      Thread.sleep(1_100);
+      ((StreamConsumer) invocation.getArguments()[1]).consumeLine("2bc1af24477e 1378800469 -7200 jasper.de.vries@sonarsource.com");
+      return 0;
+    });
+
+    when(input.filesToBlame()).thenReturn(Arrays.asList(foo, bar));
+    MapSettings settings = new MapSettings();
+    settings.setProperty(MercurialBlameCommand.TEMPLATE_KEY, true);
+    settings.setProperty(MercurialBlameCommand.THREADS_KEY, 1);
+    settings.setProperty(MercurialBlameCommand.SCHEDULING_KEY, MercurialBlameCommand.INPUT_ORDER);
+    settings.setProperty(MercurialBlameCommand.GLOBAL_TIMEOUT_KEY, 1);
+    new MercurialBlameCommand(commandExecutor, settings).blame(input, result);
+
+    verify(result).blameResult(eq(foo), any());
+    verify(result, never()).blameResult(eq(bar), any());
+    assertThat(timeouts).hasSize(1);
+    assertThat(timeouts.get(0)).isBetween(1L, 1_000L);
+  }
+
+  @Test
+  public void shouldFailOnUnrecognizedTemplateOutput() throws IOException {
+    InputFile inputFile = createInputFile("src/foo.xoo", 1);
+
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    when(commandExecutor.execute(any(), any(), any(), anyLong())).thenAnswer((Answer<Integer>) invocation -> {
+      StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+      outConsumer.consumeLine("Julien Henry <julien.henry@sonarsource.com> d45dafac0d9a Tue Nov 04 11:01:10 2014 +0100: foo");
+      return 0;
+    });
+    when(input.filesToBlame()).thenReturn(singletonList(inputFile));
+
+    MapSettings settings = new MapSettings();
+    settings.setProperty(MercurialBlameCommand.TEMPLATE_KEY, true);
+
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("Unable to blame file src/foo.xoo. Unrecognized blame info at line 1");
+    new MercurialBlameCommand(commandExecutor, settings).blame(input, mock(BlameOutput.class));
+  }
+
+  @Test
+  public void shouldShareChangesetsBetweenFiles() throws IOException {
+    InputFile foo = createInputFile("src/foo.xoo", 2);
+    InputFile bar = createInputFile("src/bar.xoo", 1);
+
+    BlameOutput result = mock(BlameOutput.class);
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    when(commandExecutor.execute(any(), any(), any(), anyLong())).thenAnswer((Answer<Integer>) invocation -> {
+      StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+      outConsumer.consumeLine("d45dafac0d9a 1415095270 -3600 julien.henry@sonarsource.com");
+      outConsumer.consumeLine("d45dafac0d9a 1415095270 -3600 julien.henry@sonarsource.com");
+      return 0;
+    });
+    when(input.filesToBlame()).thenReturn(Arrays.asList(foo, bar));
+    MapSettings settings = new MapSettings();
+    settings.setProperty(MercurialBlameCommand.TEMPLATE_KEY, true);
+    new MercurialBlameCommand(commandExecutor, settings).blame(input, result);
+
+    ArgumentCaptor<List> fooLines = ArgumentCaptor.forClass(List.class);
+    ArgumentCaptor<List> barLines = ArgumentCaptor.forClass(List.class);
+    verify(result).blameResult(eq(foo), fooLines.capture());
+    verify(result).blameResult(eq(bar), barLines.capture());
+    BlameLine first = (BlameLine) fooLines.getValue().get(0);
+    for (BlameLine line : Arrays.asList((BlameLine) fooLines.getValue().get(1), (BlameLine) barLines.getValue().get(0))) {
+      assertThat(line).isEqualTo(first);
+      assertThat(line.revision()).isSameAs(first.revision());
+      assertThat(line.author()).isSameAs(first.author());
+      assertThat(line.date()).isSameAs(first.date());
+    }
+  }
+
+  @Test
+  public void shouldResolveChangesetsOnce() throws IOException {
+    InputFile foo = createInputFile("src/foo.xoo", 3);
+    InputFile bar = createInputFile("src/bar.xoo", 1);
+
+    BlameOutput result = mock(BlameOutput.class);
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    List<List<String>> commands = Collections.synchronizedList(new ArrayList<>());
+    when(commandExecutor.execute(any(), any(), any(), anyLong())).thenAnswer((Answer<Integer>) invocation -> {
+      List<String> args = ((Command) invocation.getArguments()[0]).getArguments();
+      commands.add(args);
+      StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+      if ("log".equals(args.get(0))) {
+        outConsumer.consumeLine("d45dafac0d9a 1415095270 -3600 julien.henry@sonarsource.com");
+        outConsumer.consumeLine("2bc1af24477e 1378800469 -7200 jasper.de.vries@sonarsource.com");
+      } else {
+        outConsumer.consumeLine("@src/foo.xoo");
+        outConsumer.consumeLine("d45dafac0d9a");
+        outConsumer.consumeLine("2bc1af24477e");
+        outConsumer.consumeLine("d45dafac0d9a");
+        outConsumer.consumeLine("@src/bar.xoo");
+        outConsumer.consumeLine("2bc1af24477e");
+      }
+      return 0;
+    });
+
+    when(input.filesToBlame()).thenReturn(Arrays.asList(foo, bar));
+    MapSettings settings = new MapSettings();
+    settings.setProperty(MercurialBlameCommand.BATCH_SIZE_KEY, 2);
+    settings.setProperty(MercurialBlameCommand.RESOLVE_CHANGESETS_KEY, true);
+    new MercurialBlameCommand(commandExecutor, settings).blame(input, result);
+
+    BlameLine julien = new BlameLine().date(DateUtils.parseDateTime("2014-11-04T11:01:10+0100")).revision("d45dafac0d9a").author("julien.henry@sonarsource.com");
+    BlameLine jasper = new BlameLine().date(DateUtils.parseDateTime("2013-09-10T10:07:49+0200")).revision("2bc1af24477e").author("jasper.de.vries@sonarsource.com");
+    verify(result).blameResult(foo, Arrays.asList(julien, jasper, julien));
+    verify(result).blameResult(bar, singletonList(jasper));
+    assertThat(commands).hasSize(2);
+    assertThat(commands.get(0)).containsExactly("blame", "-w", "--template", MercurialBlameConsumer.NODE_TEMPLATE, "--", "src/foo.xoo", "src/bar.xoo");
+    assertThat(commands.get(1)).containsExactly("log", "--rev", "d45dafac0d9a", "--rev", "2bc1af24477e", "--template", MercurialBlameConsumer.CHANGESET_TEMPLATE);
+  }
+
+  @Test
+  public void shouldNotBlameFilesWithUnresolvedChangesets() throws IOException {
+    InputFile foo = createInputFile("src/foo.xoo", 2);
+    InputFile bar = createInputFile("src/bar.xoo", 1);
+
+    BlameOutput result = mock(BlameOutput.class);
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    List<List<String>> commands = Collections.synchronizedList(new ArrayList<>());
+    when(commandExecutor.execute(any(), any(), any(), anyLong())).thenAnswer((Answer<Integer>) invocation -> {
+      List<String> args = ((Command) invocation.getArguments()[0]).getArguments();
+      commands.add(args);
+      StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+      if ("log".equals(args.get(0))) {
+        outConsumer.consumeLine("2bc1af24477e 1378800469 -7200 jasper.de.vries@sonarsource.com");
+        ((StreamConsumer) invocation.getArguments()[2]).consumeLine("abort: unknown revision 'd45dafac0d9a'!");
+        return 255;
+      }
+      outConsumer.consumeLine("@src/foo.xoo");
+      outConsumer.consumeLine("d45dafac0d9a");
+      outConsumer.consumeLine("2bc1af24477e");
+      outConsumer.consumeLine("@src/bar.xoo");
+      outConsumer.consumeLine("2bc1af24477e");
+      return 0;
+    });
+
+    when(input.filesToBlame()).thenReturn(Arrays.asList(foo, bar));
+    MapSettings settings = new MapSettings();
+    settings.setProperty(MercurialBlameCommand.BATCH_SIZE_KEY, 2);
+    settings.setProperty(MercurialBlameCommand.RESOLVE_CHANGESETS_KEY, true);
+    new MercurialBlameCommand(commandExecutor, settings).blame(input, result);
+
+    verify(result).blameResult(bar,
+      singletonList(new BlameLine().date(DateUtils.parseDateTime("2013-09-10T10:07:49+0200")).revision("2bc1af24477e").author("jasper.de.vries@sonarsource.com")));
+    verify(result, never()).blameResult(eq(foo), any());
+    // Not blamed again on its own
+    assertThat(commands).hasSize(2);
+  }
+
+  @Test
+  public void shouldReuseCachedBlameOfUnchangedFiles() throws IOException {
+    new File(baseDir, ".hg").mkdir();
+    fs.setWorkDir(temp.newFolder().toPath());
+    InputFile foo = createInputFile("src/foo.xoo", 2);
+    InputFile bar = createInputFile("src/bar.xoo", 1);
+
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    List<List<String>> commands = Collections.synchronizedList(new ArrayList<>());
+    List<String> modified = new ArrayList<>();
+    when(commandExecutor.execute(any(), any(), any(), anyLong())).thenAnswer((Answer<Integer>) invocation -> {
+      List<String> args = ((Command) invocation.getArguments()[0]).getArguments();
+      commands.add(args);
+      StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+      if ("id".equals(args.get(0))) {
+        outConsumer.consumeLine(modified.isEmpty() ? "d45dafac0d9a" : "d45dafac0d9a+");
+      } else if ("manifest".equals(args.get(0))) {
+        outConsumer.consumeLine("1111111111111111111111111111111111111111 src/foo.xoo");
+        outConsumer.consumeLine("2222222222222222222222222222222222222222 src/bar.xoo");
+      } else if ("status".equals(args.get(0))) {
+        modified.forEach(outConsumer::consumeLine);
+      } else if (blamedFiles(args).contains("src/foo.xoo")) {
+        outConsumer.consumeLine("@src/foo.xoo");
+        outConsumer.consumeLine("d45dafac0d9a 1415095270 -3600 julien.henry@sonarsource.com");
+      } else {
+        outConsumer.consumeLine("@src/bar.xoo");
+        outConsumer.consumeLine("2bc1af24477e 1378800469 -7200 jasper.de.vries@sonarsource.com");
+      }
+      return 0;
+    });
+    when(input.filesToBlame()).thenReturn(Arrays.asList(foo, bar));
+    MapSettings settings = new MapSettings();
+    settings.setProperty(MercurialBlameCommand.TEMPLATE_KEY, true);
+    settings.setProperty(MercurialBlameCommand.CACHE_KEY, true);
+
+    new MercurialBlameCommand(commandExecutor, settings).blame(input, mock(BlameOutput.class));
+    assertThat(commands).extracting(args -> args.get(0)).containsOnly("id", "manifest", "blame").hasSize(4);
+
+    // Second analysis with bar.xoo modified in the working directory
+    commands.clear();
+    modified.add("M src/bar.xoo");
+    BlameOutput result = mock(BlameOutput.class);
+    new MercurialBlameCommand(commandExecutor, settings).blame(input, result);
+
+    BlameLine julien = new BlameLine().date(DateUtils.parseDateTime("2014-11-04T11:01:10+0100")).revision("d45dafac0d9a").author("julien.henry@sonarsource.com");
+    BlameLine jasper = new BlameLine().date(DateUtils.parseDateTime("2013-09-10T10:07:49+0200")).revision("2bc1af24477e").author("jasper.de.vries@sonarsource.com");
+    // Missing last line is still added to the cached blame
+    verify(result).blameResult(foo, Arrays.asList(julien, julien));
+    verify(result).blameResult(bar, singletonList(jasper));
+    assertThat(commands).extracting(args -> args.get(0)).containsExactly("id", "status", "manifest", "blame");
+    assertThat(blamedFiles(commands.get(3))).containsExactly("src/bar.xoo");
+  }
+
+  @Test
+  public void shouldNotCacheBlameGuessedWithoutIgnoringWhitespaces() throws IOException {
+    new File(baseDir, ".hg").mkdir();
+    fs.setWorkDir(temp.newFolder().toPath());
+    InputFile foo = createInputFile("src/foo.xoo", 1);
+    InputFile bar = createInputFile("src/bar.xoo", 1);
+
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    List<List<String>> commands = Collections.synchronizedList(new ArrayList<>());
+    when(commandExecutor.execute(any(), any(), any(), anyLong())).thenAnswer((Answer<Integer>) invocation -> {
+      List<String> args = ((Command) invocation.getArguments()[0]).getArguments();
+      commands.add(args);
+      StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+      if ("id".equals(args.get(0))) {
+        outConsumer.consumeLine("d45dafac0d9a");
+      } else if ("manifest".equals(args.get(0))) {
+        outConsumer.consumeLine("1111111111111111111111111111111111111111 src/foo.xoo");
+        outConsumer.consumeLine("2222222222222222222222222222222222222222 src/bar.xoo");
+      } else if ("log".equals(args.get(0))) {
+        // Only foo.xoo was reindented
+        if (blamedFiles(args).contains("src/foo.xoo")) {
+          Arrays.asList("diff --git a/src/foo.xoo b/src/foo.xoo", "--- a/src/foo.xoo", "+++ b/src/foo.xoo", "@@ -1,1 +1,1 @@", "-a", "+  a")
+            .forEach(outConsumer::consumeLine);
+        }
+      } else {
+        outConsumer.consumeLine("d45dafac0d9a 1415095270 -3600 julien.henry@sonarsource.com");
+      }
+      return 0;
+    });
+    when(input.filesToBlame()).thenReturn(Arrays.asList(foo, bar));
+    MapSettings settings = new MapSettings();
+    settings.setProperty(MercurialBlameCommand.TEMPLATE_KEY, true);
+    settings.setProperty(MercurialBlameCommand.CACHE_KEY, true);
+    settings.setProperty(MercurialBlameCommand.ADAPTIVE_WHITESPACES_KEY, true);
+
+    new MercurialBlameCommand(commandExecutor, settings).blame(input, mock(BlameOutput.class));
+    assertThat(commands).extracting(args -> args.get(0)).containsOnly("id", "manifest", "log", "blame").hasSize(5);
+
+    // Only foo.xoo was blamed with -w, bar.xoo is blamed again
+    commands.clear();
+    new MercurialBlameCommand(commandExecutor, settings).blame(input, mock(BlameOutput.class));
+    assertThat(commands).extracting(args -> args.get(0)).containsExactly("id", "manifest", "log", "blame");
+    assertThat(blamedFiles(commands.get(3))).containsExactly("src/bar.xoo");
+    assertThat(commands.get(3)).doesNotContain("-w");
+
+    // The cache written in adaptive mode is not read when always ignoring whitespaces
+    commands.clear();
+    settings.setProperty(MercurialBlameCommand.ADAPTIVE_WHITESPACES_KEY, false);
+    new MercurialBlameCommand(commandExecutor, settings).blame(input, mock(BlameOutput.class));
+    assertThat(commands).extracting(args -> args.get(0)).containsOnly("id", "manifest", "blame").hasSize(4);
+  }
+
+  @Test
+  public void shouldShareBlameBetweenAnalyses() throws IOException {
+    new File(baseDir, ".hg").mkdir();
+    InputFile foo = createInputFile("src/foo.xoo", 1);
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    List<List<String>> commands = Collections.synchronizedList(new ArrayList<>());
+    when(commandExecutor.execute(any(), any(), any(), anyLong())).thenAnswer((Answer<Integer>) invocation -> {
+      List<String> args = ((Command) invocation.getArguments()[0]).getArguments();
+      commands.add(args);
+      StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+      if ("id".equals(args.get(0))) {
+        outConsumer.consumeLine("d45dafac0d9a");
+      } else if ("manifest".equals(args.get(0))) {
+        outConsumer.consumeLine("1111111111111111111111111111111111111111 src/foo.xoo");
+      } else {
+        outConsumer.consumeLine("@src/foo.xoo");
+        outConsumer.consumeLine("d45dafac0d9a 1415095270 -3600 julien.henry@sonarsource.com");
+      }
+      return 0;
+    });
+    when(input.filesToBlame()).thenReturn(singletonList(foo));
+    MapSettings settings = new MapSettings();
+    settings.setProperty(MercurialBlameCommand.TEMPLATE_KEY, true);
+    settings.setProperty(MercurialBlameCommand.SHARED_CACHE_PATH_KEY, temp.newFolder().getAbsolutePath());
+
+    fs.setWorkDir(temp.newFolder().toPath());
+    new MercurialBlameCommand(commandExecutor, settings).blame(input, mock(BlameOutput.class));
+    assertThat(commands).extracting(args -> args.get(0)).containsExactly("id", "manifest", "blame");
+
+    // Analysis of another clone, with its own work directory
+    commands.clear();
+    fs.setWorkDir(temp.newFolder().toPath());
+    BlameOutput result = mock(BlameOutput.class);
+    new MercurialBlameCommand(commandExecutor, settings).blame(input, result);
+
+    BlameLine julien = new BlameLine().date(DateUtils.parseDateTime("2014-11-04T11:01:10+0100")).revision("d45dafac0d9a").author("julien.henry@sonarsource.com");
+    verify(result).blameResult(foo, singletonList(julien));
+    assertThat(commands).extracting(args -> args.get(0)).containsExactly("id", "manifest");
+  }
+
+  @Test
+  public void shouldReconcileBlameWithLocalChanges() throws IOException {
+    new File(baseDir, ".hg").mkdir();
+    InputFile foo = createInputFile("src/foo.xoo", 4);
+    File file = new File(baseDir, "src/foo.xoo");
+    FileUtils.write(file, "a\nx\nb\n", StandardCharsets.UTF_8);
+    file.setLastModified(DateUtils.parseDateTime("2018-01-31T12:00:00+0100").getTime());
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    List<String> commands = Collections.synchronizedList(new ArrayList<>());
+    when(commandExecutor.execute(any(), any(), any(), anyLong())).thenAnswer((Answer<Integer>) invocation -> {
+      List<String> args = ((Command) invocation.getArguments()[0]).getArguments();
+      commands.add(args.get(0));
+      StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+      if ("id".equals(args.get(0))) {
+        outConsumer.consumeLine("d45dafac0d9a+");
+      } else if ("status".equals(args.get(0))) {
+        outConsumer.consumeLine("M src/foo.xoo");
+      } else if ("cat".equals(args.get(0))) {
+        outConsumer.consumeLine("a");
+        outConsumer.consumeLine("b");
+      } else {
+        outConsumer.consumeLine("@src/foo.xoo");
+        outConsumer.consumeLine("d45dafac0d9a 1415095270 -3600 julien.henry@sonarsource.com");
+        outConsumer.consumeLine("2bc1af24477e 1378800469 -7200 jasper.de.vries@sonarsource.com");
+      }
+      return 0;
+    });
+    when(input.filesToBlame()).thenReturn(singletonList(foo));
+    BlameOutput result = mock(BlameOutput.class);
+    MapSettings settings = new MapSettings();
+    settings.setProperty(MercurialBlameCommand.TEMPLATE_KEY, true);
+    settings.setProperty(MercurialBlameCommand.RECONCILE_KEY, true);
+
+    new MercurialBlameCommand(commandExecutor, settings).blame(input, result);
+
+    BlameLine julien = new BlameLine().date(DateUtils.parseDateTime("2014-11-04T11:01:10+0100")).revision("d45dafac0d9a").author("julien.henry@sonarsource.com");
+    BlameLine jasper = new BlameLine().date(DateUtils.parseDateTime("2013-09-10T10:07:49+0200")).revision("2bc1af24477e").author("jasper.de.vries@sonarsource.com");
+    BlameLine uncommitted = new BlameLine().date(DateUtils.parseDateTime("2018-01-31T12:00:00+0100")).revision("d45dafac0d9a+");
+    // Last empty line
+    verify(result).blameResult(foo, Arrays.asList(julien, uncommitted, jasper, jasper));
+    assertThat(commands).containsExactly("id", "status", "blame", "cat");
+  }
+
+  @Test
+  public void shouldNotBlameUncommittedFiles() throws IOException {
+    // Module in a sub directory of the repository
+    new File(baseDir, ".hg").mkdir();
+    File moduleDir = new File(baseDir, "module");
+    fs = new DefaultFileSystem(moduleDir);
+    when(input.fileSystem()).thenReturn(fs);
+    baseDir = moduleDir;
+    InputFile added = createInputFile("src/added.xoo", 1);
+    InputFile unknown = createInputFile("src/unknown.xoo", 1);
+    InputFile modified = createInputFile("src/modified.xoo", 3);
+    InputFile clean = createInputFile("src/clean.xoo", 3);
+
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    List<List<String>> commands = Collections.synchronizedList(new ArrayList<>());
+    when(commandExecutor.execute(any(), any(), any(), anyLong())).thenAnswer((Answer<Integer>) invocation -> {
+      List<String> args = ((Command) invocation.getArguments()[0]).getArguments();
+      commands.add(args);
+      StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+      if ("id".equals(args.get(0))) {
+        outConsumer.consumeLine("d45dafac0d9a+");
+      } else if ("status".equals(args.get(0))) {
+        outConsumer.consumeLine("M module/src/modified.xoo");
+        outConsumer.consumeLine("A module/src/added.xoo");
+        outConsumer.consumeLine("? module/src/unknown.xoo");
+      } else {
+        outConsumer.consumeLine("@" + blamedFiles(args).get(0));
+        outConsumer.consumeLine("d45dafac0d9a 1415095270 -3600 julien.henry@sonarsource.com");
+        outConsumer.consumeLine("d45dafac0d9a 1415095270 -3600 julien.henry@sonarsource.com");
+      }
+      return 0;
+    });
+    when(input.filesToBlame()).thenReturn(Arrays.asList(added, unknown, modified, clean));
+    BlameOutput result = mock(BlameOutput.class);
+    MapSettings settings = new MapSettings();
+    settings.setProperty(MercurialBlameCommand.TEMPLATE_KEY, true);
+    settings.setProperty(MercurialBlameCommand.STATUS_KEY, true);
+    new MercurialBlameCommand(commandExecutor, settings).blame(input, result);
+
+    BlameLine julien = new BlameLine().date(DateUtils.parseDateTime("2014-11-04T11:01:10+0100")).revision("d45dafac0d9a").author("julien.henry@sonarsource.com");
+    verify(result).blameResult(added, Collections.emptyList());
+    verify(result).blameResult(unknown, Collections.emptyList());
+    // Missing line of a modified file is not the last empty line
+    verify(result).blameResult(modified, Arrays.asList(julien, julien));
+    verify(result).blameResult(clean, Arrays.asList(julien, julien, julien));
+    assertThat(commands).extracting(args -> args.get(0)).containsOnly("id", "status", "blame").hasSize(4);
+    assertThat(commands).filteredOn(args -> "blame".equals(args.get(0))).extracting(args -> blamedFiles(args).get(0))
+      .containsOnly("src/modified.xoo", "src/clean.xoo");
+  }
+
+  @Test
+  public void shouldReadStatusFromDirstate() throws IOException {
+    new File(baseDir, ".hg").mkdir();
+    File repositoryRoot = baseDir;
+    File moduleDir = new File(baseDir, "module");
+    fs = new DefaultFileSystem(moduleDir);
+    when(input.fileSystem()).thenReturn(fs);
+    baseDir = moduleDir;
+    InputFile clean = createInputFile("src/clean.xoo", 3);
+    InputFile modified = createInputFile("src/modified.xoo", 3);
+    InputFile touched = createInputFile("src/touched.xoo", 3);
+    InputFile added = createInputFile("src/added.xoo", 1);
+    InputFile unknown = createInputFile("src/unknown.xoo", 1);
+    long mtime = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) - 3600;
+    for (InputFile inputFile : Arrays.asList(clean, modified, added, unknown)) {
+      Files.setLastModifiedTime(inputFile.path(), FileTime.from(mtime, TimeUnit.SECONDS));
+    }
+    ByteArrayOutputStream dirstate = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(dirstate);
+    out.write(MercurialUtils.parseHex("d45dafac0d9a1b2c3d4e5f60718293a4b5c6d7e8"));
+    out.write(new byte[20]);
+    // "sample content" is 14 bytes long
+    for (String[] entry : new String[][] {{"n", "14", "clean"}, {"n", "20", "modified"}, {"n", "14", "touched"}, {"a", "0", "added"}}) {
+      byte[] name = ("module/src/" + entry[2] + ".xoo").getBytes(StandardCharsets.UTF_8);
+      out.writeByte(entry[0].charAt(0));
+      out.writeInt(0100644);
+      out.writeInt(Integer.parseInt(entry[1]));
+      out.writeInt((int) mtime);
+      out.writeInt(name.length);
+      out.write(name);
+    }
+    Files.write(new File(repositoryRoot, ".hg/dirstate").toPath(), dirstate.toByteArray());
+
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    List<List<String>> commands = Collections.synchronizedList(new ArrayList<>());
+    when(commandExecutor.execute(any(), any(), any(), anyLong())).thenAnswer((Answer<Integer>) invocation -> {
+      List<String> args = ((Command) invocation.getArguments()[0]).getArguments();
+      commands.add(args);
+      StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+      if ("status".equals(args.get(0))) {
+        outConsumer.consumeLine("M module/src/touched.xoo");
+      } else {
+        outConsumer.consumeLine("@" + blamedFiles(args).get(0));
+        outConsumer.consumeLine("d45dafac0d9a 1415095270 -3600 julien.henry@sonarsource.com");
+        outConsumer.consumeLine("d45dafac0d9a 1415095270 -3600 julien.henry@sonarsource.com");
+      }
+      return 0;
+    });
+    when(input.filesToBlame()).thenReturn(Arrays.asList(clean, modified, touched, added, unknown));
+    BlameOutput result = mock(BlameOutput.class);
+    MapSettings settings = new MapSettings();
+    settings.setProperty(MercurialBlameCommand.TEMPLATE_KEY, true);
+    settings.setProperty(MercurialBlameCommand.DIRSTATE_STATUS_KEY, true);
+    new MercurialBlameCommand(commandExecutor, settings).blame(input, result);
+
+    BlameLine julien = new BlameLine().date(DateUtils.parseDateTime("2014-11-04T11:01:10+0100")).revision("d45dafac0d9a").author("julien.henry@sonarsource.com");
+    verify(result).blameResult(added, Collections.emptyList());
+    verify(result).blameResult(unknown, Collections.emptyList());
+    // Missing line of a modified file is not the last empty line
+    verify(result).blameResult(modified, Arrays.asList(julien, julien));
+    verify(result).blameResult(touched, Arrays.asList(julien, julien));
+    verify(result).blameResult(clean, Arrays.asList(julien, julien, julien));
+    // Only the file whose modification time changed is checked by hg
+    assertThat(commands).filteredOn(args -> !"blame".equals(args.get(0))).containsExactly(
+      Arrays.asList("status", "--modified", "--added", "--removed", "--deleted", "--unknown", "--", "path:module/src/touched.xoo"));
+    assertThat(commands).filteredOn(args -> "blame".equals(args.get(0))).extracting(args -> blamedFiles(args).get(0))
+      .containsOnly("src/clean.xoo", "src/modified.xoo", "src/touched.xoo");
+  }
+
+  @Test
+  public void shouldBlameLargestFilesFirst() throws IOException {
+    InputFile small = createInputFile("src/small.xoo", 10);
+    InputFile large = createInputFile("src/large.xoo", 1000);
+    InputFile medium = createInputFile("src/medium.xoo", 100);
+
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    List<String> blamed = Collections.synchronizedList(new ArrayList<>());
+    when(commandExecutor.execute(any(), any(), any(), anyLong())).thenAnswer((Answer<Integer>) invocation -> {
+      blamed.addAll(blamedFiles(((Command) invocation.getArguments()[0]).getArguments()));
+      return 0;
+    });
+    when(input.filesToBlame()).thenReturn(Arrays.asList(small, large, medium));
+    MapSettings settings = new MapSettings();
+    settings.setProperty(MercurialBlameCommand.THREADS_KEY, 1);
+    new MercurialBlameCommand(commandExecutor, settings).blame(input, mock(BlameOutput.class));
+    assertThat(blamed).containsExactly("src/large.xoo", "src/medium.xoo", "src/small.xoo");
+
+    blamed.clear();
+    settings.setProperty(MercurialBlameCommand.SCHEDULING_KEY, MercurialBlameCommand.INPUT_ORDER);
+    new MercurialBlameCommand(commandExecutor, settings).blame(input, mock(BlameOutput.class));
+    assertThat(blamed).containsExactly("src/small.xoo", "src/large.xoo", "src/medium.xoo");
+  }
+
+  @Test
+  public void shouldWriteBlameReport() throws IOException {
+    fs.setWorkDir(temp.newFolder().toPath());
+    InputFile inputFile = createInputFile("src/foo.xoo", 1);
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    when(commandExecutor.execute(any(), any(), any(), anyLong())).thenAnswer((Answer<Integer>) invocation -> {
+      StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+      outConsumer.consumeLine("d45dafac0d9a 1415095270 -3600 julien.henry@sonarsource.com");
+      return 0;
+    });
+    when(input.filesToBlame()).thenReturn(singletonList(inputFile));
+    MapSettings settings = new MapSettings();
+    settings.setProperty(MercurialBlameCommand.TEMPLATE_KEY, true);
+    settings.setProperty(MercurialBlameCommand.REPORT_KEY, true);
+
+    new MercurialBlameCommand(commandExecutor, settings).blame(input, mock(BlameOutput.class));
+
+    String report = FileUtils.readFileToString(new File(fs.workDir(), "mercurial/blame-report.json"));
+    assertThat(report).contains("\"files\": 1,", "\"processes\": 1,", "\"bytes\": 59,", "{\"description\": \"src/foo.xoo\", \"engine\": \"hg\"");
+  }
+
+  @Test
+  public void shouldOnlyLogTheBreakdownOfTimingsWhenReportIsEnabled() throws IOException {
+    MercurialRepositoryBuilder builder = new MercurialRepositoryBuilder(baseDir);
+    builder.commit("Julien Henry <julien.henry@sonarsource.com>", 1415095270, singletonMap("src/foo.xoo", "a\nb\n"));
+    builder.write();
+    when(input.filesToBlame()).thenReturn(singletonList(createInputFile("src/foo.xoo", 2)));
+    MapSettings settings = new MapSettings();
+    settings.setProperty(MercurialBlameCommand.ENGINE_KEY, MercurialBlameCommand.JAVA_ENGINE);
+
+    new MercurialBlameCommand(mock(CommandExecutor.class), settings).blame(input, mock(BlameOutput.class));
+    assertThat(logTester.logs(LoggerLevel.INFO)).anyMatch(log -> log.startsWith("Blame of 1 files"))
+      .noneMatch(log -> log.startsWith("Blame task time:") || log.startsWith("Slowest blame tasks:"));
+    assertThat(logTester.logs(LoggerLevel.DEBUG)).anyMatch(log -> log.startsWith("Blame task time:")).anyMatch(log -> log.startsWith("Slowest blame tasks:"));
+
+    logTester.clear();
+    fs.setWorkDir(temp.newFolder().toPath());
+    settings.setProperty(MercurialBlameCommand.REPORT_KEY, true);
+    new MercurialBlameCommand(mock(CommandExecutor.class), settings).blame(input, mock(BlameOutput.class));
+    assertThat(logTester.logs(LoggerLevel.INFO)).anyMatch(log -> log.startsWith("Blame task time:")).anyMatch(log -> log.startsWith("Slowest blame tasks:"));
+  }
+
+  @Test
+  public void shouldBlameByReadingTheRepository() throws IOException {
+    MercurialRepositoryBuilder builder = new MercurialRepositoryBuilder(baseDir);
+    builder.commit("Julien Henry <julien.henry@sonarsource.com>", 1415095270, singletonMap("src/foo.xoo", "a\nb\n"));
+    builder.commit("jasper.de.vries", 1415095280, singletonMap("src/foo.xoo", "a\nB\n"));
+    builder.write();
+    InputFile inputFile = createInputFile("src/foo.xoo", 2);
+    when(input.filesToBlame()).thenReturn(singletonList(inputFile));
+    BlameOutput result = mock(BlameOutput.class);
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    MapSettings settings = new MapSettings();
+    settings.setProperty(MercurialBlameCommand.ENGINE_KEY, MercurialBlameCommand.JAVA_ENGINE);
+
+    new MercurialBlameCommand(commandExecutor, settings).blame(input, result);
+
+    verify(commandExecutor, never()).execute(any(), any(), any(), anyLong());
+    verify(result).blameResult(inputFile,
+      Arrays.asList(new BlameLine().date(DateUtils.parseDateTime("2014-11-04T11:01:10+0100")).revision(builder.node(0).substring(0, 12)).author("julien.henry@sonarsource.com"),
+        new BlameLine().date(DateUtils.parseDateTime("2014-11-04T11:01:20+0100")).revision(builder.node(1).substring(0, 12)).author("jasper.de.vries")));
+  }
+
+  @Test
+  public void shouldNotShareCachedBlameBetweenEngines() throws IOException {
+    MercurialRepositoryBuilder builder = new MercurialRepositoryBuilder(baseDir);
+    builder.commit("Julien Henry <julien.henry@sonarsource.com>", 1415095270, singletonMap("src/foo.xoo", "a\nb\n"));
+    builder.write();
+    fs.setWorkDir(temp.newFolder().toPath());
+    InputFile inputFile = createInputFile("src/foo.xoo", 2);
+    when(input.filesToBlame()).thenReturn(singletonList(inputFile));
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    List<List<String>> commands = Collections.synchronizedList(new ArrayList<>());
+    when(commandExecutor.execute(any(), any(), any(), anyLong())).thenAnswer((Answer<Integer>) invocation -> {
+      List<String> args = ((Command) invocation.getArguments()[0]).getArguments();
+      commands.add(args);
+      StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+      if ("id".equals(args.get(0))) {
+        outConsumer.consumeLine(builder.node(0).substring(0, 12));
+      } else if ("manifest".equals(args.get(0))) {
+        outConsumer.consumeLine("1111111111111111111111111111111111111111 src/foo.xoo");
+      } else {
+        outConsumer.consumeLine("@src/foo.xoo");
+        outConsumer.consumeLine(builder.node(0).substring(0, 12) + " 1415095270 -3600 julien.henry@sonarsource.com");
+        outConsumer.consumeLine(builder.node(0).substring(0, 12) + " 1415095270 -3600 julien.henry@sonarsource.com");
+      }
+      return 0;
+    });
+    MapSettings settings = new MapSettings();
+    settings.setProperty(MercurialBlameCommand.TEMPLATE_KEY, true);
+    settings.setProperty(MercurialBlameCommand.CACHE_KEY, true);
+    settings.setProperty(MercurialBlameCommand.ENGINE_KEY, MercurialBlameCommand.JAVA_ENGINE);
+
+    new MercurialBlameCommand(commandExecutor, settings).blame(input, mock(BlameOutput.class));
+    assertThat(commands).extracting(args -> args.get(0)).containsExactly("id", "manifest");
+
+    // The blame cached by the java engine is not used by the hg command
+    commands.clear();
+    settings.removeProperty(MercurialBlameCommand.ENGINE_KEY);
+    new MercurialBlameCommand(commandExecutor, settings).blame(input, mock(BlameOutput.class));
+    assertThat(commands).extracting(args -> args.get(0)).containsExactly("id", "manifest", "blame");
+  }
+
+  @Test
+  public void shouldShareChangesetsReadFromTheRepositoryWithTheOnesFoundByHg() throws IOException {
+    MercurialRepositoryBuilder builder = new MercurialRepositoryBuilder(baseDir);
+    builder.commit("Julien Henry <julien.henry@sonarsource.com>", 1415095270, singletonMap("src/foo.xoo", "a\nb\n"));
+    builder.write();
+    MercurialChangesetCache changesets = new MercurialChangesetCache();
+    MercurialBlameConsumer consumer = MercurialBlameConsumer.forTemplate("src/bar.xoo", changesets, 1);
+    consumer.consumeLine(builder.node(0).substring(0, 12) + " 1415095270 -3600 julien.henry@sonarsource.com");
+
+    try (MercurialRepository repository = MercurialRepository.open(baseDir)) {
+      MercurialFileBlame blame = MercurialBlameCommand.toBlame(repository, changesets, new int[] {0, 0});
+      assertThat(blame.changeset(0)).isSameAs(consumer.getBlame().changeset(0));
+    }
+    assertThat(changesets.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldBlameAllFilesInASinglePass() throws IOException {
+    MercurialRepositoryBuilder builder = new MercurialRepositoryBuilder(baseDir);
+    builder.commit("Julien Henry <julien.henry@sonarsource.com>", 1415095270, singletonMap("src/foo.xoo", "a\nb\n"));
+    Map<String, String> changes = new HashMap<>();
+    changes.put("src/foo.xoo", "a\nB\n");
+    changes.put("src/bar.xoo", "c\n");
+    builder.commit("jasper.de.vries", 1415095280, changes);
+    builder.write();
+    InputFile foo = createInputFile("src/foo.xoo", 2);
+    InputFile bar = createInputFile("src/bar.xoo", 1);
+    InputFile uncommitted = createInputFile("src/new.xoo", 1);
+    when(input.filesToBlame()).thenReturn(Arrays.asList(foo, bar, uncommitted));
+    File workDir = temp.newFolder();
+    fs.setWorkDir(workDir.toPath());
+    BlameOutput result = mock(BlameOutput.class);
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    MapSettings settings = new MapSettings();
+    settings.setProperty(MercurialBlameCommand.SINGLE_PASS_KEY, true);
+    // Every annotation is written to disk
+    settings.setProperty(MercurialBlameCommand.SINGLE_PASS_MAX_MEMORY_KEY, 0);
+
+    new MercurialBlameCommand(commandExecutor, settings).blame(input, result);
+
+    verify(commandExecutor, never()).execute(any(), any(), any(), anyLong());
+    BlameLine julien = new BlameLine().date(DateUtils.parseDateTime("2014-11-04T11:01:10+0100")).revision(builder.node(0).substring(0, 12))
+      .author("julien.henry@sonarsource.com");
+    BlameLine jasper = new BlameLine().date(DateUtils.parseDateTime("2014-11-04T11:01:20+0100")).revision(builder.node(1).substring(0, 12)).author("jasper.de.vries");
+    verify(result).blameResult(foo, Arrays.asList(julien, jasper));
+    verify(result).blameResult(bar, singletonList(jasper));
+    verify(result).blameResult(uncommitted, Collections.emptyList());
+    assertThat(new File(workDir, "mercurial/annotate").list()).isEmpty();
+  }
+
+  @Test
+  public void shouldNotBlameBeyondSinceDate() throws IOException {
+    MercurialRepositoryBuilder builder = new MercurialRepositoryBuilder(baseDir);
+    builder.commit("julien.henry@sonarsource.com", 1415008870, singletonMap("src/foo.xoo", "a\n"));
+    builder.commit("julien.henry@sonarsource.com", 1415095270, singletonMap("src/foo.xoo", "a\nb\n"));
+    builder.commit("jasper.de.vries", 1415268070, singletonMap("src/foo.xoo", "a\nb\nc\n"));
+    builder.write();
+    InputFile inputFile = createInputFile("src/foo.xoo", 3);
+    when(input.filesToBlame()).thenReturn(singletonList(inputFile));
+    BlameOutput result = mock(BlameOutput.class);
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    MapSettings settings = new MapSettings();
+    settings.setProperty(MercurialBlameCommand.SINCE_KEY, "2014-11-05T00:00:00+0000");
+
+    new MercurialBlameCommand(commandExecutor, settings).blame(input, result);
+
+    verify(commandExecutor, never()).execute(any(), any(), any(), anyLong());
+    BlameLine boundary = new BlameLine().date(DateUtils.parseDateTime("2014-11-04T11:01:10+0100")).revision(builder.node(1).substring(0, 12))
+      .author("julien.henry@sonarsource.com");
+    BlameLine jasper = new BlameLine().date(DateUtils.parseDateTime("2014-11-06T11:01:10+0100")).revision(builder.node(2).substring(0, 12)).author("jasper.de.vries");
+    verify(result).blameResult(inputFile, Arrays.asList(boundary, boundary, jasper));
+  }
+
+  @Test
+  public void shouldNotBlameBeyondSinceRevset() throws IOException {
+    MercurialRepositoryBuilder builder = new MercurialRepositoryBuilder(baseDir);
+    builder.commit("julien.henry@sonarsource.com", 1415095270, singletonMap("src/foo.xoo", "a\n"));
+    builder.commit("julien.henry@sonarsource.com", 1415181670, singletonMap("src/foo.xoo", "a\nb\n"));
+    builder.commit("jasper.de.vries", 1415268070, singletonMap("src/foo.xoo", "a\nb\nc\n"));
+    builder.write();
+    InputFile inputFile = createInputFile("src/foo.xoo", 3);
+    when(input.filesToBlame()).thenReturn(singletonList(inputFile));
+    BlameOutput result = mock(BlameOutput.class);
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    when(commandExecutor.execute(any(), any(), any(), anyLong())).thenAnswer((Answer<Integer>) invocation -> {
+      assertThat(invocation.getArguments()[0].toString()).contains("log --rev tag(v1)");
+      ((StreamConsumer) invocation.getArguments()[1]).consumeLine("0");
+      return 0;
+    });
+    MapSettings settings = new MapSettings();
+    settings.setProperty(MercurialBlameCommand.SINCE_KEY, "tag(v1)");
+
+    new MercurialBlameCommand(commandExecutor, settings).blame(input, result);
+
+    BlameLine boundary = new BlameLine().date(DateUtils.parseDateTime("2014-11-04T11:01:10+0100")).revision(builder.node(0).substring(0, 12))
+      .author("julien.henry@sonarsource.com");
+    BlameLine julien = new BlameLine().date(DateUtils.parseDateTime("2014-11-05T11:01:10+0100")).revision(builder.node(1).substring(0, 12))
+      .author("julien.henry@sonarsource.com");
+    BlameLine jasper = new BlameLine().date(DateUtils.parseDateTime("2014-11-06T11:01:10+0100")).revision(builder.node(2).substring(0, 12)).author("jasper.de.vries");
+    verify(result).blameResult(inputFile, Arrays.asList(boundary, julien, jasper));
+  }
+
+  @Test
+  public void shouldBlameWithCommandWhenRepositoryIsNotSupported() throws IOException {
+    new File(baseDir, ".hg").mkdir();
+    FileUtils.write(new File(baseDir, ".hg/requires"), "revlogv1\nstore\ntreemanifest\n");
+    InputFile inputFile = createInputFile("src/foo.xoo", 1);
+    when(input.filesToBlame()).thenReturn(singletonList(inputFile));
+    BlameOutput result = mock(BlameOutput.class);
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    when(commandExecutor.execute(any(), any(), any(), anyLong())).thenAnswer((Answer<Integer>) invocation -> {
+      StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+      outConsumer.consumeLine("@src/foo.xoo");
+      outConsumer.consumeLine("d45dafac0d9a 1415095270 -3600 julien.henry@sonarsource.com");
+      return 0;
+    });
+    MapSettings settings = new MapSettings();
+    settings.setProperty(MercurialBlameCommand.TEMPLATE_KEY, true);
+    settings.setProperty(MercurialBlameCommand.ENGINE_KEY, MercurialBlameCommand.JAVA_ENGINE);
+
+    new MercurialBlameCommand(commandExecutor, settings).blame(input, result);
+
+    verify(result).blameResult(inputFile,
+      singletonList(new BlameLine().date(DateUtils.parseDateTime("2014-11-04T11:01:10+0100")).revision("d45dafac0d9a").author("julien.henry@sonarsource.com")));
+  }
+
+  private static List<String> blamedFiles(List<String> args) {
+    return args.subList(args.indexOf("--") + 1, args.size());
+  }
+
+  private InputFile createInputFile(String relativePath, int lines) throws IOException {
+    FileUtils.write(new File(baseDir, relativePath), "sample content");
+    InputFile inputFile = new TestInputFileBuilder("foo", relativePath)
+      .setLines(lines)
+      .setCharset(StandardCharsets.UTF_8)
+      .setModuleBaseDir(baseDir.toPath())
+      .build();
+    fs.add(inputFile);
+    return inputFile;
+  }
+
 }
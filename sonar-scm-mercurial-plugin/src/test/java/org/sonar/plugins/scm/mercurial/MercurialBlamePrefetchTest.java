@@ -0,0 +1,97 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.utils.DateUtils;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MercurialBlamePrefetchTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void should_blame_files_missing_from_shared_cache() throws IOException {
+    File root = temp.newFolder();
+    MercurialRepositoryBuilder builder = new MercurialRepositoryBuilder(root);
+    builder.commit("Julien Henry <julien.henry@sonarsource.com>", 1415095270, singletonMap("src/foo.xoo", "a\nb\n"));
+    Map<String, String> changes = new HashMap<>();
+    changes.put("src/foo.xoo", "a\nB\n");
+    changes.put("src/bar.xoo", "c\n");
+    changes.put("src/baz.bin", "\0");
+    builder.commit("jasper.de.vries", 1415095280, changes);
+    // Same file node as src/bar.xoo, with another blame
+    builder.commit("julien.henry", 1415095290, singletonMap("lib/bar.xoo", "c\n"));
+    builder.write();
+    File cacheDirectory = temp.newFolder();
+
+    assertThat(new MercurialBlamePrefetch(root, cacheDirectory, false, 0).prefetch()).isEqualTo(3);
+    assertThat(new MercurialBlamePrefetch(root, cacheDirectory, false, 0).prefetch()).isZero();
+
+    MercurialSharedBlameCache cache = new MercurialSharedBlameCache(cacheDirectory, MercurialBlameCommand.cacheOptions(true, false, false, null), new MercurialChangesetCache());
+    BlameLine julien = new BlameLine().date(DateUtils.parseDateTime("2014-11-04T11:01:10+0100")).revision(builder.node(0).substring(0, 12))
+      .author("julien.henry@sonarsource.com");
+    BlameLine jasper = new BlameLine().date(DateUtils.parseDateTime("2014-11-04T11:01:20+0100")).revision(builder.node(1).substring(0, 12)).author("jasper.de.vries");
+    try (MercurialRepository repository = MercurialRepository.open(root)) {
+      Map<String, byte[]> manifest = repository.manifest();
+      assertThat(manifest.get("lib/bar.xoo")).isEqualTo(manifest.get("src/bar.xoo"));
+      assertThat(cache.get("src/foo.xoo", MercurialUtils.toHex(manifest.get("src/foo.xoo"))).toBlameLines()).isEqualTo(asList(julien, jasper));
+      assertThat(cache.get("src/bar.xoo", MercurialUtils.toHex(manifest.get("src/bar.xoo"))).toBlameLines()).isEqualTo(singletonList(jasper));
+      assertThat(cache.get("lib/bar.xoo", MercurialUtils.toHex(manifest.get("lib/bar.xoo"))).toBlameLines()).containsExactly(new BlameLine()
+        .date(DateUtils.parseDateTime("2014-11-04T11:01:30+0100")).revision(builder.node(2).substring(0, 12)).author("julien.henry"));
+      assertThat(cache.get("src/baz.bin", MercurialUtils.toHex(manifest.get("src/baz.bin")))).isNull();
+      // Not found by the analyses running hg
+      MercurialSharedBlameCache hgCache = new MercurialSharedBlameCache(cacheDirectory, MercurialBlameCommand.cacheOptions(false, false, false, null),
+        new MercurialChangesetCache());
+      assertThat(hgCache.contains("src/foo.xoo", MercurialUtils.toHex(manifest.get("src/foo.xoo")))).isFalse();
+    }
+  }
+
+  @Test
+  public void should_return_exit_status() throws IOException {
+    File root = temp.newFolder();
+    MercurialRepositoryBuilder builder = new MercurialRepositoryBuilder(root);
+    builder.commit("julien.henry", 1415095270, singletonMap("src/foo.xoo", "a\n"));
+    builder.write();
+    String cacheDirectory = temp.newFolder().getAbsolutePath();
+
+    assertThat(MercurialBlamePrefetch.run(new String[] {"--maxMemory", "16", root.getAbsolutePath(), cacheDirectory})).isZero();
+    File unsupported = temp.newFolder();
+    new File(unsupported, ".hg").mkdir();
+    Files.write(new File(unsupported, ".hg/requires").toPath(), "unknown-requirement\n".getBytes(StandardCharsets.UTF_8));
+    assertThat(MercurialBlamePrefetch.run(new String[] {unsupported.getAbsolutePath(), cacheDirectory})).isEqualTo(1);
+    assertThat(MercurialBlamePrefetch.run(new String[] {root.getAbsolutePath()})).isEqualTo(2);
+    assertThat(MercurialBlamePrefetch.run(new String[] {"--maxMemory", "many", root.getAbsolutePath(), cacheDirectory})).isEqualTo(2);
+  }
+}
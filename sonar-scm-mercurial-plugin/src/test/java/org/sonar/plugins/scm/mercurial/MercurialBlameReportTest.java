@@ -0,0 +1,96 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MercurialBlameReportTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private final AtomicLong clock = new AtomicLong();
+  private final MercurialBlameReport report = new MercurialBlameReport(clock::get);
+
+  @Test
+  public void should_summarize_tasks() {
+    MercurialBlameReport.Task small = report.newTask("src/small.xoo", 1, 10);
+    MercurialBlameReport.Task large = report.newTask("src/large.xoo", 1, 1000);
+    run(small, 0, 10, true);
+    run(large, 5, 100, false);
+    report.cachedFile();
+    report.uncommittedFile();
+    report.timedOutFile();
+
+    assertThat(report.summary()).containsExactly(
+      "Blame of 2 files (1010 lines) in 115 ms: 1 hg processes, 1 command server commands, 0 files read by the java engine, 1 files from cache, 1 uncommitted files, 1 files timed out",
+      "Blame task time: p50 10ms, p90 100ms, p99 100ms, max 100ms; queue wait p50 0ms, p90 15ms; spawn 20%, exec 50%, parse 20%; 9181 lines/s per thread, 200 bytes read",
+      "Slowest blame tasks: src/large.xoo in 100ms (spawn 20ms, exec 50ms, parse 20ms, queue 15ms, hg); "
+        + "src/small.xoo in 10ms (spawn 2ms, exec 5ms, parse 2ms, queue 0ms, commandServer)");
+  }
+
+  @Test
+  public void should_only_count_files_when_nothing_is_blamed() {
+    report.cachedFile();
+
+    assertThat(report.summary()).containsExactly(
+      "Blame of 0 files (0 lines) in 0 ms: 0 hg processes, 0 command server commands, 0 files read by the java engine, 1 files from cache, 0 uncommitted files, 0 files timed out");
+  }
+
+  @Test
+  public void should_write_json_report() throws IOException {
+    MercurialBlameReport.Task task = report.newTask("src/\"quoted\".xoo", 1, 10);
+    task.start();
+    task.javaEngine(TimeUnit.MILLISECONDS.toNanos(3));
+    clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(4));
+    task.end();
+    File file = new File(temp.getRoot(), "mercurial/blame-report.json");
+
+    report.writeJson(file);
+
+    String json = FileUtils.readFileToString(file);
+    assertThat(json).contains("\"files\": 1,", "\"javaEngineFiles\": 1,", "\"linesPerSecond\": 2500,", "\"max\": 4.000}",
+      "{\"description\": \"src/\\\"quoted\\\".xoo\", \"engine\": \"java\", \"files\": 1, \"lines\": 10, \"bytes\": 0, \"queueMs\": 0.000, \"wallMs\": 4.000, "
+        + "\"spawnMs\": 0.000, \"execMs\": 3.000, \"parseMs\": 0.000}");
+    assertThat(file.getParentFile().list()).containsExactly("blame-report.json");
+  }
+
+  /**
+   * Run a task after waiting in the queue, 20% of the time until the first output of hg and 20% parsing.
+   */
+  private void run(MercurialBlameReport.Task task, long queueMs, long wallMs, boolean onCommandServer) {
+    clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(queueMs));
+    task.start();
+    long wall = TimeUnit.MILLISECONDS.toNanos(wallMs);
+    task.command(onCommandServer, wall / 5, wall * 4 / 5, wall / 10, 100);
+    task.parse(wall / 10);
+    clock.addAndGet(wall);
+    task.end();
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class MercurialBlameSchedulerTest {
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void should_not_run_more_tasks_than_parallelism() {
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    AtomicInteger done = new AtomicInteger();
+    try (MercurialBlameScheduler scheduler = new MercurialBlameScheduler(3, false)) {
+      for (int i = 0; i < 50; i++) {
+        scheduler.submit("task", () -> {
+          maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+          sleep(2);
+          running.decrementAndGet();
+          done.incrementAndGet();
+        });
+      }
+      scheduler.awaitCompletion();
+    }
+    assertThat(done.get()).isEqualTo(50);
+    assertThat(maxRunning.get()).isBetween(1, 3);
+  }
+
+  @Test
+  public void should_adapt_parallelism_to_load() {
+    AtomicReference<Double> load = new AtomicReference<>(16.0);
+    AtomicLong clock = new AtomicLong();
+    try (MercurialBlameScheduler scheduler = new MercurialBlameScheduler(4, load::get, 8, clock::get)) {
+      assertThat(scheduler.parallelism()).isEqualTo(4);
+      for (int i = 0; i < 5; i++) {
+        clock.addAndGet(MercurialBlameScheduler.ADJUSTMENT_PERIOD_MS);
+        scheduler.submit("task", () -> {
+        });
+        scheduler.awaitCompletion();
+      }
+      assertThat(scheduler.parallelism()).isEqualTo(1);
+
+      // Adjusted at most once per period
+      load.set(1.0);
+      scheduler.submit("task", () -> {
+      });
+      assertThat(scheduler.parallelism()).isEqualTo(1);
+
+      for (int i = 0; i < 5; i++) {
+        clock.addAndGet(MercurialBlameScheduler.ADJUSTMENT_PERIOD_MS);
+        scheduler.submit("task", () -> {
+        });
+        scheduler.awaitCompletion();
+      }
+      assertThat(scheduler.parallelism()).isEqualTo(4);
+
+      // Unavailable load average
+      load.set(-1.0);
+      clock.addAndGet(MercurialBlameScheduler.ADJUSTMENT_PERIOD_MS);
+      scheduler.submit("task", () -> {
+      });
+      assertThat(scheduler.parallelism()).isEqualTo(4);
+      scheduler.awaitCompletion();
+    }
+  }
+
+  @Test
+  public void should_report_longest_task() {
+    try (MercurialBlameScheduler scheduler = new MercurialBlameScheduler(2, false)) {
+      assertThat(scheduler.statistics()).isEqualTo("No blame task");
+      scheduler.submit("large.xoo", () -> sleep(50));
+      scheduler.submit("small.xoo", () -> {
+      });
+      scheduler.awaitCompletion();
+      assertThat(scheduler.completedTasks()).isEqualTo(2);
+      assertThat(scheduler.statistics()).startsWith("2 blame tasks in ").contains(" on 2 threads ").endsWith("ms for large.xoo");
+    }
+  }
+
+  @Test
+  public void should_rethrow_first_failure() {
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("broken");
+
+    try (MercurialBlameScheduler scheduler = new MercurialBlameScheduler(2, false)) {
+      scheduler.submit("task", () -> {
+        throw new IllegalStateException("broken");
+      });
+      scheduler.awaitCompletion();
+    }
+  }
+
+  @Test
+  public void should_not_wait_for_tasks_in_progress_after_failure() throws InterruptedException {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch interrupted = new CountDownLatch(1);
+    try (MercurialBlameScheduler scheduler = new MercurialBlameScheduler(2, false)) {
+      scheduler.submit("slow", () -> {
+        started.countDown();
+        try {
+          Thread.sleep(60_000);
+        } catch (InterruptedException e) {
+          interrupted.countDown();
+        }
+      });
+      started.await();
+      scheduler.submit("broken", () -> {
+        throw new IllegalStateException("broken");
+      });
+      try {
+        scheduler.awaitCompletion();
+        fail("Expected the failure to be rethrown");
+      } catch (IllegalStateException e) {
+        assertThat(e).hasMessage("broken");
+      }
+      assertThat(interrupted.getCount()).isEqualTo(1);
+      scheduler.cancel();
+      assertThat(interrupted.await(10, TimeUnit.SECONDS)).isTrue();
+    }
+  }
+
+  @Test
+  public void should_stop_threads_when_closed() throws InterruptedException {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch interrupted = new CountDownLatch(1);
+    try (MercurialBlameScheduler scheduler = new MercurialBlameScheduler(2, false)) {
+      scheduler.submit("task", () -> {
+        started.countDown();
+        try {
+          Thread.sleep(60_000);
+        } catch (InterruptedException e) {
+          interrupted.countDown();
+        }
+      });
+      started.await();
+    }
+    assertThat(interrupted.await(10, TimeUnit.SECONDS)).isTrue();
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
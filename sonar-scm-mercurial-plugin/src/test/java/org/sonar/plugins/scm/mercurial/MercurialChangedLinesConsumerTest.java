@@ -0,0 +1,133 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MercurialChangedLinesConsumerTest {
+
+  @Test
+  public void should_find_added_and_modified_lines() {
+    MercurialChangedLinesConsumer consumer = new MercurialChangedLinesConsumer(new HashSet<>(Arrays.asList("foo.xoo", "new name.xoo", "added.xoo",
+      "renamed.xoo")));
+    Arrays.asList(
+      "diff --git a/foo.xoo b/foo.xoo",
+      "--- a/foo.xoo",
+      "+++ b/foo.xoo",
+      // Modified line
+      "@@ -2 +2 @@",
+      "-b",
+      "+B",
+      // Removed lines only
+      "@@ -5,2 +4,0 @@",
+      "-e",
+      "-f",
+      // Added lines, including a removed line looking like a hunk header
+      "@@ -9,1 +8,3 @@",
+      "-@@ -1 +1 @@",
+      "+x",
+      "+y",
+      "+z",
+      "\\ No newline at end of file",
+      // File not part of the analysis
+      "diff --git a/other.xoo b/other.xoo",
+      "--- a/other.xoo",
+      "+++ b/other.xoo",
+      "@@ -1 +1 @@",
+      "-a",
+      "+A",
+      "diff --git a/old name.xoo b/new name.xoo",
+      "rename from old name.xoo",
+      "rename to new name.xoo",
+      "--- a/old name.xoo",
+      "+++ b/new name.xoo",
+      "@@ -3,0 +4,2 @@",
+      "+--- a/foo.xoo",
+      "+diff --git",
+      "diff --git a/added.xoo b/added.xoo",
+      "new file mode 100644",
+      "--- /dev/null",
+      "+++ b/added.xoo",
+      "@@ -0,0 +1,2 @@",
+      "+a",
+      "+b",
+      // Renamed without modification
+      "diff --git a/before.xoo b/renamed.xoo",
+      "rename from before.xoo",
+      "rename to renamed.xoo")
+      .forEach(consumer::consumeLine);
+
+    assertThat(consumer.getChangedLines()).containsOnlyKeys("foo.xoo", "new name.xoo", "added.xoo", "renamed.xoo");
+    assertThat(consumer.getChangedLines().get("foo.xoo")).isEqualTo(lines(2, 8, 9, 10));
+    assertThat(consumer.getChangedLines().get("new name.xoo")).isEqualTo(lines(4, 5));
+    assertThat(consumer.getChangedLines().get("added.xoo")).isEqualTo(lines(1, 2));
+    assertThat(consumer.getChangedLines().get("renamed.xoo")).isEqualTo(lines());
+  }
+
+  @Test
+  public void should_read_new_path_of_files_with_spaces_in_their_path() {
+    MercurialChangedLinesConsumer consumer = new MercurialChangedLinesConsumer(new HashSet<>(Arrays.asList("dir b/foo.xoo", "dir b/new.xoo",
+      "dir b/copy.xoo", "dir b/mode.xoo")));
+    Arrays.asList(
+      "diff --git a/dir b/foo.xoo b/dir b/foo.xoo",
+      "--- a/dir b/foo.xoo",
+      "+++ b/dir b/foo.xoo",
+      "@@ -1 +1 @@",
+      "-a",
+      // Looks like the path of the new file, but is an added line
+      "+++ b/dir b/other.xoo",
+      // Renamed with modifications
+      "diff --git a/old b/name.xoo b/dir b/new.xoo",
+      "rename from old b/name.xoo",
+      "rename to dir b/new.xoo",
+      "--- a/old b/name.xoo",
+      "+++ b/dir b/new.xoo",
+      "@@ -2,0 +3,2 @@",
+      "+c",
+      "+d",
+      "diff --git a/dir b/foo.xoo b/dir b/copy.xoo",
+      "copy from dir b/foo.xoo",
+      "copy to dir b/copy.xoo",
+      // Only the executable bit changed
+      "diff --git a/dir b/mode.xoo b/dir b/mode.xoo",
+      "old mode 100644",
+      "new mode 100755")
+      .forEach(consumer::consumeLine);
+
+    assertThat(consumer.getChangedLines()).containsOnlyKeys("dir b/foo.xoo", "dir b/new.xoo", "dir b/copy.xoo", "dir b/mode.xoo");
+    assertThat(consumer.getChangedLines().get("dir b/foo.xoo")).isEqualTo(lines(1));
+    assertThat(consumer.getChangedLines().get("dir b/new.xoo")).isEqualTo(lines(3, 4));
+    assertThat(consumer.getChangedLines().get("dir b/copy.xoo")).isEqualTo(lines());
+    assertThat(consumer.getChangedLines().get("dir b/mode.xoo")).isEqualTo(lines());
+  }
+
+  private static BitSet lines(int... lines) {
+    BitSet bitSet = new BitSet();
+    for (int line : lines) {
+      bitSet.set(line);
+    }
+    return bitSet;
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.util.Date;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MercurialChangesetCacheTest {
+
+  @Test
+  public void key_is_made_of_hexadecimal_digits() {
+    assertThat(MercurialChangesetCache.key("d45dafac0d9a", 0, 12)).isEqualTo(0xd45dafac0d9aL);
+    assertThat(MercurialChangesetCache.key("xx2bc1af24477e", 2, 14)).isEqualTo(0x2bc1af24477eL);
+    // Only the first 16 digits are used for full changeset ids
+    assertThat(MercurialChangesetCache.key("d45dafac0d9a1234ffff", 0, 20)).isEqualTo(0xd45dafac0d9a1234L);
+  }
+
+  @Test
+  public void should_intern_changesets() {
+    MercurialChangesetCache cache = new MercurialChangesetCache();
+    MercurialChangesetCache.Changeset first = new MercurialChangesetCache.Changeset("d45dafac0d9a", "julien", new Date(1000));
+    MercurialChangesetCache.Changeset second = new MercurialChangesetCache.Changeset("d45dafac0d9a", "julien", new Date(1000));
+
+    assertThat(cache.get(0xd45dafac0d9aL)).isNull();
+    assertThat(cache.intern(0xd45dafac0d9aL, first)).isSameAs(first);
+    assertThat(cache.intern(0xd45dafac0d9aL, second)).isSameAs(first);
+    assertThat(cache.get(0xd45dafac0d9aL)).isSameAs(first);
+    assertThat(cache.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void should_grow() {
+    MercurialChangesetCache cache = new MercurialChangesetCache();
+    for (long key = 0; key < 10_000; key++) {
+      cache.intern(key * 31, new MercurialChangesetCache.Changeset(Long.toHexString(key), "author", new Date(key)));
+    }
+
+    assertThat(cache.size()).isEqualTo(10_000);
+    for (long key = 0; key < 10_000; key++) {
+      assertThat(cache.get(key * 31).revision()).isEqualTo(Long.toHexString(key));
+    }
+    assertThat(cache.get(-1)).isNull();
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.sonar.api.utils.command.Command;
+import org.sonar.api.utils.command.StringStreamConsumer;
+import org.sonar.api.utils.command.TimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class MercurialCommandServerTest {
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void should_forward_output_lines_and_exit_code() throws IOException {
+    FakeCommandServer fake = FakeCommandServer.standard(args -> new FakeCommandServer.Reply()
+      .out("first li")
+      .out("ne\nsecond line\nthi")
+      .err("warning\n")
+      .optional('d', "debug noise")
+      .out("rd")
+      .exit(1));
+    MercurialCommandServer server = fake.connect();
+
+    List<String> lines = new ArrayList<>();
+    StringStreamConsumer stderr = new StringStreamConsumer();
+    int exitCode = server.runCommand(Arrays.asList("blame", "--", "foo.txt"), lines::add, stderr);
+
+    assertThat(exitCode).isEqualTo(1);
+    assertThat(lines).containsExactly("first line", "second line", "third");
+    assertThat(stderr.getOutput()).isEqualTo("warning" + System.lineSeparator());
+    assertThat(fake.receivedCommands).containsExactly(Arrays.asList("blame", "--", "foo.txt"));
+  }
+
+  @Test
+  public void should_reuse_server_for_several_commands() throws IOException {
+    FakeCommandServer fake = FakeCommandServer.standard(args -> new FakeCommandServer.Reply().out(args.get(0) + "\n"));
+    MercurialCommandServer server = fake.connect();
+
+    List<String> lines = new ArrayList<>();
+    server.runCommand(Arrays.asList("one"), lines::add, new StringStreamConsumer());
+    server.runCommand(Arrays.asList("two"), lines::add, new StringStreamConsumer());
+
+    assertThat(lines).containsExactly("one", "two");
+  }
+
+  @Test
+  public void should_answer_empty_input_requests() throws IOException {
+    FakeCommandServer fake = FakeCommandServer.standard(args -> new FakeCommandServer.Reply().inputRequest('L').out("done\n"));
+    MercurialCommandServer server = fake.connect();
+
+    List<String> lines = new ArrayList<>();
+    assertThat(server.runCommand(Arrays.asList("blame"), lines::add, new StringStreamConsumer())).isZero();
+    assertThat(lines).containsExactly("done");
+  }
+
+  @Test
+  public void should_fail_on_unknown_required_channel() throws IOException {
+    MercurialCommandServer server = FakeCommandServer.standard(args -> new FakeCommandServer.Reply().optional('X', "")).connect();
+
+    thrown.expect(IOException.class);
+    thrown.expectMessage("Unsupported required channel 'X'");
+    server.runCommand(Arrays.asList("blame"), line -> {
+    }, new StringStreamConsumer());
+  }
+
+  @Test
+  public void should_reject_server_without_runcommand() throws IOException {
+    FakeCommandServer fake = new FakeCommandServer("capabilities: getencoding\nencoding: UTF-8", args -> null);
+
+    thrown.expect(IOException.class);
+    thrown.expectMessage("does not support runcommand");
+    fake.connect();
+  }
+
+  @Test
+  public void pool_should_prefix_working_directory_and_reuse_servers() throws IOException {
+    FakeCommandServer fake = FakeCommandServer.standard(args -> new FakeCommandServer.Reply().out("ok\n"));
+    List<File> started = new ArrayList<>();
+    File dir = new File("project");
+    MercurialCommandServerPool pool = new MercurialCommandServerPool(dir, 2, workingDirectory -> {
+      started.add(workingDirectory);
+      return fake.connect();
+    });
+
+    Command cl = Command.create("hg").setDirectory(dir).addArgument("blame").addArgument("--").addArgument("foo.txt");
+    List<String> lines = new ArrayList<>();
+    assertThat(pool.execute(cl, lines::add, new StringStreamConsumer(), -1)).isZero();
+    assertThat(pool.execute(cl, lines::add, new StringStreamConsumer(), -1)).isZero();
+    pool.close();
+
+    assertThat(started).hasSize(1);
+    assertThat(lines).containsExactly("ok", "ok");
+    assertThat(fake.receivedCommands.get(0)).containsExactly("--cwd", dir.getAbsolutePath(), "blame", "--", "foo.txt");
+  }
+
+  @Test
+  public void pool_should_be_disabled_when_server_cannot_start() throws IOException {
+    List<File> started = new ArrayList<>();
+    MercurialCommandServerPool pool = new MercurialCommandServerPool(new File("project"), 2, workingDirectory -> {
+      started.add(workingDirectory);
+      throw new IOException("hg not found");
+    });
+    Command cl = Command.create("hg").addArgument("blame");
+
+    try {
+      pool.execute(cl, line -> {
+      }, new StringStreamConsumer(), -1);
+    } catch (IOException e) {
+      assertThat(e).hasMessage("hg not found");
+    }
+    thrown.expect(IOException.class);
+    thrown.expectMessage("not available");
+    try {
+      pool.execute(cl, line -> {
+      }, new StringStreamConsumer(), -1);
+    } finally {
+      assertThat(started).hasSize(1);
+    }
+  }
+
+  @Test
+  public void pool_should_discard_crashed_server() throws IOException {
+    FakeCommandServer crashing = FakeCommandServer.standard(args -> null);
+    FakeCommandServer healthy = FakeCommandServer.standard(args -> new FakeCommandServer.Reply().out("ok\n"));
+    List<FakeCommandServer> servers = new ArrayList<>(Arrays.asList(crashing, healthy));
+    MercurialCommandServerPool pool = new MercurialCommandServerPool(new File("project"), 1, workingDirectory -> servers.remove(0).connect());
+    Command cl = Command.create("hg").addArgument("blame");
+
+    List<String> lines = new ArrayList<>();
+    try {
+      pool.execute(cl, lines::add, new StringStreamConsumer(), -1);
+    } catch (IOException e) {
+      // expected, server died
+    }
+    assertThat(pool.execute(cl, lines::add, new StringStreamConsumer(), -1)).isZero();
+    assertThat(lines).containsExactly("ok");
+  }
+
+  @Test
+  public void pool_should_kill_server_exceeding_timeout() throws IOException, InterruptedException {
+    CountDownLatch release = new CountDownLatch(1);
+    FakeCommandServer stuck = FakeCommandServer.standard(args -> {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return new FakeCommandServer.Reply().out("too late\n");
+    });
+    FakeCommandServer healthy = FakeCommandServer.standard(args -> new FakeCommandServer.Reply().out("ok\n"));
+    List<FakeCommandServer> servers = new ArrayList<>(Arrays.asList(stuck, healthy));
+    MercurialCommandServerPool pool = new MercurialCommandServerPool(new File("project"), 1, workingDirectory -> servers.remove(0).connect());
+    Command cl = Command.create("hg").addArgument("blame");
+
+    List<String> lines = new ArrayList<>();
+    try {
+      pool.execute(cl, lines::add, new StringStreamConsumer(), 100);
+      fail("Expected a timeout");
+    } catch (TimeoutException e) {
+      assertThat(e).hasMessageStartingWith("Timeout exceeded: 100 ms");
+    } finally {
+      release.countDown();
+    }
+    assertThat(pool.execute(cl, lines::add, new StringStreamConsumer(), 10_000)).isZero();
+    assertThat(lines).containsExactly("ok");
+    pool.close();
+  }
+}
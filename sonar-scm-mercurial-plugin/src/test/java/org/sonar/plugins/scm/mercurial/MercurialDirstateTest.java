@@ -0,0 +1,265 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+public class MercurialDirstateTest {
+
+  private static final String P1 = "d45dafac0d9a1b2c3d4e5f60718293a4b5c6d7e8";
+  private static final String P2 = "2bc1af24477e0000111122223333444455556666";
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private File root;
+
+  @Before
+  public void prepare() throws IOException {
+    root = temp.newFolder();
+    new File(root, ".hg").mkdir();
+  }
+
+  @Test
+  public void should_read_parents_of_dirstate_v1() throws IOException {
+    ByteArrayOutputStream dirstate = new ByteArrayOutputStream();
+    dirstate.write(MercurialUtils.parseHex(P1));
+    dirstate.write(new byte[20]);
+    // Entries are not read
+    dirstate.write("n\0\0\1\244\0\0\0\2\0\0\0\0\0\0\0\7foo.xoo".getBytes(StandardCharsets.ISO_8859_1));
+    write("dirstate", dirstate.toByteArray());
+
+    MercurialDirstate.Parents parents = MercurialDirstate.readParents(root);
+
+    assertThat(MercurialUtils.toHex(parents.first())).isEqualTo(P1);
+    assertThat(parents.second()).isNull();
+  }
+
+  @Test
+  public void should_read_parents_of_dirstate_v2_docket() throws IOException {
+    write("requires", "dotencode\ndirstate-v2\nfncache\nrevlogv1\nstore\n".getBytes(StandardCharsets.UTF_8));
+    ByteArrayOutputStream docket = new ByteArrayOutputStream();
+    docket.write("dirstate-v2\n".getBytes(StandardCharsets.US_ASCII));
+    docket.write(MercurialUtils.parseHex(P1));
+    docket.write(new byte[12]);
+    docket.write(MercurialUtils.parseHex(P2));
+    docket.write(new byte[12]);
+    docket.write(new byte[44 + 4 + 1]);
+    write("dirstate", docket.toByteArray());
+
+    MercurialDirstate.Parents parents = MercurialDirstate.readParents(root);
+
+    assertThat(MercurialUtils.toHex(parents.first())).isEqualTo(P1);
+    assertThat(MercurialUtils.toHex(parents.second())).isEqualTo(P2);
+  }
+
+  @Test
+  public void should_have_no_parent_without_commit() throws IOException {
+    assertThat(MercurialDirstate.readParents(root)).isNull();
+    write("dirstate", new byte[0]);
+    assertThat(MercurialDirstate.readParents(root)).isNull();
+    write("dirstate", new byte[40]);
+    assertThat(MercurialDirstate.readParents(root)).isNull();
+  }
+
+  @Test
+  public void should_fail_on_truncated_dirstate() throws IOException {
+    write("dirstate", MercurialUtils.parseHex(P1));
+
+    thrown.expect(IOException.class);
+    thrown.expectMessage("Truncated dirstate");
+    MercurialDirstate.readParents(root);
+  }
+
+  @Test
+  public void should_fail_on_unknown_docket() throws IOException {
+    write("requires", "dirstate-v2\n".getBytes(StandardCharsets.UTF_8));
+    write("dirstate", new byte[100]);
+
+    thrown.expect(IOException.class);
+    thrown.expectMessage("Unsupported dirstate-v2 docket");
+    MercurialDirstate.readParents(root);
+  }
+
+  @Test
+  public void should_classify_files_like_hg_status() throws IOException {
+    long mtime = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) - 3600;
+    File clean = file("clean.xoo", "abc\n", mtime);
+    File touched = file("touched.xoo", "abc\n", mtime + 10);
+    File resized = file("resized.xoo", "abcd\n", mtime);
+    File lookup = file("lookup.xoo", "abc\n", mtime);
+    File copied = file("copied.xoo", "abc\n", mtime);
+    File added = file("added.xoo", "abc\n", mtime);
+    File merged = file("merged.xoo", "abc\n", mtime);
+    File unknown = file("unknown.xoo", "abc\n", mtime);
+    ByteArrayOutputStream dirstate = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(dirstate);
+    out.write(MercurialUtils.parseHex(P1));
+    out.write(new byte[20]);
+    entry(out, 'n', 4, mtime, "touched.xoo");
+    entry(out, 'n', 4, mtime, "clean.xoo");
+    entry(out, 'n', 4, mtime, "resized.xoo");
+    entry(out, 'n', -1, -1, "lookup.xoo");
+    entry(out, 'n', 4, mtime, "copied.xoo\0clean.xoo");
+    entry(out, 'a', 0, -1, "added.xoo");
+    entry(out, 'm', 4, mtime, "merged.xoo");
+    write("dirstate", dirstate.toByteArray());
+
+    MercurialDirstate.Entries entries = MercurialDirstate.readEntries(root);
+
+    assertThat(entries.size()).isEqualTo(7);
+    assertThat(entries.statusOf("clean.xoo", clean)).isEqualTo(MercurialStatus.CLEAN);
+    assertThat(entries.statusOf("copied.xoo", copied)).isEqualTo(MercurialStatus.CLEAN);
+    assertThat(entries.statusOf("touched.xoo", touched)).isEqualTo((char) 0);
+    assertThat(entries.statusOf("resized.xoo", resized)).isEqualTo(MercurialStatus.MODIFIED);
+    assertThat(entries.statusOf("lookup.xoo", lookup)).isEqualTo((char) 0);
+    assertThat(entries.statusOf("added.xoo", added)).isEqualTo(MercurialStatus.ADDED);
+    assertThat(entries.statusOf("merged.xoo", merged)).isEqualTo(MercurialStatus.MODIFIED);
+    assertThat(entries.statusOf("unknown.xoo", unknown)).isEqualTo(MercurialStatus.UNKNOWN);
+
+    // Modified after the dirstate was written, in the same second
+    Files.setLastModifiedTime(new File(root, ".hg/dirstate").toPath(), FileTime.from(mtime, TimeUnit.SECONDS));
+    assertThat(MercurialDirstate.readEntries(root).statusOf("clean.xoo", clean)).isEqualTo((char) 0);
+  }
+
+  @Test
+  public void should_classify_deleted_files() throws IOException {
+    long mtime = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) - 3600;
+    File clean = file("clean.xoo", "abc\n", mtime);
+    ByteArrayOutputStream dirstate = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(dirstate);
+    out.write(MercurialUtils.parseHex(P1));
+    out.write(new byte[20]);
+    entry(out, 'n', 4, mtime, "clean.xoo");
+    entry(out, 'n', 4, mtime, "deleted.xoo");
+    write("dirstate", dirstate.toByteArray());
+
+    MercurialDirstate.Entries entries = MercurialDirstate.readEntries(root);
+
+    assertThat(entries.statusOf("deleted.xoo", new File(root, "deleted.xoo"))).isEqualTo(MercurialStatus.DELETED);
+    assertThat(entries.statusOf("clean.xoo", clean)).isEqualTo(MercurialStatus.CLEAN);
+  }
+
+  @Test
+  public void should_classify_files_with_changed_executable_bit_as_modified() throws IOException {
+    assumeTrue(root.toPath().getFileSystem().supportedFileAttributeViews().contains("posix"));
+    long mtime = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) - 3600;
+    File clean = file("clean.xoo", "abc\n", mtime);
+    File chmoded = file("chmoded.xoo", "abc\n", mtime);
+    Files.setPosixFilePermissions(chmoded.toPath(), PosixFilePermissions.fromString("rwxr-xr-x"));
+    File script = file("script.sh", "abc\n", mtime);
+    Files.setPosixFilePermissions(script.toPath(), PosixFilePermissions.fromString("rwxr-xr-x"));
+    ByteArrayOutputStream dirstate = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(dirstate);
+    out.write(MercurialUtils.parseHex(P1));
+    out.write(new byte[20]);
+    entry(out, 'n', 4, mtime, "chmoded.xoo");
+    entry(out, 'n', 4, mtime, "clean.xoo");
+    entry(out, 'n', 0100755, 4, mtime, "script.sh");
+    write("dirstate", dirstate.toByteArray());
+
+    MercurialDirstate.Entries entries = MercurialDirstate.readEntries(root);
+
+    assertThat(entries.statusOf("chmoded.xoo", chmoded)).isEqualTo(MercurialStatus.MODIFIED);
+    assertThat(entries.statusOf("clean.xoo", clean)).isEqualTo(MercurialStatus.CLEAN);
+    assertThat(entries.statusOf("script.sh", script)).isEqualTo(MercurialStatus.CLEAN);
+    Files.setPosixFilePermissions(script.toPath(), PosixFilePermissions.fromString("rw-r--r--"));
+    assertThat(entries.statusOf("script.sh", script)).isEqualTo(MercurialStatus.MODIFIED);
+  }
+
+  @Test
+  public void should_find_front_coded_paths() throws IOException {
+    ByteArrayOutputStream dirstate = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(dirstate);
+    out.write(MercurialUtils.parseHex(P1));
+    out.write(new byte[20]);
+    for (int i = 99; i >= 0; i--) {
+      entry(out, 'n', i, 0, String.format("src/dir%d/file%02d.xoo", i % 3, i));
+    }
+    entry(out, 'n', 0, 0, "src/\u00e9t\u00e9.xoo");
+    write("dirstate", dirstate.toByteArray());
+
+    MercurialDirstate.Entries entries = MercurialDirstate.readEntries(root);
+
+    assertThat(entries.size()).isEqualTo(101);
+    for (int i = 0; i < 100; i++) {
+      assertThat(entries.indexOf(String.format("src/dir%d/file%02d.xoo", i % 3, i))).isNotNegative();
+    }
+    assertThat(entries.indexOf("src/\u00e9t\u00e9.xoo")).isEqualTo(100);
+    assertThat(entries.indexOf("src/dir0/file00.xoo")).isZero();
+    assertThat(entries.indexOf("src/dir0/file01.xoo")).isEqualTo(-1);
+    assertThat(entries.indexOf("src/dir0/file0")).isEqualTo(-1);
+    assertThat(entries.indexOf("a.xoo")).isEqualTo(-1);
+    assertThat(entries.indexOf("z.xoo")).isEqualTo(-1);
+  }
+
+  @Test
+  public void should_not_read_entries_of_dirstate_v2() throws IOException {
+    write("requires", "dirstate-v2\n".getBytes(StandardCharsets.UTF_8));
+    write("dirstate", new byte[100]);
+
+    thrown.expect(IOException.class);
+    thrown.expectMessage("dirstate-v2");
+    MercurialDirstate.readEntries(root);
+  }
+
+  private File file(String name, String content, long mtime) throws IOException {
+    File file = new File(root, name);
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    Files.setLastModifiedTime(file.toPath(), FileTime.from(mtime, TimeUnit.SECONDS));
+    return file;
+  }
+
+  private static void entry(DataOutputStream out, char state, int size, long mtime, String path) throws IOException {
+    entry(out, state, 0100644, size, mtime, path);
+  }
+
+  private static void entry(DataOutputStream out, char state, int mode, int size, long mtime, String path) throws IOException {
+    byte[] name = path.getBytes(StandardCharsets.UTF_8);
+    out.writeByte(state);
+    out.writeInt(mode);
+    out.writeInt(size);
+    out.writeInt((int) mtime);
+    out.writeInt(name.length);
+    out.write(name);
+  }
+
+  private void write(String name, byte[] content) throws IOException {
+    Files.write(new File(root, ".hg/" + name).toPath(), content);
+  }
+}
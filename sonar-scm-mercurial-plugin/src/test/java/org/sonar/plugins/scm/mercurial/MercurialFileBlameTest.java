@@ -0,0 +1,64 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.util.Date;
+import org.junit.Test;
+import org.sonar.api.batch.scm.BlameLine;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MercurialFileBlameTest {
+
+  private final MercurialChangesetCache.Changeset julien = new MercurialChangesetCache.Changeset("d45dafac0d9a", "julien", new Date(1000));
+  private final MercurialChangesetCache.Changeset jasper = new MercurialChangesetCache.Changeset("2bc1af24477e", "jasper", new Date(2000));
+
+  @Test
+  public void should_grow_beyond_expected_lines() {
+    MercurialFileBlame blame = new MercurialFileBlame(1);
+    blame.add(julien);
+    blame.add(jasper, 3);
+    blame.add(julien);
+
+    assertThat(blame.size()).isEqualTo(5);
+    assertThat(blame.changeset(0)).isSameAs(julien);
+    assertThat(blame.changeset(3)).isSameAs(jasper);
+    assertThat(blame.changeset(4)).isSameAs(julien);
+    assertThat(blame.toBlameLines()).extracting(BlameLine::revision)
+      .containsExactly("d45dafac0d9a", "2bc1af24477e", "2bc1af24477e", "2bc1af24477e", "d45dafac0d9a");
+  }
+
+  @Test
+  public void should_replace_changesets_of_all_lines() {
+    MercurialChangesetCache.Changeset unresolved = MercurialChangesetCache.Changeset.unresolved("d45dafac0d9a");
+    MercurialFileBlame blame = new MercurialFileBlame(0);
+    blame.add(unresolved);
+    blame.add(jasper);
+    blame.add(unresolved);
+
+    blame.replaceChangesets(changeset -> changeset == unresolved ? julien : changeset);
+
+    assertThat(blame.changeset(0)).isSameAs(julien);
+    assertThat(blame.changeset(1)).isSameAs(jasper);
+    assertThat(blame.changeset(2)).isSameAs(julien);
+    assertThat(blame.isEmpty()).isFalse();
+    assertThat(new MercurialFileBlame(10).toBlameLines()).isEmpty();
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import org.junit.Test;
+import org.sonar.api.utils.DateUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MercurialLocalChangesTest {
+
+  private final MercurialChangesetCache.Changeset julien = new MercurialChangesetCache.Changeset("d45dafac0d9a", "julien.henry@sonarsource.com",
+    DateUtils.parseDateTime("2014-11-04T11:01:10+0100"));
+  private final MercurialChangesetCache.Changeset jasper = new MercurialChangesetCache.Changeset("2bc1af24477e", "jasper.de.vries@sonarsource.com",
+    DateUtils.parseDateTime("2013-09-10T10:07:49+0200"));
+  private final MercurialChangesetCache.Changeset uncommitted = new MercurialChangesetCache.Changeset("d45dafac0d9a+", null, new Date());
+
+  @Test
+  public void should_map_committed_blame_onto_current_lines() {
+    MercurialFileBlame committed = blame(julien, jasper, julien, jasper);
+
+    MercurialFileBlame result = MercurialLocalChanges.reconcile(committed, Arrays.asList("a", "b", "c", "d"), Arrays.asList("x", "a", "c", "D", "d", "y"),
+      false, uncommitted);
+
+    assertThat(changesets(result)).containsExactly(uncommitted, julien, julien, uncommitted, jasper, uncommitted);
+  }
+
+  @Test
+  public void should_ignore_whitespaces_like_blame() {
+    MercurialFileBlame committed = blame(julien, jasper);
+
+    assertThat(changesets(MercurialLocalChanges.reconcile(committed, Arrays.asList("a", "b"), Arrays.asList("a", "  b"), true, uncommitted)))
+      .containsExactly(julien, jasper);
+    assertThat(changesets(MercurialLocalChanges.reconcile(committed, Arrays.asList("a", "b"), Arrays.asList("a", "  b"), false, uncommitted)))
+      .containsExactly(julien, uncommitted);
+  }
+
+  @Test
+  public void should_not_reconcile_blame_of_other_content() {
+    assertThat(MercurialLocalChanges.reconcile(blame(julien), Arrays.asList("a", "b"), Arrays.asList("a", "b"), false, uncommitted)).isNull();
+  }
+
+  @Test
+  public void should_split_lines_like_command_output() throws IOException {
+    assertThat(MercurialLocalChanges.split("a\r\nb\n\nc")).containsExactly("a", "b", "", "c");
+    assertThat(MercurialLocalChanges.split("a\n")).containsExactly("a");
+    assertThat(MercurialLocalChanges.split("")).isEmpty();
+  }
+
+  private static MercurialFileBlame blame(MercurialChangesetCache.Changeset... changesets) {
+    MercurialFileBlame blame = new MercurialFileBlame(changesets.length);
+    for (MercurialChangesetCache.Changeset changeset : changesets) {
+      blame.add(changeset);
+    }
+    return blame;
+  }
+
+  private static MercurialChangesetCache.Changeset[] changesets(MercurialFileBlame blame) {
+    MercurialChangesetCache.Changeset[] result = new MercurialChangesetCache.Changeset[blame.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = blame.changeset(i);
+    }
+    return result;
+  }
+}
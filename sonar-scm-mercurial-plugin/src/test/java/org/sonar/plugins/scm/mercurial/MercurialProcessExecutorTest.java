@@ -0,0 +1,126 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.sonar.api.utils.command.Command;
+import org.sonar.api.utils.command.StringStreamConsumer;
+import org.sonar.api.utils.command.TimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+public class MercurialProcessExecutorTest {
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private final MercurialProcessExecutor executor = new MercurialProcessExecutor();
+
+  @Before
+  public void requireShell() {
+    assumeTrue(File.separatorChar == '/');
+  }
+
+  @After
+  public void close() {
+    executor.close();
+  }
+
+  @Test
+  public void should_forward_output_lines_and_exit_code() throws IOException {
+    List<String> lines = new ArrayList<>();
+    StringStreamConsumer stderr = new StringStreamConsumer();
+
+    int exitCode = executor.execute(shell("printf 'first line\\r\\nsecond line\\n\\nthird'; printf 'warning\\n' >&2; exit 3"), lines::add, stderr, -1);
+
+    assertThat(exitCode).isEqualTo(3);
+    assertThat(lines).containsExactly("first line", "second line", "", "third");
+    assertThat(stderr.getOutput()).isEqualTo("warning" + System.lineSeparator());
+  }
+
+  @Test
+  public void should_parse_blame_output_as_bytes() throws IOException {
+    MercurialBlameConsumer consumer = MercurialBlameConsumer.forTemplate("foo.xoo", new MercurialChangesetCache(), 0);
+
+    int exitCode = executor.execute(shell("printf '@foo.xoo\\nd45dafac0d9a 1415095270 -3600 j\\303\\251r\\303\\264me@example.com\\n"
+      + "d45dafac0d9a 1415095270 -3600 j\\303\\251r\\303\\264me@example.com\\n'"), consumer, new StringStreamConsumer(), -1);
+
+    assertThat(exitCode).isZero();
+    assertThat(consumer.getLines()).hasSize(2);
+    assertThat(consumer.getLines().get(0).author()).isEqualTo("jérôme@example.com");
+    assertThat(consumer.getLines().get(0).revision()).isEqualTo("d45dafac0d9a");
+    assertThat(consumer.getLines().get(0).date().getTime()).isEqualTo(1415095270000L);
+  }
+
+  @Test
+  public void should_split_lines_longer_than_the_buffer() throws IOException {
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i < 100_000; i++) {
+      content.append((char) ('a' + i % 26));
+    }
+    String longLine = content.toString();
+    List<String> lines = new ArrayList<>();
+
+    MercurialProcessExecutor.readLines(new ByteArrayInputStream((longLine + "\nshort\n" + longLine).getBytes(StandardCharsets.UTF_8)), lines::add);
+
+    assertThat(lines).containsExactly(longLine, "short", longLine);
+  }
+
+  @Test
+  public void should_kill_process_exceeding_timeout() throws IOException {
+    thrown.expect(TimeoutException.class);
+    thrown.expectMessage("Timeout exceeded: 100 ms");
+
+    executor.execute(shell("exec sleep 10"), line -> {
+    }, new StringStreamConsumer(), 100);
+  }
+
+  @Test
+  public void should_refuse_commands_once_closed() throws IOException {
+    executor.close();
+
+    thrown.expect(IOException.class);
+    executor.execute(shell("true"), line -> {
+    }, new StringStreamConsumer(), -1);
+  }
+
+  @Test
+  public void should_fail_when_process_cannot_be_started() throws IOException {
+    thrown.expect(IOException.class);
+    executor.execute(Command.create("does-not-exist-" + System.nanoTime()), line -> {
+    }, new StringStreamConsumer(), -1);
+  }
+
+  private static Command shell(String script) {
+    return Command.create("sh").addArguments(new String[] {"-c", script}).setDirectory(new File(System.getProperty("java.io.tmpdir")))
+      .setEnvironmentVariable("LC_ALL", "C");
+  }
+}
@@ -0,0 +1,293 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+
+/**
+ * Writes Mercurial repositories in the format of hg (revlogs, store path encoding, dirstate), to test the code
+ * reading them without the hg command. Nodes are computed like Mercurial does, but nothing else is validated.
+ */
+class MercurialRepositoryBuilder {
+
+  private static final byte[] NULL_NODE = new byte[20];
+
+  private final File root;
+  private static final String REQUIREMENTS = "revlogv1\nstore\nfncache\ndotencode\ngeneraldelta\n";
+
+  private final RevlogWriter changelog = new RevlogWriter(true, true);
+  private final RevlogWriter manifestLog = new RevlogWriter(true, true);
+  private final Map<String, RevlogWriter> fileLogs = new TreeMap<>();
+  /**
+   * Manifest of each changeset: file revision by path.
+   */
+  private final List<Map<String, Integer>> manifests = new ArrayList<>();
+  private boolean inlineFileLogs = true;
+  private boolean generalDelta = true;
+  private int parent = -1;
+
+  MercurialRepositoryBuilder(File root) {
+    this.root = root;
+  }
+
+  /**
+   * Store file revisions in separate .d files.
+   */
+  MercurialRepositoryBuilder separateData() {
+    this.inlineFileLogs = false;
+    return this;
+  }
+
+  /**
+   * Store deltas against the previous revision, instead of the parent revision.
+   */
+  MercurialRepositoryBuilder withoutGeneralDelta() {
+    this.generalDelta = false;
+    return this;
+  }
+
+  int commit(String user, long time, Map<String, String> changes) {
+    return commit(parent, -1, user, time, changes, Collections.emptyMap());
+  }
+
+  /**
+   * Commit with the given parents, then check it out. Files are added or modified with the given content, or removed if
+   * the content is null. Copies are given by destination, the source being in the first parent.
+   */
+  int commit(int p1, int p2, String user, long time, Map<String, String> changes, Map<String, String> copies) {
+    Map<String, Integer> manifest = new TreeMap<>(p1 < 0 ? Collections.emptyMap() : manifests.get(p1));
+    Map<String, Integer> other = p2 < 0 ? Collections.emptyMap() : manifests.get(p2);
+    int linkRev = changelog.count();
+    for (Map.Entry<String, String> change : new TreeMap<>(changes).entrySet()) {
+      String path = change.getKey();
+      if (change.getValue() == null) {
+        manifest.remove(path);
+        continue;
+      }
+      RevlogWriter fileLog = fileLogs.computeIfAbsent(path, p -> new RevlogWriter(inlineFileLogs, generalDelta));
+      byte[] content = change.getValue().getBytes(StandardCharsets.UTF_8);
+      String source = copies.get(path);
+      int fileP1 = manifest.getOrDefault(path, -1);
+      int fileP2 = other.getOrDefault(path, -1);
+      if (fileP2 == fileP1) {
+        fileP2 = -1;
+      }
+      if (source != null) {
+        int sourceRev = manifests.get(p1).get(source);
+        String metadata = "\1\ncopy: " + source + "\ncopyrev: " + MercurialUtils.toHex(fileLogs.get(source).node(sourceRev)) + "\n\1\n";
+        content = concat(metadata.getBytes(StandardCharsets.UTF_8), content);
+        fileP1 = -1;
+        fileP2 = -1;
+      }
+      manifest.put(path, fileLog.add(content, linkRev, fileP1, fileP2));
+    }
+    manifests.add(manifest);
+
+    StringBuilder manifestText = new StringBuilder();
+    for (Map.Entry<String, Integer> entry : manifest.entrySet()) {
+      manifestText.append(entry.getKey()).append('\0').append(MercurialUtils.toHex(fileLogs.get(entry.getKey()).node(entry.getValue()))).append('\n');
+    }
+    int manifestRev = manifestLog.add(manifestText.toString().getBytes(StandardCharsets.UTF_8), linkRev, manifestLog.count() - 1, -1);
+    String changesetText = MercurialUtils.toHex(manifestLog.node(manifestRev)) + "\n" + user + "\n" + time + " 0\n"
+      + String.join("\n", new TreeMap<>(changes).keySet()) + "\n\ncommit " + linkRev;
+    changelog.add(changesetText.getBytes(StandardCharsets.UTF_8), linkRev, p1, p2);
+    parent = linkRev;
+    return linkRev;
+  }
+
+  String node(int changeset) {
+    return MercurialUtils.toHex(changelog.node(changeset));
+  }
+
+  void write() throws IOException {
+    File hg = new File(root, ".hg");
+    File store = new File(hg, "store");
+    Files.createDirectories(store.toPath());
+    Files.write(new File(hg, "requires").toPath(), REQUIREMENTS.getBytes(StandardCharsets.UTF_8));
+    changelog.write(new File(store, "00changelog.i"));
+    manifestLog.write(new File(store, "00manifest.i"));
+    MercurialRepository repository = MercurialRepository.open(root);
+    for (Map.Entry<String, RevlogWriter> fileLog : fileLogs.entrySet()) {
+      fileLog.getValue().write(new File(store, repository.storePath("data/" + fileLog.getKey() + ".i")));
+    }
+    repository.close();
+    ByteArrayOutputStream dirstate = new ByteArrayOutputStream();
+    dirstate.write(parent < 0 ? NULL_NODE : changelog.node(parent));
+    dirstate.write(NULL_NODE);
+    Files.write(new File(hg, "dirstate").toPath(), dirstate.toByteArray());
+  }
+
+  private static byte[] concat(byte[] a, byte[] b) {
+    byte[] result = Arrays.copyOf(a, a.length + b.length);
+    System.arraycopy(b, 0, result, a.length, b.length);
+    return result;
+  }
+
+  private static class RevlogWriter {
+    private final boolean inline;
+    private final boolean generalDelta;
+    private final List<byte[]> texts = new ArrayList<>();
+    private final List<byte[]> nodes = new ArrayList<>();
+    private final List<int[]> entries = new ArrayList<>();
+    private final List<byte[]> chunks = new ArrayList<>();
+    private final Map<String, Integer> revsByNode = new HashMap<>();
+
+    RevlogWriter(boolean inline, boolean generalDelta) {
+      this.inline = inline;
+      this.generalDelta = generalDelta;
+    }
+
+    int count() {
+      return texts.size();
+    }
+
+    byte[] node(int rev) {
+      return nodes.get(rev);
+    }
+
+    int add(byte[] text, int linkRev, int p1, int p2) {
+      byte[] node = hash(text, p1 < 0 ? NULL_NODE : nodes.get(p1), p2 < 0 ? NULL_NODE : nodes.get(p2));
+      Integer existing = revsByNode.get(MercurialUtils.toHex(node));
+      if (existing != null) {
+        return existing;
+      }
+      int rev = texts.size();
+      // Full text for the first revision, then deltas against the previous one
+      int base = rev;
+      byte[] data = text;
+      if (rev > 0) {
+        data = delta(texts.get(rev - 1), text);
+        base = generalDelta ? (rev - 1) : entries.get(rev - 1)[1];
+      }
+      byte[] chunk = compress(data);
+      texts.add(text);
+      nodes.add(node);
+      entries.add(new int[] {text.length, base, linkRev, p1, p2});
+      chunks.add(chunk);
+      revsByNode.put(MercurialUtils.toHex(node), rev);
+      return rev;
+    }
+
+    void write(File indexFile) throws IOException {
+      Files.createDirectories(indexFile.getParentFile().toPath());
+      ByteArrayOutputStream index = new ByteArrayOutputStream();
+      ByteArrayOutputStream data = new ByteArrayOutputStream();
+      long offset = 0;
+      for (int rev = 0; rev < texts.size(); rev++) {
+        int[] entry = entries.get(rev);
+        byte[] chunk = chunks.get(rev);
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.putLong((offset << 16));
+        buffer.putInt(chunk.length);
+        buffer.putInt(entry[0]);
+        buffer.putInt(entry[1]);
+        buffer.putInt(entry[2]);
+        buffer.putInt(entry[3]);
+        buffer.putInt(entry[4]);
+        buffer.put(nodes.get(rev));
+        byte[] bytes = buffer.array();
+        if (rev == 0) {
+          int header = 1 | (inline ? (1 << 16) : 0) | (generalDelta ? (1 << 17) : 0);
+          ByteBuffer.wrap(bytes).putInt(header);
+        }
+        index.write(bytes);
+        (inline ? index : data).write(chunk);
+        offset += chunk.length;
+      }
+      Files.write(indexFile.toPath(), index.toByteArray());
+      if (!inline) {
+        String name = indexFile.getName();
+        Files.write(new File(indexFile.getParentFile(), name.substring(0, name.length() - 2) + ".d").toPath(), data.toByteArray());
+      }
+    }
+
+    private static byte[] delta(byte[] base, byte[] text) {
+      int prefix = 0;
+      while (prefix < base.length && prefix < text.length && base[prefix] == text[prefix]) {
+        prefix++;
+      }
+      int suffix = 0;
+      while (suffix < base.length - prefix && suffix < text.length - prefix && base[base.length - 1 - suffix] == text[text.length - 1 - suffix]) {
+        suffix++;
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(12 + text.length - prefix - suffix);
+      buffer.putInt(prefix);
+      buffer.putInt(base.length - suffix);
+      buffer.putInt(text.length - prefix - suffix);
+      buffer.put(text, prefix, text.length - prefix - suffix);
+      return buffer.array();
+    }
+
+    private static byte[] compress(byte[] data) {
+      if (data.length == 0 || data[0] == 0) {
+        return data;
+      }
+      Deflater deflater = new Deflater();
+      deflater.setInput(data);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[1024];
+      while (!deflater.finished()) {
+        out.write(buffer, 0, deflater.deflate(buffer));
+      }
+      deflater.end();
+      byte[] compressed = out.toByteArray();
+      return compressed.length < data.length ? compressed : concat(new byte[] {'u'}, data);
+    }
+
+    private static byte[] hash(byte[] text, byte[] p1, byte[] p2) {
+      try {
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        boolean ordered = compare(p1, p2) <= 0;
+        sha1.update(ordered ? p1 : p2);
+        sha1.update(ordered ? p2 : p1);
+        sha1.update(text);
+        return sha1.digest();
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+      for (int i = 0; i < a.length; i++) {
+        int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+        if (diff != 0) {
+          return diff;
+        }
+      }
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.utils.DateUtils;
+import org.sonar.api.utils.ZipUtils;
+
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MercurialRepositoryTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void should_read_repository_written_by_hg() throws Exception {
+    File projectDir = temp.newFolder();
+    ZipUtils.unzip(new File(getClass().getResource("/dummy-hg.zip").toURI()), projectDir);
+
+    try (MercurialRepository repository = MercurialRepository.open(new File(projectDir, "dummy-hg"));
+      MercurialAnnotate annotate = new MercurialAnnotate(repository, true)) {
+      assertThat(repository.manifest()).containsKeys("pom.xml", "src/main/java/org/dummy/Dummy.java");
+
+      int[] revs = annotate.annotate("src/main/java/org/dummy/Dummy.java");
+      assertThat(revs).hasSize(26);
+      for (int rev : revs) {
+        MercurialRepository.Changeset changeset = repository.changeset(rev);
+        assertThat(changeset.node()).startsWith("f553ba9f524c");
+        assertThat(MercurialUtils.email(changeset.user())).isEqualTo("david@gageot.net");
+        assertThat(changeset.time() * 1000).isEqualTo(DateUtils.parseDateTime("2012-07-18T18:26:11+0200").getTime());
+      }
+    }
+  }
+
+  @Test
+  public void should_read_working_directory_parent() throws IOException {
+    File root = temp.newFolder();
+    MercurialRepositoryBuilder builder = new MercurialRepositoryBuilder(root);
+    builder.commit("julien", 1000, singletonMap("foo.xoo", "a\n"));
+    builder.write();
+
+    try (MercurialRepository repository = MercurialRepository.open(root)) {
+      assertThat(MercurialUtils.toHex(repository.workingDirectoryParent())).isEqualTo(builder.node(0));
+      assertThat(repository.changeset(0).user()).isEqualTo("julien");
+      assertThat(repository.changeset(0).time()).isEqualTo(1000);
+      assertThat(repository.changeset(0)).isSameAs(repository.changeset(0));
+    }
+  }
+
+  @Test
+  public void should_find_ancestors() throws IOException {
+    File root = temp.newFolder();
+    MercurialRepositoryBuilder builder = new MercurialRepositoryBuilder(root);
+    builder.commit("julien", 1000, singletonMap("foo.xoo", "a\n"));
+    builder.commit("julien", 2000, singletonMap("foo.xoo", "b\n"));
+    builder.commit(0, -1, "julien", 3000, singletonMap("bar.xoo", "c\n"), Collections.emptyMap());
+    builder.commit(1, 2, "julien", 4000, singletonMap("bar.xoo", "d\n"), Collections.emptyMap());
+    builder.write();
+
+    try (MercurialRepository repository = MercurialRepository.open(root)) {
+      assertThat(repository.ancestors(singletonList(2)).stream().toArray()).containsExactly(0, 2);
+      assertThat(repository.ancestors(singletonList(3)).stream().toArray()).containsExactly(0, 1, 2, 3);
+      assertThat(repository.ancestors(Arrays.asList(1, 2)).stream().toArray()).containsExactly(0, 1, 2);
+      thrown.expect(IOException.class);
+      thrown.expectMessage("Unknown changeset 4");
+      repository.ancestors(singletonList(4));
+    }
+  }
+
+  @Test
+  public void should_fail_on_unsupported_requirements() throws IOException {
+    File root = temp.newFolder();
+    new File(root, ".hg").mkdir();
+    Files.write(new File(root, ".hg/requires").toPath(), "revlogv1\nstore\ntreemanifest\n".getBytes(StandardCharsets.UTF_8));
+
+    thrown.expect(IOException.class);
+    thrown.expectMessage("Unsupported repository requirement: treemanifest");
+    MercurialRepository.open(root);
+  }
+
+  @Test
+  public void should_fail_on_hashed_store_paths() throws IOException {
+    File root = temp.newFolder();
+    new File(root, ".hg").mkdir();
+    Files.write(new File(root, ".hg/requires").toPath(), "revlogv1\nstore\nfncache\ndotencode\n".getBytes(StandardCharsets.UTF_8));
+
+    try (MercurialRepository repository = MercurialRepository.open(root)) {
+      assertThat(repository.storePath("data/src/Foo.xoo.i")).isEqualTo("data/src/_foo.xoo.i");
+      thrown.expect(IOException.class);
+      thrown.expectMessage("Hashed store path not supported");
+      repository.storePath("data/" + new String(new char[120]).replace('\0', 'a') + ".i");
+    }
+  }
+}
@@ -21,14 +21,30 @@ package org.sonar.plugins.scm.mercurial;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.stubbing.Answer;
+import org.sonar.api.utils.command.Command;
+import org.sonar.api.utils.command.CommandExecutor;
+import org.sonar.api.utils.command.StreamConsumer;
 
 import static org.apache.commons.io.FileUtils.forceMkdir;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 public class MercurialScmProviderTest {
 
@@ -52,6 +68,139 @@ public class MercurialScmProviderTest {
     assertThat(new MercurialScmProvider(mockBlameCommand()).supports(tfsBaseDir)).isTrue();
   }
 
+  @Test
+  public void should_list_files_changed_since_common_ancestor() throws IOException {
+    File root = temp.newFolder();
+    forceMkdir(new File(root, ".hg"));
+    File module = new File(root, "module");
+    forceMkdir(module);
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    when(commandExecutor.execute(any(), any(), any(), anyLong())).thenAnswer((Answer<Integer>) invocation -> {
+      StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+      outConsumer.consumeLine("module/src/foo.xoo");
+      outConsumer.consumeLine("module/src/renamed.xoo");
+      outConsumer.consumeLine("other/bar.xoo");
+      return 0;
+    });
+
+    Path rootPath = root.toPath();
+    assertThat(new MercurialScmProvider(mockBlameCommand(), commandExecutor).branchChangedFiles("default", module.toPath()))
+      .containsOnly(rootPath.resolve("module/src/foo.xoo"), rootPath.resolve("module/src/renamed.xoo"), rootPath.resolve("other/bar.xoo"));
+
+    ArgumentCaptor<Command> command = ArgumentCaptor.forClass(Command.class);
+    verify(commandExecutor).execute(command.capture(), any(), any(), anyLong());
+    assertThat(command.getValue().getDirectory()).isEqualTo(root);
+    assertThat(command.getValue().getArguments()).containsExactly("status", "--rev", "ancestor('default', .)", "--modified", "--added", "--no-status");
+  }
+
+  @Test
+  public void should_not_list_changed_files_when_hg_fails() throws IOException {
+    File root = temp.newFolder();
+    forceMkdir(new File(root, ".hg"));
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    when(commandExecutor.execute(any(), any(), any(), anyLong())).thenAnswer((Answer<Integer>) invocation -> {
+      StreamConsumer errConsumer = (StreamConsumer) invocation.getArguments()[2];
+      errConsumer.consumeLine("abort: unknown revision 'unknown'!");
+      return 255;
+    });
+
+    assertThat(new MercurialScmProvider(mockBlameCommand(), commandExecutor).branchChangedFiles("unknown", root.toPath())).isNull();
+    assertThat(new MercurialScmProvider(mockBlameCommand(), commandExecutor).branchChangedFiles("default", temp.newFolder().toPath())).isNull();
+  }
+
+  @Test
+  public void should_find_changed_lines_with_a_single_diff() throws IOException {
+    File root = temp.newFolder();
+    forceMkdir(new File(root, ".hg"));
+    File module = new File(root, "module");
+    forceMkdir(module);
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    when(commandExecutor.execute(any(), any(), any(), anyLong())).thenAnswer((Answer<Integer>) invocation -> {
+      StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+      Arrays.asList(
+        "diff --git a/module/src/foo.xoo b/module/src/foo.xoo",
+        "--- a/module/src/foo.xoo",
+        "+++ b/module/src/foo.xoo",
+        "@@ -2,2 +2,3 @@",
+        "-b",
+        "-c",
+        "+B",
+        "+C",
+        "+D",
+        "@@ -7 +8,0 @@",
+        "-g")
+        .forEach(outConsumer::consumeLine);
+      return 0;
+    });
+    Path foo = module.toPath().resolve("src/foo.xoo");
+    Path unchanged = module.toPath().resolve("src/unchanged.xoo");
+
+    Map<Path, Set<Integer>> changedLines = new MercurialScmProvider(mockBlameCommand(), commandExecutor).branchChangedLines("default", module.toPath(),
+      new HashSet<>(Arrays.asList(foo, unchanged)));
+
+    assertThat(changedLines).containsOnlyKeys(foo);
+    assertThat(changedLines.get(foo)).containsExactly(2, 3, 4).hasSize(3);
+    assertThat(changedLines.get(foo).contains(4)).isTrue();
+    assertThat(changedLines.get(foo).contains(5)).isFalse();
+    ArgumentCaptor<Command> command = ArgumentCaptor.forClass(Command.class);
+    verify(commandExecutor).execute(command.capture(), any(), any(), anyLong());
+    assertThat(command.getValue().getDirectory()).isEqualTo(root);
+    assertThat(command.getValue().getArguments()).startsWith("diff", "--git", "--unified", "0", "--rev", "ancestor('default', .)", "--")
+      .contains("path:module/src/foo.xoo", "path:module/src/unchanged.xoo");
+  }
+
+  @Test
+  public void should_not_find_changed_lines_when_hg_fails() throws IOException {
+    File root = temp.newFolder();
+    forceMkdir(new File(root, ".hg"));
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    when(commandExecutor.execute(any(), any(), any(), anyLong())).thenReturn(255);
+
+    assertThat(new MercurialScmProvider(mockBlameCommand(), commandExecutor).branchChangedLines("unknown", root.toPath(),
+      new HashSet<>(Arrays.asList(root.toPath().resolve("foo.xoo"))))).isNull();
+  }
+
+  @Test
+  public void should_read_revision_from_dirstate() throws IOException {
+    File root = temp.newFolder();
+    forceMkdir(new File(root, ".hg"));
+    String node = "d45dafac0d9a1b2c3d4e5f60718293a4b5c6d7e8";
+    byte[] dirstate = Arrays.copyOf(MercurialUtils.parseHex(node), 40);
+    Files.write(new File(root, ".hg/dirstate").toPath(), dirstate);
+    File module = new File(root, "module");
+    forceMkdir(module);
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+
+    MercurialScmProvider provider = new MercurialScmProvider(mockBlameCommand(), commandExecutor);
+
+    assertThat(provider.revisionId(module.toPath())).isEqualTo(node);
+    assertThat(provider.revisionId(temp.newFolder().toPath())).isNull();
+    verify(commandExecutor, never()).execute(any(), any(), any(), anyLong());
+  }
+
+  @Test
+  public void should_read_revision_with_hg_when_dirstate_is_not_supported() throws IOException {
+    File root = temp.newFolder();
+    forceMkdir(new File(root, ".hg"));
+    Files.write(new File(root, ".hg/dirstate").toPath(), new byte[10]);
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    when(commandExecutor.execute(any(), any(), any(), anyLong())).thenAnswer((Answer<Integer>) invocation -> {
+      StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+      outConsumer.consumeLine("d45dafac0d9a1b2c3d4e5f60718293a4b5c6d7e8");
+      return 0;
+    });
+
+    assertThat(new MercurialScmProvider(mockBlameCommand(), commandExecutor).revisionId(root.toPath())).isEqualTo("d45dafac0d9a1b2c3d4e5f60718293a4b5c6d7e8");
+    ArgumentCaptor<Command> command = ArgumentCaptor.forClass(Command.class);
+    verify(commandExecutor).execute(command.capture(), any(), any(), anyLong());
+    assertThat(command.getValue().getArguments()).containsExactly("log", "--rev", ".", "--template", "{node}");
+  }
+
+  @Test
+  public void should_quote_target_branch_in_revset() {
+    assertThat(MercurialBranchChanges.ancestorRevset("feature's \\branch")).isEqualTo("ancestor('feature\\'s \\\\branch', .)");
+  }
+
   private static MercurialBlameCommand mockBlameCommand() {
     return mock(MercurialBlameCommand.class);
   }
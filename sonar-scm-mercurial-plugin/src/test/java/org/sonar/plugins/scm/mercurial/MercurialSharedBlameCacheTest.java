@@ -0,0 +1,139 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.utils.DateUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MercurialSharedBlameCacheTest {
+
+  private static final String NODE_1 = "1111111111111111111111111111111111111111";
+  private static final String NODE_2 = "2222222222222222222222222222222222222222";
+  private static final String FOO = "src/foo.xoo";
+  private static final String BAR = "src/bar.xoo";
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private final MercurialChangesetCache.Changeset julien = new MercurialChangesetCache.Changeset("d45dafac0d9a", "julien.henry@sonarsource.com",
+    DateUtils.parseDateTime("2014-11-04T11:01:10+0100"));
+  private final MercurialChangesetCache.Changeset jasper = new MercurialChangesetCache.Changeset("2bc1af24477e", "jasper.de.vries@sonarsource.com",
+    DateUtils.parseDateTime("2013-09-10T10:07:49+0200"));
+
+  @Test
+  public void should_share_blame_between_instances() throws IOException {
+    File root = temp.newFolder();
+    MercurialSharedBlameCache cache = new MercurialSharedBlameCache(root, "-w", new MercurialChangesetCache());
+    assertThat(cache.get(FOO, NODE_1)).isNull();
+    cache.put(FOO, NODE_1, blame(julien, julien, jasper, julien));
+
+    MercurialChangesetCache changesets = new MercurialChangesetCache();
+    MercurialSharedBlameCache other = new MercurialSharedBlameCache(root, "-w", changesets);
+    assertThat(other.contains(FOO, NODE_1)).isTrue();
+    assertThat(other.contains(FOO, NODE_2)).isFalse();
+    assertThat(other.get(FOO, NODE_1).toBlameLines()).isEqualTo(blame(julien, julien, jasper, julien).toBlameLines());
+    assertThat(other.get(FOO, NODE_2)).isNull();
+    assertThat(other.hits()).isEqualTo(1);
+    // Changesets of the cache are shared with the ones found by blame
+    assertThat(changesets.size()).isEqualTo(2);
+    // Blame with other options is stored separately
+    assertThat(new MercurialSharedBlameCache(root, "whitespaces", new MercurialChangesetCache()).get(FOO, NODE_1)).isNull();
+  }
+
+  @Test
+  public void should_ignore_corrupted_entries() throws IOException {
+    File root = temp.newFolder();
+    MercurialSharedBlameCache cache = new MercurialSharedBlameCache(root, "-w", new MercurialChangesetCache());
+    cache.put(FOO, NODE_1, blame(julien, jasper));
+    File entry = FileUtils.listFiles(root, null, true).iterator().next();
+    assertThat(entry.getName()).hasSize(40).startsWith(entry.getParentFile().getName());
+
+    FileUtils.write(entry, "garbage");
+    assertThat(cache.get(FOO, NODE_1)).isNull();
+    cache.put(FOO, NODE_1, blame(jasper));
+    assertThat(cache.get(FOO, NODE_1).toBlameLines()).isEqualTo(blame(jasper).toBlameLines());
+  }
+
+  @Test
+  public void should_never_read_partially_written_entries() throws Exception {
+    File root = temp.newFolder();
+    MercurialChangesetCache.Changeset[] lines = new MercurialChangesetCache.Changeset[1000];
+    for (int i = 0; i < lines.length; i++) {
+      lines[i] = i % 3 == 0 ? julien : jasper;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < 4; t++) {
+        futures.add(executor.submit(() -> {
+          // Each thread has its own instance, like the analyses of different processes
+          MercurialSharedBlameCache cache = new MercurialSharedBlameCache(root, "-w", new MercurialChangesetCache());
+          for (int i = 0; i < 50; i++) {
+            cache.put(FOO, NODE_1, blame(lines));
+            MercurialFileBlame blame = cache.get(FOO, NODE_1);
+            assertThat(blame).isNotNull();
+            assertThat(blame.toBlameLines()).isEqualTo(blame(lines).toBlameLines());
+          }
+          return null;
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertThat(FileUtils.listFiles(root, null, true)).hasSize(1);
+  }
+
+  @Test
+  public void should_not_share_blame_of_files_with_same_node() throws IOException {
+    File root = temp.newFolder();
+    MercurialSharedBlameCache cache = new MercurialSharedBlameCache(root, "-w", new MercurialChangesetCache());
+    // Same content added without history in two changesets
+    cache.put(FOO, NODE_1, blame(julien));
+    assertThat(cache.contains(BAR, NODE_1)).isFalse();
+    assertThat(cache.get(BAR, NODE_1)).isNull();
+    cache.put(BAR, NODE_1, blame(jasper));
+
+    assertThat(cache.get(FOO, NODE_1).toBlameLines()).isEqualTo(blame(julien).toBlameLines());
+    assertThat(cache.get(BAR, NODE_1).toBlameLines()).isEqualTo(blame(jasper).toBlameLines());
+  }
+
+  private static MercurialFileBlame blame(MercurialChangesetCache.Changeset... changesets) {
+    MercurialFileBlame blame = new MercurialFileBlame(changesets.length);
+    for (MercurialChangesetCache.Changeset changeset : changesets) {
+      blame.add(changeset);
+    }
+    return blame;
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Mercurial
+ * Copyright (C) 2014-2018 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.mercurial;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MercurialWhitespaceChangesConsumerTest {
+
+  @Test
+  public void should_find_files_with_whitespace_changes() {
+    MercurialWhitespaceChangesConsumer consumer = new MercurialWhitespaceChangesConsumer();
+    Arrays.asList(
+      // Lines moved and modified, without whitespace changes
+      "diff --git a/moved.xoo b/moved.xoo",
+      "--- a/moved.xoo",
+      "+++ b/moved.xoo",
+      "@@ -1,4 +1,4 @@",
+      "-}",
+      "-a",
+      " b",
+      "+}",
+      "+A",
+      // Reindented line
+      "diff --git a/reindented.xoo b/reindented.xoo",
+      "--- a/reindented.xoo",
+      "+++ b/reindented.xoo",
+      "@@ -1,1 +1,1 @@",
+      "-\tfoo();",
+      "+    foo();",
+      // Added line only differing from an unchanged one by its whitespaces
+      "diff --git a/context.xoo b/context.xoo",
+      "--- a/context.xoo",
+      "+++ b/context.xoo",
+      "@@ -1,1 +1,2 @@",
+      " }",
+      "+  }",
+      "\\ No newline at end of file",
+      // The same path in another changeset, the lines of the diffs are not compared
+      "diff --git a/moved.xoo b/moved.xoo",
+      "--- a/moved.xoo",
+      "+++ b/moved.xoo",
+      "@@ -1,1 +1,1 @@",
+      "-  }",
+      "+x",
+      // Headers of a renamed file are not diff lines
+      "diff --git a/old name.xoo b/new name.xoo",
+      "rename from old name.xoo",
+      "rename to new name.xoo",
+      "--- a/old name.xoo",
+      "+++ b/new name.xoo",
+      "@@ -1,1 +1,1 @@",
+      "-a ",
+      "+a")
+      .forEach(consumer::consumeLine);
+
+    assertThat(consumer.getChangedPaths()).containsOnly("reindented.xoo", "context.xoo", "new name.xoo");
+  }
+}